@@ -0,0 +1,85 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * An entry of the change journal (see {@link JiraPluginChangeJournal}).<br/>
+ * <ul>
+ * <li>sequence : the sequence number of the entry (monotonic)</li>
+ * <li>issueId : the id of the changed issue</li>
+ * <li>projectId : the id of the project of the issue (the project unique
+ * id)</li>
+ * <li>eventTypeId : the JIRA event type of the change</li>
+ * <li>timestamp : the time at which the change was notified by JIRA</li>
+ * </ul>
+ *
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ChangeJournalEntry {
+    private long sequence;
+    private long issueId;
+    private long projectId;
+    private long eventTypeId;
+    private long timestamp;
+
+    public ChangeJournalEntry() {
+    }
+
+    public ChangeJournalEntry(long sequence, long issueId, long projectId, long eventTypeId, long timestamp) {
+        this.sequence = sequence;
+        this.issueId = issueId;
+        this.projectId = projectId;
+        this.eventTypeId = eventTypeId;
+        this.timestamp = timestamp;
+    }
+
+    @XmlElement(name = "sequence")
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    @XmlElement(name = "issueId")
+    public long getIssueId() {
+        return issueId;
+    }
+
+    public void setIssueId(long issueId) {
+        this.issueId = issueId;
+    }
+
+    @XmlElement(name = "projectId")
+    public long getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(long projectId) {
+        this.projectId = projectId;
+    }
+
+    @XmlElement(name = "eventTypeId")
+    public long getEventTypeId() {
+        return eventTypeId;
+    }
+
+    public void setEventTypeId(long eventTypeId) {
+        this.eventTypeId = eventTypeId;
+    }
+
+    @XmlElement(name = "timestamp")
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,290 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.codehaus.jackson.jaxrs.JacksonJaxbJsonProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.RequirementsCountRequestStructure;
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.RequirementsRequestStructure;
+
+/**
+ * The asynchronous version of the search paths of the
+ * {@link JiraPluginRestApi}: [JIRA]/plugins/servlet/bizdock/api/[path] serves
+ * the POST requests of the paths which search the issues (needs/find,
+ * defects/find, needs/count, defects/count, requirements/count,
+ * needs/aggregate, defects/aggregate) like [JIRA]/rest/[plugin]/api/[path].
+ * The other paths are served by the REST API only.<br/>
+ * The requests are served by the methods of the REST resource: the
+ * authentication, the validation, the answers (including the headers) and the
+ * errors are the ones of the REST API. The bodies are read and written by the
+ * JAX-RS providers of the REST API: the {@link JiraPluginJsonWriter} for the
+ * structures it writes, the Jackson JAXB provider of the REST module for the
+ * others.<br/>
+ * The requests are suspended (servlet async support) while the search, the
+ * mapping and the serialization run in the plugin API executor: the container
+ * thread is released immediately, so that the long synchronizations do not
+ * use the threads which serve the JIRA users. A request which cannot be
+ * queued in the API executor is rejected as OVERLOADED, a request which times
+ * out is answered as TIMEOUT and its work is cancelled.<br/>
+ * This end point is a servlet because the JAX-RS version of JIRA cannot
+ * suspend a request. A request can only be suspended if the servlet and all
+ * the filters of its path are declared async-supported: otherwise the request
+ * is served synchronously (and this is logged once).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginAsyncApiServlet extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginAsyncApiServlet.class);
+    private static final long serialVersionUID = 5937112368925417002L;
+
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+    /**
+     * The JSON provider of the structures which are not written by the
+     * {@link JiraPluginJsonWriter} (the one of the REST module)
+     */
+    private static final JacksonJaxbJsonProvider JSON_PROVIDER = new JacksonJaxbJsonProvider();
+
+    private static final JiraPluginJsonWriter API_WRITER = new JiraPluginJsonWriter();
+
+    private static final Map<String, Route> ROUTES = createRoutes();
+
+    private static final AtomicBoolean asyncUnsupportedLogged = new AtomicBoolean();
+
+    private JiraPluginServiceProvider jiraPluginServiceProvider;
+
+    public JiraPluginAsyncApiServlet(JiraPluginServiceProvider jiraPluginServiceProvider) {
+        this.jiraPluginServiceProvider = jiraPluginServiceProvider;
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        final Route route = ROUTES.get(request.getPathInfo());
+        if (route == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final JiraPluginRestApi restApi = new JiraPluginRestApi(getJiraPluginServiceProvider(), request);
+        if (!request.isAsyncSupported()) {
+            if (asyncUnsupportedLogged.compareAndSet(false, true)) {
+                log.warn("The asynchronous requests are not supported by the container for " + request.getRequestURI()
+                        + " : the API requests hold a container thread, the servlet and all the filters of its path must be declared async-supported");
+            }
+            writeResponse(response, invoke(route, restApi, request));
+            return;
+        }
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        // Only one of the work and the timeout answers the request
+        final AtomicBoolean answered = new AtomicBoolean(false);
+        final AtomicReference<Future<?>> work = new AtomicReference<Future<?>>();
+        try {
+            asyncContext.setTimeout(getJiraPluginServiceProvider().getApiRequestTimeout());
+            asyncContext.addListener(new AsyncListener() {
+                @Override
+                public void onTimeout(AsyncEvent event) throws IOException {
+                    if (answered.compareAndSet(false, true)) {
+                        // The search is abandoned (see
+                        // JiraPluginSearchExecutor), its slot is released
+                        Future<?> future = work.get();
+                        if (future != null) {
+                            future.cancel(true);
+                        }
+                        try {
+                            writeResponse((HttpServletResponse) asyncContext.getResponse(),
+                                    JiraPluginRestApi.returnErrorResponseOnException(new JiraPluginTimeoutException("API request abandoned after "
+                                            + asyncContext.getTimeout() + " ms")));
+                        } finally {
+                            asyncContext.complete();
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(AsyncEvent event) throws IOException {
+                    answered.set(true);
+                }
+
+                @Override
+                public void onComplete(AsyncEvent event) throws IOException {
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) throws IOException {
+                }
+            });
+            work.set(getJiraPluginServiceProvider().executeApiRequest(new Runnable() {
+                @Override
+                public void run() {
+                    if (answered.get()) {
+                        return;
+                    }
+                    Response apiResponse = invoke(route, restApi, request);
+                    if (!answered.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        writeResponse((HttpServletResponse) asyncContext.getResponse(), apiResponse);
+                    } catch (Exception e) {
+                        log.debug("Unable to write an API response", e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            }));
+        } catch (JiraPluginException e) {
+            if (answered.compareAndSet(false, true)) {
+                try {
+                    writeResponse(response, JiraPluginRestApi.returnErrorResponseOnException(e));
+                } finally {
+                    asyncContext.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Call the REST resource (the errors are answered like by the REST API)
+     */
+    private static Response invoke(Route route, JiraPluginRestApi restApi, HttpServletRequest request) {
+        try {
+            return route.invoke(restApi, request);
+        } catch (Exception e) {
+            return JiraPluginRestApi.returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * Write the answer of the REST resource (with the JAX-RS providers of the
+     * REST API)
+     */
+    private static void writeResponse(HttpServletResponse response, Response apiResponse) throws IOException {
+        response.setStatus(apiResponse.getStatus());
+        for (Map.Entry<String, List<Object>> header : apiResponse.getMetadata().entrySet()) {
+            for (Object value : header.getValue()) {
+                response.addHeader(header.getKey(), toHeaderValue(value));
+            }
+        }
+        Object entity = apiResponse.getEntity();
+        if (entity == null) {
+            return;
+        }
+        Class<?> type = entity.getClass();
+        Type genericType = type;
+        if (entity instanceof GenericEntity) {
+            type = ((GenericEntity<?>) entity).getRawType();
+            genericType = ((GenericEntity<?>) entity).getType();
+            entity = ((GenericEntity<?>) entity).getEntity();
+        }
+        response.setContentType(MediaType.APPLICATION_JSON);
+        response.setCharacterEncoding("UTF-8");
+        if (API_WRITER.isWriteable(type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE)) {
+            API_WRITER.writeTo(entity, type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, response.getOutputStream());
+        } else {
+            JSON_PROVIDER.writeTo(entity, type, genericType, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, response.getOutputStream());
+        }
+        response.flushBuffer();
+    }
+
+    private static String toHeaderValue(Object value) {
+        if (value instanceof EntityTag) {
+            EntityTag entityTag = (EntityTag) value;
+            return (entityTag.isWeak() ? "W/" : "") + "\"" + entityTag.getValue() + "\"";
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Read the JSON body of a request (with the JSON provider of the REST
+     * API)
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T readBody(HttpServletRequest request, Class<T> type) throws IOException {
+        return (T) JSON_PROVIDER.readFrom((Class<Object>) type, type, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, null, request.getInputStream());
+    }
+
+    /**
+     * The search paths of the {@link JiraPluginRestApi} (by path)
+     */
+    private static Map<String, Route> createRoutes() {
+        Map<String, Route> routes = new HashMap<String, Route>();
+        routes.put("/defects/find", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getDefectsFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        routes.put("/needs/find", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getNeedsFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        routes.put("/defects/count", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getDefectsCountFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        routes.put("/needs/count", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getNeedsCountFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        routes.put("/requirements/count", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getRequirementsCountFromProjectIds(readBody(request, RequirementsCountRequestStructure.class));
+            }
+        });
+        routes.put("/defects/aggregate", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getDefectsAggregateFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        routes.put("/needs/aggregate", new Route() {
+            @Override
+            Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws IOException {
+                return restApi.getNeedsAggregateFromProjectId(readBody(request, RequirementsRequestStructure.class));
+            }
+        });
+        return routes;
+    }
+
+    private JiraPluginServiceProvider getJiraPluginServiceProvider() {
+        return jiraPluginServiceProvider;
+    }
+
+    /**
+     * A search path of the REST API
+     */
+    private abstract static class Route {
+        /**
+         * Call the method of the REST resource which serves this path
+         */
+        abstract Response invoke(JiraPluginRestApi restApi, HttpServletRequest request) throws Exception;
+    }
+}
@@ -0,0 +1,608 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of the issue changes (see
+ * {@link ChangeJournalEntry}) stored in segment files.<br/>
+ * <ul>
+ * <li>Each entry gets a monotonic sequence number: a client reads the
+ * entries after the last sequence it has processed (see
+ * {@link #read(long, int)})</li>
+ * <li>The entries are fixed size records appended to the active segment,
+ * which is memory-mapped. A full segment is closed and a new one is
+ * created</li>
+ * <li>The closed segments are periodically compacted (see
+ * {@link #compact()}): only the latest entry of each issue is kept. The
+ * sequence numbers are unchanged, a client which resumes from an old
+ * sequence still gets the latest change of each issue</li>
+ * </ul>
+ * A segment file starts with a header (magic number, format version, first
+ * sequence covered, last sequence covered, compaction generation). The
+ * segments created by a compaction replace the segments with a lower
+ * generation which cover the same sequences (also when the journal is
+ * opened after an interrupted compaction).<br/>
+ * Each record ends with a checksum of its fields. The pages of a mapped
+ * segment are not written to the disk atomically nor in order (and a record
+ * may straddle two pages): after a crash, the active segment is truncated
+ * before its first incomplete record when the journal is opened.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginChangeJournal {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginChangeJournal.class);
+
+    /**
+     * The maximum number of entries in a segment
+     */
+    public static final int SEGMENT_CAPACITY = 65536;
+
+    private static final int MAGIC_NUMBER = 0x42444a4c;
+    private static final int FORMAT_VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 48;
+    private static final int BUFFER_RECORDS = 1024;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int segmentCapacity;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment activeSegment;
+    private long lastSequence;
+    private long generation;
+    private boolean compacting;
+
+    /**
+     * Creates a journal
+     *
+     * @param directory
+     *            the directory of the segment files
+     */
+    public JiraPluginChangeJournal(File directory) {
+        this(directory, SEGMENT_CAPACITY);
+    }
+
+    /**
+     * Creates a journal with the specified segment capacity
+     *
+     * @param directory
+     *            the directory of the segment files
+     * @param segmentCapacity
+     *            the maximum number of entries in a segment
+     */
+    JiraPluginChangeJournal(File directory, int segmentCapacity) {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+    }
+
+    /**
+     * Load the existing segments
+     *
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the journal directory " + directory);
+        }
+        List<Segment> loadedSegments = new ArrayList<Segment>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                // Interrupted compaction
+                deleteFile(file);
+            } else if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    loadedSegments.add(Segment.load(file));
+                } catch (IOException e) {
+                    log.error("Unreadable journal segment " + file + ", it is ignored", e);
+                }
+            }
+        }
+        // The segments of the most recent compactions first
+        Collections.sort(loadedSegments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                return s1.getGeneration() != s2.getGeneration() ? (s1.getGeneration() > s2.getGeneration() ? -1 : 1) : 0;
+            }
+        });
+        List<Segment> acceptedSegments = new ArrayList<Segment>();
+        for (Segment segment : loadedSegments) {
+            boolean replaced = false;
+            for (Segment acceptedSegment : acceptedSegments) {
+                if (segment.getFirstSequence() <= acceptedSegment.getLastCoveredSequence()
+                        && acceptedSegment.getFirstSequence() <= segment.getLastCoveredSequence()) {
+                    replaced = true;
+                    break;
+                }
+            }
+            if (replaced) {
+                deleteFile(segment.getFile());
+            } else {
+                acceptedSegments.add(segment);
+                generation = Math.max(generation, segment.getGeneration());
+            }
+        }
+        for (Segment segment : acceptedSegments) {
+            segments.put(segment.getFirstSequence(), segment);
+        }
+        if (!segments.isEmpty()) {
+            Segment lastSegment = segments.lastEntry().getValue();
+            lastSequence = lastSegment.getLastCoveredSequence();
+            if (lastSegment.isWritable() && !lastSegment.isFull()) {
+                activeSegment = lastSegment;
+            }
+        }
+        log.info("Change journal opened with " + segments.size() + " segments, last sequence " + lastSequence);
+    }
+
+    /**
+     * Append an entry
+     *
+     * @param issueId
+     *            the issue id
+     * @param projectId
+     *            the id of the project of the issue
+     * @param eventTypeId
+     *            the JIRA event type
+     * @param timestamp
+     *            the time of the change
+     * @return the sequence of the entry
+     * @throws IOException
+     */
+    public synchronized long append(long issueId, long projectId, long eventTypeId, long timestamp) throws IOException {
+        if (activeSegment == null || activeSegment.isFull()) {
+            if (activeSegment != null) {
+                activeSegment.force();
+            }
+            activeSegment = Segment.create(new File(directory, getSegmentFileName(lastSequence + 1, 0)), lastSequence + 1, segmentCapacity);
+            segments.put(activeSegment.getFirstSequence(), activeSegment);
+        }
+        lastSequence++;
+        activeSegment.append(lastSequence, timestamp, issueId, projectId, eventTypeId);
+        return lastSequence;
+    }
+
+    /**
+     * Return the entries which follow the specified sequence
+     *
+     * @param afterSequence
+     *            the last sequence already processed by the client (0 to read
+     *            from the beginning)
+     * @param maxEntries
+     *            the maximum number of entries returned
+     * @return the entries in the sequence order
+     */
+    public synchronized List<ChangeJournalEntry> read(long afterSequence, int maxEntries) {
+        List<ChangeJournalEntry> entries = new ArrayList<ChangeJournalEntry>();
+        Long firstKey = segments.floorKey(afterSequence + 1);
+        Map<Long, Segment> candidates = firstKey != null ? segments.tailMap(firstKey, true) : segments;
+        for (Segment segment : candidates.values()) {
+            for (int i = segment.indexAfter(afterSequence); i < segment.getCount() && entries.size() < maxEntries; i++) {
+                entries.add(segment.read(i));
+            }
+            if (entries.size() >= maxEntries) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Return the sequence of the last entry appended (0 if none)
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Flush the active segment to the disk
+     */
+    public synchronized void force() {
+        if (activeSegment != null) {
+            activeSegment.force();
+        }
+    }
+
+    /**
+     * Rewrite the closed segments keeping only the latest entry of each issue
+     * (the entries of the active segment are taken into account but this
+     * segment is not modified).<br/>
+     * The closed segments are replaced by a single segment which is written
+     * into a temporary file and then renamed: the segments are scanned and
+     * rewritten without holding the lock (the appends and reads are not
+     * blocked meanwhile), the lock is only taken to list the segments and to
+     * swap them. The rename is the only step which changes the journal on
+     * the disk.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        List<Segment> closedSegments = new ArrayList<Segment>();
+        Segment scannedActiveSegment;
+        int scannedActiveCount;
+        long compactionGeneration;
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment) {
+                    closedSegments.add(segment);
+                }
+            }
+            if (closedSegments.isEmpty()) {
+                return;
+            }
+            compacting = true;
+            compactionGeneration = generation + 1;
+            scannedActiveSegment = activeSegment;
+            scannedActiveCount = activeSegment != null ? activeSegment.getCount() : 0;
+        }
+        try {
+            // The closed segments are not modified and the records of the
+            // active segment below its count are written once: they are
+            // scanned outside the lock (an entry appended meanwhile is more
+            // recent than the entries of the closed segments, ignoring it
+            // keeps one more entry at most)
+            Map<Long, Long> latestSequences = new HashMap<Long, Long>();
+            for (Segment segment : closedSegments) {
+                for (int i = 0; i < segment.getCount(); i++) {
+                    latestSequences.put(segment.getIssueId(i), segment.getSequence(i));
+                }
+            }
+            for (int i = 0; i < scannedActiveCount; i++) {
+                latestSequences.put(scannedActiveSegment.getIssueId(i), scannedActiveSegment.getSequence(i));
+            }
+            long firstCovered = closedSegments.get(0).getFirstSequence();
+            long lastCovered = closedSegments.get(closedSegments.size() - 1).getLastCoveredSequence();
+            String segmentFileName = getSegmentFileName(firstCovered, compactionGeneration);
+            File temporaryFile = new File(directory, segmentFileName + TEMPORARY_SUFFIX);
+            int kept = 0;
+            int total = 0;
+            FileOutputStream out = new FileOutputStream(temporaryFile);
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+                // The compacted segment covers the whole range even if no
+                // entry is kept (the last sequence is not lost)
+                Segment.writeHeader(buffer, firstCovered, lastCovered, compactionGeneration);
+                for (Segment segment : closedSegments) {
+                    for (int i = 0; i < segment.getCount(); i++) {
+                        total++;
+                        if (latestSequences.get(segment.getIssueId(i)) != segment.getSequence(i)) {
+                            continue;
+                        }
+                        if (buffer.remaining() < RECORD_SIZE) {
+                            writeFully(channel, buffer);
+                        }
+                        segment.copy(i, buffer);
+                        kept++;
+                    }
+                }
+                writeFully(channel, buffer);
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                File segmentFile = new File(directory, segmentFileName);
+                moveFile(temporaryFile, segmentFile);
+                Segment compactedSegment = Segment.load(segmentFile);
+                for (Segment segment : closedSegments) {
+                    segments.remove(segment.getFirstSequence());
+                    deleteFile(segment.getFile());
+                }
+                segments.put(compactedSegment.getFirstSequence(), compactedSegment);
+                generation = compactionGeneration;
+            }
+            log.info("Change journal compacted : " + kept + " entries kept out of " + total);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static String getSegmentFileName(long firstSequence, long segmentGeneration) {
+        return String.format("%s%020d-%d%s", SEGMENT_PREFIX, firstSequence, segmentGeneration, SEGMENT_SUFFIX);
+    }
+
+    private static void moveFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            // A file still mapped cannot be deleted on some platforms, it
+            // will be replaced when the journal is opened again
+            log.warn("Unable to delete the journal file " + file);
+        }
+    }
+
+    /**
+     * A segment file (memory-mapped)
+     */
+    private static class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final boolean writable;
+        private final long firstSequence;
+        private final long lastCoveredSequence;
+        private final long generation;
+        private final int capacity;
+        private int count;
+
+        private Segment(File file, MappedByteBuffer buffer, boolean writable, long firstSequence, long lastCoveredSequence, long generation,
+                int capacity, int count) {
+            this.file = file;
+            this.buffer = buffer;
+            this.writable = writable;
+            this.firstSequence = firstSequence;
+            this.lastCoveredSequence = lastCoveredSequence;
+            this.generation = generation;
+            this.capacity = capacity;
+            this.count = count;
+        }
+
+        /**
+         * Create a new (empty) segment which is appended to
+         */
+        static Segment create(File file, long firstSequence, int capacity) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+                writeHeader(buffer, firstSequence, 0, 0);
+                return new Segment(file, buffer, true, firstSequence, 0, 0, capacity, 0);
+            } finally {
+                // The mapping remains valid once the file is closed
+                randomAccessFile.close();
+            }
+        }
+
+        /**
+         * Load an existing segment (a segment created by a compaction is
+         * read-only).<br/>
+         * A segment which is appended to is truncated before its first
+         * incomplete record (the following records are erased). A compacted
+         * segment with an incomplete record is rejected.
+         */
+        static Segment load(File file) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                if (randomAccessFile.length() < HEADER_SIZE) {
+                    throw new IOException("Truncated segment");
+                }
+                long length = randomAccessFile.length();
+                randomAccessFile.seek(0);
+                if (randomAccessFile.readInt() != MAGIC_NUMBER || randomAccessFile.readInt() != FORMAT_VERSION) {
+                    throw new IOException("Not a journal segment or unsupported format version");
+                }
+                long firstSequence = randomAccessFile.readLong();
+                long lastCoveredSequence = randomAccessFile.readLong();
+                long generation = randomAccessFile.readLong();
+                boolean writable = generation == 0;
+                int capacity = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+                MappedByteBuffer buffer = randomAccessFile.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+                        length);
+                Segment segment = new Segment(file, buffer, writable, firstSequence, lastCoveredSequence, generation, capacity, capacity);
+                if (writable) {
+                    // The records of a segment which is appended to have
+                    // consecutive sequences, the unused records are zeros
+                    int count = 0;
+                    while (count < capacity && segment.getSequence(count) == firstSequence + count && segment.isComplete(count)) {
+                        count++;
+                    }
+                    int erased = segment.erase(count);
+                    if (erased > 0) {
+                        log.warn(erased + " incomplete or orphan records erased from the journal segment " + file);
+                    }
+                    segment.count = count;
+                } else {
+                    for (int i = 0; i < capacity; i++) {
+                        if (!segment.isComplete(i)) {
+                            throw new IOException("Incomplete record " + i + " in the compacted segment");
+                        }
+                    }
+                }
+                return segment;
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        static void writeHeader(ByteBuffer header, long firstSequence, long lastCoveredSequence, long generation) {
+            header.putInt(0, MAGIC_NUMBER);
+            header.putInt(4, FORMAT_VERSION);
+            header.putLong(8, firstSequence);
+            header.putLong(16, lastCoveredSequence);
+            header.putLong(24, generation);
+            header.position(HEADER_SIZE);
+        }
+
+        void append(long sequence, long timestamp, long issueId, long projectId, long eventTypeId) {
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            buffer.putLong(offset + 8, timestamp);
+            buffer.putLong(offset + 16, issueId);
+            buffer.putLong(offset + 24, projectId);
+            buffer.putLong(offset + 32, eventTypeId);
+            buffer.putLong(offset, sequence);
+            buffer.putLong(offset + 40, checksum(sequence, timestamp, issueId, projectId, eventTypeId));
+            count++;
+        }
+
+        /**
+         * Return true if the checksum of the specified record matches its
+         * fields
+         */
+        boolean isComplete(int index) {
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+            return buffer.getLong(offset + 40) == checksum(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getLong(offset + 16),
+                    buffer.getLong(offset + 24), buffer.getLong(offset + 32));
+        }
+
+        /**
+         * Erase (fill with zeros) the records from the specified index to the
+         * last record which is not empty
+         *
+         * @return the number of records erased
+         */
+        int erase(int fromIndex) {
+            int last = capacity - 1;
+            while (last >= fromIndex && isEmpty(last)) {
+                last--;
+            }
+            for (int i = fromIndex; i <= last; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                for (int j = 0; j < RECORD_SIZE; j += 8) {
+                    buffer.putLong(offset + j, 0);
+                }
+            }
+            if (last >= fromIndex) {
+                buffer.force();
+            }
+            return Math.max(0, last - fromIndex + 1);
+        }
+
+        private boolean isEmpty(int index) {
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+            for (int j = 0; j < RECORD_SIZE; j += 8) {
+                if (buffer.getLong(offset + j) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the checksum of a record (64-bit FNV-1a of its fields)
+         */
+        static long checksum(long... fields) {
+            long hash = 0xcbf29ce484222325L;
+            for (long field : fields) {
+                for (int shift = 0; shift < 64; shift += 8) {
+                    hash ^= (field >>> shift) & 0xff;
+                    hash *= 0x100000001b3L;
+                }
+            }
+            return hash;
+        }
+
+        /**
+         * Return the index of the first record with a sequence greater than
+         * the specified one
+         */
+        int indexAfter(long sequence) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (getSequence(middle) <= sequence) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        long getSequence(int index) {
+            return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+        }
+
+        long getIssueId(int index) {
+            return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 16);
+        }
+
+        ChangeJournalEntry read(int index) {
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+            return new ChangeJournalEntry(buffer.getLong(offset), buffer.getLong(offset + 16), buffer.getLong(offset + 24), buffer.getLong(offset + 32),
+                    buffer.getLong(offset + 8));
+        }
+
+        /**
+         * Copy the specified record into the specified buffer
+         */
+        void copy(int index, ByteBuffer target) {
+            int offset = HEADER_SIZE + index * RECORD_SIZE;
+            for (int i = 0; i < RECORD_SIZE; i += 8) {
+                target.putLong(buffer.getLong(offset + i));
+            }
+        }
+
+        void force() {
+            if (writable) {
+                buffer.force();
+            }
+        }
+
+        boolean isFull() {
+            return count >= capacity;
+        }
+
+        boolean isWritable() {
+            return writable;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getFirstSequence() {
+            return firstSequence;
+        }
+
+        /**
+         * Return the last sequence covered by the segment: the last sequence
+         * written for a segment which is appended to (or was), the last
+         * sequence of the compacted range for a compacted segment
+         */
+        long getLastCoveredSequence() {
+            if (generation == 0) {
+                return count > 0 ? getSequence(count - 1) : firstSequence - 1;
+            }
+            return lastCoveredSequence;
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Notify the clients waiting for changes (long polling, see
+ * {@link JiraPluginChangesServlet}) of the projects which changed.<br/>
+ * <ul>
+ * <li>The sequence of the last change of each project is kept in memory (it
+ * is initialized from the change journal, see
+ * {@link JiraPluginChangeJournal})</li>
+ * <li>A client waits with the last sequence it has processed: it is answered
+ * as soon as a project changed after this sequence (or when its wait times
+ * out) with the projects which changed</li>
+ * <li>The waiting clients are suspended requests (servlet async support): no
+ * thread is held while they wait. The answers are written by a single
+ * notification thread shortly after a change, so that a burst of changes
+ * wakes up the clients only once</li>
+ * <li>If the container does not support the asynchronous requests, a few
+ * clients may wait in their request thread (see
+ * {@link #awaitBlocking(long, long)}), they are woken up by the same
+ * notification</li>
+ * </ul>
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginChangeNotifier {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginChangeNotifier.class);
+
+    /**
+     * The maximum number of clients waiting at the same time
+     */
+    public static final int MAX_WAITING_CLIENTS = 1000;
+
+    /**
+     * The maximum number of clients waiting in their request thread at the
+     * same time (without asynchronous support)
+     */
+    public static final int MAX_BLOCKED_CLIENTS = 10;
+
+    /**
+     * The delay (in milliseconds) between a change and the notification of
+     * the waiting clients (the changes of this period are notified together)
+     */
+    private static final long NOTIFICATION_DELAY = 200;
+
+    private final Map<Long, Long> projectSequences = new LinkedHashMap<Long, Long>();
+    private final List<Waiter> waiters = new LinkedList<Waiter>();
+    private final ScheduledExecutorService scheduler;
+    private long lastSequence;
+    private int blockedClients;
+    private boolean notificationScheduled;
+    private boolean shutdown;
+
+    public JiraPluginChangeNotifier() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new JiraPluginThreadFactory("bizdock-notifier"));
+    }
+
+    /**
+     * Record a change of a project
+     *
+     * @param projectId
+     *            the id of the project
+     * @param sequence
+     *            the sequence of the change in the change journal
+     */
+    public void publish(long projectId, long sequence) {
+        synchronized (this) {
+            Long previousSequence = projectSequences.get(projectId);
+            if (previousSequence == null || previousSequence < sequence) {
+                projectSequences.put(projectId, sequence);
+            }
+            lastSequence = Math.max(lastSequence, sequence);
+            if ((waiters.isEmpty() && blockedClients == 0) || notificationScheduled || shutdown) {
+                return;
+            }
+            notificationScheduled = true;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                notifyWaiters();
+            }
+        }, NOTIFICATION_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forget the last change of each project (to be published again, for
+     * instance when the subscribed projects change). The last sequence is
+     * kept.
+     */
+    public synchronized void clearProjects() {
+        projectSequences.clear();
+    }
+
+    /**
+     * Return the projects which changed after the specified sequence
+     *
+     * @param afterSequence
+     *            a sequence
+     * @return the sequence of the last change by project id
+     */
+    public synchronized Map<Long, Long> getChangedProjects(long afterSequence) {
+        Map<Long, Long> changedProjects = new LinkedHashMap<Long, Long>();
+        for (Map.Entry<Long, Long> entry : projectSequences.entrySet()) {
+            if (entry.getValue() > afterSequence) {
+                changedProjects.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changedProjects;
+    }
+
+    /**
+     * Return the sequence of the last change
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Wait (asynchronously) for the changes which follow the specified
+     * sequence. The request is answered immediately if some projects already
+     * changed.
+     *
+     * @param asyncContext
+     *            the context of the suspended request
+     * @param afterSequence
+     *            the last sequence processed by the client
+     * @param timeout
+     *            the maximum wait (in milliseconds)
+     * @return false if too many clients are waiting (the request is not
+     *         suspended and must be answered by the caller)
+     */
+    public boolean await(AsyncContext asyncContext, long afterSequence, long timeout) {
+        final Waiter waiter = new Waiter(asyncContext, afterSequence);
+        synchronized (this) {
+            if (!shutdown && lastSequence <= afterSequence) {
+                if (waiters.size() >= MAX_WAITING_CLIENTS) {
+                    return false;
+                }
+                waiters.add(waiter);
+                asyncContext.setTimeout(timeout);
+                asyncContext.addListener(new AsyncListener() {
+                    @Override
+                    public void onTimeout(AsyncEvent event) throws IOException {
+                        if (remove(waiter)) {
+                            respond(waiter);
+                        }
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) throws IOException {
+                        remove(waiter);
+                    }
+
+                    @Override
+                    public void onComplete(AsyncEvent event) throws IOException {
+                        remove(waiter);
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) throws IOException {
+                    }
+                });
+                return true;
+            }
+        }
+        respond(waiter);
+        return true;
+    }
+
+    /**
+     * Wait in the current thread for the changes which follow the specified
+     * sequence (to be used when the request cannot be suspended). The wait
+     * returns immediately if some projects already changed.
+     *
+     * @param afterSequence
+     *            the last sequence processed by the client
+     * @param timeout
+     *            the maximum wait (in milliseconds)
+     * @return false if too many clients are waiting in their thread (the
+     *         caller did not wait)
+     */
+    public boolean awaitBlocking(long afterSequence, long timeout) throws InterruptedException {
+        synchronized (this) {
+            if (lastSequence > afterSequence || shutdown) {
+                return true;
+            }
+            if (blockedClients >= MAX_BLOCKED_CLIENTS) {
+                return false;
+            }
+            blockedClients++;
+            try {
+                long deadline = System.currentTimeMillis() + timeout;
+                long remaining = timeout;
+                while (!shutdown && lastSequence <= afterSequence && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } finally {
+                blockedClients--;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Answer all the waiting clients and stop the notifications
+     */
+    public void shutdown() {
+        List<Waiter> pendingWaiters;
+        synchronized (this) {
+            shutdown = true;
+            pendingWaiters = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+            notifyAll();
+        }
+        scheduler.shutdownNow();
+        for (Waiter waiter : pendingWaiters) {
+            respond(waiter);
+        }
+    }
+
+    /**
+     * Return the number of clients waiting (suspended or in their thread)
+     */
+    public synchronized int getWaitingClients() {
+        return waiters.size() + blockedClients;
+    }
+
+    /**
+     * Answer the clients which wait for a sequence older than the last change
+     */
+    private void notifyWaiters() {
+        List<Waiter> notifiedWaiters = new ArrayList<Waiter>();
+        synchronized (this) {
+            notificationScheduled = false;
+            if (blockedClients > 0) {
+                notifyAll();
+            }
+            for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext();) {
+                Waiter waiter = iterator.next();
+                if (waiter.getAfterSequence() < lastSequence) {
+                    iterator.remove();
+                    notifiedWaiters.add(waiter);
+                }
+            }
+        }
+        for (Waiter waiter : notifiedWaiters) {
+            respond(waiter);
+        }
+    }
+
+    private synchronized boolean remove(Waiter waiter) {
+        return waiters.remove(waiter);
+    }
+
+    /**
+     * Write the changes which follow the sequence of the client and complete
+     * the request
+     */
+    private void respond(Waiter waiter) {
+        long currentLastSequence;
+        Map<Long, Long> changedProjects;
+        synchronized (this) {
+            currentLastSequence = lastSequence;
+            changedProjects = getChangedProjects(waiter.getAfterSequence());
+        }
+        AsyncContext asyncContext = waiter.getAsyncContext();
+        try {
+            writeChanges(asyncContext.getResponse(), currentLastSequence, changedProjects);
+        } catch (Exception e) {
+            // The client is gone
+            log.debug("Unable to notify a client of the changes", e);
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed (timeout or error)
+            }
+        }
+    }
+
+    /**
+     * Write the specified changes as the response of a request
+     *
+     * @param response
+     *            a servlet response
+     * @param lastSequence
+     *            the sequence to be provided to wait for the next changes
+     * @param changedProjects
+     *            the sequence of the last change by project id
+     */
+    static void writeChanges(ServletResponse response, long lastSequence, Map<Long, Long> changedProjects) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), "UTF-8");
+        JiraPluginJsonWriter.writeProjectChanges(writer, lastSequence, changedProjects);
+    }
+
+    /**
+     * A client waiting for changes
+     */
+    private static class Waiter {
+        private final AsyncContext asyncContext;
+        private final long afterSequence;
+
+        Waiter(AsyncContext asyncContext, long afterSequence) {
+            this.asyncContext = asyncContext;
+            this.afterSequence = afterSequence;
+        }
+
+        AsyncContext getAsyncContext() {
+            return asyncContext;
+        }
+
+        long getAfterSequence() {
+            return afterSequence;
+        }
+    }
+}
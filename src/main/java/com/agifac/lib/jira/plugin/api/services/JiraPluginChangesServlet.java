@@ -0,0 +1,138 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The long polling end point which notifies BizDock of the projects which
+ * changed (see {@link JiraPluginChangeNotifier}).<br/>
+ * GET [JIRA]/plugins/servlet/bizdock/changes?after=[sequence]&timeout=[ms]
+ * <ul>
+ * <li>after : the lastSequence of the previous answer (0 for the first call,
+ * all the projects which changed since the change journal was created are
+ * then returned)</li>
+ * <li>timeout : the maximum wait in milliseconds (default 30 seconds)</li>
+ * </ul>
+ * The answer is a JSON object with the lastSequence and the projects which
+ * changed after the provided sequence (projectRefId and sequence of the last
+ * change). The list is empty if the wait timed out.<br/>
+ * The request is authenticated like the REST API (same headers).<br/>
+ * This end point is a servlet (and not a resource of the
+ * {@link JiraPluginRestApi}) because the JAX-RS version of JIRA cannot
+ * suspend a request: here the waiting requests do not hold a thread.<br/>
+ * If the container does not support the asynchronous requests (the servlet
+ * filters of the request must all be declared async-supported), a few
+ * requests wait in their thread for at most {@link #MAX_BLOCKING_TIMEOUT}
+ * milliseconds. When the request could not wait, the changes are returned
+ * immediately with the header x-jira-bizdock-long-polling set to
+ * "unavailable" and a Retry-After header (in seconds): the client must wait
+ * before its next call instead of polling in a loop.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginChangesServlet extends HttpServlet {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginChangesServlet.class);
+    private static final long serialVersionUID = -2287434015766209386L;
+
+    private static final long DEFAULT_TIMEOUT = 30000;
+    private static final long MAX_TIMEOUT = 120000;
+
+    /**
+     * The maximum wait (in milliseconds) of a request which holds its thread
+     */
+    public static final long MAX_BLOCKING_TIMEOUT = 30000;
+
+    public static final String LONG_POLLING_HEADER = "x-jira-bizdock-long-polling";
+    public static final String LONG_POLLING_UNAVAILABLE = "unavailable";
+
+    /**
+     * The delay (in seconds) before the next call of a client which could not
+     * wait
+     */
+    private static final int RETRY_AFTER = 10;
+
+    private static final AtomicBoolean asyncUnsupportedLogged = new AtomicBoolean();
+
+    private JiraPluginServiceProvider jiraPluginServiceProvider;
+
+    public JiraPluginChangesServlet(JiraPluginServiceProvider jiraPluginServiceProvider) {
+        this.jiraPluginServiceProvider = jiraPluginServiceProvider;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        long afterSequence;
+        long timeout;
+        try {
+            if (!getJiraPluginServiceProvider().authenticateRequest(request)) {
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Authentication failed, API call rejected");
+                return;
+            }
+            afterSequence = request.getParameter("after") != null ? Long.parseLong(request.getParameter("after")) : 0;
+            timeout = request.getParameter("timeout") != null ? Long.parseLong(request.getParameter("timeout")) : DEFAULT_TIMEOUT;
+            timeout = Math.max(0, Math.min(timeout, MAX_TIMEOUT));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid parameter : " + e.getMessage());
+            return;
+        } catch (JiraPluginException e) {
+            log.error("Unable to authenticate a call to the changes notification", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        JiraPluginChangeNotifier notifier = getJiraPluginServiceProvider().getChangeNotifier();
+        if (notifier == null) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The change notification is not available");
+            return;
+        }
+        if (timeout > 0 && request.isAsyncSupported()) {
+            AsyncContext asyncContext = request.startAsync(request, response);
+            if (notifier.await(asyncContext, afterSequence, timeout)) {
+                return;
+            }
+            // Too many clients waiting: answer now, the client retries later
+            try {
+                setLongPollingUnavailable(response);
+                JiraPluginChangeNotifier.writeChanges(response, notifier.getLastSequence(), notifier.getChangedProjects(afterSequence));
+            } finally {
+                asyncContext.complete();
+            }
+            return;
+        }
+        if (timeout > 0) {
+            if (asyncUnsupportedLogged.compareAndSet(false, true)) {
+                log.warn("The asynchronous requests are not supported by the container for " + request.getRequestURI()
+                        + " : the change notifications hold a thread (at most " + JiraPluginChangeNotifier.MAX_BLOCKED_CLIENTS
+                        + " clients), the servlet and all the filters of its path must be declared async-supported");
+            }
+            try {
+                if (!notifier.awaitBlocking(afterSequence, Math.min(timeout, MAX_BLOCKING_TIMEOUT))) {
+                    setLongPollingUnavailable(response);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        JiraPluginChangeNotifier.writeChanges(response, notifier.getLastSequence(), notifier.getChangedProjects(afterSequence));
+    }
+
+    /**
+     * Tell the client that its request could not wait for the changes
+     */
+    private static void setLongPollingUnavailable(HttpServletResponse response) {
+        response.setHeader(LONG_POLLING_HEADER, LONG_POLLING_UNAVAILABLE);
+        response.setIntHeader("Retry-After", RETRY_AFTER);
+    }
+
+    private JiraPluginServiceProvider getJiraPluginServiceProvider() {
+        return jiraPluginServiceProvider;
+    }
+}
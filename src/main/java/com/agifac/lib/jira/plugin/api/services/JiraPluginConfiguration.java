@@ -25,7 +25,31 @@ import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDock
  * ${project} is to be dynamically replaced by the project key</li>
  * <li>mappingBizDockJira : the definition of the mapping bewtween the BizDock
  * fields and some JIRA fields</li>
+ * <li>searchMaxConcurrency : the maximum number of searches running at the
+ * same time</li>
+ * <li>searchMaxQueueWait : the maximum time (in milliseconds) a search may
+ * wait for a free slot</li>
+ * <li>searchTimeout : the maximum duration (in milliseconds) of a search</li>
+ * <li>staleMaxAge : the maximum age (in milliseconds) of a cached result
+ * served to a client which accepts stale results</li>
+ * <li>indexOnlyExtraction : the requirements are read from the JIRA index
+ * instead of the issues</li>
+ * <li>needsMaxResults : the maximum number of needs returned by a call (0 for
+ * no limit)</li>
+ * <li>defectsMaxResults : the maximum number of defects returned by a call (0
+ * for no limit)</li>
+ * <li>webhookUrl : the BizDock URL to which the changes of the requirements
+ * are pushed (null if the push is disabled)</li>
+ * <li>webhookCoalesceDelay : the delay (in milliseconds) during which the
+ * changes of an issue are accumulated before being pushed</li>
+ * <li>generation : the version of the configuration, incremented each time
+ * the configuration is changed (to be used by the components which derive
+ * something from the configuration)</li>
  * </ul>
+ * A configuration is not modified once it has been published by the
+ * {@link JiraPluginServiceProvider}: an update works on a copy (see
+ * {@link #copy()}) which is persisted as a whole (see
+ * {@link #getStringRepresentation()}) and then replaces the current one.
  * 
  * @author Pierre-Yves Cloux
  */
@@ -34,13 +58,44 @@ public class JiraPluginConfiguration implements Serializable {
             + "} AND issuetype in (Epic, Improvement, \"New Feature\")";
     public static final String DEFAULT_DEFECTS_JQL_QUERY_TEMPLATE = "project = ${" + JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED
             + "} AND issuetype = Bug";
+    public static final int DEFAULT_SEARCH_MAX_CONCURRENCY = 4;
+    public static final long DEFAULT_SEARCH_MAX_QUEUE_WAIT = 5000;
+    public static final long DEFAULT_SEARCH_TIMEOUT = 30000;
+    public static final long DEFAULT_STALE_MAX_AGE = 300000;
+    public static final int DEFAULT_MAX_RESULTS = 5000;
+    public static final long DEFAULT_WEBHOOK_COALESCE_DELAY = 2000;
 
     private static final long serialVersionUID = 9050761512620299300L;
 
+    private static final String GENERATION_PROPERTY = "generation";
+    private static final String NEEDS_JQL_PROPERTY = "needs.jql";
+    private static final String DEFECTS_JQL_PROPERTY = "defects.jql";
+    private static final String MAPPING_PROPERTY_PREFIX = "mapping.";
+    private static final String USER_FOR_PROJECT_CREATION_PROPERTY = "create.project.user";
+    private static final String SEARCH_MAX_CONCURRENCY_PROPERTY = "search.max.concurrency";
+    private static final String SEARCH_MAX_QUEUE_WAIT_PROPERTY = "search.max.queue.wait";
+    private static final String SEARCH_TIMEOUT_PROPERTY = "search.timeout";
+    private static final String STALE_MAX_AGE_PROPERTY = "stale.max.age";
+    private static final String INDEX_ONLY_EXTRACTION_PROPERTY = "index.only.extraction";
+    private static final String NEEDS_MAX_RESULTS_PROPERTY = "needs.max.results";
+    private static final String DEFECTS_MAX_RESULTS_PROPERTY = "defects.max.results";
+    private static final String WEBHOOK_URL_PROPERTY = "webhook.url";
+    private static final String WEBHOOK_COALESCE_DELAY_PROPERTY = "webhook.coalesce.delay";
+
     private String needsJqlQueryTemplate = DEFAULT_NEEDS_JQL_QUERY_TEMPLATE;
     private String defectsJqlQueryTemplate = DEFAULT_DEFECTS_JQL_QUERY_TEMPLATE;
     private Map<BizDockRequirementsFields, String> mappingBizDockJira;
     private String userForProjectCreation;
+    private int searchMaxConcurrency = DEFAULT_SEARCH_MAX_CONCURRENCY;
+    private long searchMaxQueueWait = DEFAULT_SEARCH_MAX_QUEUE_WAIT;
+    private long searchTimeout = DEFAULT_SEARCH_TIMEOUT;
+    private long staleMaxAge = DEFAULT_STALE_MAX_AGE;
+    private boolean indexOnlyExtraction = false;
+    private int needsMaxResults = DEFAULT_MAX_RESULTS;
+    private int defectsMaxResults = DEFAULT_MAX_RESULTS;
+    private String webhookUrl;
+    private long webhookCoalesceDelay = DEFAULT_WEBHOOK_COALESCE_DELAY;
+    private long generation = 0;
 
     public JiraPluginConfiguration() {
         this.mappingBizDockJira = Collections.synchronizedMap(new TreeMap<BizDockRequirementsFields, String>());
@@ -119,4 +174,197 @@ public class JiraPluginConfiguration implements Serializable {
         this.userForProjectCreation = userForProjectCreation;
     }
 
+    public int getSearchMaxConcurrency() {
+        return searchMaxConcurrency;
+    }
+
+    public void setSearchMaxConcurrency(int searchMaxConcurrency) {
+        this.searchMaxConcurrency = searchMaxConcurrency;
+    }
+
+    public long getSearchMaxQueueWait() {
+        return searchMaxQueueWait;
+    }
+
+    public void setSearchMaxQueueWait(long searchMaxQueueWait) {
+        this.searchMaxQueueWait = searchMaxQueueWait;
+    }
+
+    public long getSearchTimeout() {
+        return searchTimeout;
+    }
+
+    public void setSearchTimeout(long searchTimeout) {
+        this.searchTimeout = searchTimeout;
+    }
+
+    public long getStaleMaxAge() {
+        return staleMaxAge;
+    }
+
+    public void setStaleMaxAge(long staleMaxAge) {
+        this.staleMaxAge = staleMaxAge;
+    }
+
+    public boolean isIndexOnlyExtraction() {
+        return indexOnlyExtraction;
+    }
+
+    public void setIndexOnlyExtraction(boolean indexOnlyExtraction) {
+        this.indexOnlyExtraction = indexOnlyExtraction;
+    }
+
+    public int getNeedsMaxResults() {
+        return needsMaxResults;
+    }
+
+    public void setNeedsMaxResults(int needsMaxResults) {
+        this.needsMaxResults = needsMaxResults;
+    }
+
+    public int getDefectsMaxResults() {
+        return defectsMaxResults;
+    }
+
+    public void setDefectsMaxResults(int defectsMaxResults) {
+        this.defectsMaxResults = defectsMaxResults;
+    }
+
+    public String getWebhookUrl() {
+        return webhookUrl;
+    }
+
+    public void setWebhookUrl(String webhookUrl) {
+        this.webhookUrl = webhookUrl;
+    }
+
+    public long getWebhookCoalesceDelay() {
+        return webhookCoalesceDelay;
+    }
+
+    public void setWebhookCoalesceDelay(long webhookCoalesceDelay) {
+        this.webhookCoalesceDelay = webhookCoalesceDelay;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Return a copy of this configuration (with the same generation) to be
+     * modified
+     */
+    public JiraPluginConfiguration copy() {
+        return fromStringRepresentation(getStringRepresentation());
+    }
+
+    /**
+     * Return true if the specified configuration has the same content as this
+     * one (the generation is ignored)
+     * 
+     * @param configuration
+     *            a configuration
+     */
+    public boolean hasSameContent(JiraPluginConfiguration configuration) {
+        Properties properties = toProperties();
+        Properties otherProperties = configuration.toProperties();
+        properties.remove(GENERATION_PROPERTY);
+        otherProperties.remove(GENERATION_PROPERTY);
+        return properties.equals(otherProperties);
+    }
+
+    /**
+     * Return a string representation of the whole configuration (to be
+     * persisted in a single write)
+     * 
+     * @return
+     */
+    public String getStringRepresentation() {
+        StringWriter sw = new StringWriter();
+        try {
+            toProperties().store(sw, null);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to serialize the configuration", e);
+        }
+        // Remove the date comment which is always written by Properties
+        StringBuilder sb = new StringBuilder();
+        for (String line : StringUtils.split(sw.toString(), "\r\n")) {
+            if (!line.startsWith("#")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load a configuration from its string representation (see
+     * {@link #getStringRepresentation()}).<br/>
+     * The values which are missing are set to their default.
+     * 
+     * @param serializedConfiguration
+     *            the string representation of a configuration
+     * @return a configuration
+     */
+    public static JiraPluginConfiguration fromStringRepresentation(String serializedConfiguration) {
+        Properties properties = new Properties();
+        try {
+            properties.load(new StringReader(serializedConfiguration));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to de-serialize the configuration", e);
+        }
+        JiraPluginConfiguration configuration = new JiraPluginConfiguration();
+        configuration.setGeneration(Long.parseLong(properties.getProperty(GENERATION_PROPERTY, "0")));
+        configuration.setNeedsJqlQueryTemplate(properties.getProperty(NEEDS_JQL_PROPERTY, DEFAULT_NEEDS_JQL_QUERY_TEMPLATE));
+        configuration.setDefectsJqlQueryTemplate(properties.getProperty(DEFECTS_JQL_PROPERTY, DEFAULT_DEFECTS_JQL_QUERY_TEMPLATE));
+        for (BizDockRequirementsFields requirementsField : BizDockRequirementsFields.values()) {
+            String value = properties.getProperty(MAPPING_PROPERTY_PREFIX + requirementsField.name());
+            if (value != null) {
+                configuration.getMappingBizDockJira().put(requirementsField, value);
+            }
+        }
+        configuration.setUserForProjectCreation(properties.getProperty(USER_FOR_PROJECT_CREATION_PROPERTY));
+        configuration.setSearchMaxConcurrency(Integer.parseInt(properties.getProperty(SEARCH_MAX_CONCURRENCY_PROPERTY,
+                String.valueOf(DEFAULT_SEARCH_MAX_CONCURRENCY))));
+        configuration.setSearchMaxQueueWait(Long.parseLong(properties.getProperty(SEARCH_MAX_QUEUE_WAIT_PROPERTY,
+                String.valueOf(DEFAULT_SEARCH_MAX_QUEUE_WAIT))));
+        configuration.setSearchTimeout(Long.parseLong(properties.getProperty(SEARCH_TIMEOUT_PROPERTY, String.valueOf(DEFAULT_SEARCH_TIMEOUT))));
+        configuration.setStaleMaxAge(Long.parseLong(properties.getProperty(STALE_MAX_AGE_PROPERTY, String.valueOf(DEFAULT_STALE_MAX_AGE))));
+        configuration.setIndexOnlyExtraction(Boolean.parseBoolean(properties.getProperty(INDEX_ONLY_EXTRACTION_PROPERTY, "false")));
+        configuration.setNeedsMaxResults(Integer.parseInt(properties.getProperty(NEEDS_MAX_RESULTS_PROPERTY, String.valueOf(DEFAULT_MAX_RESULTS))));
+        configuration.setDefectsMaxResults(Integer.parseInt(properties.getProperty(DEFECTS_MAX_RESULTS_PROPERTY, String.valueOf(DEFAULT_MAX_RESULTS))));
+        configuration.setWebhookUrl(properties.getProperty(WEBHOOK_URL_PROPERTY));
+        configuration.setWebhookCoalesceDelay(Long.parseLong(properties.getProperty(WEBHOOK_COALESCE_DELAY_PROPERTY,
+                String.valueOf(DEFAULT_WEBHOOK_COALESCE_DELAY))));
+        return configuration;
+    }
+
+    private Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(GENERATION_PROPERTY, String.valueOf(getGeneration()));
+        properties.setProperty(NEEDS_JQL_PROPERTY, getNeedsJqlQueryTemplate());
+        properties.setProperty(DEFECTS_JQL_PROPERTY, getDefectsJqlQueryTemplate());
+        for (Map.Entry<BizDockRequirementsFields, String> entry : getMappingBizDockJira().entrySet()) {
+            properties.setProperty(MAPPING_PROPERTY_PREFIX + entry.getKey().name(), entry.getValue());
+        }
+        if (getUserForProjectCreation() != null) {
+            properties.setProperty(USER_FOR_PROJECT_CREATION_PROPERTY, getUserForProjectCreation());
+        }
+        properties.setProperty(SEARCH_MAX_CONCURRENCY_PROPERTY, String.valueOf(getSearchMaxConcurrency()));
+        properties.setProperty(SEARCH_MAX_QUEUE_WAIT_PROPERTY, String.valueOf(getSearchMaxQueueWait()));
+        properties.setProperty(SEARCH_TIMEOUT_PROPERTY, String.valueOf(getSearchTimeout()));
+        properties.setProperty(STALE_MAX_AGE_PROPERTY, String.valueOf(getStaleMaxAge()));
+        properties.setProperty(INDEX_ONLY_EXTRACTION_PROPERTY, String.valueOf(isIndexOnlyExtraction()));
+        properties.setProperty(NEEDS_MAX_RESULTS_PROPERTY, String.valueOf(getNeedsMaxResults()));
+        properties.setProperty(DEFECTS_MAX_RESULTS_PROPERTY, String.valueOf(getDefectsMaxResults()));
+        if (getWebhookUrl() != null) {
+            properties.setProperty(WEBHOOK_URL_PROPERTY, getWebhookUrl());
+        }
+        properties.setProperty(WEBHOOK_COALESCE_DELAY_PROPERTY, String.valueOf(getWebhookCoalesceDelay()));
+        return properties;
+    }
+
 }
\ No newline at end of file
@@ -93,18 +93,71 @@ public class JiraPluginConfigurationServlet extends HttpServlet {
                     redirectToPath(request, response, "/pages/index");
                     return;
                 }
-                // Request an update of the filtering
+                // Request an update of the filtering (the templates are
+                // validated first, only validated if requested)
                 if (route.startsWith("/actions/update_filtering")) {
                     String needsJqlQueryTemplate = request.getParameter("needsJqlQueryTemplate");
                     String defectsJqlQueryTemplate = request.getParameter("defectsJqlQueryTemplate");
-                    Pair<Boolean, String> status = getJiraPluginServiceProvider().updatePluginConfigurationNeedsJqlQueryTemplate(needsJqlQueryTemplate);
+                    JqlTemplateValidation needsValidation = getJiraPluginServiceProvider().validateJqlQueryTemplate(needsJqlQueryTemplate, false);
+                    JqlTemplateValidation defectsValidation = getJiraPluginServiceProvider().validateJqlQueryTemplate(defectsJqlQueryTemplate, true);
+                    Map<String, Object> validationContext = new HashMap<String, Object>();
+                    validationContext.put("needsValidation", needsValidation);
+                    validationContext.put("defectsValidation", defectsValidation);
+                    validationContext.put("needsJqlQueryTemplateCandidate", needsJqlQueryTemplate);
+                    validationContext.put("defectsJqlQueryTemplateCandidate", defectsJqlQueryTemplate);
+                    if (request.getParameter("validateOnly") != null) {
+                        displayPage(request, response, "/pages/index", validationContext);
+                        return;
+                    }
+                    if (!needsValidation.isValid()) {
+                        displayPage(request, response, "/pages/index", validationContext,
+                                Pair.of("needsJqlQueryTemplateError", needsValidation.getErrorMessage()));
+                        return;
+                    }
+                    if (!defectsValidation.isValid()) {
+                        displayPage(request, response, "/pages/index", validationContext,
+                                Pair.of("defectsJqlQueryTemplateError", defectsValidation.getErrorMessage()));
+                        return;
+                    }
+                    Pair<Boolean, String> status = getJiraPluginServiceProvider().updatePluginConfigurationJqlQueryTemplates(needsJqlQueryTemplate,
+                            defectsJqlQueryTemplate);
                     if (!status.getLeft()) {
                         displayPage(request, response, "/pages/index", Pair.of("needsJqlQueryTemplateError", status.getRight()));
                         return;
                     }
-                    status = getJiraPluginServiceProvider().updatePluginConfigurationDefectsJqlQueryTemplate(defectsJqlQueryTemplate);
+                    redirectToPath(request, response, "/pages/index");
+                    return;
+                }
+                // Request an update of the search limits
+                if (route.startsWith("/actions/update_performance")) {
+                    Pair<Boolean, String> status;
+                    try {
+                        status = getJiraPluginServiceProvider().updatePluginConfigurationPerformance(
+                                Integer.parseInt(request.getParameter("searchMaxConcurrency")),
+                                Long.parseLong(request.getParameter("searchMaxQueueWait")), Long.parseLong(request.getParameter("searchTimeout")),
+                                Long.parseLong(request.getParameter("staleMaxAge")), Integer.parseInt(request.getParameter("needsMaxResults")),
+                                Integer.parseInt(request.getParameter("defectsMaxResults")), request.getParameter("indexOnlyExtraction") != null);
+                    } catch (NumberFormatException e) {
+                        status = Pair.of(false, "Error : the limits must be numbers");
+                    }
+                    if (!status.getLeft()) {
+                        displayPage(request, response, "/pages/index", Pair.of("performanceError", status.getRight()));
+                        return;
+                    }
+                    redirectToPath(request, response, "/pages/index");
+                    return;
+                }
+                // Request an update of the push of the requirement changes
+                if (route.startsWith("/actions/update_webhook")) {
+                    Pair<Boolean, String> status;
+                    try {
+                        status = getJiraPluginServiceProvider().updatePluginConfigurationWebhook(request.getParameter("webhookUrl"),
+                                Long.parseLong(request.getParameter("webhookCoalesceDelay")));
+                    } catch (NumberFormatException e) {
+                        status = Pair.of(false, "Error : the coalesce delay must be a number");
+                    }
                     if (!status.getLeft()) {
-                        displayPage(request, response, "/pages/index", Pair.of("defectsJqlQueryTemplateError", status.getRight()));
+                        displayPage(request, response, "/pages/index", Pair.of("webhookError", status.getRight()));
                         return;
                     }
                     redirectToPath(request, response, "/pages/index");
@@ -137,6 +190,26 @@ public class JiraPluginConfigurationServlet extends HttpServlet {
      */
     private void displayPage(HttpServletRequest request, HttpServletResponse response, String route,
             @SuppressWarnings("unchecked") Pair<String, String>... errors) throws JiraPluginException {
+        displayPage(request, response, route, new HashMap<String, Object>(), errors);
+    }
+
+    /**
+     * The route has been identified as targeting a page.<br/>
+     * Display this page using the specified Velocity template (if any) with
+     * some additional context values.
+     * 
+     * @param request
+     * @param response
+     * @param route
+     * @param values
+     *            some values to be added to the Velocity context
+     * @param errors
+     *            a variable number of errors reported when displaying the page
+     *            (after a configuration update)
+     * @throws IOException
+     */
+    private void displayPage(HttpServletRequest request, HttpServletResponse response, String route, Map<String, Object> values,
+            @SuppressWarnings("unchecked") Pair<String, String>... errors) throws JiraPluginException {
         response.setContentType("text/html");
         try {
             VelocityContext context = new VelocityContext();
@@ -146,6 +219,9 @@ public class JiraPluginConfigurationServlet extends HttpServlet {
             context.put("jiraPluginServiceProvider", getJiraPluginServiceProvider());
             context.put("projectTagInJql", "${" + JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED + "}");
             context.put("adminUsers", getJiraPluginServiceProvider().getAllAdminUsers());
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                context.put(value.getKey(), value.getValue());
+            }
             for (Pair<String, String> error : errors) {
                 context.put(error.getLeft(), error.getRight());
             }
@@ -0,0 +1,143 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.List;
+
+/**
+ * The content hashes which let BizDock validate the requirements it stores:
+ * <ul>
+ * <li>the hash of a {@link Requirement} covers all its fields, it changes if
+ * any value returned to BizDock changes</li>
+ * <li>the hash of a {@link RequirementsResult} combines the hashes of its
+ * requirements (in their order) with its position and total</li>
+ * </ul>
+ * The hashes are 64 bits FNV-1a hashes of the values, which do not depend on
+ * the JVM: a hash computed before a restart (or by another node) remains
+ * valid. They are exchanged as 16 hexadecimal characters.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public final class JiraPluginContentHash {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private static final long NULL_VALUE = 0x6e756c6cL;
+
+    private JiraPluginContentHash() {
+    }
+
+    /**
+     * Return the hash of the specified requirement
+     *
+     * @param requirement
+     *            a requirement
+     */
+    public static long hash(Requirement requirement) {
+        long hash = OFFSET_BASIS;
+        hash = update(hash, requirement.getId());
+        hash = update(hash, requirement.isDefect() ? 1 : 0);
+        hash = update(hash, requirement.getName());
+        hash = update(hash, requirement.getDescription());
+        hash = update(hash, requirement.getCategory());
+        hash = update(hash, requirement.getStatus());
+        hash = update(hash, requirement.getPriority());
+        hash = update(hash, requirement.getSeverity());
+        hash = update(hash, requirement.getAuthorEmail());
+        hash = update(hash, requirement.getStoryPoints());
+        hash = update(hash, requirement.getEstimation());
+        hash = update(hash, requirement.getIteration());
+        hash = update(hash, requirement.isInScope() ? 1 : 0);
+        return update(hash, requirement.isResolved() ? 1 : 0);
+    }
+
+    /**
+     * Return the hash of a requirements result
+     *
+     * @param requirementHashes
+     *            the hashes of the requirements of the result (in their
+     *            order)
+     * @param startAt
+     *            the index of the first requirement
+     * @param total
+     *            the number of matching issues
+     */
+    public static long hash(long[] requirementHashes, int startAt, int total) {
+        long hash = OFFSET_BASIS;
+        hash = update(hash, startAt);
+        hash = update(hash, total);
+        for (long requirementHash : requirementHashes) {
+            hash = update(hash, requirementHash);
+        }
+        return hash;
+    }
+
+    /**
+     * Return the hashes of the specified requirements (in their order): the
+     * hash set when a requirement was mapped (see {@link #setHash(Requirement)}
+     * ) or else the hash of its fields
+     *
+     * @param requirements
+     *            some requirements
+     */
+    public static long[] hash(List<Requirement> requirements) {
+        long[] hashes = new long[requirements.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            Requirement requirement = requirements.get(i);
+            hashes[i] = requirement.getHash() != null ? parse(requirement.getHash()) : hash(requirement);
+        }
+        return hashes;
+    }
+
+    /**
+     * Set the hash of the specified requirement, once all its fields are
+     * mapped (a requirement is not modified afterwards since it may be shared
+     * by several results)
+     *
+     * @param requirement
+     *            a requirement
+     */
+    public static void setHash(Requirement requirement) {
+        requirement.setHash(toString(hash(requirement)));
+    }
+
+    /**
+     * Return the exchanged form of a hash (16 hexadecimal characters)
+     */
+    public static String toString(long hash) {
+        String hex = Long.toHexString(hash);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Return the hash of its exchanged form (see {@link #toString(long)})
+     */
+    public static long parse(String hash) {
+        long value = 0;
+        for (int i = 0; i < hash.length(); i++) {
+            int digit = Character.digit(hash.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Not an hexadecimal hash : " + hash);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static long update(long hash, String value) {
+        if (value == null) {
+            return update(hash, NULL_VALUE);
+        }
+        hash = update(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * PRIME;
+            hash = (hash ^ (c >>> 8)) * PRIME;
+        }
+        return hash;
+    }
+
+    private static long update(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * PRIME;
+        }
+        return hash;
+    }
+}
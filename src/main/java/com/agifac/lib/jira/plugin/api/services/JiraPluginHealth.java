@@ -0,0 +1,181 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The health of the plugin (to be polled by a load balancer).<br/>
+ * <ul>
+ * <li>status : UP (ready to serve), STARTING (started but the configuration
+ * or the warm-up are not completed), SATURATED (the search executor is
+ * full) or DOWN (the plugin is not started)</li>
+ * <li>started : true if the plugin is started</li>
+ * <li>configurationLoaded : true if the plugin configuration is loaded</li>
+ * <li>configurationGeneration : the generation of the loaded configuration</li>
+ * <li>warmUpCompleted : true if the warm-up which follows the start is
+ * completed</li>
+ * <li>snapshotRestored : true if the last snapshot was restored (or if there
+ * was no snapshot to restore)</li>
+ * <li>searchRunning : the number of searches running</li>
+ * <li>searchWaiting : the number of searches waiting for a slot</li>
+ * <li>searchMaxConcurrency : the maximum number of searches running at the
+ * same time</li>
+ * <li>backgroundQueueSize : the number of tasks waiting for the background
+ * executor</li>
+ * <li>cachedResults : the number of requirements results in cache</li>
+ * <li>cachedRequirements : the number of requirements of these results</li>
+ * <li>timestamp : the time at which this status was computed</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class JiraPluginHealth {
+    public enum Status {
+        UP, STARTING, SATURATED, DOWN
+    }
+
+    private Status status;
+    private boolean started;
+    private boolean configurationLoaded;
+    private long configurationGeneration;
+    private boolean warmUpCompleted;
+    private boolean snapshotRestored;
+    private int searchRunning;
+    private int searchWaiting;
+    private int searchMaxConcurrency;
+    private int backgroundQueueSize;
+    private int cachedResults;
+    private int cachedRequirements;
+    private long timestamp;
+
+    public JiraPluginHealth() {
+    }
+
+    /**
+     * Return true if the plugin can serve the API calls
+     */
+    public boolean isReady() {
+        return status == Status.UP;
+    }
+
+    @XmlElement(name = "status")
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    @XmlElement(name = "started")
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void setStarted(boolean started) {
+        this.started = started;
+    }
+
+    @XmlElement(name = "configurationLoaded")
+    public boolean isConfigurationLoaded() {
+        return configurationLoaded;
+    }
+
+    public void setConfigurationLoaded(boolean configurationLoaded) {
+        this.configurationLoaded = configurationLoaded;
+    }
+
+    @XmlElement(name = "configurationGeneration")
+    public long getConfigurationGeneration() {
+        return configurationGeneration;
+    }
+
+    public void setConfigurationGeneration(long configurationGeneration) {
+        this.configurationGeneration = configurationGeneration;
+    }
+
+    @XmlElement(name = "warmUpCompleted")
+    public boolean isWarmUpCompleted() {
+        return warmUpCompleted;
+    }
+
+    public void setWarmUpCompleted(boolean warmUpCompleted) {
+        this.warmUpCompleted = warmUpCompleted;
+    }
+
+    @XmlElement(name = "snapshotRestored")
+    public boolean isSnapshotRestored() {
+        return snapshotRestored;
+    }
+
+    public void setSnapshotRestored(boolean snapshotRestored) {
+        this.snapshotRestored = snapshotRestored;
+    }
+
+    @XmlElement(name = "searchRunning")
+    public int getSearchRunning() {
+        return searchRunning;
+    }
+
+    public void setSearchRunning(int searchRunning) {
+        this.searchRunning = searchRunning;
+    }
+
+    @XmlElement(name = "searchWaiting")
+    public int getSearchWaiting() {
+        return searchWaiting;
+    }
+
+    public void setSearchWaiting(int searchWaiting) {
+        this.searchWaiting = searchWaiting;
+    }
+
+    @XmlElement(name = "searchMaxConcurrency")
+    public int getSearchMaxConcurrency() {
+        return searchMaxConcurrency;
+    }
+
+    public void setSearchMaxConcurrency(int searchMaxConcurrency) {
+        this.searchMaxConcurrency = searchMaxConcurrency;
+    }
+
+    @XmlElement(name = "backgroundQueueSize")
+    public int getBackgroundQueueSize() {
+        return backgroundQueueSize;
+    }
+
+    public void setBackgroundQueueSize(int backgroundQueueSize) {
+        this.backgroundQueueSize = backgroundQueueSize;
+    }
+
+    @XmlElement(name = "cachedResults")
+    public int getCachedResults() {
+        return cachedResults;
+    }
+
+    public void setCachedResults(int cachedResults) {
+        this.cachedResults = cachedResults;
+    }
+
+    @XmlElement(name = "cachedRequirements")
+    public int getCachedRequirements() {
+        return cachedRequirements;
+    }
+
+    public void setCachedRequirements(int cachedRequirements) {
+        this.cachedRequirements = cachedRequirements;
+    }
+
+    @XmlElement(name = "timestamp")
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
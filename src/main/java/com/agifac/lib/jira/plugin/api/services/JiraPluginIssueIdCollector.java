@@ -0,0 +1,93 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * A Lucene collector which records the ids of the issues matching a search, so
+ * that the issues can then be loaded by chunks (see
+ * {@link com.atlassian.jira.issue.IssueManager#getIssueObjects(java.util.Collection)})
+ * instead of running the search once per page of issues.<br/>
+ * Only the ids of the hits between startAt and startAt + maxResults (in the
+ * order the hits are collected) are read from the index, the other hits are
+ * only counted.<br/>
+ * This collector is not thread safe, an instance is to be used for one search
+ * only.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginIssueIdCollector extends Collector {
+    private final int startAt;
+    private final int maxResults;
+    private final FieldSelector fieldSelector = new MapFieldSelector(new String[] { JiraPluginRequirementCollector.ISSUE_ID_INDEX_FIELD });
+    private final List<Long> issueIds = new ArrayList<Long>();
+    private IndexReader reader;
+    private int hits = 0;
+
+    /**
+     * Creates a new collector
+     *
+     * @param startAt
+     *            the index of the first hit to be recorded
+     * @param maxResults
+     *            the maximum number of hits to be recorded (0 for no limit)
+     */
+    public JiraPluginIssueIdCollector(int startAt, int maxResults) {
+        this.startAt = startAt;
+        this.maxResults = maxResults;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        // The score is not used
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        // The hits are recorded in the order of the search
+        return false;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (JiraPluginSearchExecutor.isCancelled()) {
+            // The search has been abandoned
+            throw new InterruptedIOException("Search cancelled");
+        }
+        int position = hits++;
+        if (position < startAt || (maxResults > 0 && position >= startAt + maxResults)) {
+            return;
+        }
+        String issueId = reader.document(doc, fieldSelector).get(JiraPluginRequirementCollector.ISSUE_ID_INDEX_FIELD);
+        if (issueId != null) {
+            issueIds.add(Long.valueOf(issueId));
+        }
+    }
+
+    /**
+     * Return the ids of the recorded issues (in the order of the search)
+     */
+    public List<Long> getIssueIds() {
+        return issueIds;
+    }
+
+    /**
+     * Return the number of hits (recorded or not)
+     */
+    public int getTotal() {
+        return hits;
+    }
+}
@@ -0,0 +1,205 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The lookup table of the iterations of a requirements result: it converts the
+ * value of the JIRA field mapped to the BizDock Iteration field into an
+ * iteration name.<br/>
+ * The value may be:
+ * <ul>
+ * <li>a sprint (JIRA Agile Sprint custom field) or a version (versions, fix
+ * versions), the name is read with its getName method</li>
+ * <li>a collection of sprints or versions, the last one (the most recent
+ * sprint or version) is the iteration</li>
+ * <li>any other value, which is returned as a String</li>
+ * </ul>
+ * The name of each sprint or version is resolved once (by its id) for the
+ * whole result set, whatever the number of issues in this iteration. The
+ * sprint classes belong to JIRA Agile (which may not be installed) and are
+ * therefore read by reflection.<br/>
+ * When the requirements are read from the index, only the ids of the
+ * iterations are known: the requirements are then added with the id of their
+ * iteration (see {@link #addIteration(Requirement, String, long)}) and the ids
+ * of the whole result set are resolved in one batch (see
+ * {@link #resolve(IterationSource)}), which loads one issue per unknown
+ * iteration.<br/>
+ * This lookup is not thread safe, an instance is to be used for one search
+ * only.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginIterationLookup {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginIterationLookup.class);
+
+    private final Map<Object, String> names = new HashMap<Object, String>();
+    private final Map<Class<?>, Method[]> accessors = new HashMap<Class<?>, Method[]>();
+    private final Map<String, List<Requirement>> pendingRequirements = new LinkedHashMap<String, List<Requirement>>();
+    private final Map<String, Long> pendingIssueIds = new HashMap<String, Long>();
+    private int resolvedCount;
+
+    public JiraPluginIterationLookup() {
+    }
+
+    /**
+     * Return the name of the iteration of the specified field value (the
+     * names of all the sprints or versions of the value are kept for the
+     * other requirements of the result)
+     *
+     * @param value
+     *            the value of the JIRA field mapped to the Iteration field
+     *            (may be null)
+     * @return an iteration name (null if none)
+     */
+    public String getIterationName(Object value) {
+        if (value instanceof Collection) {
+            String name = null;
+            for (Object element : (Collection<?>) value) {
+                name = getIterationName(element);
+            }
+            return name;
+        }
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof String || value instanceof Number) {
+            return String.valueOf(value);
+        }
+        Method[] methods = getAccessors(value.getClass());
+        if (methods == null) {
+            return String.valueOf(value);
+        }
+        Object id = invoke(methods[0], value);
+        Object key = id != null ? String.valueOf(id) : value;
+        String name = names.get(key);
+        if (name == null && !names.containsKey(key)) {
+            Object nameValue = invoke(methods[1], value);
+            name = nameValue != null ? String.valueOf(nameValue) : null;
+            names.put(key, name);
+            resolvedCount++;
+        }
+        return name;
+    }
+
+    /**
+     * Set the iteration of the specified requirement from the id of the
+     * iteration: immediately if its name is already known, or else when the
+     * pending iterations are resolved (see {@link #resolve(IterationSource)})
+     *
+     * @param requirement
+     *            a requirement
+     * @param iterationId
+     *            the id of the sprint or version read from the index (null if
+     *            none)
+     * @param issueId
+     *            the id of the issue of the requirement (loaded if the
+     *            iteration must be resolved)
+     */
+    public void addIteration(Requirement requirement, String iterationId, long issueId) {
+        if (iterationId == null) {
+            return;
+        }
+        if (names.containsKey(iterationId)) {
+            requirement.setIteration(names.get(iterationId));
+            return;
+        }
+        List<Requirement> requirements = pendingRequirements.get(iterationId);
+        if (requirements == null) {
+            requirements = new ArrayList<Requirement>();
+            pendingRequirements.put(iterationId, requirements);
+            pendingIssueIds.put(iterationId, issueId);
+        }
+        requirements.add(requirement);
+    }
+
+    /**
+     * Resolve the names of the pending iterations and set the iteration of
+     * their requirements. An issue is loaded for each iteration which is still
+     * unknown: its value gives the names of all its sprints or versions.
+     *
+     * @param iterationSource
+     *            the source of the iteration values of the issues
+     */
+    public void resolve(IterationSource iterationSource) {
+        for (Map.Entry<String, List<Requirement>> pending : pendingRequirements.entrySet()) {
+            String iterationId = pending.getKey();
+            if (!names.containsKey(iterationId)) {
+                getIterationName(iterationSource.getIterationValue(pendingIssueIds.get(iterationId)));
+                if (!names.containsKey(iterationId)) {
+                    log.debug("The iteration " + iterationId + " is not part of the issue " + pendingIssueIds.get(iterationId));
+                    names.put(iterationId, null);
+                }
+            }
+            for (Requirement requirement : pending.getValue()) {
+                requirement.setIteration(names.get(iterationId));
+            }
+        }
+        pendingRequirements.clear();
+        pendingIssueIds.clear();
+    }
+
+    /**
+     * Return the number of distinct iterations resolved so far
+     */
+    public int getResolvedCount() {
+        return resolvedCount;
+    }
+
+    /**
+     * Return the getId and getName methods of the specified class (null if
+     * the class has no getName method)
+     */
+    private Method[] getAccessors(Class<?> type) {
+        if (accessors.containsKey(type)) {
+            return accessors.get(type);
+        }
+        Method[] methods = null;
+        try {
+            Method nameMethod = type.getMethod("getName");
+            Method idMethod = null;
+            try {
+                idMethod = type.getMethod("getId");
+            } catch (NoSuchMethodException e) {
+            }
+            methods = new Method[] { idMethod, nameMethod };
+        } catch (NoSuchMethodException e) {
+            log.warn("The iteration values of type " + type.getName() + " have no name, their String form is used");
+        }
+        accessors.put(type, methods);
+        return methods;
+    }
+
+    private static Object invoke(Method method, Object target) {
+        if (method == null) {
+            return null;
+        }
+        try {
+            return method.invoke(target);
+        } catch (Exception e) {
+            log.debug("Unable to read the iteration with " + method, e);
+            return null;
+        }
+    }
+
+    /**
+     * The source of the value of the JIRA field mapped to the Iteration field
+     */
+    public interface IterationSource {
+        /**
+         * Return the value of the iteration field of the specified issue
+         *
+         * @param issueId
+         *            an issue id
+         */
+        Object getIterationValue(long issueId);
+    }
+}
@@ -0,0 +1,266 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A JQL query template split once into literal and variable segments.<br/>
+ * Only the templates which use simple references (<code>${name}</code> or
+ * <code>$name</code>) can be compiled: such a template is rendered with a
+ * single {@link StringBuilder} pass. The templates which use any other
+ * Velocity syntax (directives, comments, escapes, silent or property
+ * references) are not compiled and must be rendered with Velocity (see
+ * {@link #isCompiled()}).<br/>
+ * The values of the variables are always rendered as JQL literals (see
+ * {@link #toLiteral(Object, boolean)}) so that a value cannot change the
+ * structure of the query:
+ * <ul>
+ * <li>a reference inside a quoted string of the template is replaced by the
+ * escaped value (see {@link #escape(String)})</li>
+ * <li>a reference outside of a quoted string is replaced by the value between
+ * double quotes (a plain number is written as it is, a collection is written
+ * as a comma separated list of literals to be used in a
+ * <code>in (...)</code> operand)</li>
+ * </ul>
+ * A reference without value is rendered as it is written in the template (as
+ * Velocity does).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginJqlTemplate {
+    /**
+     * A number which can be written in a JQL query without quotes
+     */
+    private static final Pattern PLAIN_NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?");
+
+    /**
+     * A string which can be written anywhere in a JQL query
+     */
+    private static final Pattern PLAIN_VALUE = Pattern.compile("[\\p{L}\\p{N}_.\\-]*");
+
+    private final String template;
+    private final boolean compiled;
+    private final String[] segments;
+    private final String[] variables;
+    private final boolean[] quoted;
+
+    private JiraPluginJqlTemplate(String template, boolean compiled, String[] segments, String[] variables, boolean[] quoted) {
+        this.template = template;
+        this.compiled = compiled;
+        this.segments = segments;
+        this.variables = variables;
+        this.quoted = quoted;
+    }
+
+    /**
+     * Split the specified template into segments
+     *
+     * @param template
+     *            a JQL query template
+     * @return a template (not compiled if it must be rendered by Velocity)
+     */
+    public static JiraPluginJqlTemplate compile(String template) {
+        List<String> segments = new ArrayList<String>();
+        List<String> variables = new ArrayList<String>();
+        List<Boolean> quoted = new ArrayList<Boolean>();
+        StringBuilder literal = new StringBuilder();
+        // The quote which opened the current JQL string (0 if none)
+        char quote = 0;
+        int length = template.length();
+        int i = 0;
+        while (i < length) {
+            char c = template.charAt(i);
+            if (c == '#' || c == '\\') {
+                // Directive, comment or escape
+                return new JiraPluginJqlTemplate(template, false, null, null, null);
+            }
+            if (c != '$') {
+                if (c == '"' || c == '\'') {
+                    quote = quote == 0 ? c : (quote == c ? 0 : quote);
+                }
+                literal.append(c);
+                i++;
+                continue;
+            }
+            boolean formal = i + 1 < length && template.charAt(i + 1) == '{';
+            int start = formal ? i + 2 : i + 1;
+            int end = start;
+            while (end < length && isIdentifierPart(template.charAt(end), end == start)) {
+                end++;
+            }
+            if (end == start) {
+                if (formal || (start < length && template.charAt(start) == '!')) {
+                    // ${ not followed by an identifier or silent reference
+                    return new JiraPluginJqlTemplate(template, false, null, null, null);
+                }
+                // A '$' which is not a reference
+                literal.append(c);
+                i++;
+                continue;
+            }
+            if (formal) {
+                if (end >= length || template.charAt(end) != '}') {
+                    return new JiraPluginJqlTemplate(template, false, null, null, null);
+                }
+                end++;
+            } else if (end < length && ".([-".indexOf(template.charAt(end)) != -1) {
+                // Property, method or index reference
+                return new JiraPluginJqlTemplate(template, false, null, null, null);
+            }
+            segments.add(literal.toString());
+            variables.add(null);
+            quoted.add(false);
+            literal.setLength(0);
+            segments.add(template.substring(i, end));
+            variables.add(template.substring(start, formal ? end - 1 : end));
+            quoted.add(quote != 0);
+            i = end;
+        }
+        segments.add(literal.toString());
+        variables.add(null);
+        quoted.add(false);
+        boolean[] quotedVariables = new boolean[quoted.size()];
+        for (int j = 0; j < quotedVariables.length; j++) {
+            quotedVariables[j] = quoted.get(j);
+        }
+        return new JiraPluginJqlTemplate(template, true, segments.toArray(new String[segments.size()]), variables.toArray(new String[variables.size()]),
+                quotedVariables);
+    }
+
+    /**
+     * Render the template with the specified values (the values are written
+     * as JQL literals)
+     *
+     * @param values
+     *            the values of the variables
+     * @return a JQL query
+     */
+    public String render(Map<String, Object> values) {
+        if (!compiled) {
+            throw new IllegalStateException("The template " + template + " must be rendered by Velocity");
+        }
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        for (int i = 0; i < segments.length; i++) {
+            Object value = variables[i] != null ? values.get(variables[i]) : null;
+            if (value != null) {
+                sb.append(toLiteral(value, quoted[i]));
+            } else {
+                sb.append(segments[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return true if the specified value cannot change the structure of a
+     * query wherever it is written: a number, a boolean or a string which
+     * contains only letters, digits, '_', '-' and '.' (to be checked for the
+     * values of a template which cannot be compiled)
+     *
+     * @param value
+     *            a value (may be null)
+     */
+    public static boolean isPlainValue(Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return true;
+        }
+        return value instanceof String && PLAIN_VALUE.matcher((String) value).matches();
+    }
+
+    /**
+     * Write the specified value as a JQL literal
+     *
+     * @param value
+     *            a value
+     * @param quoted
+     *            true if the value is written inside a quoted string of the
+     *            template
+     * @return the literal
+     */
+    public static String toLiteral(Object value, boolean quoted) {
+        if (quoted) {
+            return escape(String.valueOf(value));
+        }
+        if (value instanceof Collection) {
+            StringBuilder sb = new StringBuilder();
+            for (Object element : (Collection<?>) value) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(toLiteral(element, false));
+            }
+            return sb.toString();
+        }
+        String stringValue = String.valueOf(value);
+        if (value instanceof Number && PLAIN_NUMBER.matcher(stringValue).matches()) {
+            return stringValue;
+        }
+        return '"' + escape(stringValue) + '"';
+    }
+
+    /**
+     * Escape the characters which would end a JQL string (quotes) or start a
+     * JQL escape sequence (backslash).<br/>
+     * This is enough only inside a quoted string: outside of a string, a value
+     * must be quoted as well (see {@link #toLiteral(Object, boolean)}).
+     *
+     * @param value
+     *            a value
+     * @return the escaped value
+     */
+    public static String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\'' || c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder(value.length() + 8);
+                    sb.append(value, 0, i);
+                }
+                sb.append('\\');
+            }
+            if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+
+    private static boolean isIdentifierPart(char c, boolean first) {
+        if (first) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        }
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Return the names of the variables of a compiled template (in the order
+     * of their first reference)
+     */
+    public List<String> getVariables() {
+        List<String> names = new ArrayList<String>();
+        if (compiled) {
+            for (String variable : variables) {
+                if (variable != null && !names.contains(variable)) {
+                    names.add(variable);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Return true if the template can be rendered with
+     * {@link #render(Map)}, false if it must be rendered with Velocity
+     */
+    public boolean isCompiled() {
+        return compiled;
+    }
+}
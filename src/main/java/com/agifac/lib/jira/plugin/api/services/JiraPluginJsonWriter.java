@@ -0,0 +1,212 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.ErrorResponse;
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.ProjectStructure;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A JSON writer for the structures which are returned in large numbers (or
+ * very often) by the {@link JiraPluginRestApi}:
+ * <ul>
+ * <li>a collection of {@link Requirement} or of {@link RequirementNode} (the
+ * collection must be returned as a GenericEntity so that its element type is
+ * known)</li>
+ * <li>a {@link Requirement}</li>
+ * <li>a {@link ProjectStructure}</li>
+ * <li>an {@link ErrorResponse}</li>
+ * </ul>
+ * The JSON is written field by field straight to the response stream (no
+ * reflection and no intermediate tree). The names of the JSON attributes are
+ * the ones of the JAXB annotations of these structures and the null values
+ * are omitted.
+ *
+ * @author Pierre-Yves Cloux
+ */
+@Provider
+@Produces({ MediaType.APPLICATION_JSON })
+public class JiraPluginJsonWriter implements MessageBodyWriter<Object> {
+    private static final int BUFFER_SIZE = 8192;
+
+    public JiraPluginJsonWriter() {
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        if (type == Requirement.class || type == ProjectStructure.class || type == ErrorResponse.class) {
+            return true;
+        }
+        if (!Collection.class.isAssignableFrom(type) || !(genericType instanceof ParameterizedType)) {
+            return false;
+        }
+        Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+        return elementType == Requirement.class || elementType == RequirementNode.class;
+    }
+
+    @Override
+    public long getSize(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(entityStream, "UTF-8"), BUFFER_SIZE));
+        if (value instanceof Collection) {
+            writeRequirements(writer, (Collection<?>) value);
+        } else if (value instanceof Requirement) {
+            writeRequirement(writer, (Requirement) value);
+        } else if (value instanceof ProjectStructure) {
+            writeProjectStructure(writer, (ProjectStructure) value);
+        } else {
+            writeErrorResponse(writer, (ErrorResponse) value);
+        }
+        // The entity stream is closed by the container
+        writer.flush();
+    }
+
+    /**
+     * Write the specified changes as a JSON array (used to push the changes,
+     * see {@link JiraPluginWebhookDispatcher})
+     *
+     * @param out
+     *            the writer (flushed but not closed)
+     * @param changes
+     *            some requirement changes
+     */
+    static void writeRequirementChanges(Writer out, List<RequirementChange> changes) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (RequirementChange change : changes) {
+            writer.beginObject();
+            writer.name("type").value(change.getType().name());
+            writeString(writer, "id", change.getId());
+            writeString(writer, "projectRefId", change.getProjectRefId());
+            writer.name("timestamp").value(change.getTimestamp());
+            if (change.getRequirement() != null) {
+                writer.name("requirement");
+                writeRequirement(writer, change.getRequirement());
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Write the projects which changed (used to notify the clients waiting
+     * for changes, see {@link JiraPluginChangeNotifier})
+     *
+     * @param out
+     *            the writer (flushed but not closed)
+     * @param lastSequence
+     *            the sequence of the last change
+     * @param changedProjects
+     *            the sequence of the last change by project id
+     */
+    static void writeProjectChanges(Writer out, long lastSequence, Map<Long, Long> changedProjects) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("lastSequence").value(lastSequence);
+        writer.name("projects");
+        writer.beginArray();
+        for (Map.Entry<Long, Long> entry : changedProjects.entrySet()) {
+            writer.beginObject();
+            writer.name("projectRefId").value(String.valueOf(entry.getKey()));
+            writer.name("sequence").value(entry.getValue());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Write a collection of {@link Requirement} or of {@link RequirementNode}
+     */
+    private static void writeRequirements(JsonWriter writer, Collection<?> requirements) throws IOException {
+        writer.beginArray();
+        for (Object requirement : requirements) {
+            if (requirement instanceof RequirementNode) {
+                writeRequirementNode(writer, (RequirementNode) requirement);
+            } else {
+                writeRequirement(writer, (Requirement) requirement);
+            }
+        }
+        writer.endArray();
+    }
+
+    private static void writeRequirementNode(JsonWriter writer, RequirementNode node) throws IOException {
+        writer.beginObject();
+        writer.name("requirement");
+        writeRequirement(writer, node.getRequirement());
+        writer.name("totalStoryPoints").value(node.getTotalStoryPoints());
+        writer.name("totalEstimation").value(node.getTotalEstimation());
+        writer.name("children");
+        writeRequirements(writer, node.getChildren());
+        writer.endObject();
+    }
+
+    private static void writeRequirement(JsonWriter writer, Requirement requirement) throws IOException {
+        writer.beginObject();
+        writeString(writer, "id", requirement.getId());
+        writer.name("defect").value(requirement.isDefect());
+        writeString(writer, "name", requirement.getName());
+        writeString(writer, "description", requirement.getDescription());
+        writeString(writer, "category", requirement.getCategory());
+        writeString(writer, "status", requirement.getStatus());
+        writeString(writer, "priority", requirement.getPriority());
+        writeString(writer, "severity", requirement.getSeverity());
+        writeString(writer, "authorEmail", requirement.getAuthorEmail());
+        writer.name("storyPoints").value(requirement.getStoryPoints());
+        writer.name("estimation").value(requirement.getEstimation());
+        writeString(writer, "iteration", requirement.getIteration());
+        writer.name("inScope").value(requirement.isInScope());
+        writer.name("resolved").value(requirement.isResolved());
+        writeString(writer, "hash", requirement.getHash());
+        writer.endObject();
+    }
+
+    private static void writeProjectStructure(JsonWriter writer, ProjectStructure projectStructure) throws IOException {
+        writer.beginObject();
+        writeString(writer, "projectRefId", projectStructure.getProjectRefId());
+        writeString(writer, "key", projectStructure.getProjectKey());
+        writeString(writer, "name", projectStructure.getProjectName());
+        writeString(writer, "description", projectStructure.getProjectDescription());
+        writer.endObject();
+    }
+
+    private static void writeErrorResponse(JsonWriter writer, ErrorResponse errorResponse) throws IOException {
+        writer.beginObject();
+        writeString(writer, "message", errorResponse.getMessage());
+        writeString(writer, "trace", errorResponse.getStackTrace());
+        if (errorResponse.getErrorCode() != null) {
+            writer.name("code").value(errorResponse.getErrorCode().name());
+        }
+        writer.endObject();
+    }
+
+    private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+}
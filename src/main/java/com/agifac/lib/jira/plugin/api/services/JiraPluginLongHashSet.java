@@ -0,0 +1,106 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of primitive long values (open addressing with linear
+ * probing in a single array).<br/>
+ * It is used for the lookups done for every issue event (see
+ * {@link JiraPluginServiceProvider#onIssueEvent}): no boxing, no entry
+ * objects and one array access in most cases.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginLongHashSet {
+    /**
+     * The value of an empty slot (the value 0 is tracked separately)
+     */
+    private static final long EMPTY = 0;
+
+    private final long[] slots;
+    private final int mask;
+    private final boolean containsZero;
+    private final int size;
+
+    /**
+     * Create a set with the specified values (the duplicates are ignored)
+     *
+     * @param values
+     *            some values
+     */
+    public JiraPluginLongHashSet(long[] values) {
+        // Load factor of 0.5 at most
+        int capacity = Integer.highestOneBit(Math.max(4, values.length * 2 - 1)) << 1;
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+        boolean zero = false;
+        int count = 0;
+        for (long value : values) {
+            if (value == EMPTY) {
+                if (!zero) {
+                    zero = true;
+                    count++;
+                }
+                continue;
+            }
+            int index = hash(value) & mask;
+            while (slots[index] != EMPTY && slots[index] != value) {
+                index = (index + 1) & mask;
+            }
+            if (slots[index] == EMPTY) {
+                slots[index] = value;
+                count++;
+            }
+        }
+        this.containsZero = zero;
+        this.size = count;
+    }
+
+    /**
+     * Return true if the set contains the specified value
+     */
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsZero;
+        }
+        int index = hash(value) & mask;
+        long slot;
+        while ((slot = slots[index]) != EMPTY) {
+            if (slot == value) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the values (sorted)
+     */
+    public long[] toArray() {
+        long[] values = new long[size];
+        int count = 0;
+        if (containsZero) {
+            values[count++] = EMPTY;
+        }
+        for (long slot : slots) {
+            if (slot != EMPTY) {
+                values[count++] = slot;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Spread the bits of the value (the project ids are sequential)
+     */
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
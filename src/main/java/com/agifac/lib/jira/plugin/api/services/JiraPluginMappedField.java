@@ -0,0 +1,63 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDockRequirementsFields;
+import com.atlassian.jira.issue.fields.CustomField;
+
+/**
+ * A BizDock field with the JIRA field it is mapped to, as resolved from the
+ * plugin configuration.<br/>
+ * <ul>
+ * <li>bizDockRequirementsField : the BizDock field</li>
+ * <li>fieldKey : the key of the JIRA field (custom fields are prefixed)</li>
+ * <li>customField : the resolved custom field (null if the field is not a
+ * custom field or if the custom field does not exist)</li>
+ * <li>indexField : the name of the Lucene document field which stores the
+ * value of the JIRA field (null if the value cannot be read from the index)</li>
+ * <li>iterationIds : true if the index field stores the ids of the sprints or
+ * versions of the Iteration field (see {@link JiraPluginIterationLookup})</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginMappedField {
+    private final BizDockRequirementsFields bizDockRequirementsField;
+    private final String fieldKey;
+    private final boolean custom;
+    private final CustomField customField;
+    private final String indexField;
+    private final boolean iterationIds;
+
+    public JiraPluginMappedField(BizDockRequirementsFields bizDockRequirementsField, String fieldKey, boolean custom, CustomField customField,
+            String indexField, boolean iterationIds) {
+        this.bizDockRequirementsField = bizDockRequirementsField;
+        this.fieldKey = fieldKey;
+        this.custom = custom;
+        this.customField = customField;
+        this.indexField = indexField;
+        this.iterationIds = iterationIds;
+    }
+
+    public BizDockRequirementsFields getBizDockRequirementsField() {
+        return bizDockRequirementsField;
+    }
+
+    public String getFieldKey() {
+        return fieldKey;
+    }
+
+    public boolean isCustom() {
+        return custom;
+    }
+
+    public CustomField getCustomField() {
+        return customField;
+    }
+
+    public String getIndexField() {
+        return indexField;
+    }
+
+    public boolean isIterationIds() {
+        return iterationIds;
+    }
+}
@@ -0,0 +1,31 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+/**
+ * The exception which is thrown when a search cannot be started because the
+ * plugin search executor is saturated (the maximum queue wait is exceeded).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginOverloadedException extends JiraPluginException {
+    private static final long serialVersionUID = -3202713624377066544L;
+
+    public JiraPluginOverloadedException() {
+    }
+
+    public JiraPluginOverloadedException(String message) {
+        super(message);
+    }
+
+    public JiraPluginOverloadedException(Throwable cause) {
+        super(cause);
+    }
+
+    public JiraPluginOverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public JiraPluginOverloadedException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+
+}
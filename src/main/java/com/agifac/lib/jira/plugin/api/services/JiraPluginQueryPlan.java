@@ -0,0 +1,342 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.jira.jql.parser.JqlQueryParser;
+import com.atlassian.query.Query;
+import com.atlassian.query.QueryImpl;
+import com.atlassian.query.clause.AndClause;
+import com.atlassian.query.clause.Clause;
+import com.atlassian.query.clause.NotClause;
+import com.atlassian.query.clause.OrClause;
+import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.clause.TerminalClauseImpl;
+import com.atlassian.query.clause.WasClause;
+import com.atlassian.query.operand.FunctionOperand;
+import com.atlassian.query.operand.MultiValueOperand;
+import com.atlassian.query.operand.Operand;
+import com.atlassian.query.operand.SingleValueOperand;
+import com.atlassian.query.order.OrderBy;
+
+/**
+ * A JQL query template parsed once into a clause tree in which the variables
+ * are placeholders.<br/>
+ * A query is created by binding the values of the variables into a copy of
+ * the clause tree (see {@link #bind(Map)}): the JQL is neither rendered nor
+ * parsed again and the values are never interpreted as JQL (they can only be
+ * operand values). The JQL text of the query is rendered only if it is
+ * requested (for the logs and the error messages).<br/>
+ * The operands are created as the JIRA parser would create them from the
+ * rendered JQL (see {@link JiraPluginJqlTemplate}): an integer is a number
+ * operand, a collection is a list of operands (for <code>in (...)</code>) and
+ * any other value is a string operand.<br/>
+ * A plan can be created only for a compiled template (see
+ * {@link JiraPluginJqlTemplate}) whose variables are only used in operands
+ * (not as field names, operators or in the order by) and which uses AND, OR,
+ * NOT and terminal clauses only (no history clause). Otherwise the plan is
+ * not bindable and the JQL must be rendered and parsed.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginQueryPlan {
+    private static Logger log = LoggerFactory.getLogger(JiraPluginQueryPlan.class);
+
+    /**
+     * The prefix of the placeholders (followed by the index of the variable
+     * and terminated by {@link #PLACEHOLDER_SUFFIX})
+     */
+    private static final String PLACEHOLDER_PREFIX = "BIZDOCKVAR";
+    private static final char PLACEHOLDER_SUFFIX = 'X';
+
+    private final JiraPluginJqlTemplate template;
+    private final List<String> variables;
+    private final Query query;
+
+    private JiraPluginQueryPlan(JiraPluginJqlTemplate template, List<String> variables, Query query) {
+        this.template = template;
+        this.variables = variables;
+        this.query = query;
+    }
+
+    /**
+     * Create the plan of the specified template
+     *
+     * @param template
+     *            a JQL template
+     * @param jqlQueryParser
+     *            the JQL parser
+     * @return a plan (which may not be bindable)
+     */
+    public static JiraPluginQueryPlan create(JiraPluginJqlTemplate template, JqlQueryParser jqlQueryParser) {
+        if (!template.isCompiled()) {
+            return new JiraPluginQueryPlan(template, null, null);
+        }
+        List<String> variables = template.getVariables();
+        Map<String, Object> placeholders = new HashMap<String, Object>();
+        Object[] identity = new Object[variables.size()];
+        for (int i = 0; i < variables.size(); i++) {
+            String placeholder = PLACEHOLDER_PREFIX + i + PLACEHOLDER_SUFFIX;
+            placeholders.put(variables.get(i), placeholder);
+            identity[i] = placeholder;
+        }
+        try {
+            String jql = template.render(placeholders);
+            Query parsedQuery = jqlQueryParser.parseQuery(jql);
+            // Check that all the placeholders are in operands of supported
+            // clauses
+            int[] bound = new int[1];
+            if (parsedQuery.getWhereClause() == null || bindClause(parsedQuery.getWhereClause(), identity, bound) == null
+                    || bound[0] != StringUtils.countMatches(jql, PLACEHOLDER_PREFIX)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("No query plan for the JQL template " + template.getTemplate());
+                }
+                return new JiraPluginQueryPlan(template, variables, null);
+            }
+            return new JiraPluginQueryPlan(template, variables, parsedQuery);
+        } catch (Exception e) {
+            // The template will be rendered and parsed (which reports the
+            // error)
+            log.debug("Unable to create a plan for the JQL template " + template.getTemplate(), e);
+            return new JiraPluginQueryPlan(template, variables, null);
+        }
+    }
+
+    /**
+     * Return true if the query can be created with {@link #bind(Map)}
+     */
+    public boolean isBindable() {
+        return query != null;
+    }
+
+    /**
+     * Create a query by binding the specified values
+     *
+     * @param values
+     *            the values of the variables
+     * @return a query or null if a value is missing (the JQL must then be
+     *         rendered and parsed)
+     */
+    public Query bind(Map<String, Object> values) {
+        if (query == null) {
+            return null;
+        }
+        Object[] boundValues = new Object[variables.size()];
+        for (int i = 0; i < variables.size(); i++) {
+            boundValues[i] = values.get(variables.get(i));
+            if (boundValues[i] == null) {
+                return null;
+            }
+        }
+        Clause whereClause = bindClause(query.getWhereClause(), boundValues, new int[1]);
+        return new BoundQuery(whereClause, query.getOrderByClause(), template, values);
+    }
+
+    /**
+     * Return a copy of the specified clause in which the placeholders are
+     * replaced by the specified values
+     *
+     * @param clause
+     *            a clause
+     * @param values
+     *            the values (by variable index)
+     * @param bound
+     *            incremented with the number of placeholders replaced
+     * @return a clause or null if the clause is not supported
+     */
+    private static Clause bindClause(Clause clause, Object[] values, int[] bound) {
+        if (clause instanceof AndClause || clause instanceof OrClause) {
+            List<Clause> subClauses = new ArrayList<Clause>();
+            for (Clause subClause : clause.getClauses()) {
+                Clause boundSubClause = bindClause(subClause, values, bound);
+                if (boundSubClause == null) {
+                    return null;
+                }
+                subClauses.add(boundSubClause);
+            }
+            return clause instanceof AndClause ? new AndClause(subClauses) : new OrClause(subClauses);
+        }
+        if (clause instanceof NotClause) {
+            Clause subClause = bindClause(((NotClause) clause).getSubClause(), values, bound);
+            return subClause != null ? new NotClause(subClause) : null;
+        }
+        if (clause instanceof TerminalClause && !(clause instanceof WasClause)) {
+            // A history clause (WAS) is a terminal clause with a predicate
+            // which would be lost, it is not supported
+            TerminalClause terminalClause = (TerminalClause) clause;
+            int before = bound[0];
+            Operand operand = bindOperand(terminalClause.getOperand(), values, bound);
+            if (bound[0] == before) {
+                return clause;
+            }
+            return new TerminalClauseImpl(terminalClause.getName(), terminalClause.getOperator(), operand);
+        }
+        return null;
+    }
+
+    private static Operand bindOperand(Operand operand, Object[] values, int[] bound) {
+        if (operand instanceof SingleValueOperand) {
+            String stringValue = ((SingleValueOperand) operand).getStringValue();
+            if (stringValue == null || stringValue.indexOf(PLACEHOLDER_PREFIX) == -1) {
+                return operand;
+            }
+            int index = getWholePlaceholderIndex(stringValue, values.length);
+            if (index != -1) {
+                bound[0]++;
+                if (values[index] instanceof Collection) {
+                    List<Operand> operands = new ArrayList<Operand>();
+                    for (Object element : (Collection<?>) values[index]) {
+                        operands.add(toOperand(element));
+                    }
+                    return new MultiValueOperand(operands.toArray(new Operand[operands.size()]));
+                }
+                return toOperand(values[index]);
+            }
+            return new SingleValueOperand(substitute(stringValue, values, bound));
+        }
+        if (operand instanceof MultiValueOperand) {
+            List<Operand> operands = new ArrayList<Operand>();
+            for (Operand value : ((MultiValueOperand) operand).getValues()) {
+                Operand boundValue = bindOperand(value, values, bound);
+                if (boundValue instanceof MultiValueOperand) {
+                    // A list bound in a list: in (${list}) or in (a, ${list})
+                    operands.addAll(((MultiValueOperand) boundValue).getValues());
+                } else {
+                    operands.add(boundValue);
+                }
+            }
+            return new MultiValueOperand(operands.toArray(new Operand[operands.size()]));
+        }
+        if (operand instanceof FunctionOperand) {
+            FunctionOperand functionOperand = (FunctionOperand) operand;
+            List<String> args = new ArrayList<String>();
+            for (String arg : functionOperand.getArgs()) {
+                args.add(substitute(arg, values, bound));
+            }
+            return new FunctionOperand(functionOperand.getName(), args);
+        }
+        return operand;
+    }
+
+    /**
+     * Return the operand of a value: a number operand for an integer (the
+     * other numbers are kept as strings, the JIRA parser reads a decimal
+     * literal as a string as well), a string operand otherwise
+     */
+    private static Operand toOperand(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64)) {
+            return new SingleValueOperand(((Number) value).longValue());
+        }
+        return new SingleValueOperand(String.valueOf(value));
+    }
+
+    /**
+     * Return the index of the variable if the specified string is exactly one
+     * placeholder (or -1 otherwise)
+     */
+    private static int getWholePlaceholderIndex(String value, int count) {
+        int index = getPlaceholderIndex(value, 0, count);
+        if (index != -1 && value.length() == PLACEHOLDER_PREFIX.length() + String.valueOf(index).length() + 1) {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Replace the placeholders of the specified string (in one pass, so that
+     * a value which looks like a placeholder is not replaced)
+     */
+    private static String substitute(String value, Object[] values, int[] bound) {
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        int i = 0;
+        while (i < value.length()) {
+            int index = getPlaceholderIndex(value, i, values.length);
+            if (index == -1) {
+                sb.append(value.charAt(i));
+                i++;
+                continue;
+            }
+            sb.append(String.valueOf(values[index]));
+            bound[0]++;
+            i += PLACEHOLDER_PREFIX.length() + String.valueOf(index).length() + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the index of the variable of the placeholder which starts at the
+     * specified position (or -1 if there is no valid placeholder)
+     * 
+     * @param value
+     *            a string
+     * @param start
+     *            a position in the string
+     * @param count
+     *            the number of variables
+     */
+    private static int getPlaceholderIndex(String value, int start, int count) {
+        if (!value.startsWith(PLACEHOLDER_PREFIX, start)) {
+            return -1;
+        }
+        int end = start + PLACEHOLDER_PREFIX.length();
+        int index = 0;
+        int digits = 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end)) && index < count) {
+            index = index * 10 + (value.charAt(end) - '0');
+            digits++;
+            end++;
+        }
+        // The placeholders are written without leading zero
+        if (digits == 0 || (digits > 1 && value.charAt(start + PLACEHOLDER_PREFIX.length()) == '0') || index >= count || end >= value.length()
+                || value.charAt(end) != PLACEHOLDER_SUFFIX) {
+            return -1;
+        }
+        return index;
+    }
+
+    public JiraPluginJqlTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * A query created by binding some values: its JQL text is rendered on the
+     * first request only
+     *
+     * @author Pierre-Yves Cloux
+     */
+    private static class BoundQuery extends QueryImpl {
+        private final JiraPluginJqlTemplate template;
+        private final Map<String, Object> values;
+        private volatile String queryString;
+
+        public BoundQuery(Clause whereClause, OrderBy orderByClause, JiraPluginJqlTemplate template, Map<String, Object> values) {
+            super(whereClause, orderByClause, null);
+            this.template = template;
+            this.values = values;
+        }
+
+        @Override
+        public String getQueryString() {
+            String jql = queryString;
+            if (jql == null) {
+                jql = template.render(values);
+                queryString = jql;
+            }
+            return jql;
+        }
+
+        @Override
+        public String toString() {
+            return getQueryString();
+        }
+    }
+}
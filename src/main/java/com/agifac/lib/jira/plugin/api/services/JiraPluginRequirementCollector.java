@@ -0,0 +1,387 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.document.NumberTools;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDockRequirementsFields;
+import com.atlassian.jira.config.ConstantsManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.issue.customfields.manager.OptionsManager;
+import com.atlassian.jira.issue.customfields.option.Option;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.status.Status;
+
+/**
+ * A Lucene collector which creates the {@link Requirement} objects straight
+ * from the stored fields of the JIRA issue index, without loading the
+ * {@link Issue} objects.<br/>
+ * The mapped fields which cannot be read from the index (see
+ * {@link JiraPluginMappedField#getIndexField()}) are read from the issue, which
+ * is then loaded only for the documents which need it.<br/>
+ * The values looked up from an id stored in the index (status, priority, user,
+ * option) are resolved once per search. The users are resolved through the
+ * {@link JiraPluginUserEmailCache} which is shared by the searches.<br/>
+ * The requirements are passed to a {@link JiraPluginRequirementHandler} as
+ * soon as they are created, except if the Iteration field is read from the
+ * index: the ids of the sprints or versions of all the requirements are then
+ * resolved in one batch (see {@link JiraPluginIterationLookup}) and the
+ * requirements are passed to the handler by {@link #finish()}.<br/>
+ * Only the hits between startAt and startAt + maxResults (in the index order)
+ * are mapped, the other hits are only counted.<br/>
+ * This collector is not thread safe, an instance is to be used for one search
+ * only.
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginRequirementCollector extends Collector {
+    /**
+     * The index field which contains the issue id
+     */
+    public static final String ISSUE_ID_INDEX_FIELD = "issue_id";
+
+    /**
+     * The index field which contains the issue key
+     */
+    public static final String ISSUE_KEY_INDEX_FIELD = "key";
+
+    /**
+     * The index field which contains the resolution id ("-1" if the issue is
+     * not resolved)
+     */
+    public static final String RESOLUTION_INDEX_FIELD = "resolution";
+
+    private static final String UNRESOLVED_INDEX_VALUE = "-1";
+
+    /**
+     * The index fields which contain the JIRA system fields (by JIRA field
+     * key)
+     */
+    public static final Map<String, String> SYSTEM_FIELDS_INDEX_FIELDS;
+    static {
+        SYSTEM_FIELDS_INDEX_FIELDS = new HashMap<String, String>();
+        SYSTEM_FIELDS_INDEX_FIELDS.put("summary", "summary");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("description", "description");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("status", "status");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("priority", "priority");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("creator", "issue_creator");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("reporter", "issue_author");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("assignee", "issue_assignee");
+        SYSTEM_FIELDS_INDEX_FIELDS.put("timeoriginalestimate", "timeoriginalestimate");
+    }
+
+    /**
+     * The index fields which contain the ids of the versions of an issue (by
+     * JIRA field key), see {@link JiraPluginMappedField#isIterationIds()}
+     */
+    public static final Map<String, String> VERSIONS_INDEX_FIELDS;
+    static {
+        VERSIONS_INDEX_FIELDS = new HashMap<String, String>();
+        VERSIONS_INDEX_FIELDS.put("versions", "version");
+        VERSIONS_INDEX_FIELDS.put("fixVersions", "fixfor");
+    }
+
+    private final JiraPluginServiceProvider jiraPluginServiceProvider;
+    private final List<JiraPluginMappedField> mappedFields;
+    private final boolean defect;
+    private final JiraPluginRequirementHandler handler;
+    private final int startAt;
+    private final int maxResults;
+    private final IssueManager issueManager;
+    private final ConstantsManager constantsManager;
+    private final OptionsManager optionsManager;
+    private final JiraPluginUserEmailCache userEmailCache;
+    private final FieldSelector fieldSelector;
+    private final Map<String, String> lookups = new HashMap<String, String>();
+    private final JiraPluginIterationLookup iterationLookup = new JiraPluginIterationLookup();
+    private final JiraPluginMappedField iterationField;
+    private final List<Requirement> pendingRequirements = new ArrayList<Requirement>();
+    private IndexReader reader;
+    private int hits = 0;
+    private int requirementsCount = 0;
+    private int issuesLoaded = 0;
+
+    /**
+     * Creates a new collector
+     * 
+     * @param jiraPluginServiceProvider
+     *            the service provider (used to map the fields which are not
+     *            indexed)
+     * @param mappedFields
+     *            the resolved mapping
+     * @param defect
+     *            true if the collected requirements are defects
+     * @param handler
+     *            the handler which receives the requirements
+     * @param startAt
+     *            the index of the first hit to be mapped
+     * @param maxResults
+     *            the maximum number of hits to be mapped (0 for no limit)
+     * @param issueManager
+     *            used to load the issues for the fields which are not indexed
+     * @param constantsManager
+     *            used to resolve the statuses and priorities
+     * @param optionsManager
+     *            used to resolve the select list options
+     * @param userEmailCache
+     *            used to resolve the users (shared by the searches)
+     */
+    public JiraPluginRequirementCollector(JiraPluginServiceProvider jiraPluginServiceProvider, List<JiraPluginMappedField> mappedFields, boolean defect,
+            JiraPluginRequirementHandler handler, int startAt, int maxResults, IssueManager issueManager, ConstantsManager constantsManager,
+            OptionsManager optionsManager, JiraPluginUserEmailCache userEmailCache) {
+        this.jiraPluginServiceProvider = jiraPluginServiceProvider;
+        this.mappedFields = mappedFields;
+        this.defect = defect;
+        this.handler = handler;
+        this.startAt = startAt;
+        this.maxResults = maxResults;
+        this.issueManager = issueManager;
+        this.constantsManager = constantsManager;
+        this.optionsManager = optionsManager;
+        this.userEmailCache = userEmailCache;
+        Set<String> indexFields = new LinkedHashSet<String>();
+        indexFields.add(ISSUE_ID_INDEX_FIELD);
+        indexFields.add(ISSUE_KEY_INDEX_FIELD);
+        indexFields.add(RESOLUTION_INDEX_FIELD);
+        JiraPluginMappedField iterationField = null;
+        for (JiraPluginMappedField mappedField : mappedFields) {
+            if (mappedField.getIndexField() != null) {
+                indexFields.add(mappedField.getIndexField());
+            }
+            if (mappedField.isIterationIds()) {
+                iterationField = mappedField;
+            }
+        }
+        this.iterationField = iterationField;
+        this.fieldSelector = new MapFieldSelector(indexFields.toArray(new String[indexFields.size()]));
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        // The score is not used
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (JiraPluginSearchExecutor.isCancelled()) {
+            // The search has been abandoned
+            throw new InterruptedIOException("Search cancelled");
+        }
+        int position = hits++;
+        if (position < startAt || (maxResults > 0 && position >= startAt + maxResults)) {
+            return;
+        }
+        Document document = reader.document(doc, fieldSelector);
+        Requirement requirement = new Requirement();
+        requirement.setId(document.get(ISSUE_KEY_INDEX_FIELD));
+        requirement.setDefect(defect);
+        String resolution = document.get(RESOLUTION_INDEX_FIELD);
+        requirement.setResolved(resolution != null && !resolution.equals(UNRESOLVED_INDEX_VALUE));
+        Issue issue = null;
+        for (JiraPluginMappedField mappedField : mappedFields) {
+            Object value;
+            if (mappedField.isIterationIds()) {
+                // The last sprint or version, resolved by finish()
+                String[] iterationIds = document.getValues(mappedField.getIndexField());
+                iterationLookup.addIteration(requirement, iterationIds != null && iterationIds.length > 0 ? iterationIds[iterationIds.length - 1]
+                        : null, Long.parseLong(document.get(ISSUE_ID_INDEX_FIELD)));
+                continue;
+            }
+            if (mappedField.getIndexField() != null) {
+                value = readIndexedValue(document, mappedField);
+            } else {
+                if (issue == null) {
+                    issue = issueManager.getIssueObject(Long.valueOf(document.get(ISSUE_ID_INDEX_FIELD)));
+                    issuesLoaded++;
+                }
+                value = jiraPluginServiceProvider.getIssueFieldValue(issue, mappedField);
+            }
+            if (mappedField.getBizDockRequirementsField() == BizDockRequirementsFields.Iteration) {
+                value = iterationLookup.getIterationName(value);
+            }
+            jiraPluginServiceProvider.setRequirementField(requirement, mappedField.getBizDockRequirementsField(), value);
+        }
+        requirementsCount++;
+        if (iterationField != null) {
+            pendingRequirements.add(requirement);
+            return;
+        }
+        JiraPluginContentHash.setHash(requirement);
+        handler.handle(requirement);
+    }
+
+    /**
+     * Resolve the iterations of the collected requirements and pass the
+     * requirements which were waiting for them to the handler (to be called
+     * once the search is completed)
+     */
+    public void finish() {
+        if (pendingRequirements.isEmpty()) {
+            return;
+        }
+        iterationLookup.resolve(new JiraPluginIterationLookup.IterationSource() {
+            @Override
+            public Object getIterationValue(long issueId) {
+                Issue issue = issueManager.getIssueObject(issueId);
+                issuesLoaded++;
+                return issue != null ? jiraPluginServiceProvider.getIssueFieldValue(issue, iterationField) : null;
+            }
+        });
+        for (Requirement requirement : pendingRequirements) {
+            JiraPluginContentHash.setHash(requirement);
+            handler.handle(requirement);
+        }
+        pendingRequirements.clear();
+    }
+
+    /**
+     * Return the number of hits (mapped or not)
+     */
+    public int getTotal() {
+        return hits;
+    }
+
+    /**
+     * Return the number of requirements collected so far
+     */
+    public int getRequirementsCount() {
+        return requirementsCount;
+    }
+
+    /**
+     * Return the number of issues loaded for the fields which are not indexed
+     * (and for the iterations)
+     */
+    public int getIssuesLoaded() {
+        return issuesLoaded;
+    }
+
+    /**
+     * Return the number of distinct iterations resolved
+     */
+    public int getIterationsResolved() {
+        return iterationLookup.getResolvedCount();
+    }
+
+    /**
+     * Read the value of a mapped field from the index document.<br/>
+     * The value is converted the same way as the value read from the issue
+     * (see {@link JiraPluginServiceProvider#getIssueFieldValue(Issue, JiraPluginMappedField)}).
+     */
+    private Object readIndexedValue(Document document, JiraPluginMappedField mappedField) {
+        if (mappedField.isCustom()) {
+            String[] optionIds = document.getValues(mappedField.getIndexField());
+            if (optionIds == null || optionIds.length == 0) {
+                return null;
+            }
+            if (optionIds.length == 1) {
+                return lookupOption(optionIds[0]);
+            }
+            List<String> options = new ArrayList<String>(optionIds.length);
+            for (String optionId : optionIds) {
+                options.add(lookupOption(optionId));
+            }
+            return options;
+        }
+        String storedValue = document.get(mappedField.getIndexField());
+        String fieldKey = mappedField.getFieldKey();
+        if (fieldKey.equals("status")) {
+            return storedValue != null ? lookupStatus(storedValue) : null;
+        }
+        if (fieldKey.equals("priority")) {
+            return storedValue != null ? lookupPriority(storedValue) : null;
+        }
+        if (fieldKey.equals("creator") || fieldKey.equals("reporter") || fieldKey.equals("assignee")) {
+            return storedValue != null ? lookupUserEmail(storedValue) : null;
+        }
+        if (fieldKey.equals("timeoriginalestimate")) {
+            // The value is expressed in "seconds" > converts in hours
+            if (storedValue == null) {
+                return 0;
+            }
+            try {
+                long estimate = decodeLong(storedValue);
+                return estimate > 0 ? estimate / 3600 : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return storedValue;
+    }
+
+    private String lookupStatus(String statusId) {
+        String key = "status#" + statusId;
+        if (!lookups.containsKey(key)) {
+            Status status = constantsManager.getStatusObject(statusId);
+            lookups.put(key, status != null ? status.getName() : null);
+        }
+        return lookups.get(key);
+    }
+
+    private String lookupPriority(String priorityId) {
+        String key = "priority#" + priorityId;
+        if (!lookups.containsKey(key)) {
+            Priority priority = constantsManager.getPriorityObject(priorityId);
+            lookups.put(key, priority != null ? priority.getName() : null);
+        }
+        return lookups.get(key);
+    }
+
+    private String lookupUserEmail(String userKey) {
+        String key = "user#" + userKey;
+        if (!lookups.containsKey(key)) {
+            lookups.put(key, userEmailCache.getEmail(userKey));
+        }
+        return lookups.get(key);
+    }
+
+    private String lookupOption(String optionId) {
+        String key = "option#" + optionId;
+        if (!lookups.containsKey(key)) {
+            String value = optionId;
+            if (StringUtils.isNumeric(optionId)) {
+                Option option = optionsManager.findByOptionId(Long.valueOf(optionId));
+                value = option != null ? option.getValue() : null;
+            }
+            lookups.put(key, value);
+        }
+        return lookups.get(key);
+    }
+
+    /**
+     * Decode a long stored in the index (either as a plain number or with the
+     * Lucene sortable encoding)
+     */
+    private static long decodeLong(String storedValue) {
+        if (storedValue.length() == NumberTools.STR_SIZE) {
+            return NumberTools.stringToLong(storedValue);
+        }
+        return Long.parseLong(storedValue);
+    }
+
+}
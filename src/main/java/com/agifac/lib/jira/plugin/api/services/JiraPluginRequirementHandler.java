@@ -0,0 +1,19 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+/**
+ * Receives the requirements one by one while a search is running.<br/>
+ * This allows to process (aggregate, count, etc.) the requirements without
+ * keeping the whole result in memory.
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public interface JiraPluginRequirementHandler {
+
+    /**
+     * Handle a requirement created from an issue matching the search
+     * 
+     * @param requirement
+     *            a requirement
+     */
+    public void handle(Requirement requirement);
+}
@@ -0,0 +1,142 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDockRequirementsFields;
+
+/**
+ * Computes the totals of the requirements grouped by a BizDock field while the
+ * requirements are received (see {@link JiraPluginRequirementHandler}).<br/>
+ * Only the accumulators are kept in memory, the requirements are not.<br/>
+ * This object is not thread safe, an instance is to be used for one
+ * aggregation only.
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginRequirementsAggregator implements JiraPluginRequirementHandler {
+    private final boolean defect;
+    private final BizDockRequirementsFields groupBy;
+    private final Accumulator total = new Accumulator();
+    private final Map<String, Accumulator> groups = new HashMap<String, Accumulator>();
+
+    /**
+     * Creates an aggregator
+     * 
+     * @param defect
+     *            true if the aggregated requirements are defects
+     * @param groupBy
+     *            the field used to group the requirements (null if only the
+     *            totals are required)
+     */
+    public JiraPluginRequirementsAggregator(boolean defect, BizDockRequirementsFields groupBy) {
+        this.defect = defect;
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Return true if the requirements can be grouped by the specified field
+     * 
+     * @param field
+     *            a BizDock field
+     */
+    public static boolean isGroupable(BizDockRequirementsFields field) {
+        switch (field) {
+        case Category:
+        case Status:
+        case Priority:
+        case Severity:
+        case Author:
+        case Iteration:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public void handle(Requirement requirement) {
+        total.add(requirement);
+        if (groupBy != null) {
+            String value = getGroupValue(requirement);
+            Accumulator accumulator = groups.get(value);
+            if (accumulator == null) {
+                accumulator = new Accumulator();
+                groups.put(value, accumulator);
+            }
+            accumulator.add(requirement);
+        }
+    }
+
+    /**
+     * Add the specified requirements (already retrieved)
+     * 
+     * @param requirements
+     *            a list of requirements
+     */
+    public void handleAll(List<Requirement> requirements) {
+        for (Requirement requirement : requirements) {
+            handle(requirement);
+        }
+    }
+
+    /**
+     * Return the aggregation of the requirements received so far
+     */
+    public RequirementsAggregate getAggregate() {
+        RequirementsAggregate aggregate = new RequirementsAggregate();
+        aggregate.setDefect(defect);
+        aggregate.setGroupBy(groupBy != null ? groupBy.name() : null);
+        aggregate.setTotal(total.toGroup(null));
+        List<RequirementsAggregate.Group> aggregatedGroups = new ArrayList<RequirementsAggregate.Group>(groups.size());
+        for (Map.Entry<String, Accumulator> entry : groups.entrySet()) {
+            aggregatedGroups.add(entry.getValue().toGroup(entry.getKey()));
+        }
+        aggregate.setGroups(aggregatedGroups);
+        return aggregate;
+    }
+
+    private String getGroupValue(Requirement requirement) {
+        switch (groupBy) {
+        case Category:
+            return requirement.getCategory();
+        case Status:
+            return requirement.getStatus();
+        case Priority:
+            return requirement.getPriority();
+        case Severity:
+            return requirement.getSeverity();
+        case Author:
+            return requirement.getAuthorEmail();
+        case Iteration:
+            return requirement.getIteration();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * The totals of a group
+     */
+    private static class Accumulator {
+        private long count;
+        private long openCount;
+        private long storyPoints;
+        private long estimation;
+
+        public void add(Requirement requirement) {
+            count++;
+            if (!requirement.isResolved()) {
+                openCount++;
+            }
+            storyPoints += requirement.getStoryPoints();
+            estimation += requirement.getEstimation();
+        }
+
+        public RequirementsAggregate.Group toGroup(String value) {
+            return new RequirementsAggregate.Group(value, count, openCount, storyPoints, estimation);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bounded cache of the last mapped requirements per project and JQL
+ * template.<br/>
+ * It is used to serve slightly stale results immediately while a refresh is
+ * performed in the background (stale-while-revalidate).<br/>
+ * The cache is bounded by the total number of cached requirements (the size
+ * of a result varies from a few requirements to several thousands), the
+ * least recently used results are evicted first.<br/>
+ * The cache is invalidated as a whole each time the configuration changes. A
+ * result computed with a configuration older than the last invalidation is
+ * ignored.
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginRequirementsCache {
+    /**
+     * The maximum number of requirements kept (all results together), a
+     * result with more requirements is not cached
+     */
+    public static final int MAX_REQUIREMENTS = 100000;
+
+    /**
+     * The minimum age (in milliseconds) of a result before a new background
+     * refresh is triggered (prevents a client polling very often from
+     * triggering a search at each call)
+     */
+    public static final long MIN_AGE_BEFORE_REFRESH = 10000;
+
+    private final Map<String, RequirementsResult> entries;
+    private final Set<String> refreshing;
+    private long generation = 0;
+    private long modificationCount = 0;
+    private int requirementsCount = 0;
+
+    public JiraPluginRequirementsCache() {
+        this.entries = new LinkedHashMap<String, RequirementsResult>(16, 0.75f, true);
+        this.refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Creates the key of a result
+     * 
+     * @param defect
+     *            true for the defects, false for the needs
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            the JQL template parameters (may be null)
+     * @param startAt
+     *            the index of the first requirement
+     * @return a cache key
+     */
+    public static String createKey(boolean defect, String projectRefId, Map<String, Object> parameters, int startAt) {
+        StringBuilder sb = new StringBuilder(defect ? "defects#" : "needs#");
+        sb.append(projectRefId);
+        if (parameters != null && !parameters.isEmpty()) {
+            sb.append('#').append(new TreeMap<String, Object>(parameters));
+        }
+        if (startAt > 0) {
+            sb.append('@').append(startAt);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the cached result for the specified key if it is not older than
+     * the specified age
+     * 
+     * @param key
+     *            a cache key
+     * @param maxAge
+     *            the maximum age (in milliseconds) of the result
+     * @return a result or null if none is available
+     */
+    public synchronized RequirementsResult get(String key, long maxAge) {
+        RequirementsResult result = entries.get(key);
+        if (result != null && result.getAge() <= maxAge) {
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Return true if a result (whatever its age) is cached for the specified
+     * key
+     * 
+     * @param key
+     *            a cache key
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Return the current generation of the cache (to be provided to
+     * {@link #put(String, RequirementsResult, long)})
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Store a result
+     * 
+     * @param key
+     *            a cache key
+     * @param result
+     *            a result
+     * @param generation
+     *            the generation of the cache when the computation of the result
+     *            was started
+     */
+    public synchronized void put(String key, RequirementsResult result, long generation) {
+        if (generation != this.generation || result.getRequirements().size() > MAX_REQUIREMENTS) {
+            return;
+        }
+        RequirementsResult previous = entries.get(key);
+        if (previous != null && previous.getTimestamp() > result.getTimestamp()) {
+            return;
+        }
+        if (previous != null) {
+            requirementsCount -= previous.getRequirements().size();
+        }
+        entries.put(key, result);
+        requirementsCount += result.getRequirements().size();
+        modificationCount++;
+        // Evict the least recently used results (the new one is the most recent)
+        for (Iterator<RequirementsResult> iterator = entries.values().iterator(); requirementsCount > MAX_REQUIREMENTS && iterator.hasNext();) {
+            requirementsCount -= iterator.next().getRequirements().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Mark the specified result as being refreshed
+     * 
+     * @param key
+     *            a cache key
+     * @param result
+     *            the result which is about to be served
+     * @return true if the caller must schedule a refresh, false if the result
+     *         is recent enough or if a refresh is already in progress
+     */
+    public boolean startRefresh(String key, RequirementsResult result) {
+        if (result.getAge() < MIN_AGE_BEFORE_REFRESH) {
+            return false;
+        }
+        return refreshing.add(key);
+    }
+
+    /**
+     * Mark the refresh of the specified result as completed (successfully or
+     * not)
+     * 
+     * @param key
+     *            a cache key
+     */
+    public void endRefresh(String key) {
+        refreshing.remove(key);
+    }
+
+    /**
+     * Remove all the results
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+        requirementsCount = 0;
+        modificationCount++;
+    }
+
+    /**
+     * Return a copy of all the cached results (to be persisted in a snapshot)
+     */
+    public synchronized Map<String, RequirementsResult> getEntries() {
+        return new HashMap<String, RequirementsResult>(entries);
+    }
+
+    /**
+     * Return a counter which is incremented at each modification of the cache
+     * (to detect the changes since the last snapshot)
+     */
+    public synchronized long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Return the number of cached results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the number of requirements of all the cached results
+     */
+    public synchronized int getRequirementsCount() {
+        return requirementsCount;
+    }
+}
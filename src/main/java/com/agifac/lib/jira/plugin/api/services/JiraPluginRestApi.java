@@ -14,6 +14,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.xml.bind.annotation.XmlAccessType;
@@ -26,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.ErrorResponse.ErrorCode;
+import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDockRequirementsFields;
 import com.atlassian.jira.project.Project;
 import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
 
@@ -41,6 +43,21 @@ public class JiraPluginRestApi {
 
     private static final String AUTHENTICATION_STRING_HEADER = "x-jira-bizdock-auth";
     private static final String TIME_STAMP_HEADER = "x-jira-bizdock-timestamp";
+    private static final String AGE_HEADER = "Age";
+    private static final String TOTAL_HEADER = "x-jira-bizdock-total";
+    private static final String TRUNCATED_HEADER = "x-jira-bizdock-truncated";
+    private static final String NEXT_START_AT_HEADER = "x-jira-bizdock-next-start-at";
+    private static final String DELTA_HEADER = "x-jira-bizdock-delta";
+    private static final String REMOVED_HEADER = "x-jira-bizdock-removed";
+    private static final String CHILDREN_TRUNCATED_HEADER = "x-jira-bizdock-children-truncated";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final int DEFAULT_CHANGES_LIMIT = 1000;
+    private static final int MAX_CHANGES_LIMIT = 10000;
+    /**
+     * The maximum length of the {@link #REMOVED_HEADER} (the containers limit
+     * the size of all the headers, to 8 KB for Tomcat)
+     */
+    private static final int MAX_REMOVED_HEADER_LENGTH = 4096;
 
     @Context
     private HttpServletRequest httpRequest;
@@ -51,6 +68,20 @@ public class JiraPluginRestApi {
         this.jiraPluginServiceProvider = jiraPluginServiceProvider;
     }
 
+    /**
+     * Creates a resource which serves the specified request outside of JAX-RS
+     * (see {@link JiraPluginAsyncApiServlet})
+     * 
+     * @param jiraPluginServiceProvider
+     *            the service provider
+     * @param httpRequest
+     *            the request to be served
+     */
+    JiraPluginRestApi(JiraPluginServiceProvider jiraPluginServiceProvider, HttpServletRequest httpRequest) {
+        this.jiraPluginServiceProvider = jiraPluginServiceProvider;
+        this.httpRequest = httpRequest;
+    }
+
     /**
      * This method is a test method to be called to check if the plugin is
      * "alive".<br/>
@@ -213,9 +244,9 @@ public class JiraPluginRestApi {
             if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid()) {
                 return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
             }
-            return Response.ok(
-                    getJiraPluginServiceProvider().getDefectsForProject(requirementsRequestStructure.getProjectRefId(),
-                            requirementsRequestStructure.getParameters())).build();
+            return createRequirementsResponse(getJiraPluginServiceProvider().getDefectsForProject(requirementsRequestStructure.getProjectRefId(),
+                    requirementsRequestStructure.getParameters(), requirementsRequestStructure.getStartAt(), requirementsRequestStructure.isAllowStale()),
+                    requirementsRequestStructure);
         } catch (Exception e) {
             return returnErrorResponseOnException(e);
         }
@@ -240,9 +271,326 @@ public class JiraPluginRestApi {
             if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid()) {
                 return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
             }
+            RequirementsResult requirementsResult = getJiraPluginServiceProvider().getNeedsForProject(requirementsRequestStructure.getProjectRefId(),
+                    requirementsRequestStructure.getParameters(), requirementsRequestStructure.getStartAt(), requirementsRequestStructure.isAllowStale());
+            if (requirementsRequestStructure.isHierarchical()) {
+                return createRequirementsHierarchyResponse(requirementsResult, requirementsRequestStructure);
+            }
+            return createRequirementsResponse(requirementsResult, requirementsRequestStructure);
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the number of defects associated with the specified
+     * data structure (the defects are not retrieved)
+     * 
+     * @param requirementsRequestStructure
+     *            a request for requirements
+     * 
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/defects/count")
+    public Response getDefectsCountFromProjectId(RequirementsRequestStructure requirementsRequestStructure) {
+        try {
+            checkAuthentication();
+            if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid()) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            RequirementsCount requirementsCount = new RequirementsCount(requirementsRequestStructure.getProjectRefId());
+            requirementsCount.setDefectsCount(getJiraPluginServiceProvider().getDefectsCountForProject(requirementsRequestStructure.getProjectRefId(),
+                    requirementsRequestStructure.getParameters()));
+            return Response.ok(requirementsCount).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the number of needs associated with the specified
+     * data structure (the needs are not retrieved)
+     * 
+     * @param requirementsRequestStructure
+     *            a request for requirements
+     * 
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/needs/count")
+    public Response getNeedsCountFromProjectId(RequirementsRequestStructure requirementsRequestStructure) {
+        try {
+            checkAuthentication();
+            if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid()) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            RequirementsCount requirementsCount = new RequirementsCount(requirementsRequestStructure.getProjectRefId());
+            requirementsCount.setNeedsCount(getJiraPluginServiceProvider().getNeedsCountForProject(requirementsRequestStructure.getProjectRefId(),
+                    requirementsRequestStructure.getParameters()));
+            return Response.ok(requirementsCount).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the number of needs and defects of several projects
+     * 
+     * @param requirementsCountRequestStructure
+     *            a request for requirements counts
+     * 
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/requirements/count")
+    public Response getRequirementsCountFromProjectIds(RequirementsCountRequestStructure requirementsCountRequestStructure) {
+        try {
+            checkAuthentication();
+            if (requirementsCountRequestStructure == null || !requirementsCountRequestStructure.isValid()) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            return Response.ok(
+                    getJiraPluginServiceProvider().getRequirementsCountForProjects(requirementsCountRequestStructure.getProjectRefIds(),
+                            requirementsCountRequestStructure.getParameters())).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the aggregation (totals grouped by a field) of the
+     * defects associated with the specified data structure
+     * 
+     * @param requirementsRequestStructure
+     *            a request for requirements
+     * 
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/defects/aggregate")
+    public Response getDefectsAggregateFromProjectId(RequirementsRequestStructure requirementsRequestStructure) {
+        try {
+            checkAuthentication();
+            if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid() || !requirementsRequestStructure.isValidGroupBy()) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            return Response.ok(
+                    getJiraPluginServiceProvider().getDefectsAggregateForProject(requirementsRequestStructure.getProjectRefId(),
+                            requirementsRequestStructure.getParameters(), requirementsRequestStructure.getGroupByField(),
+                            requirementsRequestStructure.isAllowStale())).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the aggregation (totals grouped by a field) of the
+     * needs associated with the specified data structure
+     * 
+     * @param requirementsRequestStructure
+     *            a request for requirements
+     * 
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/needs/aggregate")
+    public Response getNeedsAggregateFromProjectId(RequirementsRequestStructure requirementsRequestStructure) {
+        try {
+            checkAuthentication();
+            if (requirementsRequestStructure == null || !requirementsRequestStructure.isValid() || !requirementsRequestStructure.isValidGroupBy()) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
             return Response.ok(
-                    getJiraPluginServiceProvider().getNeedsForProject(requirementsRequestStructure.getProjectRefId(),
-                            requirementsRequestStructure.getParameters())).build();
+                    getJiraPluginServiceProvider().getNeedsAggregateForProject(requirementsRequestStructure.getProjectRefId(),
+                            requirementsRequestStructure.getParameters(), requirementsRequestStructure.getGroupByField(),
+                            requirementsRequestStructure.isAllowStale())).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the health of the plugin (to be used by a load
+     * balancer, see {@link #getPing()} for the diagnostic).<br/>
+     * This is not authenticated and runs in constant time. The HTTP status
+     * is 200 if the plugin is ready to serve the API calls and 503 otherwise.
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/health")
+    public Response getHealth() {
+        JiraPluginHealth health = getJiraPluginServiceProvider().getHealth();
+        return Response.status(health.isReady() ? 200 : 503).entity(health).build();
+    }
+
+    /**
+     * This method returns the liveness of the plugin: the HTTP status is 200
+     * if the plugin is started (even if not ready) and 503 otherwise.
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/health/live")
+    public Response getLiveness() {
+        JiraPluginHealth health = getJiraPluginServiceProvider().getHealth();
+        return Response.status(health.isStarted() ? 200 : 503).entity(health).build();
+    }
+
+    /**
+     * This method returns the activity of the search executor which limits the
+     * concurrent searches (to be used to size it)
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/search/statistics")
+    public Response getSearchStatistics() {
+        try {
+            checkAuthentication();
+            return Response.ok(getJiraPluginServiceProvider().getSearchStatistics()).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the activity of the email cache of the authors (hit
+     * rate)
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/users/statistics")
+    public Response getUserEmailCacheStatistics() {
+        try {
+            checkAuthentication();
+            return Response.ok(getJiraPluginServiceProvider().getUserEmailCacheStatistics()).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the activity of the push of the requirement changes
+     * to BizDock
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/webhook/statistics")
+    public Response getWebhookStatistics() {
+        try {
+            checkAuthentication();
+            return Response.ok(getJiraPluginServiceProvider().getWebhookStatistics()).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the projects tracked by BizDock (the projectRefIds
+     * are absent if all the projects are tracked)
+     * 
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/subscriptions")
+    public Response getProjectSubscriptions() {
+        try {
+            checkAuthentication();
+            return Response.ok(new ProjectSubscriptions(getJiraPluginServiceProvider().getSubscribedProjects())).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method replaces the projects tracked by BizDock: the issue changes
+     * of the other projects are neither notified nor pushed (they are still
+     * recorded in the change journal, see /changes, so that a project
+     * subscribed later can be caught up). An empty or absent list of
+     * projectRefIds tracks all the projects.
+     * 
+     * @param projectSubscriptions
+     * @return
+     */
+    @POST
+    @AnonymousAllowed
+    @Consumes({ MediaType.APPLICATION_JSON })
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/subscriptions")
+    public Response updateProjectSubscriptions(ProjectSubscriptions projectSubscriptions) {
+        try {
+            checkAuthentication();
+            if (projectSubscriptions == null) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            getJiraPluginServiceProvider().updateSubscribedProjects(projectSubscriptions.getProjectRefIds());
+            return Response.ok(new ProjectSubscriptions(getJiraPluginServiceProvider().getSubscribedProjects())).build();
+        } catch (Exception e) {
+            return returnErrorResponseOnException(e);
+        }
+    }
+
+    /**
+     * This method returns the issue changes recorded after the specified
+     * sequence (see {@link JiraPluginChangeJournal})
+     * 
+     * @param after
+     *            the last sequence already processed by the client (0 or
+     *            absent to read from the beginning)
+     * @param limit
+     *            the maximum number of entries (default 1000, at most
+     *            10000)
+     * @return
+     */
+    @GET
+    @AnonymousAllowed
+    @Produces({ MediaType.APPLICATION_JSON })
+    @Path("/changes")
+    public Response getChanges(@QueryParam("after") Long after, @QueryParam("limit") Integer limit) {
+        try {
+            checkAuthentication();
+            if (limit != null && limit <= 0) {
+                return returnErrorResponseWithMessageAndErrorCode("Invalid request parameters", ErrorCode.INVALID_PARAMETER);
+            }
+            long afterSequence = after != null ? after : 0;
+            int maxEntries = limit != null ? Math.min(limit, MAX_CHANGES_LIMIT) : DEFAULT_CHANGES_LIMIT;
+            // Read the last sequence first: it is never lower than the
+            // sequence of the entries returned
+            long lastSequence = getJiraPluginServiceProvider().getChangeJournalLastSequence();
+            List<ChangeJournalEntry> entries = getJiraPluginServiceProvider().getChangeJournalEntries(afterSequence, maxEntries);
+            long nextAfter = entries.isEmpty() ? Math.max(afterSequence, 0) : entries.get(entries.size() - 1).getSequence();
+            return Response.ok(new ChangesResponse(nextAfter, lastSequence, nextAfter < lastSequence, entries)).build();
         } catch (Exception e) {
             return returnErrorResponseOnException(e);
         }
@@ -272,6 +620,130 @@ public class JiraPluginRestApi {
         }
     }
 
+    /**
+     * Return a response which contains the specified requirements.<br/>
+     * The "Age" header gives the age (in seconds) of the result, it is greater
+     * than 0 only if a cached result was served.<br/>
+     * The truncation headers give the number of matching issues, if the result
+     * was truncated by the configured maximum number of results and the
+     * startAt to be used to get the next requirements (-1 if none).<br/>
+     * The ETag header is the hash of the result: if the client already knows
+     * this hash (knownHash or If-None-Match) the answer is 304 without any
+     * requirement. If the client provides the hashes of the requirements it
+     * knows, only the requirements which changed are returned (see
+     * {@link #DELTA_HEADER} and {@link #REMOVED_HEADER}). If the removed ids
+     * do not fit in the header (see {@link #MAX_REMOVED_HEADER_LENGTH}) all the
+     * requirements are returned without the delta header: the client then
+     * replaces the requirements it knows (a full refresh).
+     * 
+     * @param requirementsResult
+     *            the requirements to be returned
+     * @param requirementsRequestStructure
+     *            the request
+     * @return
+     */
+    private Response createRequirementsResponse(RequirementsResult requirementsResult, RequirementsRequestStructure requirementsRequestStructure) {
+        Map<String, String> knownHashes = requirementsRequestStructure.getKnownHashes();
+        if (requirementsResult.isUnchanged(getKnownHash(requirementsRequestStructure, getHttpRequest().getHeader(IF_NONE_MATCH_HEADER)))) {
+            return createResponse(Response.notModified(), requirementsResult);
+        }
+        List<String> removedIds = null;
+        if (knownHashes != null) {
+            removedIds = requirementsResult.getRemovedIds(knownHashes);
+            if (getHeaderLength(removedIds) > MAX_REMOVED_HEADER_LENGTH) {
+                if (log.isDebugEnabled()) {
+                    log.debug(removedIds.size() + " removed requirements do not fit in the header, full result returned to " + getApiClientIdentification());
+                }
+                knownHashes = null;
+            }
+        }
+        Response.ResponseBuilder responseBuilder;
+        if (knownHashes != null) {
+            // Keep the element type so that the JiraPluginJsonWriter is selected
+            GenericEntity<List<Requirement>> entity = new GenericEntity<List<Requirement>>(requirementsResult.getChangedRequirements(knownHashes)) {
+            };
+            responseBuilder = Response.ok(entity).header(DELTA_HEADER, "true");
+            if (removedIds != null) {
+                responseBuilder.header(REMOVED_HEADER, StringUtils.join(removedIds, ','));
+            }
+        } else {
+            GenericEntity<List<Requirement>> entity = new GenericEntity<List<Requirement>>(requirementsResult.getRequirements()) {
+            };
+            responseBuilder = Response.ok(entity);
+        }
+        return createResponse(responseBuilder, requirementsResult);
+    }
+
+    private static Response createResponse(Response.ResponseBuilder responseBuilder, RequirementsResult requirementsResult) {
+        return responseBuilder.tag(requirementsResult.getETag()).header(AGE_HEADER, String.valueOf(requirementsResult.getAge() / 1000))
+                .header(TOTAL_HEADER, String.valueOf(requirementsResult.getTotal()))
+                .header(TRUNCATED_HEADER, String.valueOf(requirementsResult.isTruncated()))
+                .header(NEXT_START_AT_HEADER, String.valueOf(requirementsResult.getNextStartAt())).build();
+    }
+
+    /**
+     * Return the length of the header which lists the specified ids (0 if
+     * null)
+     */
+    static int getHeaderLength(List<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return 0;
+        }
+        int length = ids.size() - 1;
+        for (String id : ids) {
+            length += id.length();
+        }
+        return length;
+    }
+
+    /**
+     * Return a response which contains the specified requirements with their
+     * child issues (see
+     * {@link JiraPluginServiceProvider#getRequirementsHierarchy(String, Map, RequirementsResult, boolean)}
+     * ).<br/>
+     * The headers describe the requirements at the root of the hierarchy (see
+     * {@link #createRequirementsResponse(RequirementsResult, RequirementsRequestStructure)}
+     * ), the known hashes are ignored. The {@link #CHILDREN_TRUNCATED_HEADER}
+     * is true if some child issues are missing.
+     * 
+     * @param requirementsResult
+     *            the requirements at the root of the hierarchy
+     * @param requirementsRequestStructure
+     *            the request
+     * @return
+     * @throws JiraPluginException
+     */
+    private Response createRequirementsHierarchyResponse(RequirementsResult requirementsResult, RequirementsRequestStructure requirementsRequestStructure)
+            throws JiraPluginException {
+        RequirementsHierarchy requirementsHierarchy = getJiraPluginServiceProvider().getRequirementsHierarchy(
+                requirementsRequestStructure.getProjectRefId(), requirementsRequestStructure.getParameters(), requirementsResult,
+                requirementsRequestStructure.isLinkedIssues());
+        // Keep the element type so that the JiraPluginJsonWriter is selected
+        GenericEntity<List<RequirementNode>> entity = new GenericEntity<List<RequirementNode>>(requirementsHierarchy.getRoots()) {
+        };
+        return createResponse(Response.ok(entity).header(CHILDREN_TRUNCATED_HEADER, String.valueOf(requirementsHierarchy.isTruncated())), requirementsResult);
+    }
+
+    /**
+     * Return the result hash known by the client: the knownHash of the
+     * request or else the If-None-Match header (without quotes)
+     * 
+     * @param requirementsRequestStructure
+     *            the request
+     * @param ifNoneMatch
+     *            the If-None-Match header (may be null)
+     * @return a hash or null
+     */
+    static String getKnownHash(RequirementsRequestStructure requirementsRequestStructure, String ifNoneMatch) {
+        if (!StringUtils.isBlank(requirementsRequestStructure.getKnownHash())) {
+            return requirementsRequestStructure.getKnownHash();
+        }
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return null;
+        }
+        return StringUtils.strip(StringUtils.removeStart(ifNoneMatch.trim(), "W/"), "\"");
+    }
+
     /**
      * Return an error response matching the specified Exception
      * 
@@ -279,9 +751,14 @@ public class JiraPluginRestApi {
      *            an exception
      * @return
      */
-    private Response returnErrorResponseOnException(Exception e) {
+    static Response returnErrorResponseOnException(Exception e) {
         log.error("API call error", e);
-        return Response.status(400).entity(new ErrorResponse("API call error", e)).build();
+        ErrorResponse errorResponse = new ErrorResponse("API call error", e);
+        if (errorResponse.getErrorCode() == ErrorCode.OVERLOADED || errorResponse.getErrorCode() == ErrorCode.TIMEOUT) {
+            // The request is valid but JIRA cannot serve it right now
+            return Response.status(503).entity(errorResponse).build();
+        }
+        return Response.status(400).entity(errorResponse).build();
     }
 
     /**
@@ -380,6 +857,8 @@ public class JiraPluginRestApi {
      * <li>stackTrace : the stack trace of the error</li>
      * <li>configurationIssue : true if the error is related to a configuration
      * issue (requiring some admin actions)</li>
+     * <li>code : OVERLOADED if the search executor is saturated, TIMEOUT if the
+     * search was abandoned after the configured timeout</li>
      * </ul>
      * 
      * @author Pierre-Yves Cloux
@@ -392,7 +871,7 @@ public class JiraPluginRestApi {
         private ErrorCode errorCode = ErrorCode.UNEXPECTED;
 
         public enum ErrorCode {
-            UNEXPECTED, CONFIGURATION, INVALID_PARAMETER
+            UNEXPECTED, CONFIGURATION, INVALID_PARAMETER, OVERLOADED, TIMEOUT
         }
 
         public ErrorResponse() {
@@ -422,6 +901,12 @@ public class JiraPluginRestApi {
                 if (e instanceof JiraPluginConfigurationException) {
                     this.errorCode = ErrorCode.CONFIGURATION;
                 }
+                if (e instanceof JiraPluginOverloadedException) {
+                    this.errorCode = ErrorCode.OVERLOADED;
+                }
+                if (e instanceof JiraPluginTimeoutException) {
+                    this.errorCode = ErrorCode.TIMEOUT;
+                }
             }
         }
 
@@ -454,6 +939,87 @@ public class JiraPluginRestApi {
 
     }
 
+    /**
+     * The projects tracked by BizDock.<br/>
+     * <ul>
+     * <li>projectRefIds : the project unique ids (absent if all the projects
+     * are tracked)</li>
+     * </ul>
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ProjectSubscriptions {
+        private List<String> projectRefIds;
+
+        public ProjectSubscriptions() {
+            super();
+        }
+
+        public ProjectSubscriptions(List<String> projectRefIds) {
+            super();
+            this.projectRefIds = projectRefIds;
+        }
+
+        @XmlElement(name = "projectRefIds")
+        public List<String> getProjectRefIds() {
+            return projectRefIds;
+        }
+
+        public void setProjectRefIds(List<String> projectRefIds) {
+            this.projectRefIds = projectRefIds;
+        }
+    }
+
+    /**
+     * The issue changes returned by the change journal.<br/>
+     * <ul>
+     * <li>after : the sequence to be provided to read the next changes</li>
+     * <li>lastSequence : the sequence of the last change recorded</li>
+     * <li>hasMore : true if more changes can be read immediately</li>
+     * <li>entries : the changes</li>
+     * </ul>
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ChangesResponse {
+        private long after;
+        private long lastSequence;
+        private boolean hasMore;
+        private List<ChangeJournalEntry> entries;
+
+        public ChangesResponse() {
+            super();
+        }
+
+        public ChangesResponse(long after, long lastSequence, boolean hasMore, List<ChangeJournalEntry> entries) {
+            super();
+            this.after = after;
+            this.lastSequence = lastSequence;
+            this.hasMore = hasMore;
+            this.entries = entries;
+        }
+
+        @XmlElement(name = "after")
+        public long getAfter() {
+            return after;
+        }
+
+        @XmlElement(name = "lastSequence")
+        public long getLastSequence() {
+            return lastSequence;
+        }
+
+        @XmlElement(name = "hasMore")
+        public boolean isHasMore() {
+            return hasMore;
+        }
+
+        @XmlElement(name = "entries")
+        public List<ChangeJournalEntry> getEntries() {
+            return entries;
+        }
+    }
+
     @XmlRootElement
     @XmlAccessorType(XmlAccessType.FIELD)
     public static class ProjectStructure {
@@ -576,6 +1142,25 @@ public class JiraPluginRestApi {
      * <ul>
      * <li>projectRefId : the key of the project in JIRA</li>
      * <li>parameters : some parameters to be used in the JQL query template</li>
+     * <li>allowStale : true if a cached result (not older than the configured
+     * maximum stale age) may be returned immediately, a refresh is then
+     * performed in the background</li>
+     * <li>startAt : the index of the first requirement to be returned (find
+     * only, see the x-jira-bizdock-next-start-at header of a truncated
+     * result)</li>
+     * <li>groupBy : the name of the BizDock field used to group the
+     * requirements (aggregate only, one of Category, Status, Priority,
+     * Severity, Author, Iteration or null for the totals only)</li>
+     * <li>knownHash : the hash (ETag) of the result previously returned (find
+     * only), if the result did not change the answer is 304 without any
+     * requirement</li>
+     * <li>knownHashes : the hashes of the requirements known by the client by
+     * requirement id (find only), only the requirements which are not known
+     * with the same hash are then returned</li>
+     * <li>hierarchical : true if each need is returned with its child issues
+     * (needs find only, see {@link RequirementNode})</li>
+     * <li>linkedIssues : true if the issues linked to a need are returned as
+     * its children (hierarchical only)</li>
      * </ul>
      * 
      * @author Pierre-Yves Cloux
@@ -585,6 +1170,13 @@ public class JiraPluginRestApi {
     public static class RequirementsRequestStructure {
         private String projectRefId;
         private Map<String, Object> parameters;
+        private boolean allowStale = false;
+        private String groupBy;
+        private int startAt = 0;
+        private String knownHash;
+        private Map<String, String> knownHashes;
+        private boolean hierarchical = false;
+        private boolean linkedIssues = false;
 
         public RequirementsRequestStructure() {
             super();
@@ -608,8 +1200,145 @@ public class JiraPluginRestApi {
             this.parameters = parameters;
         }
 
+        @XmlElement(name = "allowStale")
+        public boolean isAllowStale() {
+            return allowStale;
+        }
+
+        public void setAllowStale(boolean allowStale) {
+            this.allowStale = allowStale;
+        }
+
+        @XmlElement(name = "groupBy")
+        public String getGroupBy() {
+            return groupBy;
+        }
+
+        public void setGroupBy(String groupBy) {
+            this.groupBy = groupBy;
+        }
+
+        @XmlElement(name = "startAt")
+        public int getStartAt() {
+            return startAt;
+        }
+
+        public void setStartAt(int startAt) {
+            this.startAt = startAt;
+        }
+
+        @XmlElement(name = "knownHash")
+        public String getKnownHash() {
+            return knownHash;
+        }
+
+        public void setKnownHash(String knownHash) {
+            this.knownHash = knownHash;
+        }
+
+        @XmlElement(name = "knownHashes")
+        public Map<String, String> getKnownHashes() {
+            return knownHashes;
+        }
+
+        public void setKnownHashes(Map<String, String> knownHashes) {
+            this.knownHashes = knownHashes;
+        }
+
+        @XmlElement(name = "hierarchical")
+        public boolean isHierarchical() {
+            return hierarchical;
+        }
+
+        public void setHierarchical(boolean hierarchical) {
+            this.hierarchical = hierarchical;
+        }
+
+        @XmlElement(name = "linkedIssues")
+        public boolean isLinkedIssues() {
+            return linkedIssues;
+        }
+
+        public void setLinkedIssues(boolean linkedIssues) {
+            this.linkedIssues = linkedIssues;
+        }
+
         public boolean isValid() {
-            return !StringUtils.isBlank(projectRefId) && StringUtils.isNumeric(projectRefId);
+            return !StringUtils.isBlank(projectRefId) && StringUtils.isNumeric(projectRefId) && startAt >= 0;
+        }
+
+        /**
+         * Return true if the groupBy field is empty or is a field which can be
+         * used to group the requirements
+         */
+        public boolean isValidGroupBy() {
+            if (StringUtils.isBlank(groupBy)) {
+                return true;
+            }
+            for (BizDockRequirementsFields field : BizDockRequirementsFields.values()) {
+                if (field.name().equals(groupBy)) {
+                    return JiraPluginRequirementsAggregator.isGroupable(field);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Return the field used to group the requirements (null if the
+         * requirements are not grouped)
+         */
+        public BizDockRequirementsFields getGroupByField() {
+            return StringUtils.isBlank(groupBy) ? null : BizDockRequirementsFields.valueOf(groupBy);
+        }
+    }
+
+    /**
+     * A request structure for counting the requirements of several projects
+     * <ul>
+     * <li>projectRefIds : the keys of the projects in JIRA</li>
+     * <li>parameters : some parameters to be used in the JQL query templates</li>
+     * </ul>
+     * 
+     * @author Pierre-Yves Cloux
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class RequirementsCountRequestStructure {
+        private List<String> projectRefIds;
+        private Map<String, Object> parameters;
+
+        public RequirementsCountRequestStructure() {
+            super();
+        }
+
+        @XmlElement(name = "projectRefIds")
+        public List<String> getProjectRefIds() {
+            return projectRefIds;
+        }
+
+        public void setProjectRefIds(List<String> projectRefIds) {
+            this.projectRefIds = projectRefIds;
+        }
+
+        @XmlElement(name = "parameters")
+        public Map<String, Object> getParameters() {
+            return parameters;
+        }
+
+        public void setParameters(Map<String, Object> parameters) {
+            this.parameters = parameters;
+        }
+
+        public boolean isValid() {
+            if (projectRefIds == null || projectRefIds.isEmpty() || projectRefIds.size() > JiraPluginServiceProvider.MAX_PROJECTS_PER_COUNT_BATCH) {
+                return false;
+            }
+            for (String projectRefId : projectRefIds) {
+                if (StringUtils.isBlank(projectRefId) || !StringUtils.isNumeric(projectRefId)) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
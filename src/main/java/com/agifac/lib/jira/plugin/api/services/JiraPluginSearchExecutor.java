@@ -0,0 +1,455 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded executor (bulkhead) which runs the searches on behalf of the
+ * BizDock API so that a burst of calls cannot consume all the container
+ * threads.<br/>
+ * Each search:
+ * <ul>
+ * <li>waits at most maxQueueWait milliseconds for one of the maxConcurrency
+ * slots, otherwise a {@link JiraPluginOverloadedException} is thrown</li>
+ * <li>is abandoned if it runs longer than queryTimeout milliseconds, a
+ * {@link JiraPluginTimeoutException} is then thrown</li>
+ * </ul>
+ * An abandoned search keeps its slot until the worker thread actually
+ * completes, so that the concurrency limit remains a true upper bound.<br/>
+ * The worker thread of an abandoned search is not interrupted: an interrupt
+ * during a Lucene read closes the index file channels
+ * (ClosedByInterruptException). The search is instead flagged as cancelled,
+ * the long running loops check this flag with {@link #isCancelled()} and stop
+ * by themselves.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginSearchExecutor {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginSearchExecutor.class);
+
+    private final ThreadPoolExecutor executor;
+    private final ResizableSemaphore permits;
+    private volatile int maxConcurrency;
+    private volatile long maxQueueWait;
+    private volatile long queryTimeout;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong maxObservedQueueWait = new AtomicLong();
+
+    private static final ThreadLocal<SearchTask<?>> currentTask = new ThreadLocal<SearchTask<?>>();
+
+    /**
+     * Creates a new search executor
+     *
+     * @param maxConcurrency
+     *            the maximum number of searches running at the same time
+     * @param maxQueueWait
+     *            the maximum time (in milliseconds) a search may wait for a
+     *            free slot
+     * @param queryTimeout
+     *            the maximum duration (in milliseconds) of a search
+     */
+    public JiraPluginSearchExecutor(int maxConcurrency, long maxQueueWait, long queryTimeout) {
+        this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new JiraPluginThreadFactory("bizdock-search"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.permits = new ResizableSemaphore(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueWait = maxQueueWait;
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Update the limits of the executor.<br/>
+     * The number of slots is adjusted in place: if it is reduced while more
+     * searches are running, the new searches wait until enough running
+     * searches are completed. The searches already running or waiting keep
+     * the wait and timeout limits which were active when they were submitted.
+     *
+     * @param maxConcurrency
+     *            the maximum number of searches running at the same time
+     * @param maxQueueWait
+     *            the maximum time (in milliseconds) a search may wait for a
+     *            free slot
+     * @param queryTimeout
+     *            the maximum duration (in milliseconds) of a search
+     */
+    public synchronized void reconfigure(int maxConcurrency, long maxQueueWait, long queryTimeout) {
+        if (maxConcurrency != this.maxConcurrency) {
+            if (maxConcurrency > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(maxConcurrency);
+                executor.setCorePoolSize(maxConcurrency);
+            } else {
+                executor.setCorePoolSize(maxConcurrency);
+                executor.setMaximumPoolSize(maxConcurrency);
+            }
+            int delta = maxConcurrency - this.maxConcurrency;
+            if (delta > 0) {
+                permits.release(delta);
+            } else {
+                permits.reduce(-delta);
+            }
+            this.maxConcurrency = maxConcurrency;
+        }
+        this.maxQueueWait = maxQueueWait;
+        this.queryTimeout = queryTimeout;
+        log.info("Search executor reconfigured with maxConcurrency=" + maxConcurrency + " maxQueueWait=" + maxQueueWait + " queryTimeout="
+                + queryTimeout);
+    }
+
+    /**
+     * Run the specified search in the executor and wait for its result
+     *
+     * @param description
+     *            a description of the search (its String form is computed
+     *            only for the error messages)
+     * @param search
+     *            the search to be executed
+     * @return the result of the search
+     * @throws JiraPluginOverloadedException
+     *             if no slot was available within the maximum queue wait
+     * @throws JiraPluginTimeoutException
+     *             if the search did not complete within the query timeout
+     * @throws JiraPluginException
+     *             if the search failed
+     */
+    public <T> T execute(Object description, Callable<T> search) throws JiraPluginException {
+        final Semaphore semaphore = this.permits;
+        long queueWaitLimit = this.maxQueueWait;
+        long timeout = this.queryTimeout;
+
+        submitted.incrementAndGet();
+        long waitStart = System.currentTimeMillis();
+        waiting.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(queueWaitLimit, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            throw new JiraPluginOverloadedException("Interrupted while waiting for a search slot : " + description, e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        recordQueueWait(System.currentTimeMillis() - waitStart);
+        if (!acquired) {
+            rejected.incrementAndGet();
+            throw new JiraPluginOverloadedException("Search rejected after waiting " + queueWaitLimit + " ms for one of the " + maxConcurrency
+                    + " search slots : " + description);
+        }
+
+        SearchTask<T> task = new SearchTask<T>(semaphore, search);
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            task.releasePermit();
+            rejected.incrementAndGet();
+            throw new JiraPluginOverloadedException("The search executor is not accepting new searches : " + description, e);
+        }
+
+        try {
+            T result = future.get(timeout, TimeUnit.MILLISECONDS);
+            completed.incrementAndGet();
+            return result;
+        } catch (TimeoutException e) {
+            abandon(task, future);
+            timedOut.incrementAndGet();
+            throw new JiraPluginTimeoutException("Search abandoned after " + timeout + " ms : " + description, e);
+        } catch (InterruptedException e) {
+            abandon(task, future);
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+            throw new JiraPluginException("Interrupted while waiting for a search : " + description, e);
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            if (e.getCause() instanceof JiraPluginException) {
+                throw (JiraPluginException) e.getCause();
+            }
+            throw new JiraPluginException("Error while executing a search : " + description, e.getCause());
+        }
+    }
+
+    /**
+     * Stop the executor (no new search is accepted, the running searches are
+     * completed or abandoned on their timeout)
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Return true if the search run by the current thread has been abandoned
+     * (to be checked by the long running loops of a search, which are then to
+     * stop as soon as possible).<br/>
+     * Return false if the current thread is not running a search.
+     */
+    public static boolean isCancelled() {
+        SearchTask<?> task = currentTask.get();
+        return task != null && task.isCancelled();
+    }
+
+    /**
+     * Return a snapshot of the executor statistics (to be used to size the
+     * executor)
+     */
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        statistics.setMaxConcurrency(maxConcurrency);
+        statistics.setMaxQueueWait(maxQueueWait);
+        statistics.setQueryTimeout(queryTimeout);
+        statistics.setRunning(running.get());
+        statistics.setWaiting(waiting.get());
+        statistics.setSubmitted(submitted.get());
+        statistics.setCompleted(completed.get());
+        statistics.setRejected(rejected.get());
+        statistics.setTimedOut(timedOut.get());
+        statistics.setFailed(failed.get());
+        statistics.setMaxObservedQueueWait(maxObservedQueueWait.get());
+        return statistics;
+    }
+
+    /**
+     * Cancel a search which is no longer waited for
+     */
+    private void abandon(SearchTask<?> task, Future<?> future) {
+        task.cancel();
+        // Not interrupted (see the class comment)
+        future.cancel(false);
+        if (!task.isStarted()) {
+            // The task will never run, its slot must be released here
+            task.releasePermit();
+        }
+    }
+
+    private void recordQueueWait(long queueWait) {
+        long current = maxObservedQueueWait.get();
+        while (queueWait > current && !maxObservedQueueWait.compareAndSet(current, queueWait)) {
+            current = maxObservedQueueWait.get();
+        }
+    }
+
+    /**
+     * A search which releases its slot once completed
+     *
+     * @author Pierre-Yves Cloux
+     */
+    private class SearchTask<T> implements Callable<T> {
+        private final Semaphore semaphore;
+        private final Callable<T> search;
+        private final AtomicBoolean permitHeld = new AtomicBoolean(true);
+        private volatile boolean started = false;
+        private volatile boolean cancelled = false;
+
+        public SearchTask(Semaphore semaphore, Callable<T> search) {
+            this.semaphore = semaphore;
+            this.search = search;
+        }
+
+        @Override
+        public T call() throws Exception {
+            started = true;
+            running.incrementAndGet();
+            currentTask.set(this);
+            try {
+                return search.call();
+            } finally {
+                currentTask.remove();
+                running.decrementAndGet();
+                releasePermit();
+            }
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void releasePermit() {
+            if (permitHeld.compareAndSet(true, false)) {
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * A fair semaphore whose number of permits can be reduced (even below the
+     * number of permits currently acquired)
+     *
+     * @author Pierre-Yves Cloux
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        public ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        public void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+
+    /**
+     * A structure which reports the activity of the search executor.<br/>
+     * <ul>
+     * <li>maxConcurrency, maxQueueWait, queryTimeout : the active limits</li>
+     * <li>running : the number of searches currently running (including the
+     * abandoned ones which are not yet completed)</li>
+     * <li>waiting : the number of searches waiting for a slot</li>
+     * <li>submitted, completed, rejected, timedOut, failed : counters since the
+     * plugin start</li>
+     * <li>maxObservedQueueWait : the longest wait for a slot (in milliseconds)</li>
+     * </ul>
+     *
+     * @author Pierre-Yves Cloux
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Statistics {
+        private int maxConcurrency;
+        private long maxQueueWait;
+        private long queryTimeout;
+        private int running;
+        private int waiting;
+        private long submitted;
+        private long completed;
+        private long rejected;
+        private long timedOut;
+        private long failed;
+        private long maxObservedQueueWait;
+
+        public Statistics() {
+        }
+
+        @XmlElement(name = "maxConcurrency")
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public void setMaxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @XmlElement(name = "maxQueueWait")
+        public long getMaxQueueWait() {
+            return maxQueueWait;
+        }
+
+        public void setMaxQueueWait(long maxQueueWait) {
+            this.maxQueueWait = maxQueueWait;
+        }
+
+        @XmlElement(name = "queryTimeout")
+        public long getQueryTimeout() {
+            return queryTimeout;
+        }
+
+        public void setQueryTimeout(long queryTimeout) {
+            this.queryTimeout = queryTimeout;
+        }
+
+        @XmlElement(name = "running")
+        public int getRunning() {
+            return running;
+        }
+
+        public void setRunning(int running) {
+            this.running = running;
+        }
+
+        @XmlElement(name = "waiting")
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public void setWaiting(int waiting) {
+            this.waiting = waiting;
+        }
+
+        @XmlElement(name = "submitted")
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public void setSubmitted(long submitted) {
+            this.submitted = submitted;
+        }
+
+        @XmlElement(name = "completed")
+        public long getCompleted() {
+            return completed;
+        }
+
+        public void setCompleted(long completed) {
+            this.completed = completed;
+        }
+
+        @XmlElement(name = "rejected")
+        public long getRejected() {
+            return rejected;
+        }
+
+        public void setRejected(long rejected) {
+            this.rejected = rejected;
+        }
+
+        @XmlElement(name = "timedOut")
+        public long getTimedOut() {
+            return timedOut;
+        }
+
+        public void setTimedOut(long timedOut) {
+            this.timedOut = timedOut;
+        }
+
+        @XmlElement(name = "failed")
+        public long getFailed() {
+            return failed;
+        }
+
+        public void setFailed(long failed) {
+            this.failed = failed;
+        }
+
+        @XmlElement(name = "maxObservedQueueWait")
+        public long getMaxObservedQueueWait() {
+            return maxObservedQueueWait;
+        }
+
+        public void setMaxObservedQueueWait(long maxObservedQueueWait) {
+            this.maxObservedQueueWait = maxObservedQueueWait;
+        }
+    }
+}
@@ -1,19 +1,38 @@
 package com.agifac.lib.jira.plugin.api.services;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
@@ -32,6 +51,9 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.crowd.event.directory.RemoteDirectorySynchronisedEvent;
+import com.atlassian.crowd.event.user.UserDeletedEvent;
+import com.atlassian.crowd.event.user.UserUpdatedEvent;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.event.api.EventPublisher;
 import com.atlassian.jira.bc.issue.search.SearchService;
@@ -39,9 +61,14 @@ import com.atlassian.jira.component.ComponentAccessor;
 import com.atlassian.jira.config.ConstantsManager;
 import com.atlassian.jira.config.properties.APKeys;
 import com.atlassian.jira.config.properties.ApplicationProperties;
+import com.atlassian.jira.config.util.JiraHome;
+import com.atlassian.jira.event.ProjectDeletedEvent;
+import com.atlassian.jira.event.ProjectUpdatedEvent;
 import com.atlassian.jira.event.issue.IssueEvent;
+import com.atlassian.jira.event.type.EventType;
 import com.atlassian.jira.issue.CustomFieldManager;
 import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
 import com.atlassian.jira.issue.customfields.manager.OptionsManager;
 import com.atlassian.jira.issue.customfields.option.Option;
 import com.atlassian.jira.issue.customfields.option.Options;
@@ -49,6 +76,7 @@ import com.atlassian.jira.issue.fields.CustomField;
 import com.atlassian.jira.issue.fields.FieldManager;
 import com.atlassian.jira.issue.fields.NavigableField;
 import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.search.SearchProvider;
 import com.atlassian.jira.issue.search.SearchResults;
 import com.atlassian.jira.issue.status.Status;
 import com.atlassian.jira.jql.parser.JqlQueryParser;
@@ -56,9 +84,18 @@ import com.atlassian.jira.project.AssigneeTypes;
 import com.atlassian.jira.project.Project;
 import com.atlassian.jira.project.ProjectManager;
 import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.user.ApplicationUsers;
 import com.atlassian.jira.user.util.UserUtil;
 import com.atlassian.jira.web.bean.PagerFilter;
 import com.atlassian.query.Query;
+import com.atlassian.query.QueryImpl;
+import com.atlassian.query.clause.AndClause;
+import com.atlassian.query.clause.Clause;
+import com.atlassian.query.clause.OrClause;
+import com.atlassian.query.clause.TerminalClauseImpl;
+import com.atlassian.query.operand.FunctionOperand;
+import com.atlassian.query.operand.MultiValueOperand;
+import com.atlassian.query.operator.Operator;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 
@@ -79,8 +116,9 @@ import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
  * <li>Estimation : is mapped to a configurable JIRA field (default is
  * "Remaining Estimate" - such default is handled specifically since the content
  * is converted into hours)</li>
- * <li>Iteration : is mapped to a configurable JIRA field (default is
- * "Affects Version/s")</li>
+ * <li>Iteration : is mapped to a configurable JIRA field (none by default - a
+ * sprint custom field, "Affects Version/s" or "Fix Version/s", the name of the
+ * last sprint or version is used, see {@link JiraPluginIterationLookup})</li>
  * <li>In scope : is mapped to a configurable JIRA field (default is none)</li>
  * </ul>
  * 
@@ -93,7 +131,23 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      * Prefix used in the BizDockJiraFieldMapping (see
      * {@link JiraPluginConfiguration) to identify the custom fields.
      */
-    private static String CUSTOM_FIELD_KEY_PREFIX = "#!custom!#";
+    static String CUSTOM_FIELD_KEY_PREFIX = "#!custom!#";
+
+    /**
+     * The custom field types whose index field contains the option ids (and
+     * which can then be read by the index-only extraction, see
+     * {@link JiraPluginRequirementCollector}).<br/>
+     * The other option based types (cascading select, radio buttons,
+     * checkboxes) are read from the issue: their index encoding differs.
+     */
+    static Set<String> INDEXED_OPTION_CUSTOM_FIELD_TYPES = new HashSet<String>(Arrays.asList("com.atlassian.jira.plugin.system.customfieldtypes:select",
+            "com.atlassian.jira.plugin.system.customfieldtypes:multiselect"));
+
+    /**
+     * The type of the JIRA Agile Sprint custom field (the index stores the ids
+     * of the sprints of an issue)
+     */
+    static String SPRINT_CUSTOM_FIELD_TYPE = "com.pyxis.greenhopper.jira:gh-sprint";
 
     /**
      * Project tag to be replaced in JQL query templates
@@ -128,6 +182,169 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      */
     private static String PLUGIN_USER_FOR_PROJECT_CREATION_SETTING = "com.agifac.lib.jira.plugin.api.services.config.create.project.user";
 
+    /**
+     * The setting which contains the whole configuration (with its
+     * generation).<br/>
+     * The other configuration settings are only read once to initialize this
+     * one (configuration created by a previous version of the plugin).
+     */
+    private static String PLUGIN_CONFIGURATION_SETTING = "com.agifac.lib.jira.plugin.api.services.config.configuration";
+
+    /**
+     * The setting which contains the ids of the projects tracked by BizDock
+     * (comma separated, all the projects are tracked if it is absent)
+     */
+    private static String PLUGIN_SUBSCRIBED_PROJECTS_SETTING = "com.agifac.lib.jira.plugin.api.services.config.subscribed.projects";
+
+    /**
+     * The JQL field of the issue key (used to search the changed issues)
+     */
+    private static String ISSUE_KEY_JQL_FIELD = "issuekey";
+
+    /**
+     * The JQL field of the parent of a sub-task
+     */
+    private static String PARENT_JQL_FIELD = "parent";
+
+    /**
+     * The JQL function which returns the issues linked to an issue
+     */
+    private static String LINKED_ISSUES_JQL_FUNCTION = "linkedIssues";
+
+    /**
+     * The name of the custom field which links an issue to its epic (JIRA
+     * Agile)
+     */
+    private static String EPIC_LINK_FIELD_NAME = "Epic Link";
+
+    /**
+     * The number of issues loaded at once by a requirements retrieval (when
+     * the requirements are not extracted from the index)
+     */
+    private static int SEARCH_PAGE_SIZE = 500;
+
+    /**
+     * The maximum number of parent keys in a search of child issues
+     */
+    private static int HIERARCHY_BATCH_SIZE = 200;
+
+    /**
+     * The maximum depth of a requirements hierarchy (epic, story, sub-task)
+     */
+    private static int HIERARCHY_MAX_DEPTH = 2;
+
+    /**
+     * The issue events which are not pushed to BizDock (they cannot modify a
+     * requirement)
+     */
+    private static Set<Long> IGNORED_EVENT_TYPES = new HashSet<Long>(Arrays.asList(EventType.ISSUE_COMMENTED_ID, EventType.ISSUE_COMMENT_EDITED_ID,
+            EventType.ISSUE_WORKLOGGED_ID, EventType.ISSUE_WORKLOG_UPDATED_ID, EventType.ISSUE_WORKLOG_DELETED_ID, EventType.ISSUE_WORKSTARTED_ID,
+            EventType.ISSUE_WORKSTOPPED_ID));
+
+    /**
+     * The maximum number of tasks waiting for the background executor (the
+     * additional tasks are rejected)
+     */
+    private static int BACKGROUND_EXECUTOR_QUEUE_SIZE = 100;
+
+    /**
+     * The number of threads which serve the asynchronous API requests (see
+     * {@link JiraPluginAsyncApiServlet})
+     */
+    private static int API_EXECUTOR_THREADS = 8;
+
+    /**
+     * The maximum number of asynchronous API requests waiting for a thread
+     * (the additional requests are rejected as overloaded)
+     */
+    private static int API_EXECUTOR_QUEUE_SIZE = 200;
+
+    /**
+     * The time (in milliseconds) added to the search limits to compute the
+     * timeout of an asynchronous API request (mapping and serialization)
+     */
+    private static long API_REQUEST_TIMEOUT_MARGIN = 30000;
+
+    /**
+     * The headers of the API authentication
+     */
+    private static final String AUTHENTICATION_STRING_HEADER = "x-jira-bizdock-auth";
+    private static final String TIME_STAMP_HEADER = "x-jira-bizdock-timestamp";
+
+    /**
+     * The location of the snapshot of the plugin derived state (relative to
+     * the JIRA home)
+     */
+    private static String SNAPSHOT_FILE_PATH = "caches/bizdock/jira-plugin-api.snapshot";
+
+    /**
+     * The interval (in milliseconds) between two snapshots of the plugin
+     * derived state (a snapshot is written only if the state changed)
+     */
+    private static long SNAPSHOT_INTERVAL = 300000;
+
+    /**
+     * The location of the change journal (relative to the JIRA home, see
+     * {@link JiraPluginChangeJournal})
+     */
+    private static String CHANGE_JOURNAL_DIRECTORY_PATH = "caches/bizdock/journal";
+
+    /**
+     * The interval (in milliseconds) between two flushes of the change
+     * journal to the disk
+     */
+    private static long CHANGE_JOURNAL_FORCE_INTERVAL = 5000;
+
+    /**
+     * The interval (in milliseconds) between two compactions of the change
+     * journal
+     */
+    private static long CHANGE_JOURNAL_COMPACTION_INTERVAL = 3600000;
+
+    /**
+     * The maximum number of change journal entries returned at once
+     */
+    public static int CHANGE_JOURNAL_MAX_ENTRIES = 10000;
+
+    /**
+     * The maximum age (in milliseconds) of the cached JIRA instance information
+     */
+    private static long JIRA_INSTANCE_INFO_MAX_AGE = 600000;
+
+    /**
+     * The maximum number of users in the email cache of the authors (see
+     * {@link JiraPluginUserEmailCache})
+     */
+    private static int USER_EMAIL_CACHE_MAX_SIZE = 5000;
+
+    /**
+     * The time (in milliseconds) after which the email of an author is
+     * resolved again (the cache is also purged at this interval)
+     */
+    private static long USER_EMAIL_CACHE_TIME_TO_LIVE = 3600000;
+
+    /**
+     * The maximum age (in milliseconds) of the cached user used to run the
+     * searches
+     */
+    private static long SEARCH_USER_MAX_AGE = 600000;
+
+    /**
+     * The maximum age (in milliseconds) of the health status (the load
+     * balancers may poll it very often)
+     */
+    private static long HEALTH_MAX_AGE = 1000;
+
+    /**
+     * The maximum number of projects in a batch count request
+     */
+    public static int MAX_PROJECTS_PER_COUNT_BATCH = 200;
+
+    /**
+     * The number of projects used to validate a JQL query template
+     */
+    private static int VALIDATION_SAMPLE_PROJECTS = 3;
+
     /**
      * The enumeration which maps the JIRA fields to the BizDock data structure.<br/>
      * Each item of the enumeration has the following attributes:
@@ -146,8 +363,8 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
     public enum BizDockRequirementsFields {
         Name("summary", false), Description("description", false), Category("", true, CUSTOM_FIELD_KEY_PREFIX), Status("status", false), Priority("priority",
                 false), Severity("", true, CUSTOM_FIELD_KEY_PREFIX), Author("creator", true, CUSTOM_FIELD_KEY_PREFIX, "reporter", "assignee"), StoryPoints(
-                "", true, CUSTOM_FIELD_KEY_PREFIX), Estimation("timeoriginalestimate", true, CUSTOM_FIELD_KEY_PREFIX), InScope("", true,
-                CUSTOM_FIELD_KEY_PREFIX);
+                "", true, CUSTOM_FIELD_KEY_PREFIX), Estimation("timeoriginalestimate", true, CUSTOM_FIELD_KEY_PREFIX), Iteration("", true,
+                CUSTOM_FIELD_KEY_PREFIX, "versions", "fixVersions"), InScope("", true, CUSTOM_FIELD_KEY_PREFIX);
         private String defaultJiraField;
         private boolean configurable;
         private String[] authorizedAlternativeFields;
@@ -182,13 +399,42 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
     private final UserUtil userUtil;
     private final OptionsManager optionsManager;
     private final ConstantsManager constantsManager;
+    private final JiraHome jiraHome;
+    private final SearchProvider searchProvider;
+    private final IssueManager issueManager;
     private String secretKey;
-    private JiraPluginConfiguration pluginConfiguration;
+    private volatile JiraPluginConfiguration pluginConfiguration;
     private VelocityEngine velocityEngine;
+    private JiraPluginSearchExecutor searchExecutor;
+    private ThreadPoolExecutor backgroundExecutor;
+    private ThreadPoolExecutor apiExecutor;
+    private final JiraPluginRequirementsCache requirementsCache = new JiraPluginRequirementsCache();
+    private final JiraPluginUserEmailCache userEmailCache;
+    private final Map<String, JiraPluginJqlTemplate> compiledJqlTemplates = new ConcurrentHashMap<String, JiraPluginJqlTemplate>();
+    private final Map<String, JiraPluginQueryPlan> queryPlans = new ConcurrentHashMap<String, JiraPluginQueryPlan>();
+    private final Map<Long, String> projectKeys = new ConcurrentHashMap<Long, String>();
+    private volatile JiraInstanceInfo jiraInstanceInfo;
+    private volatile long jiraInstanceInfoTimestamp;
+    private ScheduledExecutorService maintenanceScheduler;
+    private JiraPluginWebhookDispatcher webhookDispatcher;
+    private volatile JiraPluginChangeJournal changeJournal;
+    private volatile JiraPluginLongHashSet subscribedProjects;
+    private volatile boolean subscribedProjectsLoaded = false;
+    private JiraPluginChangeNotifier changeNotifier;
+    private JiraPluginSnapshotStore snapshotStore;
+    private volatile boolean snapshotRestored = false;
+    private volatile long lastSnapshotModificationCount = -1;
+    private volatile List<JiraPluginMappedField> mappedFields;
+    private volatile User searchUser;
+    private volatile long searchUserTimestamp;
+    private volatile boolean warmUpCompleted = false;
+    private volatile boolean started = false;
+    private volatile JiraPluginHealth health;
 
     public JiraPluginServiceProvider(ApplicationProperties applicationProperties, EventPublisher eventPublisher, ProjectManager projectManager,
             FieldManager fieldManager, CustomFieldManager customFieldManager, PluginSettingsFactory pluginSettingsFactory, SearchService searchService,
-            JqlQueryParser jqlQueryParser, UserUtil userUtil, OptionsManager optionsManager, ConstantsManager constantsManager) {
+            JqlQueryParser jqlQueryParser, UserUtil userUtil, OptionsManager optionsManager, ConstantsManager constantsManager, JiraHome jiraHome,
+            SearchProvider searchProvider, IssueManager issueManager) {
         this.applicationProperties = applicationProperties;
         this.eventPublisher = eventPublisher;
         this.projectManager = projectManager;
@@ -200,11 +446,25 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         this.userUtil = userUtil;
         this.optionsManager = optionsManager;
         this.constantsManager = constantsManager;
+        this.jiraHome = jiraHome;
+        this.searchProvider = searchProvider;
+        this.issueManager = issueManager;
+        this.userEmailCache = new JiraPluginUserEmailCache(userUtil, USER_EMAIL_CACHE_MAX_SIZE, USER_EMAIL_CACHE_TIME_TO_LIVE);
     }
 
     @Override
     public void destroy() throws Exception {
+        started = false;
+        health = null;
         getEventPublisher().unregister(this);
+        getMaintenanceScheduler().shutdownNow();
+        getSearchExecutor().shutdown();
+        getBackgroundExecutor().shutdownNow();
+        getApiExecutor().shutdownNow();
+        getWebhookDispatcher().shutdown();
+        closeChangeJournal();
+        getChangeNotifier().shutdown();
+        writeSnapshot(true);
         log.warn("BizDock JIRA plugin stopped");
     }
 
@@ -212,6 +472,50 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
     public void afterPropertiesSet() throws Exception {
         getEventPublisher().register(this);
         initVelocityEngine();
+        searchExecutor = new JiraPluginSearchExecutor(JiraPluginConfiguration.DEFAULT_SEARCH_MAX_CONCURRENCY,
+                JiraPluginConfiguration.DEFAULT_SEARCH_MAX_QUEUE_WAIT, JiraPluginConfiguration.DEFAULT_SEARCH_TIMEOUT);
+        backgroundExecutor = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(BACKGROUND_EXECUTOR_QUEUE_SIZE),
+                new JiraPluginThreadFactory("bizdock-background"));
+        backgroundExecutor.allowCoreThreadTimeOut(true);
+        apiExecutor = new ThreadPoolExecutor(API_EXECUTOR_THREADS, API_EXECUTOR_THREADS, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                API_EXECUTOR_QUEUE_SIZE), new JiraPluginThreadFactory("bizdock-api"));
+        apiExecutor.allowCoreThreadTimeOut(true);
+        snapshotStore = new JiraPluginSnapshotStore(new File(getJiraHome().getHome(), SNAPSHOT_FILE_PATH));
+        maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(new JiraPluginThreadFactory("bizdock-maintenance"));
+        webhookDispatcher = new JiraPluginWebhookDispatcher(this);
+        changeNotifier = new JiraPluginChangeNotifier();
+        openChangeJournal();
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+        maintenanceScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(false);
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                forceChangeJournal();
+            }
+        }, CHANGE_JOURNAL_FORCE_INTERVAL, CHANGE_JOURNAL_FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compactChangeJournal();
+            }
+        }, CHANGE_JOURNAL_COMPACTION_INTERVAL, CHANGE_JOURNAL_COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                getUserEmailCache().purge();
+            }
+        }, USER_EMAIL_CACHE_TIME_TO_LIVE, USER_EMAIL_CACHE_TIME_TO_LIVE, TimeUnit.MILLISECONDS);
+        started = true;
         log.warn("BizDock JIRA plugin started");
     }
 
@@ -226,13 +530,400 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         velocityEngine = new VelocityEngine();
         velocityEngine.setProperty(RuntimeConstants.RESOURCE_LOADER, "classpath");
         velocityEngine.setProperty("classpath.resource.loader.class", ClasspathResourceLoader.class.getName());
+        velocityEngine.setProperty("classpath.resource.loader.cache", "true");
         velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.Log4JLogChute");
         velocityEngine.setProperty("runtime.log.logsystem.log4j.logger", "velocity");
         velocityEngine.init();
     }
 
+    /**
+     * Pre-resolve everything which is otherwise resolved lazily by the first
+     * API calls: configuration, search user, mapped fields, page template,
+     * JQL templates, last snapshot and project index.<br/>
+     * This is run in the background right after the plugin start so that the
+     * plugin start is not delayed.
+     */
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            getPluginConfiguration();
+            getSearchUser();
+            getMappedFields();
+            getVelocityEngine().getTemplate("/pages/index.vm");
+        } catch (Exception e) {
+            log.warn("Unable to pre-resolve the plugin configuration, it will be resolved by the first API calls", e);
+        }
+        restoreSnapshot();
+        try {
+            List<Project> projects = getAllProjects();
+            if (projects != null) {
+                for (Project project : projects) {
+                    projectKeys.put(project.getId(), project.getKey());
+                }
+                // Prepare the JQL templates with a project tracked by BizDock
+                for (Project project : projects) {
+                    if (isSubscribedProject(project.getId())) {
+                        String projectRefId = String.valueOf(project.getId());
+                        createQueryFromTemplate(getPluginConfiguration().getNeedsJqlQueryTemplate(), projectRefId, null);
+                        createQueryFromTemplate(getPluginConfiguration().getDefectsJqlQueryTemplate(), projectRefId, null);
+                        break;
+                    }
+                }
+            }
+            getJiraInstanceInfo();
+        } catch (Exception e) {
+            log.warn("Unable to pre-resolve the projects and JQL templates, they will be resolved by the first API calls", e);
+        } finally {
+            warmUpCompleted = true;
+        }
+        log.info("BizDock JIRA plugin warm-up completed in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Reload the last snapshot of the plugin derived state (project index, JIRA
+     * instance information and cached requirements).<br/>
+     * This is run by the warm-up so that the plugin recovers a warm state
+     * without delaying its start.
+     */
+    private void restoreSnapshot() {
+        try {
+            JiraPluginSnapshotStore.Snapshot snapshot = getSnapshotStore().read(getConfigurationFingerprint());
+            if (snapshot != null) {
+                // The projects may have been deleted or renamed while the plugin was stopped
+                int staleProjectKeys = 0;
+                for (Map.Entry<Long, String> projectKey : snapshot.getProjectKeys().entrySet()) {
+                    Project project = getProjectFromId(projectKey.getKey());
+                    if (project == null || !project.getKey().equals(projectKey.getValue())) {
+                        staleProjectKeys++;
+                    } else if (!projectKeys.containsKey(projectKey.getKey())) {
+                        projectKeys.put(projectKey.getKey(), projectKey.getValue());
+                    }
+                }
+                if (staleProjectKeys > 0) {
+                    log.info(staleProjectKeys + " deleted or renamed projects ignored in the snapshot");
+                }
+                if (snapshot.getJiraInstanceInfo() != null && jiraInstanceInfo == null) {
+                    this.jiraInstanceInfoTimestamp = snapshot.getJiraInstanceInfoTimestamp();
+                    this.jiraInstanceInfo = snapshot.getJiraInstanceInfo();
+                }
+                long generation = getRequirementsCache().getGeneration();
+                for (Map.Entry<String, RequirementsResult> result : snapshot.getRequirementsResults().entrySet()) {
+                    getRequirementsCache().put(result.getKey(), result.getValue(), generation);
+                }
+                lastSnapshotModificationCount = getRequirementsCache().getModificationCount();
+                log.info("Snapshot restored with " + snapshot.getProjectKeys().size() + " projects and " + snapshot.getRequirementsResults().size()
+                        + " requirements results");
+            }
+        } catch (Exception e) {
+            log.warn("Unable to restore the snapshot of the plugin state", e);
+        } finally {
+            snapshotRestored = true;
+        }
+    }
+
+    /**
+     * Write a snapshot of the plugin derived state
+     * 
+     * @param force
+     *            if false the snapshot is written only if the cached
+     *            requirements changed since the last snapshot
+     */
+    private void writeSnapshot(boolean force) {
+        if (!snapshotRestored) {
+            // Do not overwrite a snapshot which has not been read yet
+            return;
+        }
+        try {
+            long modificationCount = getRequirementsCache().getModificationCount();
+            if (!force && modificationCount == lastSnapshotModificationCount) {
+                return;
+            }
+            JiraPluginSnapshotStore.Snapshot snapshot = new JiraPluginSnapshotStore.Snapshot(getConfigurationFingerprint(), System.currentTimeMillis());
+            snapshot.getProjectKeys().putAll(projectKeys);
+            if (jiraInstanceInfo != null) {
+                snapshot.setJiraInstanceInfo(jiraInstanceInfo, jiraInstanceInfoTimestamp);
+            }
+            snapshot.getRequirementsResults().putAll(getRequirementsCache().getEntries());
+            getSnapshotStore().write(snapshot);
+            lastSnapshotModificationCount = modificationCount;
+        } catch (Exception e) {
+            log.warn("Unable to write the snapshot of the plugin state", e);
+        }
+    }
+
+    /**
+     * Open the change journal (the changes are not recorded if the journal
+     * cannot be opened) and initialize the change notifier with the last
+     * change of each project
+     */
+    private void openChangeJournal() {
+        JiraPluginChangeJournal journal = new JiraPluginChangeJournal(new File(getJiraHome().getHome(), CHANGE_JOURNAL_DIRECTORY_PATH));
+        try {
+            journal.open();
+            publishSubscribedProjectChanges(journal);
+            changeJournal = journal;
+        } catch (Exception e) {
+            log.error("Unable to open the change journal, the issue changes will not be recorded", e);
+        }
+    }
+
+    /**
+     * Publish to the change notifier the last change of each subscribed
+     * project recorded in the specified journal
+     */
+    private void publishSubscribedProjectChanges(JiraPluginChangeJournal journal) {
+        long afterSequence = 0;
+        List<ChangeJournalEntry> entries;
+        do {
+            entries = journal.read(afterSequence, CHANGE_JOURNAL_MAX_ENTRIES);
+            for (ChangeJournalEntry entry : entries) {
+                if (isSubscribedProject(entry.getProjectId())) {
+                    getChangeNotifier().publish(entry.getProjectId(), entry.getSequence());
+                }
+                afterSequence = entry.getSequence();
+            }
+        } while (!entries.isEmpty());
+    }
+
+    /**
+     * Flush the change journal and stop recording the changes
+     */
+    private void closeChangeJournal() {
+        JiraPluginChangeJournal journal = getChangeJournal();
+        changeJournal = null;
+        if (journal != null) {
+            journal.force();
+        }
+    }
+
+    /**
+     * Flush the recent entries of the change journal to the disk
+     */
+    private void forceChangeJournal() {
+        JiraPluginChangeJournal journal = getChangeJournal();
+        if (journal != null) {
+            try {
+                journal.force();
+            } catch (Exception e) {
+                log.warn("Unable to flush the change journal", e);
+            }
+        }
+    }
+
+    /**
+     * Keep only the latest entry of each issue in the change journal
+     */
+    private void compactChangeJournal() {
+        JiraPluginChangeJournal journal = getChangeJournal();
+        if (journal != null) {
+            try {
+                journal.compact();
+            } catch (Exception e) {
+                log.warn("Unable to compact the change journal", e);
+            }
+        }
+    }
+
+    /**
+     * Return a fingerprint of the configuration elements which drive the
+     * content of the cached requirements (a snapshot taken with another
+     * configuration must be ignored)
+     * 
+     * @throws JiraPluginConfigurationException
+     */
+    private int getConfigurationFingerprint() throws JiraPluginConfigurationException {
+        JiraPluginConfiguration configuration = getPluginConfiguration();
+        return (configuration.getNeedsJqlQueryTemplate() + "\n" + configuration.getDefectsJqlQueryTemplate() + "\n" + configuration
+                .getMappingBizDockJira()).hashCode();
+    }
+
+    /**
+     * Remove a deleted project from the project index (its key may be reused
+     * by another project)
+     * 
+     * @param projectDeletedEvent
+     *            a project event
+     */
+    @EventListener
+    public void onProjectDeleted(ProjectDeletedEvent projectDeletedEvent) {
+        if (projectDeletedEvent.getId() != null) {
+            projectKeys.remove(projectDeletedEvent.getId());
+        }
+    }
+
+    /**
+     * Remove an updated project from the project index (its key may have
+     * changed), it is resolved again by the next API call
+     * 
+     * @param projectUpdatedEvent
+     *            a project event
+     */
+    @EventListener
+    public void onProjectUpdated(ProjectUpdatedEvent projectUpdatedEvent) {
+        if (projectUpdatedEvent.getProject() != null) {
+            projectKeys.remove(projectUpdatedEvent.getProject().getId());
+        }
+    }
+
+    /**
+     * Remove an updated user from the email cache of the authors (see
+     * {@link JiraPluginUserEmailCache})
+     * 
+     * @param userUpdatedEvent
+     *            a user event (including the renaming)
+     */
+    @EventListener
+    public void onUserUpdated(UserUpdatedEvent userUpdatedEvent) {
+        if (userUpdatedEvent.getUser() != null) {
+            getUserEmailCache().invalidate(ApplicationUsers.getKeyFor(userUpdatedEvent.getUser()));
+        }
+    }
+
+    /**
+     * Clear the email cache of the authors when a user is deleted (the key of
+     * a deleted user cannot be resolved anymore)
+     * 
+     * @param userDeletedEvent
+     *            a user event
+     */
+    @EventListener
+    public void onUserDeleted(UserDeletedEvent userDeletedEvent) {
+        getUserEmailCache().invalidateAll();
+    }
+
+    /**
+     * Clear the email cache of the authors when the users are synchronized
+     * with a remote directory (LDAP, Crowd)
+     * 
+     * @param directorySynchronisedEvent
+     *            a directory event
+     */
+    @EventListener
+    public void onDirectorySynchronised(RemoteDirectorySynchronisedEvent directorySynchronisedEvent) {
+        getUserEmailCache().invalidateAll();
+    }
+
+    /**
+     * Record the change of the issue in the change journal (see
+     * {@link JiraPluginChangeJournal}) and push it to BizDock (if a callback
+     * URL is configured, see {@link JiraPluginWebhookDispatcher}).<br/>
+     * The events which cannot modify a requirement (comments, work logs) are
+     * ignored.
+     * 
+     * @param issueEvent
+     *            a JIRA issue event
+     */
     @EventListener
     public void onIssueEvent(IssueEvent issueEvent) {
+        if (!started) {
+            return;
+        }
+        Issue issue = issueEvent.getIssue();
+        if (issue == null || issue.getId() == null || issue.getProjectObject() == null || issueEvent.getEventTypeId() == null
+                || IGNORED_EVENT_TYPES.contains(issueEvent.getEventTypeId())) {
+            return;
+        }
+        // The changes of all the projects are recorded: a project subscribed
+        // later can be caught up from the journal
+        boolean subscribed = isSubscribedProject(issue.getProjectObject().getId());
+        JiraPluginChangeJournal journal = this.changeJournal;
+        if (journal != null) {
+            long timestamp = issueEvent.getTime() != null ? issueEvent.getTime().getTime() : System.currentTimeMillis();
+            try {
+                long sequence = journal.append(issue.getId(), issue.getProjectObject().getId(), issueEvent.getEventTypeId(), timestamp);
+                if (subscribed) {
+                    getChangeNotifier().publish(issue.getProjectObject().getId(), sequence);
+                }
+            } catch (Exception e) {
+                log.error("Unable to record the change of the issue " + issue.getKey() + " in the change journal", e);
+            }
+        }
+        if (!subscribed) {
+            return;
+        }
+        JiraPluginConfiguration configuration = this.pluginConfiguration;
+        JiraPluginWebhookDispatcher dispatcher = this.webhookDispatcher;
+        if (configuration == null || configuration.getWebhookUrl() == null || dispatcher == null) {
+            return;
+        }
+        dispatcher.submit(issue.getId(), issue.getKey(), issue.getProjectObject().getId(), EventType.ISSUE_DELETED_ID.equals(issueEvent.getEventTypeId()),
+                configuration.getWebhookCoalesceDelay());
+    }
+
+    /**
+     * Resolve the specified issue changes into requirement changes: the
+     * changed issues are searched (in one search for the needs and one for
+     * the defects) with the JQL templates (without parameters).<br/>
+     * An issue which was deleted or which does not match any template is
+     * REMOVED.
+     * 
+     * @param projectId
+     *            the id of the project of the issues
+     * @param pendingChanges
+     *            the changes of some issues of the project
+     * @return the requirement changes (in the same order)
+     * @throws Exception
+     */
+    List<RequirementChange> getRequirementChanges(long projectId, List<JiraPluginWebhookDispatcher.PendingChange> pendingChanges) throws Exception {
+        String projectRefId = String.valueOf(projectId);
+        List<String> issueKeys = new ArrayList<String>();
+        for (JiraPluginWebhookDispatcher.PendingChange pendingChange : pendingChanges) {
+            if (!pendingChange.isDeleted()) {
+                issueKeys.add(pendingChange.getIssueKey());
+            }
+        }
+        final Map<String, Requirement> requirements = new HashMap<String, Requirement>();
+        if (!issueKeys.isEmpty()) {
+            Clause issueKeysClause = new TerminalClauseImpl(ISSUE_KEY_JQL_FIELD, Operator.IN, new MultiValueOperand(issueKeys.toArray(new String[issueKeys
+                    .size()])));
+            for (boolean defect : new boolean[] { false, true }) {
+                String jqlTemplate = defect ? getPluginConfiguration().getDefectsJqlQueryTemplate() : getPluginConfiguration().getNeedsJqlQueryTemplate();
+                Query templateQuery = createQueryFromTemplate(jqlTemplate, projectRefId, null);
+                Clause whereClause = templateQuery.getWhereClause() != null ? new AndClause(templateQuery.getWhereClause(), issueKeysClause)
+                        : issueKeysClause;
+                Query query = new QueryImpl(whereClause, null, "(" + templateQuery.getQueryString() + ") AND " + ISSUE_KEY_JQL_FIELD + " in ("
+                        + StringUtils.join(issueKeys, ",") + ")");
+                handleRequirementsWith(query, defect, 0, 0, new JiraPluginRequirementHandler() {
+                    @Override
+                    public void handle(Requirement requirement) {
+                        if (!requirements.containsKey(requirement.getId())) {
+                            requirements.put(requirement.getId(), requirement);
+                        }
+                    }
+                });
+            }
+        }
+        List<RequirementChange> changes = new ArrayList<RequirementChange>();
+        for (JiraPluginWebhookDispatcher.PendingChange pendingChange : pendingChanges) {
+            Requirement requirement = requirements.get(pendingChange.getIssueKey());
+            changes.add(new RequirementChange(requirement != null ? RequirementChange.Type.UPDATED : RequirementChange.Type.REMOVED, pendingChange
+                    .getIssueKey(), projectRefId, pendingChange.getTimestamp(), requirement));
+        }
+        return changes;
+    }
+
+    /**
+     * Return the URL to which the changes of the requirements are pushed (null
+     * if the push is disabled)
+     */
+    String getWebhookUrl() {
+        JiraPluginConfiguration configuration = this.pluginConfiguration;
+        return configuration != null ? configuration.getWebhookUrl() : null;
+    }
+
+    /**
+     * Sign a request sent by the plugin to BizDock (same scheme as the API
+     * calls, see {@link #authenticateClient(String, long, String)})
+     * 
+     * @param timeStamp
+     *            the timestamp of the request
+     * @param requestUri
+     *            the request URI (including the query string if any)
+     * @return a hash
+     * @throws Exception
+     */
+    String signRequest(long timeStamp, String requestUri) throws Exception {
+        return createHash(getSecretKey(), timeStamp, requestUri);
     }
 
     /**
@@ -295,62 +986,649 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
                 projectNames.add(project.getName());
             }
         }
-        Collections.sort(projectNames);
-        return projectNames;
+        Collections.sort(projectNames);
+        return projectNames;
+    }
+
+    /**
+     * Return the list of the projects managed by the JIRA server
+     * 
+     * @return a list of Projects
+     */
+    public List<Project> getAllProjects() {
+        return getProjectManager().getProjectObjects();
+    }
+
+    /**
+     * Return all the defects for the specified project
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param startAt
+     *            the index of the first defect to be returned (the number of
+     *            defects returned is limited by the configuration)
+     * @param allowStale
+     *            true if a cached result (not older than the configured
+     *            maximum stale age) may be returned, a refresh is then
+     *            scheduled in the background
+     * @return
+     * @throws JiraPluginException
+     */
+    public RequirementsResult getDefectsForProject(String projectRefId, Map<String, Object> parameters, int startAt, boolean allowStale)
+            throws JiraPluginException {
+        return getRequirementsForProject(projectRefId, parameters, true, startAt, allowStale);
+    }
+
+    /**
+     * Return all the needs for the specified project
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param startAt
+     *            the index of the first need to be returned (the number of
+     *            needs returned is limited by the configuration)
+     * @param allowStale
+     *            true if a cached result (not older than the configured
+     *            maximum stale age) may be returned, a refresh is then
+     *            scheduled in the background
+     * @return
+     * @throws JiraPluginException
+     */
+    public RequirementsResult getNeedsForProject(String projectRefId, Map<String, Object> parameters, int startAt, boolean allowStale)
+            throws JiraPluginException {
+        return getRequirementsForProject(projectRefId, parameters, false, startAt, allowStale);
+    }
+
+    /**
+     * Return the specified requirements with their child issues: the issues
+     * of an epic (Epic Link) and the sub-tasks of an issue, down to
+     * {@link #HIERARCHY_MAX_DEPTH} levels, and optionally the issues linked to
+     * the requirements (first level only).<br/>
+     * The children of a level are searched for all the parents at once (one
+     * search per {@link #HIERARCHY_BATCH_SIZE} parents) so that the number of
+     * searches does not depend on the number of requirements. The linked
+     * issues are searched with one search per requirement (the JQL of a
+     * linkedIssues function is expanded by JIRA before the search). An issue which
+     * is already part of the hierarchy (for instance a requirement of the
+     * result which belongs to an epic of the result) is not repeated.<br/>
+     * The number of child issues is limited by the maximum number of needs
+     * returned by a call (the hierarchy is then truncated). A child issue is a
+     * defect if it matches the defects JQL template.
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            the parameters used to generate the JQL of the requirements
+     * @param requirementsResult
+     *            the requirements (the roots of the hierarchy)
+     * @param linkedIssues
+     *            true if the issues linked to the requirements are children
+     *            of the requirements
+     * @return the requirements (same order) with their children and the
+     *         rolled-up story points and estimations
+     * @throws JiraPluginException
+     */
+    public RequirementsHierarchy getRequirementsHierarchy(String projectRefId, Map<String, Object> parameters, RequirementsResult requirementsResult,
+            boolean linkedIssues) throws JiraPluginException {
+        List<RequirementNode> roots = new ArrayList<RequirementNode>();
+        Map<String, RequirementNode> parents = new LinkedHashMap<String, RequirementNode>();
+        for (Requirement requirement : requirementsResult.getRequirements()) {
+            RequirementNode node = new RequirementNode(requirement);
+            roots.add(node);
+            parents.put(requirement.getId(), node);
+        }
+        Clause defectsClause;
+        try {
+            defectsClause = createQueryFromTemplate(getPluginConfiguration().getDefectsJqlQueryTemplate(), projectRefId, parameters).getWhereClause();
+        } catch (Exception e) {
+            throw new JiraPluginException("Error while creating the defects JQL of the project " + projectRefId, e);
+        }
+        CustomField epicLinkField = getCustomFieldManager().getCustomFieldObjectByName(EPIC_LINK_FIELD_NAME);
+        List<JiraPluginMappedField> resolvedFields = getMappedFields();
+        JiraPluginIterationLookup iterationLookup = new JiraPluginIterationLookup();
+        Set<String> handledKeys = new HashSet<String>(parents.keySet());
+        int maxChildren = getPluginConfiguration().getNeedsMaxResults();
+        int childrenCount = 0;
+        boolean truncated = false;
+        for (int depth = 0; depth < HIERARCHY_MAX_DEPTH && !parents.isEmpty() && !truncated; depth++) {
+            Map<String, RequirementNode> children = new LinkedHashMap<String, RequirementNode>();
+            List<String> parentKeys = new ArrayList<String>(parents.keySet());
+            for (int from = 0; from < parentKeys.size() && !truncated; from += HIERARCHY_BATCH_SIZE) {
+                List<String> batch = parentKeys.subList(from, Math.min(from + HIERARCHY_BATCH_SIZE, parentKeys.size()));
+                // Once the maximum is reached, one issue is searched to know if
+                // the hierarchy is truncated
+                int remaining = maxChildren > 0 ? maxChildren - childrenCount : Integer.MAX_VALUE;
+                SearchResults searchResults = searchChildIssues(batch, epicLinkField, maxChildren > 0 ? Math.max(remaining, 1) : 0);
+                List<Issue> childIssues = getChildIssues(searchResults, remaining);
+                truncated = searchResults.getTotal() > childIssues.size();
+                childrenCount += addChildren(parents, null, childIssues, epicLinkField, defectsClause, handledKeys, resolvedFields, iterationLookup, children);
+            }
+            // The linked issues are searched requirement by requirement: the
+            // search then tells which requirement an issue is linked to
+            for (int i = 0; linkedIssues && depth == 0 && i < parentKeys.size() && !truncated; i++) {
+                String parentKey = parentKeys.get(i);
+                int remaining = maxChildren > 0 ? maxChildren - childrenCount : Integer.MAX_VALUE;
+                SearchResults searchResults = searchLinkedIssues(parentKey, maxChildren > 0 ? Math.max(remaining, 1) : 0);
+                List<Issue> childIssues = getChildIssues(searchResults, remaining);
+                truncated = searchResults.getTotal() > childIssues.size();
+                childrenCount += addChildren(parents, parents.get(parentKey), childIssues, epicLinkField, defectsClause, handledKeys, resolvedFields,
+                        iterationLookup, children);
+            }
+            parents = children;
+        }
+        for (RequirementNode root : roots) {
+            root.rollUp();
+        }
+        return new RequirementsHierarchy(roots, truncated);
+    }
+
+    /**
+     * Return the issues of a search of child issues (at most the specified
+     * number of issues)
+     */
+    private static List<Issue> getChildIssues(SearchResults searchResults, int maxIssues) {
+        List<Issue> childIssues = searchResults.getIssues() != null ? searchResults.getIssues() : new ArrayList<Issue>();
+        return childIssues.size() > maxIssues ? childIssues.subList(0, maxIssues) : childIssues;
+    }
+
+    /**
+     * Add the specified child issues (except the ones which are already part
+     * of the hierarchy) to their parents
+     * 
+     * @param parents
+     *            the nodes of the parents (by issue key)
+     * @param parent
+     *            the parent of all the child issues (null if the parent of an
+     *            issue is its parent or its epic)
+     * @param childIssues
+     *            some child issues
+     * @param epicLinkField
+     *            the Epic Link custom field (null if JIRA Agile is not
+     *            installed)
+     * @param defectsClause
+     *            the clause of the defects JQL template
+     * @param handledKeys
+     *            the keys of the issues which are part of the hierarchy
+     * @param resolvedFields
+     *            the mapped fields
+     * @param iterationLookup
+     *            the iteration lookup of the hierarchy
+     * @param children
+     *            the nodes of the added children (by issue key)
+     * @return the number of added children
+     * @throws JiraPluginException
+     */
+    private int addChildren(Map<String, RequirementNode> parents, RequirementNode parent, List<Issue> childIssues, CustomField epicLinkField,
+            Clause defectsClause, Set<String> handledKeys, List<JiraPluginMappedField> resolvedFields, JiraPluginIterationLookup iterationLookup,
+            Map<String, RequirementNode> children) throws JiraPluginException {
+        List<Issue> newChildIssues = new ArrayList<Issue>();
+        for (Issue childIssue : childIssues) {
+            if (!handledKeys.contains(childIssue.getKey())) {
+                newChildIssues.add(childIssue);
+            }
+        }
+        Set<String> defectKeys = searchIssueKeys(defectsClause, newChildIssues);
+        int added = 0;
+        for (Issue childIssue : newChildIssues) {
+            RequirementNode childParent = parent != null ? parent : parents.get(getParentKey(childIssue, epicLinkField));
+            if (childParent == null || !handledKeys.add(childIssue.getKey())) {
+                continue;
+            }
+            Requirement requirement = createRequirementFromIssue(childIssue, resolvedFields, iterationLookup);
+            requirement.setDefect(defectKeys.contains(childIssue.getKey()));
+            JiraPluginContentHash.setHash(requirement);
+            RequirementNode child = new RequirementNode(requirement);
+            childParent.addChild(child);
+            children.put(childIssue.getKey(), child);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Search the issues which are the sub-tasks or the epic issues of the
+     * specified issues (in the plugin search executor)
+     * 
+     * @param parentKeys
+     *            some issue keys
+     * @param epicLinkField
+     *            the Epic Link custom field (null if JIRA Agile is not
+     *            installed)
+     * @param maxResults
+     *            the maximum number of issues returned (0 for no limit)
+     * @return the child issues and their total
+     * @throws JiraPluginException
+     */
+    private SearchResults searchChildIssues(List<String> parentKeys, CustomField epicLinkField, int maxResults) throws JiraPluginException {
+        String[] keys = parentKeys.toArray(new String[parentKeys.size()]);
+        String joinedKeys = StringUtils.join(keys, ",");
+        Clause whereClause = new TerminalClauseImpl(PARENT_JQL_FIELD, Operator.IN, new MultiValueOperand(keys));
+        StringBuilder jql = new StringBuilder(PARENT_JQL_FIELD + " in (" + joinedKeys + ")");
+        if (epicLinkField != null) {
+            String epicLinkJqlField = "cf[" + epicLinkField.getIdAsLong() + "]";
+            whereClause = new OrClause(whereClause, new TerminalClauseImpl(epicLinkJqlField, Operator.IN, new MultiValueOperand(keys)));
+            jql.append(" OR ").append(epicLinkJqlField).append(" in (").append(joinedKeys).append(")");
+        }
+        return searchIssues(new QueryImpl(whereClause, null, jql.toString()), maxResults);
+    }
+
+    /**
+     * Search the issues linked to the specified issue (in the plugin search
+     * executor)
+     * 
+     * @param parentKey
+     *            an issue key
+     * @param maxResults
+     *            the maximum number of issues returned (0 for no limit)
+     * @return the linked issues and their total
+     * @throws JiraPluginException
+     */
+    private SearchResults searchLinkedIssues(String parentKey, int maxResults) throws JiraPluginException {
+        Clause whereClause = new TerminalClauseImpl(ISSUE_KEY_JQL_FIELD, Operator.IN, new FunctionOperand(LINKED_ISSUES_JQL_FUNCTION, parentKey));
+        return searchIssues(new QueryImpl(whereClause, null, ISSUE_KEY_JQL_FIELD + " in " + LINKED_ISSUES_JQL_FUNCTION + "(" + parentKey + ")"),
+                maxResults);
+    }
+
+    /**
+     * Run the specified search (in the plugin search executor)
+     * 
+     * @param query
+     *            a query
+     * @param maxResults
+     *            the maximum number of issues returned (0 for no limit)
+     * @return the issues and their total
+     * @throws JiraPluginException
+     */
+    private SearchResults searchIssues(final Query query, final int maxResults) throws JiraPluginException {
+        return getSearchExecutor().execute(query.getQueryString(), new Callable<SearchResults>() {
+            @Override
+            public SearchResults call() throws Exception {
+                return getSearchService().search(getSearchUser(), query, maxResults > 0 ? new PagerFilter(maxResults) : PagerFilter.getUnlimitedFilter());
+            }
+        });
+    }
+
+    /**
+     * Return the keys of the specified issues which match the specified clause
+     * (read from the index, in the plugin search executor)
+     * 
+     * @param whereClause
+     *            a JQL clause (null to match all the issues)
+     * @param issues
+     *            some issues
+     * @throws JiraPluginException
+     */
+    private Set<String> searchIssueKeys(Clause whereClause, List<Issue> issues) throws JiraPluginException {
+        final Set<String> issueKeys = new HashSet<String>();
+        if (issues.isEmpty()) {
+            return issueKeys;
+        }
+        String[] keys = new String[issues.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = issues.get(i).getKey();
+        }
+        Clause issueKeysClause = new TerminalClauseImpl(ISSUE_KEY_JQL_FIELD, Operator.IN, new MultiValueOperand(keys));
+        final Clause keysClause = whereClause != null ? new AndClause(whereClause, issueKeysClause) : issueKeysClause;
+        final Query query = new QueryImpl(keysClause);
+        getSearchExecutor().execute(keysClause, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // No mapped field: only the keys are read from the index
+                JiraPluginRequirementCollector collector = new JiraPluginRequirementCollector(JiraPluginServiceProvider.this,
+                        new ArrayList<JiraPluginMappedField>(), false, new JiraPluginRequirementHandler() {
+                            @Override
+                            public void handle(Requirement requirement) {
+                                issueKeys.add(requirement.getId());
+                            }
+                        }, 0, 0, getIssueManager(), getConstantsManager(), getOptionsManager(), getUserEmailCache());
+                getSearchProvider().search(query, getSearchUser(), collector);
+                return null;
+            }
+        });
+        return issueKeys;
+    }
+
+    /**
+     * Return the key of the parent of a child issue: the parent of a sub-task
+     * or else the epic of the issue
+     */
+    private static String getParentKey(Issue childIssue, CustomField epicLinkField) {
+        if (childIssue.getParentObject() != null) {
+            return childIssue.getParentObject().getKey();
+        }
+        Object epic = epicLinkField != null ? childIssue.getCustomFieldValue(epicLinkField) : null;
+        if (epic instanceof Issue) {
+            return ((Issue) epic).getKey();
+        }
+        return epic != null ? String.valueOf(epic) : null;
+    }
+
+    /**
+     * Return the number of defects for the specified project (the issues are
+     * counted by the index, they are neither loaded nor mapped)
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @return
+     * @throws JiraPluginException
+     */
+    public long getDefectsCountForProject(String projectRefId, Map<String, Object> parameters) throws JiraPluginException {
+        return getRequirementsCountForProject(projectRefId, parameters, true);
+    }
+
+    /**
+     * Return the number of needs for the specified project (the issues are
+     * counted by the index, they are neither loaded nor mapped)
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @return
+     * @throws JiraPluginException
+     */
+    public long getNeedsCountForProject(String projectRefId, Map<String, Object> parameters) throws JiraPluginException {
+        return getRequirementsCountForProject(projectRefId, parameters, false);
+    }
+
+    /**
+     * Return the number of needs and defects for each of the specified
+     * projects.<br/>
+     * A project which cannot be counted (unknown project, invalid JQL) gets an
+     * error message, the other projects are still counted. The batch is
+     * interrupted if the search executor is saturated.
+     * 
+     * @param projectRefIds
+     *            a list of project unique ids
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            templates
+     * @return a list of counts (in the order of the project ids)
+     * @throws JiraPluginException
+     */
+    public List<RequirementsCount> getRequirementsCountForProjects(List<String> projectRefIds, Map<String, Object> parameters)
+            throws JiraPluginException {
+        if (projectRefIds.size() > MAX_PROJECTS_PER_COUNT_BATCH) {
+            throw new JiraPluginException("Too many projects in the batch, the maximum is " + MAX_PROJECTS_PER_COUNT_BATCH);
+        }
+        List<RequirementsCount> requirementsCounts = new ArrayList<RequirementsCount>(projectRefIds.size());
+        for (String projectRefId : projectRefIds) {
+            RequirementsCount requirementsCount = new RequirementsCount(projectRefId);
+            try {
+                requirementsCount.setNeedsCount(getRequirementsCountForProject(projectRefId, parameters, false));
+                requirementsCount.setDefectsCount(getRequirementsCountForProject(projectRefId, parameters, true));
+            } catch (JiraPluginOverloadedException e) {
+                throw e;
+            } catch (JiraPluginTimeoutException e) {
+                throw e;
+            } catch (JiraPluginException e) {
+                log.warn("Unable to count the requirements of project " + projectRefId, e);
+                requirementsCount.setNeedsCount(null);
+                requirementsCount.setDefectsCount(null);
+                requirementsCount.setErrorMessage(e.getMessage());
+            }
+            requirementsCounts.add(requirementsCount);
+        }
+        return requirementsCounts;
+    }
+
+    /**
+     * Count the needs or defects for the specified project
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param defect
+     *            true for the defects, false for the needs
+     * @return
+     * @throws JiraPluginException
+     */
+    private long getRequirementsCountForProject(String projectRefId, Map<String, Object> parameters, boolean defect) throws JiraPluginException {
+        try {
+            String jqlTemplate = defect ? getPluginConfiguration().getDefectsJqlQueryTemplate() : getPluginConfiguration().getNeedsJqlQueryTemplate();
+            final Query query = createQueryFromTemplate(jqlTemplate, projectRefId, parameters);
+            return getSearchExecutor().execute(describe(query), new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return getSearchService().searchCount(getSearchUser(), query);
+                }
+            });
+        } catch (JiraPluginOverloadedException e) {
+            throw e;
+        } catch (JiraPluginTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JiraPluginException("Unable to count the " + (defect ? "defects" : "needs") + " for project " + projectRefId, e);
+        }
+    }
+
+    /**
+     * Return the aggregation of the defects for the specified project
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param groupBy
+     *            the field used to group the defects (null for the totals
+     *            only)
+     * @param allowStale
+     *            true if a cached result (not older than the configured
+     *            maximum stale age) may be aggregated instead of searching
+     * @return
+     * @throws JiraPluginException
+     */
+    public RequirementsAggregate getDefectsAggregateForProject(String projectRefId, Map<String, Object> parameters, BizDockRequirementsFields groupBy,
+            boolean allowStale) throws JiraPluginException {
+        return getRequirementsAggregateForProject(projectRefId, parameters, true, groupBy, allowStale);
+    }
+
+    /**
+     * Return the aggregation of the needs for the specified project
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param groupBy
+     *            the field used to group the needs (null for the totals only)
+     * @param allowStale
+     *            true if a cached result (not older than the configured
+     *            maximum stale age) may be aggregated instead of searching
+     * @return
+     * @throws JiraPluginException
+     */
+    public RequirementsAggregate getNeedsAggregateForProject(String projectRefId, Map<String, Object> parameters, BizDockRequirementsFields groupBy,
+            boolean allowStale) throws JiraPluginException {
+        return getRequirementsAggregateForProject(projectRefId, parameters, false, groupBy, allowStale);
+    }
+
+    /**
+     * Aggregate the needs or defects for the specified project.<br/>
+     * The requirements are aggregated while the search is running and are not
+     * kept in memory (nor in the requirements cache).
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param defect
+     *            true for the defects, false for the needs
+     * @param groupBy
+     *            the field used to group the requirements (null for the
+     *            totals only)
+     * @param allowStale
+     *            true if a cached result may be aggregated
+     * @return
+     * @throws JiraPluginException
+     */
+    private RequirementsAggregate getRequirementsAggregateForProject(String projectRefId, Map<String, Object> parameters, boolean defect,
+            BizDockRequirementsFields groupBy, boolean allowStale) throws JiraPluginException {
+        if (groupBy != null && !JiraPluginRequirementsAggregator.isGroupable(groupBy)) {
+            throw new JiraPluginException("The requirements cannot be grouped by " + groupBy);
+        }
+        try {
+            JiraPluginRequirementsAggregator aggregator = new JiraPluginRequirementsAggregator(defect, groupBy);
+            if (allowStale) {
+                String cacheKey = JiraPluginRequirementsCache.createKey(defect, projectRefId, parameters, 0);
+                RequirementsResult cachedResult = getRequirementsCache().get(cacheKey, getPluginConfiguration().getStaleMaxAge());
+                if (cachedResult != null && !cachedResult.isTruncated()) {
+                    aggregator.handleAll(cachedResult.getRequirements());
+                    return aggregator.getAggregate();
+                }
+            }
+            String jqlTemplate = defect ? getPluginConfiguration().getDefectsJqlQueryTemplate() : getPluginConfiguration().getNeedsJqlQueryTemplate();
+            handleRequirementsWith(createQueryFromTemplate(jqlTemplate, projectRefId, parameters), defect, 0, 0, aggregator);
+            return aggregator.getAggregate();
+        } catch (JiraPluginOverloadedException e) {
+            throw e;
+        } catch (JiraPluginTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JiraPluginException("Unable to aggregate the " + (defect ? "defects" : "needs") + " for project " + projectRefId, e);
+        }
     }
 
     /**
-     * Return the list of the projects managed by the JIRA server
+     * Return all the needs or defects for the specified project
      * 
-     * @return a list of Projects
+     * @param projectRefId
+     *            a project unique id
+     * @param parameters
+     *            some parameters to be used to generate a JQL from the JQL
+     *            template
+     * @param defect
+     *            true for the defects, false for the needs
+     * @param startAt
+     *            the index of the first requirement to be returned
+     * @param allowStale
+     *            true if a cached result may be returned
+     * @return
+     * @throws JiraPluginException
      */
-    public List<Project> getAllProjects() {
-        return getProjectManager().getProjectObjects();
+    private RequirementsResult getRequirementsForProject(final String projectRefId, final Map<String, Object> parameters, final boolean defect,
+            int startAt, boolean allowStale) throws JiraPluginException {
+        try {
+            final String cacheKey = JiraPluginRequirementsCache.createKey(defect, projectRefId, parameters, startAt);
+            if (allowStale) {
+                RequirementsResult cachedResult = getRequirementsCache().get(cacheKey, getPluginConfiguration().getStaleMaxAge());
+                if (cachedResult != null) {
+                    if (getRequirementsCache().startRefresh(cacheKey, cachedResult)) {
+                        scheduleRequirementsRefresh(cacheKey, projectRefId, parameters, defect, startAt);
+                    }
+                    return cachedResult;
+                }
+            }
+            // Cached only if it may be served stale later (or replaces a cached result)
+            boolean cache = (allowStale && getPluginConfiguration().getStaleMaxAge() > 0) || getRequirementsCache().contains(cacheKey);
+            return loadRequirementsForProject(cacheKey, projectRefId, parameters, defect, startAt, cache);
+        } catch (JiraPluginOverloadedException e) {
+            throw e;
+        } catch (JiraPluginTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JiraPluginException("Unable to retreive the " + (defect ? "defects" : "needs") + " for project " + projectRefId, e);
+        }
     }
 
     /**
-     * Return all the defects for the specified project
+     * Search the needs or defects for the specified project and store the
+     * result into the requirements cache if requested
      * 
+     * @param cacheKey
+     *            the key of the result in the requirements cache
      * @param projectRefId
      *            a project unique id
      * @param parameters
      *            some parameters to be used to generate a JQL from the JQL
      *            template
+     * @param defect
+     *            true for the defects, false for the needs
+     * @param startAt
+     *            the index of the first requirement to be returned
+     * @param cache
+     *            true if the result is to be stored into the requirements
+     *            cache
      * @return
-     * @throws JiraPluginException
+     * @throws Exception
      */
-    public List<Requirement> getDefectsForProject(String projectRefId, Map<String, Object> parameters) throws JiraPluginException {
-        try {
-            String jql = createJqlFromTemplate(getPluginConfiguration().getDefectsJqlQueryTemplate(), projectRefId, parameters);
-            return getRequirementsWith(jql, true);
-        } catch (Exception e) {
-            throw new JiraPluginException("Unable to retreive the defects for project " + projectRefId, e);
+    private RequirementsResult loadRequirementsForProject(String cacheKey, String projectRefId, Map<String, Object> parameters, boolean defect,
+            int startAt, boolean cache) throws Exception {
+        long generation = getRequirementsCache().getGeneration();
+        String jqlTemplate = defect ? getPluginConfiguration().getDefectsJqlQueryTemplate() : getPluginConfiguration().getNeedsJqlQueryTemplate();
+        int maxResults = defect ? getPluginConfiguration().getDefectsMaxResults() : getPluginConfiguration().getNeedsMaxResults();
+        Query query = createQueryFromTemplate(jqlTemplate, projectRefId, parameters);
+        RequirementsResult result = getRequirementsWith(query, defect, startAt, maxResults);
+        if (result.isTruncated()) {
+            log.warn("The " + (defect ? "defects" : "needs") + " search for project " + projectRefId + " matches " + result.getTotal()
+                    + " issues, the result is truncated to " + maxResults);
+        }
+        if (cache) {
+            getRequirementsCache().put(cacheKey, result, generation);
         }
+        return result;
     }
 
     /**
-     * Return all the needs for the specified project
+     * Schedule the refresh of a cached result in the background executor
      * 
+     * @param cacheKey
+     *            the key of the result in the requirements cache
      * @param projectRefId
      *            a project unique id
      * @param parameters
      *            some parameters to be used to generate a JQL from the JQL
      *            template
-     * @return
-     * @throws JiraPluginException
+     * @param defect
+     *            true for the defects, false for the needs
+     * @param startAt
+     *            the index of the first requirement to be returned
      */
-    public List<Requirement> getNeedsForProject(String projectRefId, Map<String, Object> parameters) throws JiraPluginException {
+    private void scheduleRequirementsRefresh(final String cacheKey, final String projectRefId, final Map<String, Object> parameters,
+            final boolean defect, final int startAt) {
         try {
-            String jql = createJqlFromTemplate(getPluginConfiguration().getNeedsJqlQueryTemplate(), projectRefId, parameters);
-            return getRequirementsWith(jql, false);
-        } catch (Exception e) {
-            throw new JiraPluginException("Unable to retreive the needs for project " + projectRefId, e);
+            getBackgroundExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadRequirementsForProject(cacheKey, projectRefId, parameters, defect, startAt, true);
+                    } catch (Exception e) {
+                        log.error("Error while refreshing the cached requirements " + cacheKey, e);
+                    } finally {
+                        getRequirementsCache().endRefresh(cacheKey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Background executor saturated, refresh of " + cacheKey + " skipped");
+            getRequirementsCache().endRefresh(cacheKey);
         }
     }
 
     /**
      * Creates a JQL query from the specified template using the specified
-     * project key and the provided parameters
+     * project key and the provided parameters.<br/>
+     * The simple templates are rendered from their compiled form (see
+     * {@link JiraPluginJqlTemplate}) which writes the values as JQL literals,
+     * the other ones with Velocity. Velocity cannot tell whether a reference
+     * is in a JQL string: the values of such a template must be plain values
+     * (see {@link JiraPluginJqlTemplate#isPlainValue(Object)}), the call is
+     * refused otherwise.
      * 
      * @param jqlTemplate
      *            a JQL query template
@@ -367,45 +1645,276 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      */
     private String createJqlFromTemplate(String jqlTemplate, String projectRefId, Map<String, Object> parameters) throws ParseErrorException,
             MethodInvocationException, ResourceNotFoundException, IOException, JiraPluginException {
-        VelocityContext context = parameters != null ? new VelocityContext(parameters) : new VelocityContext();
-        context.put(PROJECT_TAG_TO_BE_REPLACED, getProjectFromId(Long.valueOf(projectRefId)).getKey());
+        return renderJqlTemplate(jqlTemplate, createJqlTemplateValues(projectRefId, parameters));
+    }
+
+    /**
+     * Creates a JQL query from the specified template using the specified
+     * project key and the provided parameters.<br/>
+     * If the template has a bindable plan (see {@link JiraPluginQueryPlan}),
+     * the values are bound in the clause tree of the plan (no JQL rendering
+     * nor parsing). Otherwise the JQL is rendered (see
+     * {@link #createJqlFromTemplate(String, String, Map)}) and parsed: the
+     * values of a simple template are then written as JQL literals while the
+     * values of a Velocity template must be plain values (see
+     * {@link JiraPluginJqlTemplate#isPlainValue(Object)}), so that in every
+     * case a parameter cannot change the structure of the query.
+     * 
+     * @param jqlTemplate
+     *            a JQL query template
+     * @param projectRefId
+     *            a JIRA project unique id
+     * @param parameters
+     *            some parameters
+     * @return a query
+     * @throws Exception
+     */
+    private Query createQueryFromTemplate(String jqlTemplate, String projectRefId, Map<String, Object> parameters) throws Exception {
+        Map<String, Object> values = createJqlTemplateValues(projectRefId, parameters);
+        JiraPluginQueryPlan queryPlan = getQueryPlan(jqlTemplate);
+        if (queryPlan.isBindable()) {
+            Query query = queryPlan.bind(values);
+            if (query != null) {
+                return query;
+            }
+        }
+        return getJqlQueryParser().parseQuery(renderJqlTemplate(jqlTemplate, values));
+    }
+
+    /**
+     * Return the values of the variables of a JQL template
+     * 
+     * @param projectRefId
+     *            a JIRA project unique id
+     * @param parameters
+     *            some parameters (may be null)
+     * @throws JiraPluginException
+     */
+    private Map<String, Object> createJqlTemplateValues(String projectRefId, Map<String, Object> parameters) throws JiraPluginException {
+        Map<String, Object> values = parameters != null ? new HashMap<String, Object>(parameters) : new HashMap<String, Object>();
+        values.put(PROJECT_TAG_TO_BE_REPLACED, getProjectKey(projectRefId));
+        return values;
+    }
+
+    /**
+     * Render the specified JQL template with the specified values
+     * 
+     * @param jqlTemplate
+     *            a JQL query template
+     * @param values
+     *            the values of the variables
+     * @return a String which is a JQL query
+     */
+    private String renderJqlTemplate(String jqlTemplate, Map<String, Object> values) throws ParseErrorException, MethodInvocationException,
+            ResourceNotFoundException, IOException, JiraPluginException {
+        JiraPluginJqlTemplate compiledJqlTemplate = getCompiledJqlTemplate(jqlTemplate);
+        if (compiledJqlTemplate.isCompiled()) {
+            return compiledJqlTemplate.render(values);
+        }
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            if (!JiraPluginJqlTemplate.isPlainValue(value.getValue())) {
+                throw new JiraPluginException("The parameter " + value.getKey() + " is refused: the JQL template is rendered with Velocity and only accepts"
+                        + " plain values (letters, digits, '_', '-' and '.')");
+            }
+        }
+        VelocityContext context = new VelocityContext(values);
         StringWriter sw = new StringWriter();
         if (!getVelocityEngine().evaluate(context, sw, "JQL from template", new StringReader(jqlTemplate))) {
-            throw new JiraPluginException("Error while generating the JQL from " + jqlTemplate + " with projectRefId=" + projectRefId + " and parameters="
-                    + parameters);
+            throw new JiraPluginException("Error while generating the JQL from " + jqlTemplate + " with " + values);
         }
         return sw.toString();
     }
 
     /**
-     * Return a list of requirements with the specified jql
+     * Return the compiled form of the specified template.<br/>
+     * Only the templates of the current configuration are kept (they are
+     * compiled once per configuration change), the other ones (templates
+     * being validated) are compiled at each call.
+     * 
+     * @param jqlTemplate
+     *            a JQL query template
+     * @throws JiraPluginConfigurationException
+     */
+    private JiraPluginJqlTemplate getCompiledJqlTemplate(String jqlTemplate) throws JiraPluginConfigurationException {
+        JiraPluginJqlTemplate compiledJqlTemplate = compiledJqlTemplates.get(jqlTemplate);
+        if (compiledJqlTemplate == null) {
+            compiledJqlTemplate = JiraPluginJqlTemplate.compile(jqlTemplate);
+            JiraPluginConfiguration configuration = getPluginConfiguration();
+            if (jqlTemplate.equals(configuration.getNeedsJqlQueryTemplate()) || jqlTemplate.equals(configuration.getDefectsJqlQueryTemplate())) {
+                compiledJqlTemplates.put(jqlTemplate, compiledJqlTemplate);
+            }
+        }
+        return compiledJqlTemplate;
+    }
+
+    /**
+     * Return the query plan of the specified template.<br/>
+     * As for the compiled templates (see
+     * {@link #getCompiledJqlTemplate(String)}), only the plans of the
+     * templates of the current configuration are kept.
+     * 
+     * @param jqlTemplate
+     *            a JQL query template
+     * @throws JiraPluginConfigurationException
+     */
+    private JiraPluginQueryPlan getQueryPlan(String jqlTemplate) throws JiraPluginConfigurationException {
+        JiraPluginQueryPlan queryPlan = queryPlans.get(jqlTemplate);
+        if (queryPlan == null) {
+            queryPlan = JiraPluginQueryPlan.create(getCompiledJqlTemplate(jqlTemplate), getJqlQueryParser());
+            JiraPluginConfiguration configuration = getPluginConfiguration();
+            if (jqlTemplate.equals(configuration.getNeedsJqlQueryTemplate()) || jqlTemplate.equals(configuration.getDefectsJqlQueryTemplate())) {
+                queryPlans.put(jqlTemplate, queryPlan);
+            }
+        }
+        return queryPlan;
+    }
+
+    /**
+     * Return a list of requirements with the specified jql.<br/>
+     * The search is run in the plugin search executor (see
+     * {@link JiraPluginSearchExecutor}) which limits the number of concurrent
+     * searches and their duration.
      * 
-     * @param jql
-     *            a JQP query
+     * @param query
+     *            a JQL query
      * @param defect
      *            true if the requirement is a defect
+     * @param startAt
+     *            the index of the first requirement to be returned
+     * @param maxResults
+     *            the maximum number of requirements to be returned (0 for no
+     *            limit)
      * @return a list or requirements
      * @throws JiraPluginException
      */
-    private List<Requirement> getRequirementsWith(String jql, boolean defect) throws JiraPluginException {
-        List<Requirement> requirements = new ArrayList<Requirement>();
+    private RequirementsResult getRequirementsWith(final Query query, final boolean defect, int startAt, int maxResults) throws JiraPluginException {
+        final List<Requirement> requirements = new ArrayList<Requirement>();
+        int total = handleRequirementsWith(query, defect, startAt, maxResults, new JiraPluginRequirementHandler() {
+            @Override
+            public void handle(Requirement requirement) {
+                requirements.add(requirement);
+            }
+        });
+        return new RequirementsResult(requirements, System.currentTimeMillis(), startAt, total);
+    }
+
+    /**
+     * Pass the requirements matching the specified jql to the specified
+     * handler.<br/>
+     * The search is run in the plugin search executor (see
+     * {@link JiraPluginSearchExecutor}).
+     * 
+     * @param query
+     *            a JQL query
+     * @param defect
+     *            true if the requirement is a defect
+     * @param startAt
+     *            the index of the first requirement to be handled
+     * @param maxResults
+     *            the maximum number of requirements to be handled (0 for no
+     *            limit)
+     * @param handler
+     *            the handler which receives the requirements
+     * @return the number of issues matching the jql
+     * @throws JiraPluginException
+     */
+    private int handleRequirementsWith(final Query query, final boolean defect, final int startAt, final int maxResults,
+            final JiraPluginRequirementHandler handler) throws JiraPluginException {
+        return getSearchExecutor().execute(describe(query), new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return searchRequirementsWith(query, defect, startAt, maxResults, handler);
+            }
+        });
+    }
+
+    /**
+     * Return a description of the specified query for the error messages (the
+     * JQL of a bound query is rendered only if the description is used, see
+     * {@link JiraPluginQueryPlan})
+     * 
+     * @param query
+     *            a JQL query
+     */
+    private static Object describe(final Query query) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return query.getQueryString();
+            }
+        };
+    }
+
+    /**
+     * Search and map the requirements with the specified jql (in the calling
+     * thread).<br/>
+     * The requirements are read from the index (see
+     * {@link JiraPluginRequirementCollector}) or from the issues: the ids of
+     * the issues are collected in one search (see
+     * {@link JiraPluginIssueIdCollector}), the issues are then loaded by chunks
+     * of {@link #SEARCH_PAGE_SIZE} issues.
+     * 
+     * @param query
+     *            a JQL query
+     * @param defect
+     *            true if the requirement is a defect
+     * @param startAt
+     *            the index of the first requirement to be handled
+     * @param maxResults
+     *            the maximum number of requirements to be handled (0 for no
+     *            limit)
+     * @param handler
+     *            the handler which receives the requirements
+     * @return the number of issues matching the jql
+     * @throws JiraPluginException
+     */
+    private int searchRequirementsWith(Query query, boolean defect, int startAt, int maxResults, JiraPluginRequirementHandler handler)
+            throws JiraPluginException {
         try {
-            Query query = getJqlQueryParser().parseQuery(jql);
-            User adminUser = getUserUtil().getJiraAdministrators().iterator().next();
-            SearchResults searchResults = getSearchService().search(adminUser, query, PagerFilter.getUnlimitedFilter());
-            List<Issue> issues = searchResults.getIssues();
-            if (issues != null) {
-                for (int recordCount = 0; recordCount < issues.size(); recordCount++) {
-                    Issue anIssue = issues.get(recordCount);
-                    Requirement requirement = createRequirementFromIssue(anIssue);
+            List<JiraPluginMappedField> resolvedFields = getMappedFields();
+            if (getPluginConfiguration().isIndexOnlyExtraction()) {
+                JiraPluginRequirementCollector collector = new JiraPluginRequirementCollector(this, resolvedFields, defect, handler, startAt, maxResults,
+                        getIssueManager(), getConstantsManager(), getOptionsManager(), getUserEmailCache());
+                getSearchProvider().search(query, getSearchUser(), collector);
+                collector.finish();
+                if (log.isDebugEnabled()) {
+                    log.debug(collector.getRequirementsCount() + " requirements collected from the index, " + collector.getIssuesLoaded()
+                            + " issues loaded for the non indexed fields, " + collector.getIterationsResolved() + " iterations resolved");
+                }
+                return collector.getTotal();
+            }
+            // The ids are collected in one search, then the issues are loaded
+            // chunk by chunk so that at most one chunk is held in memory (the
+            // requirements are passed to the handler)
+            JiraPluginIssueIdCollector issueIdCollector = new JiraPluginIssueIdCollector(startAt, maxResults);
+            getSearchProvider().searchAndSort(query, getSearchUser(), issueIdCollector, PagerFilter.getUnlimitedFilter());
+            List<Long> issueIds = issueIdCollector.getIssueIds();
+            JiraPluginIterationLookup iterationLookup = new JiraPluginIterationLookup();
+            for (int from = 0; from < issueIds.size(); from += SEARCH_PAGE_SIZE) {
+                if (JiraPluginSearchExecutor.isCancelled()) {
+                    throw new InterruptedIOException("Search cancelled");
+                }
+                List<Long> chunk = issueIds.subList(from, Math.min(from + SEARCH_PAGE_SIZE, issueIds.size()));
+                Map<Long, Issue> issuesById = new HashMap<Long, Issue>();
+                for (Issue anIssue : getIssueManager().getIssueObjects(chunk)) {
+                    issuesById.put(anIssue.getId(), anIssue);
+                }
+                for (Long issueId : chunk) {
+                    Issue anIssue = issuesById.get(issueId);
+                    if (anIssue == null) {
+                        // Deleted since it was indexed
+                        continue;
+                    }
+                    Requirement requirement = createRequirementFromIssue(anIssue, resolvedFields, iterationLookup);
                     requirement.setDefect(defect);
-                    requirements.add(requirement);
+                    JiraPluginContentHash.setHash(requirement);
+                    handler.handle(requirement);
                 }
             }
+            return issueIdCollector.getTotal();
         } catch (Exception e) {
-            throw new JiraPluginException("Error while retrieving the requirements with JQL " + jql, e);
+            throw new JiraPluginException("Error while retrieving the requirements with JQL " + query.getQueryString(), e);
         }
-        return requirements;
     }
 
     /**
@@ -414,107 +1923,279 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      * 
      * @param anIssue
      *            a JIRA issue
+     * @param resolvedFields
+     *            the resolved mapping
+     * @param iterationLookup
+     *            the iterations of the result set the requirement belongs to
      * @return
-     * @throws JiraPluginConfigurationException
      */
-    private Requirement createRequirementFromIssue(Issue anIssue) throws JiraPluginConfigurationException {
+    private Requirement createRequirementFromIssue(Issue anIssue, List<JiraPluginMappedField> resolvedFields, JiraPluginIterationLookup iterationLookup) {
         Requirement requirement = new Requirement();
-        for (BizDockRequirementsFields bizDockRequirementsFields : getPluginConfiguration().getMappingBizDockJira().keySet()) {
-            String fieldKey = getPluginConfiguration().getMappingBizDockJira().get(bizDockRequirementsFields);
-            Object value = null;
-            if (fieldKey.startsWith(CUSTOM_FIELD_KEY_PREFIX)) {
-                value = anIssue.getCustomFieldValue(getCustomFieldManager().getCustomFieldObject(StringUtils.removeStart(fieldKey, CUSTOM_FIELD_KEY_PREFIX)));
-            } else {
-                if (fieldKey.equals("summary")) {
-                    value = anIssue.getSummary();
-                }
-                if (fieldKey.equals("description")) {
-                    value = anIssue.getDescription();
-                }
-                if (fieldKey.equals("status")) {
-                    value = anIssue.getStatusObject().getName();
-                }
-                if (fieldKey.equals("priority")) {
-                    value = anIssue.getPriorityObject().getName();
-                }
-                if (fieldKey.equals("creator")) {
-                    value = anIssue.getCreator();
-                }
-                if (fieldKey.equals("reporter")) {
-                    value = anIssue.getReporter();
-                }
-                if (fieldKey.equals("assignee")) {
-                    value = anIssue.getAssignee();
-                }
-                if (fieldKey.equals("timeoriginalestimate")) {
-                    // The value is expressed in "seconds" > converts in hours
-                    if (anIssue.getOriginalEstimate() != null) {
-                        value = anIssue.getOriginalEstimate() / 3600;
-                    } else {
-                        value = 0;
-                    }
-                }
+        requirement.setId(anIssue.getKey());
+        requirement.setResolved(anIssue.getResolutionObject() != null);
+        for (JiraPluginMappedField mappedField : resolvedFields) {
+            Object value = getIssueFieldValue(anIssue, mappedField);
+            if (mappedField.getBizDockRequirementsField() == BizDockRequirementsFields.Iteration) {
+                value = iterationLookup.getIterationName(value);
             }
+            setRequirementField(requirement, mappedField.getBizDockRequirementsField(), value);
+        }
+        return requirement;
+    }
 
-            requirement.setId(anIssue.getKey());
-            switch (bizDockRequirementsFields) {
-            case Author:
-                if (value instanceof User) {
-                    requirement.setAuthorEmail(((User) value).getEmailAddress());
+    /**
+     * Return the value of the JIRA field of the specified issue which is mapped
+     * to a BizDock field
+     * 
+     * @param anIssue
+     *            a JIRA issue
+     * @param mappedField
+     *            a mapped field
+     * @return a value (may be null)
+     */
+    Object getIssueFieldValue(Issue anIssue, JiraPluginMappedField mappedField) {
+        String fieldKey = mappedField.getFieldKey();
+        Object value = null;
+        if (mappedField.isCustom()) {
+            value = mappedField.getCustomField() != null ? anIssue.getCustomFieldValue(mappedField.getCustomField()) : null;
+        } else {
+            if (fieldKey.equals("summary")) {
+                value = anIssue.getSummary();
+            }
+            if (fieldKey.equals("description")) {
+                value = anIssue.getDescription();
+            }
+            if (fieldKey.equals("status")) {
+                value = anIssue.getStatusObject().getName();
+            }
+            if (fieldKey.equals("priority")) {
+                value = anIssue.getPriorityObject().getName();
+            }
+            // The users are resolved by the email cache (from their key)
+            if (fieldKey.equals("creator")) {
+                value = anIssue.getCreatorId() != null ? getUserEmailCache().getEmail(anIssue.getCreatorId()) : anIssue.getCreator();
+            }
+            if (fieldKey.equals("reporter")) {
+                value = anIssue.getReporterId() != null ? getUserEmailCache().getEmail(anIssue.getReporterId()) : anIssue.getReporter();
+            }
+            if (fieldKey.equals("assignee")) {
+                value = anIssue.getAssigneeId() != null ? getUserEmailCache().getEmail(anIssue.getAssigneeId()) : anIssue.getAssignee();
+            }
+            if (fieldKey.equals("versions")) {
+                value = anIssue.getAffectedVersions();
+            }
+            if (fieldKey.equals("fixVersions")) {
+                value = anIssue.getFixVersions();
+            }
+            if (fieldKey.equals("timeoriginalestimate")) {
+                // The value is expressed in "seconds" > converts in hours
+                if (anIssue.getOriginalEstimate() != null) {
+                    value = anIssue.getOriginalEstimate() / 3600;
                 } else {
-                    requirement.setAuthorEmail(value != null ? String.valueOf(value) : null);
+                    value = 0;
                 }
-                break;
-            case Category:
-                requirement.setCategory(value != null ? String.valueOf(value) : null);
-                break;
-            case Description:
-                requirement.setDescription(value != null ? String.valueOf(value) : null);
-                break;
-            case Estimation:
-                try {
-                    if (value != null) {
-                        Double doubleValue = Double.parseDouble(String.valueOf(value));
-                        requirement.setEstimation(doubleValue.longValue());
-                    }
-                } catch (Exception e) {
-                    log.error("Error with the field " + BizDockRequirementsFields.Estimation.name() + " the mapped field is probably not a long", e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Set the value of a BizDock field of the specified requirement
+     * 
+     * @param requirement
+     *            a requirement
+     * @param bizDockRequirementsFields
+     *            a BizDock field
+     * @param value
+     *            the value of the JIRA field mapped to the BizDock field
+     */
+    void setRequirementField(Requirement requirement, BizDockRequirementsFields bizDockRequirementsFields, Object value) {
+        switch (bizDockRequirementsFields) {
+        case Author:
+            if (value instanceof User) {
+                requirement.setAuthorEmail(((User) value).getEmailAddress());
+            } else {
+                requirement.setAuthorEmail(value != null ? String.valueOf(value) : null);
+            }
+            break;
+        case Category:
+            requirement.setCategory(value != null ? String.valueOf(value) : null);
+            break;
+        case Description:
+            requirement.setDescription(value != null ? String.valueOf(value) : null);
+            break;
+        case Estimation:
+            try {
+                if (value != null) {
+                    Double doubleValue = Double.parseDouble(String.valueOf(value));
+                    requirement.setEstimation(doubleValue.longValue());
                 }
-                break;
-            case InScope:
-                try {
-                    requirement.setInScope(Boolean.parseBoolean(String.valueOf(value)));
-                } catch (Exception e) {
+            } catch (Exception e) {
+                log.error("Error with the field " + BizDockRequirementsFields.Estimation.name() + " the mapped field is probably not a long", e);
+            }
+            break;
+        case Iteration:
+            // The value is an iteration name (see JiraPluginIterationLookup)
+            requirement.setIteration(value != null ? String.valueOf(value) : null);
+            break;
+        case InScope:
+            try {
+                requirement.setInScope(Boolean.parseBoolean(String.valueOf(value)));
+            } catch (Exception e) {
+            }
+            break;
+        case Name:
+            requirement.setName(value != null ? String.valueOf(value) : null);
+            break;
+        case Priority:
+            requirement.setPriority(value != null ? String.valueOf(value) : null);
+            break;
+        case Severity:
+            requirement.setSeverity(value != null ? String.valueOf(value) : null);
+            break;
+        case Status:
+            requirement.setStatus(value != null ? String.valueOf(value) : null);
+            break;
+        case StoryPoints:
+            try {
+                if (value != null) {
+                    Double doubleValue = Double.parseDouble(String.valueOf(value));
+                    requirement.setStoryPoints(doubleValue.intValue());
                 }
-                break;
-            case Name:
-                requirement.setName(value != null ? String.valueOf(value) : null);
-                break;
-            case Priority:
-                requirement.setPriority(value != null ? String.valueOf(value) : null);
-                break;
-            case Severity:
-                requirement.setSeverity(value != null ? String.valueOf(value) : null);
-                break;
-            case Status:
-                requirement.setStatus(value != null ? String.valueOf(value) : null);
-                break;
-            case StoryPoints:
-                try {
-                    if (value != null) {
-                        Double doubleValue = Double.parseDouble(String.valueOf(value));
-                        requirement.setStoryPoints(doubleValue.intValue());
+            } catch (Exception e) {
+                log.error("Error with the field " + BizDockRequirementsFields.StoryPoints.name() + " the mapped field is probably not an int", e);
+            }
+            break;
+        default:
+            break;
+
+        }
+    }
+
+    /**
+     * Return the key of the project associated with the specified id.<br/>
+     * The keys are kept in a project index, a project is removed from the
+     * index when it is updated or deleted (see
+     * {@link #onProjectUpdated(ProjectUpdatedEvent)} and
+     * {@link #onProjectDeleted(ProjectDeletedEvent)}).
+     * 
+     * @param projectRefId
+     *            a project unique id
+     * @return a project key
+     * @throws JiraPluginException
+     */
+    private String getProjectKey(String projectRefId) throws JiraPluginException {
+        Long projectId = Long.valueOf(projectRefId);
+        String projectKey = projectKeys.get(projectId);
+        if (projectKey == null) {
+            Project project = getProjectFromId(projectId);
+            if (project == null) {
+                throw new JiraPluginException("Unknown project " + projectRefId);
+            }
+            projectKey = project.getKey();
+            projectKeys.put(projectId, projectKey);
+        }
+        return projectKey;
+    }
+
+    /**
+     * Return the mapping between the BizDock fields and the JIRA fields with
+     * the custom fields already resolved.<br/>
+     * This is computed once for each mapping update.
+     * 
+     * @return a list of mapped fields
+     * @throws JiraPluginConfigurationException
+     */
+    private List<JiraPluginMappedField> getMappedFields() throws JiraPluginConfigurationException {
+        List<JiraPluginMappedField> resolvedFields = this.mappedFields;
+        if (resolvedFields == null) {
+            resolvedFields = new ArrayList<JiraPluginMappedField>();
+            Map<BizDockRequirementsFields, String> mapping = getPluginConfiguration().getMappingBizDockJira();
+            synchronized (mapping) {
+                for (Map.Entry<BizDockRequirementsFields, String> entry : mapping.entrySet()) {
+                    String fieldKey = entry.getValue();
+                    boolean custom = fieldKey.startsWith(CUSTOM_FIELD_KEY_PREFIX);
+                    CustomField customField = null;
+                    String indexField = null;
+                    boolean iterationIds = false;
+                    if (custom) {
+                        customField = getCustomFieldManager().getCustomFieldObject(StringUtils.removeStart(fieldKey, CUSTOM_FIELD_KEY_PREFIX));
+                        String customFieldType = customField != null && customField.getCustomFieldType() != null ? customField.getCustomFieldType()
+                                .getKey() : null;
+                        if (customField == null) {
+                            log.warn("The custom field " + fieldKey + " mapped to " + entry.getKey() + " does not exist");
+                        } else if (INDEXED_OPTION_CUSTOM_FIELD_TYPES.contains(customFieldType)) {
+                            indexField = customField.getId();
+                        } else if (entry.getKey() == BizDockRequirementsFields.Iteration && SPRINT_CUSTOM_FIELD_TYPE.equals(customFieldType)) {
+                            indexField = customField.getId();
+                            iterationIds = true;
+                        }
+                    } else if (entry.getKey() == BizDockRequirementsFields.Iteration
+                            && JiraPluginRequirementCollector.VERSIONS_INDEX_FIELDS.containsKey(fieldKey)) {
+                        indexField = JiraPluginRequirementCollector.VERSIONS_INDEX_FIELDS.get(fieldKey);
+                        iterationIds = true;
+                    } else {
+                        indexField = JiraPluginRequirementCollector.SYSTEM_FIELDS_INDEX_FIELDS.get(fieldKey);
                     }
-                } catch (Exception e) {
-                    log.error("Error with the field " + BizDockRequirementsFields.StoryPoints.name() + " the mapped field is probably not an int", e);
+                    resolvedFields.add(new JiraPluginMappedField(entry.getKey(), fieldKey, custom, customField, indexField, iterationIds));
                 }
-                break;
-            default:
-                break;
-
             }
+            this.mappedFields = resolvedFields;
         }
-        return requirement;
+        return resolvedFields;
+    }
+
+    /**
+     * Return the user to be used to run the searches (a JIRA administrator)
+     */
+    private User getSearchUser() {
+        User user = this.searchUser;
+        if (user == null || System.currentTimeMillis() - searchUserTimestamp > SEARCH_USER_MAX_AGE) {
+            long timestamp = System.currentTimeMillis();
+            user = getUserUtil().getJiraAdministrators().iterator().next();
+            this.searchUserTimestamp = timestamp;
+            this.searchUser = user;
+        }
+        return user;
+    }
+
+    /**
+     * Return true if the background warm-up which follows the plugin start is
+     * completed
+     */
+    public boolean isWarmUpCompleted() {
+        return warmUpCompleted;
+    }
+
+    /**
+     * Clear everything which is derived from the configuration (to be called
+     * after each configuration update)
+     */
+    private void invalidateDerivedState() {
+        getRequirementsCache().invalidate();
+        this.compiledJqlTemplates.clear();
+        this.queryPlans.clear();
+        this.jiraInstanceInfo = null;
+        this.mappedFields = null;
+    }
+
+    /**
+     * Return true if the state derived from the configuration (cached
+     * requirements, mapped fields) is not valid anymore with the new
+     * configuration
+     * 
+     * @param previous
+     *            the previous configuration
+     * @param next
+     *            the new configuration
+     */
+    private static boolean isDerivedStateChanged(JiraPluginConfiguration previous, JiraPluginConfiguration next) {
+        return !previous.getNeedsJqlQueryTemplate().equals(next.getNeedsJqlQueryTemplate())
+                || !previous.getDefectsJqlQueryTemplate().equals(next.getDefectsJqlQueryTemplate())
+                || !new TreeMap<BizDockRequirementsFields, String>(previous.getMappingBizDockJira()).equals(
+                        new TreeMap<BizDockRequirementsFields, String>(next.getMappingBizDockJira()))
+                || previous.isIndexOnlyExtraction() != next.isIndexOnlyExtraction() || previous.getNeedsMaxResults() != next.getNeedsMaxResults()
+                || previous.getDefectsMaxResults() != next.getDefectsMaxResults();
     }
 
     /**
@@ -538,11 +2219,27 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
     }
 
     /**
-     * Return some information about the current JIRA instance
+     * Return some information about the current JIRA instance.<br/>
+     * This information is cached (see JIRA_INSTANCE_INFO_MAX_AGE).
      * 
      * @throws JiraPluginException
      */
     public JiraInstanceInfo getJiraInstanceInfo() throws JiraPluginException {
+        JiraInstanceInfo cachedJiraInstanceInfo = this.jiraInstanceInfo;
+        if (cachedJiraInstanceInfo != null && System.currentTimeMillis() - jiraInstanceInfoTimestamp <= JIRA_INSTANCE_INFO_MAX_AGE) {
+            return cachedJiraInstanceInfo;
+        }
+        long timestamp = System.currentTimeMillis();
+        JiraInstanceInfo freshJiraInstanceInfo = readJiraInstanceInfo();
+        this.jiraInstanceInfoTimestamp = timestamp;
+        this.jiraInstanceInfo = freshJiraInstanceInfo;
+        return freshJiraInstanceInfo;
+    }
+
+    /**
+     * Read some information about the current JIRA instance
+     */
+    private JiraInstanceInfo readJiraInstanceInfo() {
         JiraInstanceInfo jiraInstanceInfo = new JiraInstanceInfo();
         try {
             // Possible values for status
@@ -682,15 +2379,12 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      */
     public synchronized void resetConfiguration() throws JiraPluginConfigurationException {
         try {
-            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
-            JiraPluginConfiguration tmp = new JiraPluginConfiguration();
-            pluginSettings.put(PLUGIN_NEEDS_JQL_SETTING, tmp.getNeedsJqlQueryTemplate());
-            pluginSettings.put(PLUGIN_DEFECTS_JQL_SETTING, tmp.getDefectsJqlQueryTemplate());
-            pluginSettings.put(PLUGIN_FIELDS_MAPPING_SETTING, tmp.getStringRepresentationOfMappingBizDockJira());
+            JiraPluginConfiguration candidate = new JiraPluginConfiguration();
+            candidate.setGeneration(getPluginConfiguration().getGeneration());
             User adminUser = getUserUtil().getJiraAdministrators().iterator().next();
-            pluginSettings.put(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING, adminUser.getName());
-            pluginConfiguration.setUserForProjectCreation(adminUser.getName());
-            this.pluginConfiguration = tmp;
+            candidate.setUserForProjectCreation(adminUser.getName());
+            commitConfiguration(candidate);
+            this.searchUser = null;
         } catch (Exception e) {
             throw new JiraPluginConfigurationException("Error while reseting the plugin configuration", e);
         }
@@ -702,32 +2396,123 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
      * @return
      * @throws JiraPluginException
      */
-    public synchronized JiraPluginConfiguration getPluginConfiguration() throws JiraPluginConfigurationException {
-        if (pluginConfiguration == null) {
-            try {
-                PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
-                pluginConfiguration = new JiraPluginConfiguration();
-                if (pluginSettings.get(PLUGIN_NEEDS_JQL_SETTING) != null) {
-                    pluginConfiguration.setNeedsJqlQueryTemplate((String) pluginSettings.get(PLUGIN_NEEDS_JQL_SETTING));
-                }
-                if (pluginSettings.get(PLUGIN_DEFECTS_JQL_SETTING) != null) {
-                    pluginConfiguration.setDefectsJqlQueryTemplate((String) pluginSettings.get(PLUGIN_DEFECTS_JQL_SETTING));
-                }
-                if (pluginSettings.get(PLUGIN_FIELDS_MAPPING_SETTING) != null) {
-                    pluginConfiguration.setMappingBizDockJira((String) pluginSettings.get(PLUGIN_FIELDS_MAPPING_SETTING));
-                }
-                if (pluginSettings.get(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING) != null) {
-                    pluginConfiguration.setUserForProjectCreation((String) pluginSettings.get(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING));
-                } else {
-                    User adminUser = getUserUtil().getJiraAdministrators().iterator().next();
-                    pluginConfiguration.setUserForProjectCreation(adminUser.getName());
-                }
-                return pluginConfiguration;
-            } catch (Exception e) {
-                throw new JiraPluginConfigurationException("Error while initializing the plugin configuration", e);
+    public JiraPluginConfiguration getPluginConfiguration() throws JiraPluginConfigurationException {
+        JiraPluginConfiguration configuration = this.pluginConfiguration;
+        if (configuration != null) {
+            return configuration;
+        }
+        return loadPluginConfiguration();
+    }
+
+    /**
+     * Return the generation of the current configuration.<br/>
+     * The generation is incremented (and persisted with the configuration)
+     * each time the configuration is actually modified: a component which
+     * derives something from the configuration can compare it with the
+     * generation it was built with.
+     * 
+     * @return a configuration generation
+     * @throws JiraPluginConfigurationException
+     */
+    public long getConfigurationGeneration() throws JiraPluginConfigurationException {
+        return getPluginConfiguration().getGeneration();
+    }
+
+    /**
+     * Load the configuration from the plugin settings.<br/>
+     * If the configuration was persisted by a previous version of the plugin
+     * (one setting per value), it is read from these settings and persisted
+     * again in a single setting. The old settings are left untouched.
+     * 
+     * @return the configuration
+     * @throws JiraPluginConfigurationException
+     */
+    private synchronized JiraPluginConfiguration loadPluginConfiguration() throws JiraPluginConfigurationException {
+        if (pluginConfiguration != null) {
+            return pluginConfiguration;
+        }
+        try {
+            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
+            JiraPluginConfiguration configuration;
+            if (pluginSettings.get(PLUGIN_CONFIGURATION_SETTING) != null) {
+                configuration = JiraPluginConfiguration.fromStringRepresentation((String) pluginSettings.get(PLUGIN_CONFIGURATION_SETTING));
+            } else {
+                configuration = loadLegacyPluginConfiguration(pluginSettings);
+                configuration.setGeneration(1);
+                pluginSettings.put(PLUGIN_CONFIGURATION_SETTING, configuration.getStringRepresentation());
+                log.info("Configuration migrated to a single setting");
             }
+            if (configuration.getUserForProjectCreation() == null) {
+                User adminUser = getUserUtil().getJiraAdministrators().iterator().next();
+                configuration.setUserForProjectCreation(adminUser.getName());
+            }
+            getSearchExecutor().reconfigure(configuration.getSearchMaxConcurrency(), configuration.getSearchMaxQueueWait(),
+                    configuration.getSearchTimeout());
+            this.pluginConfiguration = configuration;
+            return configuration;
+        } catch (Exception e) {
+            throw new JiraPluginConfigurationException("Error while initializing the plugin configuration", e);
+        }
+    }
+
+    /**
+     * Read the configuration from the settings used by the previous versions
+     * of the plugin (one setting per value, the values introduced since then
+     * keep their default)
+     * 
+     * @param pluginSettings
+     *            the plugin settings
+     * @return a configuration
+     */
+    private JiraPluginConfiguration loadLegacyPluginConfiguration(PluginSettings pluginSettings) {
+        JiraPluginConfiguration configuration = new JiraPluginConfiguration();
+        if (pluginSettings.get(PLUGIN_NEEDS_JQL_SETTING) != null) {
+            configuration.setNeedsJqlQueryTemplate((String) pluginSettings.get(PLUGIN_NEEDS_JQL_SETTING));
+        }
+        if (pluginSettings.get(PLUGIN_DEFECTS_JQL_SETTING) != null) {
+            configuration.setDefectsJqlQueryTemplate((String) pluginSettings.get(PLUGIN_DEFECTS_JQL_SETTING));
+        }
+        if (pluginSettings.get(PLUGIN_FIELDS_MAPPING_SETTING) != null) {
+            configuration.setMappingBizDockJira((String) pluginSettings.get(PLUGIN_FIELDS_MAPPING_SETTING));
+        }
+        if (pluginSettings.get(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING) != null) {
+            configuration.setUserForProjectCreation((String) pluginSettings.get(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING));
+        }
+        return configuration;
+    }
+
+    /**
+     * Replace the current configuration with the specified one.<br/>
+     * If the candidate has the same content as the current configuration,
+     * nothing is done. Otherwise the generation is incremented, the whole
+     * configuration is persisted in a single write and then published. The
+     * derived state is invalidated once, and only if the modified values are
+     * used to compute it.
+     * 
+     * @param candidate
+     *            a modified copy of the current configuration (see
+     *            {@link JiraPluginConfiguration#copy()})
+     * @return true if the configuration was modified
+     * @throws JiraPluginConfigurationException
+     */
+    private synchronized boolean commitConfiguration(JiraPluginConfiguration candidate) throws JiraPluginConfigurationException {
+        JiraPluginConfiguration current = getPluginConfiguration();
+        if (current.hasSameContent(candidate)) {
+            return false;
+        }
+        candidate.setGeneration(current.getGeneration() + 1);
+        PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
+        pluginSettings.put(PLUGIN_CONFIGURATION_SETTING, candidate.getStringRepresentation());
+        this.pluginConfiguration = candidate;
+        if (log.isDebugEnabled()) {
+            log.debug("Configuration updated to generation " + candidate.getGeneration());
         }
-        return pluginConfiguration;
+        getSearchExecutor().reconfigure(candidate.getSearchMaxConcurrency(), candidate.getSearchMaxQueueWait(), candidate.getSearchTimeout());
+        if (isDerivedStateChanged(current, candidate)) {
+            invalidateDerivedState();
+        }
+        this.health = null;
+        return true;
     }
 
     /**
@@ -742,7 +2527,6 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
             if (log.isDebugEnabled()) {
                 log.debug("Updating user for project creation " + userName);
             }
-            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
             ApplicationUser user = getUserUtil().getUserByName(userName);
             boolean isAdmin = false;
             for (User userAdmin : getUserUtil().getJiraAdministrators()) {
@@ -751,8 +2535,9 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
                 }
             }
             if (user != null && user.isActive() && isAdmin) {
-                pluginSettings.put(PLUGIN_USER_FOR_PROJECT_CREATION_SETTING, userName);
-                this.pluginConfiguration.setUserForProjectCreation(userName);
+                JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+                candidate.setUserForProjectCreation(userName);
+                commitConfiguration(candidate);
             } else {
                 throw new JiraPluginException("Unknow or invalid user " + userName);
             }
@@ -774,13 +2559,13 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
             if (log.isDebugEnabled()) {
                 log.debug("Updating requirements mapping with " + mappingBizDockJiraUpdate);
             }
-            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
             for (BizDockRequirementsFields bizDockRequirementsFields : mappingBizDockJiraUpdate.keySet()) {
                 if (bizDockRequirementsFields.isConfigurable()) {
-                    pluginConfiguration.getMappingBizDockJira().put(bizDockRequirementsFields, mappingBizDockJiraUpdate.get(bizDockRequirementsFields));
+                    candidate.getMappingBizDockJira().put(bizDockRequirementsFields, mappingBizDockJiraUpdate.get(bizDockRequirementsFields));
                 }
             }
-            pluginSettings.put(PLUGIN_FIELDS_MAPPING_SETTING, pluginConfiguration.getStringRepresentationOfMappingBizDockJira());
+            commitConfiguration(candidate);
         } catch (Exception e) {
             log.error("Unable to update the BizDock Jira mapping", e);
         }
@@ -799,9 +2584,9 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
             if (log.isDebugEnabled()) {
                 log.debug("Updating needs JQL template with " + needsJqlQueryTemplate);
             }
-            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
-            pluginSettings.put(PLUGIN_NEEDS_JQL_SETTING, needsJqlQueryTemplate);
-            this.pluginConfiguration.setNeedsJqlQueryTemplate(needsJqlQueryTemplate);
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setNeedsJqlQueryTemplate(needsJqlQueryTemplate);
+            commitConfiguration(candidate);
         } catch (Exception e) {
             log.error("Unable to update the JQL template for needs", e);
             return Pair.of(false, "Error : " + e.getMessage());
@@ -809,6 +2594,58 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         return Pair.of(true, null);
     }
 
+    /**
+     * Dry run the specified JQL query template against a sample of the JIRA
+     * projects: the template is rendered, parsed and the matching issues are
+     * counted (with the duration of the count).<br/>
+     * This is to be used before saving a template to catch the invalid or the
+     * expensive templates. The configuration is not modified.
+     * 
+     * @param jqlTemplate
+     *            a JQL query template
+     * @param defect
+     *            true if the template is the defects template
+     * @return the validation result
+     * @throws JiraPluginException
+     */
+    public JqlTemplateValidation validateJqlQueryTemplate(String jqlTemplate, boolean defect) throws JiraPluginException {
+        int maxResults = defect ? getPluginConfiguration().getDefectsMaxResults() : getPluginConfiguration().getNeedsMaxResults();
+        JqlTemplateValidation validation = new JqlTemplateValidation(jqlTemplate, defect, maxResults);
+        List<Project> projects = getAllProjects();
+        if (projects == null || projects.isEmpty()) {
+            return validation;
+        }
+        // Spread the samples over the list of projects
+        int sampleCount = Math.min(VALIDATION_SAMPLE_PROJECTS, projects.size());
+        for (int i = 0; i < sampleCount; i++) {
+            Project project = projects.get(i * projects.size() / sampleCount);
+            JqlTemplateValidation.Sample sample = new JqlTemplateValidation.Sample(project.getKey());
+            validation.getSamples().add(sample);
+            try {
+                sample.setJql(createJqlFromTemplate(jqlTemplate, String.valueOf(project.getId()), null));
+                final Query query = getJqlQueryParser().parseQuery(sample.getJql());
+                sample.setParsed(true);
+                final long[] duration = new long[1];
+                sample.setCount(getSearchExecutor().execute(sample.getJql(), new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long start = System.currentTimeMillis();
+                        try {
+                            return getSearchService().searchCount(getSearchUser(), query);
+                        } finally {
+                            duration[0] = System.currentTimeMillis() - start;
+                        }
+                    }
+                }));
+                sample.setDuration(duration[0]);
+            } catch (Exception e) {
+                log.warn("Validation of the JQL template " + jqlTemplate + " failed for project " + project.getKey(), e);
+                sample.setErrorMessage(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            }
+        }
+        return validation;
+    }
+
     /**
      * Update the filtering rules for the "Defects"
      * 
@@ -822,9 +2659,9 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
             if (log.isDebugEnabled()) {
                 log.debug("Updating defects JQL template with " + defectsJqlQueryTemplate);
             }
-            PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
-            pluginSettings.put(PLUGIN_DEFECTS_JQL_SETTING, defectsJqlQueryTemplate);
-            this.pluginConfiguration.setDefectsJqlQueryTemplate(defectsJqlQueryTemplate);
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setDefectsJqlQueryTemplate(defectsJqlQueryTemplate);
+            commitConfiguration(candidate);
         } catch (Exception e) {
             log.error("Unable to update the JQL template for defects", e);
             return Pair.of(false, "Error : " + e.getMessage());
@@ -832,6 +2669,442 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         return Pair.of(true, null);
     }
 
+    /**
+     * Update the filtering rules for the "Needs" and the "Defects" at once
+     * (one configuration change)
+     * 
+     * @param needsJqlQueryTemplate
+     *            a JQL query template for the needs
+     * @param defectsJqlQueryTemplate
+     *            a JQL query template for the defects
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationJqlQueryTemplates(String needsJqlQueryTemplate, String defectsJqlQueryTemplate) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating JQL templates with needs=" + needsJqlQueryTemplate + " defects=" + defectsJqlQueryTemplate);
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setNeedsJqlQueryTemplate(needsJqlQueryTemplate);
+            candidate.setDefectsJqlQueryTemplate(defectsJqlQueryTemplate);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the JQL templates", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Update the limits of the search executor (see
+     * {@link JiraPluginSearchExecutor})
+     * 
+     * @param searchMaxConcurrency
+     *            the maximum number of searches running at the same time
+     * @param searchMaxQueueWait
+     *            the maximum time (in milliseconds) a search may wait for a
+     *            free slot
+     * @param searchTimeout
+     *            the maximum duration (in milliseconds) of a search
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationSearchLimits(int searchMaxConcurrency, long searchMaxQueueWait, long searchTimeout) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating search limits with maxConcurrency=" + searchMaxConcurrency + " maxQueueWait=" + searchMaxQueueWait + " timeout="
+                        + searchTimeout);
+            }
+            if (searchMaxConcurrency < 1 || searchMaxQueueWait < 0 || searchTimeout < 1) {
+                return Pair.of(false, "Error : the concurrency and the timeout must be positive, the queue wait cannot be negative");
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setSearchMaxConcurrency(searchMaxConcurrency);
+            candidate.setSearchMaxQueueWait(searchMaxQueueWait);
+            candidate.setSearchTimeout(searchTimeout);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the search limits", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Update the maximum age of a cached result served to a client which
+     * accepts stale results
+     * 
+     * @param staleMaxAge
+     *            a maximum age in milliseconds (0 means that a cached result is
+     *            never served)
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationStaleMaxAge(long staleMaxAge) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating stale max age with " + staleMaxAge);
+            }
+            if (staleMaxAge < 0) {
+                return Pair.of(false, "Error : the maximum stale age cannot be negative");
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setStaleMaxAge(staleMaxAge);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the stale max age", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Update the extraction mode of the requirements
+     * 
+     * @param indexOnlyExtraction
+     *            true if the requirements are to be read from the JIRA index
+     *            (the issues are loaded only for the fields which are not
+     *            indexed)
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationIndexOnlyExtraction(boolean indexOnlyExtraction) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating index only extraction with " + indexOnlyExtraction);
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setIndexOnlyExtraction(indexOnlyExtraction);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the extraction mode", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Update the maximum number of requirements returned by a call (the
+     * additional requirements are to be retrieved with another call)
+     * 
+     * @param needsMaxResults
+     *            the maximum number of needs (0 for no limit)
+     * @param defectsMaxResults
+     *            the maximum number of defects (0 for no limit)
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationMaxResults(int needsMaxResults, int defectsMaxResults) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating max results with needs=" + needsMaxResults + " defects=" + defectsMaxResults);
+            }
+            if (needsMaxResults < 0 || defectsMaxResults < 0) {
+                return Pair.of(false, "Error : the maximum number of results cannot be negative");
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setNeedsMaxResults(needsMaxResults);
+            candidate.setDefectsMaxResults(defectsMaxResults);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the max results", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Update all the performance settings at once (one configuration change).
+     * See {@link #updatePluginConfigurationSearchLimits(int, long, long)},
+     * {@link #updatePluginConfigurationStaleMaxAge(long)},
+     * {@link #updatePluginConfigurationMaxResults(int, int)} and
+     * {@link #updatePluginConfigurationIndexOnlyExtraction(boolean)}
+     * 
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationPerformance(int searchMaxConcurrency, long searchMaxQueueWait, long searchTimeout,
+            long staleMaxAge, int needsMaxResults, int defectsMaxResults, boolean indexOnlyExtraction) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating performance settings with maxConcurrency=" + searchMaxConcurrency + " maxQueueWait=" + searchMaxQueueWait
+                        + " timeout=" + searchTimeout + " staleMaxAge=" + staleMaxAge + " needsMaxResults=" + needsMaxResults + " defectsMaxResults="
+                        + defectsMaxResults + " indexOnlyExtraction=" + indexOnlyExtraction);
+            }
+            if (searchMaxConcurrency < 1 || searchMaxQueueWait < 0 || searchTimeout < 1) {
+                return Pair.of(false, "Error : the concurrency and the timeout must be positive, the queue wait cannot be negative");
+            }
+            if (staleMaxAge < 0) {
+                return Pair.of(false, "Error : the maximum stale age cannot be negative");
+            }
+            if (needsMaxResults < 0 || defectsMaxResults < 0) {
+                return Pair.of(false, "Error : the maximum number of results cannot be negative");
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setSearchMaxConcurrency(searchMaxConcurrency);
+            candidate.setSearchMaxQueueWait(searchMaxQueueWait);
+            candidate.setSearchTimeout(searchTimeout);
+            candidate.setStaleMaxAge(staleMaxAge);
+            candidate.setNeedsMaxResults(needsMaxResults);
+            candidate.setDefectsMaxResults(defectsMaxResults);
+            candidate.setIndexOnlyExtraction(indexOnlyExtraction);
+            commitConfiguration(candidate);
+        } catch (Exception e) {
+            log.error("Unable to update the performance settings", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
+    /**
+     * Return the health of the plugin.<br/>
+     * This only reads some counters and flags (nothing is loaded nor
+     * searched) and the result is reused for {@link #HEALTH_MAX_AGE} so that
+     * it can be polled very often.
+     * 
+     * @return the plugin health
+     */
+    public JiraPluginHealth getHealth() {
+        JiraPluginHealth currentHealth = this.health;
+        long now = System.currentTimeMillis();
+        if (currentHealth != null && now - currentHealth.getTimestamp() <= HEALTH_MAX_AGE) {
+            return currentHealth;
+        }
+        currentHealth = new JiraPluginHealth();
+        currentHealth.setTimestamp(now);
+        currentHealth.setStarted(started);
+        if (!started) {
+            currentHealth.setStatus(JiraPluginHealth.Status.DOWN);
+            return currentHealth;
+        }
+        JiraPluginConfiguration configuration = this.pluginConfiguration;
+        currentHealth.setConfigurationLoaded(configuration != null);
+        currentHealth.setConfigurationGeneration(configuration != null ? configuration.getGeneration() : 0);
+        currentHealth.setWarmUpCompleted(warmUpCompleted);
+        currentHealth.setSnapshotRestored(snapshotRestored);
+        JiraPluginSearchExecutor.Statistics statistics = getSearchExecutor().getStatistics();
+        currentHealth.setSearchRunning(statistics.getRunning());
+        currentHealth.setSearchWaiting(statistics.getWaiting());
+        currentHealth.setSearchMaxConcurrency(statistics.getMaxConcurrency());
+        currentHealth.setBackgroundQueueSize(getBackgroundExecutor().getQueue().size());
+        currentHealth.setCachedResults(getRequirementsCache().size());
+        currentHealth.setCachedRequirements(getRequirementsCache().getRequirementsCount());
+        if (!currentHealth.isConfigurationLoaded() || !currentHealth.isWarmUpCompleted()) {
+            currentHealth.setStatus(JiraPluginHealth.Status.STARTING);
+        } else if (statistics.getWaiting() > 0 && statistics.getRunning() >= statistics.getMaxConcurrency()) {
+            currentHealth.setStatus(JiraPluginHealth.Status.SATURATED);
+        } else {
+            currentHealth.setStatus(JiraPluginHealth.Status.UP);
+        }
+        this.health = currentHealth;
+        return currentHealth;
+    }
+
+    /**
+     * Return the activity of the email cache of the authors
+     * 
+     * @return the user email cache statistics
+     */
+    public JiraPluginUserEmailCache.Statistics getUserEmailCacheStatistics() {
+        return getUserEmailCache().getStatistics();
+    }
+
+    /**
+     * Return the activity of the search executor (to be used to size it)
+     * 
+     * @return the search executor statistics
+     */
+    public JiraPluginSearchExecutor.Statistics getSearchStatistics() {
+        return getSearchExecutor().getStatistics();
+    }
+
+    /**
+     * Return true if the specified project is tracked by BizDock (see
+     * {@link #updateSubscribedProjects(List)})
+     * 
+     * @param projectId
+     *            a project id
+     */
+    public boolean isSubscribedProject(long projectId) {
+        if (!subscribedProjectsLoaded) {
+            loadSubscribedProjects();
+        }
+        JiraPluginLongHashSet projects = this.subscribedProjects;
+        return projects == null || projects.contains(projectId);
+    }
+
+    /**
+     * Return the ids of the projects tracked by BizDock
+     * 
+     * @return a list of projectRefIds or null if all the projects are tracked
+     */
+    public List<String> getSubscribedProjects() {
+        if (!subscribedProjectsLoaded) {
+            loadSubscribedProjects();
+        }
+        JiraPluginLongHashSet projects = this.subscribedProjects;
+        if (projects == null) {
+            return null;
+        }
+        List<String> projectRefIds = new ArrayList<String>();
+        for (long projectId : projects.toArray()) {
+            projectRefIds.add(String.valueOf(projectId));
+        }
+        return projectRefIds;
+    }
+
+    /**
+     * Replace the projects tracked by BizDock: the issue changes of the other
+     * projects are recorded in the change journal but they are neither
+     * notified nor pushed.<br/>
+     * The change notifier is initialized again from the journal: the
+     * projects which are now subscribed are notified with their last change
+     * (their previous changes are read with
+     * {@link #getChangeJournalEntries(long, int)}).
+     * 
+     * @param projectRefIds
+     *            the project unique ids (null or empty to track all the
+     *            projects)
+     * @throws JiraPluginException
+     */
+    public synchronized void updateSubscribedProjects(List<String> projectRefIds) throws JiraPluginException {
+        PluginSettings pluginSettings = getPluginSettingsFactory().createGlobalSettings();
+        if (projectRefIds == null || projectRefIds.isEmpty()) {
+            pluginSettings.remove(PLUGIN_SUBSCRIBED_PROJECTS_SETTING);
+            this.subscribedProjects = null;
+        } else {
+            long[] projectIds = new long[projectRefIds.size()];
+            try {
+                for (int i = 0; i < projectIds.length; i++) {
+                    projectIds[i] = Long.parseLong(StringUtils.trim(projectRefIds.get(i)));
+                }
+            } catch (NumberFormatException e) {
+                throw new JiraPluginException("Invalid projectRefId in the subscribed projects", e);
+            }
+            JiraPluginLongHashSet projects = new JiraPluginLongHashSet(projectIds);
+            pluginSettings.put(PLUGIN_SUBSCRIBED_PROJECTS_SETTING, StringUtils.join(ArrayUtils.toObject(projects.toArray()), ','));
+            this.subscribedProjects = projects;
+        }
+        subscribedProjectsLoaded = true;
+        JiraPluginChangeJournal journal = getChangeJournal();
+        if (journal != null) {
+            getChangeNotifier().clearProjects();
+            publishSubscribedProjectChanges(journal);
+        }
+        log.info("Subscribed projects updated : " + (subscribedProjects == null ? "all" : String.valueOf(subscribedProjects.size())));
+    }
+
+    /**
+     * Load the projects tracked by BizDock from the plugin settings
+     */
+    private synchronized void loadSubscribedProjects() {
+        if (subscribedProjectsLoaded) {
+            return;
+        }
+        try {
+            String setting = (String) getPluginSettingsFactory().createGlobalSettings().get(PLUGIN_SUBSCRIBED_PROJECTS_SETTING);
+            if (!StringUtils.isBlank(setting)) {
+                String[] values = StringUtils.split(setting, ',');
+                long[] projectIds = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    projectIds[i] = Long.parseLong(values[i].trim());
+                }
+                this.subscribedProjects = new JiraPluginLongHashSet(projectIds);
+            }
+        } catch (Exception e) {
+            log.error("Unable to load the subscribed projects, all the projects are tracked", e);
+        }
+        subscribedProjectsLoaded = true;
+    }
+
+    /**
+     * Return the entries of the change journal which follow the specified
+     * sequence.<br/>
+     * The journal is compacted: only the latest change of an issue may be
+     * returned for the older sequences.<br/>
+     * The entries of all the projects are returned, also the ones which are
+     * not subscribed (see {@link #updateSubscribedProjects(List)}).
+     * 
+     * @param afterSequence
+     *            the last sequence already processed (0 to read the whole
+     *            journal)
+     * @param maxEntries
+     *            the maximum number of entries (at most
+     *            {@link #CHANGE_JOURNAL_MAX_ENTRIES})
+     * @return the entries in the sequence order
+     * @throws JiraPluginException
+     */
+    public List<ChangeJournalEntry> getChangeJournalEntries(long afterSequence, int maxEntries) throws JiraPluginException {
+        JiraPluginChangeJournal journal = getChangeJournal();
+        if (journal == null) {
+            throw new JiraPluginException("The change journal is not available");
+        }
+        return journal.read(afterSequence, Math.max(1, Math.min(maxEntries, CHANGE_JOURNAL_MAX_ENTRIES)));
+    }
+
+    /**
+     * Return the sequence of the last entry of the change journal
+     * 
+     * @throws JiraPluginException
+     */
+    public long getChangeJournalLastSequence() throws JiraPluginException {
+        JiraPluginChangeJournal journal = getChangeJournal();
+        if (journal == null) {
+            throw new JiraPluginException("The change journal is not available");
+        }
+        return journal.getLastSequence();
+    }
+
+    /**
+     * Return the activity of the push of the requirement changes
+     * 
+     * @return the webhook dispatcher statistics
+     */
+    public JiraPluginWebhookDispatcher.Statistics getWebhookStatistics() {
+        return getWebhookDispatcher().getStatistics();
+    }
+
+    /**
+     * Update the push of the requirement changes
+     * 
+     * @param webhookUrl
+     *            the BizDock URL to which the changes are pushed (blank to
+     *            disable the push)
+     * @param webhookCoalesceDelay
+     *            the delay (in milliseconds) during which the changes of an
+     *            issue are accumulated
+     * @return a Pair ([true if the update was successful],[A message if the
+     *         update was NOT successful])
+     */
+    public synchronized Pair<Boolean, String> updatePluginConfigurationWebhook(String webhookUrl, long webhookCoalesceDelay) {
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("Updating webhook with url=" + webhookUrl + " coalesceDelay=" + webhookCoalesceDelay);
+            }
+            if (webhookCoalesceDelay < 0) {
+                return Pair.of(false, "Error : the coalesce delay cannot be negative");
+            }
+            webhookUrl = StringUtils.trimToNull(webhookUrl);
+            if (webhookUrl != null) {
+                String protocol = new URL(webhookUrl).getProtocol();
+                if (!protocol.equals("http") && !protocol.equals("https")) {
+                    return Pair.of(false, "Error : the callback URL must be an http or https URL");
+                }
+            }
+            JiraPluginConfiguration candidate = getPluginConfiguration().copy();
+            candidate.setWebhookUrl(webhookUrl);
+            candidate.setWebhookCoalesceDelay(webhookCoalesceDelay);
+            commitConfiguration(candidate);
+        } catch (MalformedURLException e) {
+            return Pair.of(false, "Error : invalid callback URL " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Unable to update the webhook", e);
+            return Pair.of(false, "Error : " + e.getMessage());
+        }
+        return Pair.of(true, null);
+    }
+
     /**
      * Return the secretkey for this plugin
      * 
@@ -899,6 +3172,58 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         }
     }
 
+    /**
+     * Authenticate an API request which is not served by the
+     * {@link JiraPluginRestApi} (same headers, see
+     * {@link #authenticateClient(String, long, String)})
+     * 
+     * @param request
+     *            a servlet request
+     * @return true if the request is authenticated
+     * @throws JiraPluginException
+     */
+    boolean authenticateRequest(HttpServletRequest request) throws JiraPluginException {
+        String requestURI = request.getRequestURI();
+        if (!StringUtils.isBlank(request.getQueryString())) {
+            requestURI = requestURI + "?" + request.getQueryString();
+        }
+        String authenticationString = request.getHeader(AUTHENTICATION_STRING_HEADER);
+        String timeStamp = request.getHeader(TIME_STAMP_HEADER);
+        if (authenticationString == null || timeStamp == null || !StringUtils.isNumeric(timeStamp)) {
+            return false;
+        }
+        return authenticateClient(authenticationString, Long.parseLong(timeStamp), requestURI);
+    }
+
+    /**
+     * Run an asynchronous API request in the API executor (see
+     * {@link JiraPluginAsyncApiServlet})
+     * 
+     * @param request
+     *            the work of the request
+     * @return the future of the work (to cancel it if the request times out)
+     * @throws JiraPluginOverloadedException
+     *             if too many requests are waiting
+     */
+    Future<?> executeApiRequest(Runnable request) throws JiraPluginOverloadedException {
+        try {
+            return getApiExecutor().submit(request);
+        } catch (RejectedExecutionException e) {
+            throw new JiraPluginOverloadedException("Too many API requests waiting", e);
+        }
+    }
+
+    /**
+     * Return the maximum duration (in milliseconds) of an asynchronous API
+     * request
+     * 
+     * @throws JiraPluginConfigurationException
+     */
+    long getApiRequestTimeout() throws JiraPluginConfigurationException {
+        JiraPluginConfiguration configuration = getPluginConfiguration();
+        return configuration.getSearchMaxQueueWait() + configuration.getSearchTimeout() + API_REQUEST_TIMEOUT_MARGIN;
+    }
+
     /**
      * Create a has for API authentication
      * 
@@ -979,6 +3304,10 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
         return userUtil;
     }
 
+    JiraPluginUserEmailCache getUserEmailCache() {
+        return userEmailCache;
+    }
+
     private OptionsManager getOptionsManager() {
         return optionsManager;
     }
@@ -990,4 +3319,52 @@ public class JiraPluginServiceProvider implements InitializingBean, DisposableBe
     VelocityEngine getVelocityEngine() {
         return velocityEngine;
     }
+
+    private JiraPluginSearchExecutor getSearchExecutor() {
+        return searchExecutor;
+    }
+
+    private ThreadPoolExecutor getApiExecutor() {
+        return apiExecutor;
+    }
+
+    private ThreadPoolExecutor getBackgroundExecutor() {
+        return backgroundExecutor;
+    }
+
+    JiraPluginChangeNotifier getChangeNotifier() {
+        return changeNotifier;
+    }
+
+    private JiraPluginChangeJournal getChangeJournal() {
+        return changeJournal;
+    }
+
+    private JiraPluginWebhookDispatcher getWebhookDispatcher() {
+        return webhookDispatcher;
+    }
+
+    private ScheduledExecutorService getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
+
+    private JiraPluginSnapshotStore getSnapshotStore() {
+        return snapshotStore;
+    }
+
+    private JiraHome getJiraHome() {
+        return jiraHome;
+    }
+
+    private SearchProvider getSearchProvider() {
+        return searchProvider;
+    }
+
+    private IssueManager getIssueManager() {
+        return issueManager;
+    }
+
+    private JiraPluginRequirementsCache getRequirementsCache() {
+        return requirementsCache;
+    }
 }
@@ -0,0 +1,343 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists a snapshot of the plugin derived state into a local file so that
+ * the plugin recovers a warm state quickly after a restart.<br/>
+ * The snapshot contains:
+ * <ul>
+ * <li>the project index (project id to project key)</li>
+ * <li>the JIRA instance information (see {@link JiraInstanceInfo})</li>
+ * <li>the cached requirements results with their timestamp (watermark)</li>
+ * </ul>
+ * The file is a GZIP compressed binary structure starting with a magic number
+ * and a format version. A snapshot written with another format version or with
+ * another plugin configuration is ignored.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginSnapshotStore {
+    private static final Logger log = LoggerFactory.getLogger(JiraPluginSnapshotStore.class);
+
+    private static final int MAGIC_NUMBER = 0x42445350;
+    private static final int FORMAT_VERSION = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File snapshotFile;
+
+    /**
+     * Creates a snapshot store
+     *
+     * @param snapshotFile
+     *            the file which contains the snapshot
+     */
+    public JiraPluginSnapshotStore(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Write the specified snapshot (the previous snapshot is replaced
+     * atomically)
+     *
+     * @param snapshot
+     *            a snapshot
+     * @throws IOException
+     */
+    public synchronized void write(Snapshot snapshot) throws IOException {
+        File directory = snapshotFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the snapshot directory " + directory);
+        }
+        File temporaryFile = new File(directory, snapshotFile.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile))));
+        try {
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.getConfigurationFingerprint());
+            out.writeLong(snapshot.getTimestamp());
+
+            out.writeInt(snapshot.getProjectKeys().size());
+            for (Map.Entry<Long, String> projectKey : snapshot.getProjectKeys().entrySet()) {
+                out.writeLong(projectKey.getKey());
+                writeString(out, projectKey.getValue());
+            }
+
+            out.writeBoolean(snapshot.getJiraInstanceInfo() != null);
+            if (snapshot.getJiraInstanceInfo() != null) {
+                out.writeLong(snapshot.getJiraInstanceInfoTimestamp());
+                writeJiraInstanceInfo(out, snapshot.getJiraInstanceInfo());
+            }
+
+            out.writeInt(snapshot.getRequirementsResults().size());
+            for (Map.Entry<String, RequirementsResult> entry : snapshot.getRequirementsResults().entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeLong(entry.getValue().getTimestamp());
+                out.writeInt(entry.getValue().getStartAt());
+                out.writeInt(entry.getValue().getTotal());
+                List<Requirement> requirements = entry.getValue().getRequirements();
+                out.writeInt(requirements.size());
+                for (Requirement requirement : requirements) {
+                    writeRequirement(out, requirement);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Snapshot written to " + snapshotFile + " with " + snapshot.getRequirementsResults().size() + " requirements results");
+        }
+    }
+
+    /**
+     * Read the last snapshot
+     *
+     * @param configurationFingerprint
+     *            the fingerprint of the current plugin configuration
+     * @return a snapshot or null if no compatible snapshot is available
+     */
+    public synchronized Snapshot read(int configurationFingerprint) {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(snapshotFile))));
+            try {
+                if (in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION) {
+                    log.info("Ignoring the snapshot " + snapshotFile + " written with another format");
+                    return null;
+                }
+                if (in.readInt() != configurationFingerprint) {
+                    log.info("Ignoring the snapshot " + snapshotFile + " written with another plugin configuration");
+                    return null;
+                }
+                Snapshot snapshot = new Snapshot(configurationFingerprint, in.readLong());
+
+                int projectCount = in.readInt();
+                for (int i = 0; i < projectCount; i++) {
+                    snapshot.getProjectKeys().put(in.readLong(), readString(in));
+                }
+
+                if (in.readBoolean()) {
+                    long jiraInstanceInfoTimestamp = in.readLong();
+                    snapshot.setJiraInstanceInfo(readJiraInstanceInfo(in), jiraInstanceInfoTimestamp);
+                }
+
+                int resultCount = in.readInt();
+                for (int i = 0; i < resultCount; i++) {
+                    String key = readString(in);
+                    long timestamp = in.readLong();
+                    int startAt = in.readInt();
+                    int total = in.readInt();
+                    int requirementCount = in.readInt();
+                    List<Requirement> requirements = new ArrayList<Requirement>(requirementCount);
+                    for (int j = 0; j < requirementCount; j++) {
+                        requirements.add(readRequirement(in));
+                    }
+                    snapshot.getRequirementsResults().put(key, new RequirementsResult(requirements, timestamp, startAt, total));
+                }
+                return snapshot;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.warn("Unable to read the snapshot " + snapshotFile + ", starting with a cold state", e);
+            return null;
+        }
+    }
+
+    private static void writeRequirement(DataOutputStream out, Requirement requirement) throws IOException {
+        writeString(out, requirement.getId());
+        out.writeBoolean(requirement.isDefect());
+        writeString(out, requirement.getName());
+        writeString(out, requirement.getDescription());
+        writeString(out, requirement.getCategory());
+        writeString(out, requirement.getStatus());
+        writeString(out, requirement.getPriority());
+        writeString(out, requirement.getSeverity());
+        writeString(out, requirement.getAuthorEmail());
+        out.writeInt(requirement.getStoryPoints());
+        out.writeLong(requirement.getEstimation());
+        writeString(out, requirement.getIteration());
+        out.writeBoolean(requirement.isInScope());
+        out.writeBoolean(requirement.isResolved());
+    }
+
+    private static Requirement readRequirement(DataInputStream in) throws IOException {
+        Requirement requirement = new Requirement();
+        requirement.setId(readString(in));
+        requirement.setDefect(in.readBoolean());
+        requirement.setName(readString(in));
+        requirement.setDescription(readString(in));
+        requirement.setCategory(readString(in));
+        requirement.setStatus(readString(in));
+        requirement.setPriority(readString(in));
+        requirement.setSeverity(readString(in));
+        requirement.setAuthorEmail(readString(in));
+        requirement.setStoryPoints(in.readInt());
+        requirement.setEstimation(in.readLong());
+        requirement.setIteration(readString(in));
+        requirement.setInScope(in.readBoolean());
+        requirement.setResolved(in.readBoolean());
+        JiraPluginContentHash.setHash(requirement);
+        return requirement;
+    }
+
+    private static void writeJiraInstanceInfo(DataOutputStream out, JiraInstanceInfo jiraInstanceInfo) throws IOException {
+        writeStringList(out, jiraInstanceInfo.getJiraStatuses());
+        writeStringList(out, jiraInstanceInfo.getJiraPriorities());
+        writeStringList(out, jiraInstanceInfo.getJiraSeverities());
+        Map<String, String> allPossibleFields = jiraInstanceInfo.getAllPossibleFields();
+        out.writeInt(allPossibleFields != null ? allPossibleFields.size() : -1);
+        if (allPossibleFields != null) {
+            for (Map.Entry<String, String> field : allPossibleFields.entrySet()) {
+                writeString(out, field.getKey());
+                writeString(out, field.getValue());
+            }
+        }
+    }
+
+    private static JiraInstanceInfo readJiraInstanceInfo(DataInputStream in) throws IOException {
+        JiraInstanceInfo jiraInstanceInfo = new JiraInstanceInfo();
+        jiraInstanceInfo.setJiraStatuses(readStringList(in));
+        jiraInstanceInfo.setJiraPriorities(readStringList(in));
+        jiraInstanceInfo.setJiraSeverities(readStringList(in));
+        int fieldCount = in.readInt();
+        if (fieldCount >= 0) {
+            Map<String, String> allPossibleFields = new TreeMap<String, String>();
+            for (int i = 0; i < fieldCount; i++) {
+                allPossibleFields.put(readString(in), readString(in));
+            }
+            jiraInstanceInfo.setAllPossibleFields(allPossibleFields);
+        }
+        return jiraInstanceInfo;
+    }
+
+    private static void writeStringList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values != null ? values.size() : -1);
+        if (values != null) {
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+
+    private static List<String> readStringList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Write a String which may be null or longer than the limit of
+     * {@link DataOutputStream#writeUTF(String)}
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * The content of a snapshot
+     *
+     * @author Pierre-Yves Cloux
+     */
+    public static class Snapshot {
+        private final int configurationFingerprint;
+        private final long timestamp;
+        private final Map<Long, String> projectKeys = new HashMap<Long, String>();
+        private JiraInstanceInfo jiraInstanceInfo;
+        private long jiraInstanceInfoTimestamp;
+        private final Map<String, RequirementsResult> requirementsResults = new HashMap<String, RequirementsResult>();
+
+        /**
+         * Creates an empty snapshot
+         *
+         * @param configurationFingerprint
+         *            the fingerprint of the plugin configuration used to
+         *            compute the snapshot content
+         * @param timestamp
+         *            the time at which the snapshot was taken
+         */
+        public Snapshot(int configurationFingerprint, long timestamp) {
+            this.configurationFingerprint = configurationFingerprint;
+            this.timestamp = timestamp;
+        }
+
+        public int getConfigurationFingerprint() {
+            return configurationFingerprint;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Map<Long, String> getProjectKeys() {
+            return projectKeys;
+        }
+
+        public JiraInstanceInfo getJiraInstanceInfo() {
+            return jiraInstanceInfo;
+        }
+
+        public long getJiraInstanceInfoTimestamp() {
+            return jiraInstanceInfoTimestamp;
+        }
+
+        public void setJiraInstanceInfo(JiraInstanceInfo jiraInstanceInfo, long jiraInstanceInfoTimestamp) {
+            this.jiraInstanceInfo = jiraInstanceInfo;
+            this.jiraInstanceInfoTimestamp = jiraInstanceInfoTimestamp;
+        }
+
+        public Map<String, RequirementsResult> getRequirementsResults() {
+            return requirementsResults;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the named daemon threads of the plugin executors
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Creates a new thread factory
+     *
+     * @param namePrefix
+     *            the prefix of the thread names (a sequence number is
+     *            appended)
+     */
+    public JiraPluginThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
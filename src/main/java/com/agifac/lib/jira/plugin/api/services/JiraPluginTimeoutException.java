@@ -0,0 +1,31 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+/**
+ * The exception which is thrown when a search exceeds the configured query
+ * timeout and has been abandoned.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginTimeoutException extends JiraPluginException {
+    private static final long serialVersionUID = 2894061716390571352L;
+
+    public JiraPluginTimeoutException() {
+    }
+
+    public JiraPluginTimeoutException(String message) {
+        super(message);
+    }
+
+    public JiraPluginTimeoutException(Throwable cause) {
+        super(cause);
+    }
+
+    public JiraPluginTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public JiraPluginTimeoutException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+
+}
@@ -0,0 +1,290 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.user.util.UserUtil;
+
+/**
+ * The email addresses of the users (by user key) which are mapped to the
+ * BizDock Author field.<br/>
+ * Resolving a user may be expensive (LDAP, Crowd) while the authors of the
+ * requirements are the same few hundred users: the email addresses are kept
+ * across the requests.
+ * <ul>
+ * <li>maxSize : the maximum number of users, the least recently used user is
+ * evicted beyond</li>
+ * <li>timeToLive : the time (in milliseconds) after which an email address is
+ * resolved again</li>
+ * </ul>
+ * An entry is invalidated when the user is updated or deleted (see the user
+ * events of {@link JiraPluginServiceProvider}). An unknown user is cached
+ * (without email address) like the other ones.<br/>
+ * This cache is thread safe. The resolution of a user is done outside of the
+ * lock, two requests may then resolve the same user at the same time (a
+ * resolution concurrent with an invalidation is not cached).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginUserEmailCache {
+    private final UserUtil userUtil;
+    private final int maxSize;
+    private final long timeToLive;
+    private final LinkedHashMap<String, CachedEmail> entries;
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+    private long invalidations;
+    private long generation;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param userUtil
+     *            used to resolve the users
+     * @param maxSize
+     *            the maximum number of users
+     * @param timeToLive
+     *            the time (in milliseconds) after which an email address is
+     *            resolved again
+     */
+    public JiraPluginUserEmailCache(UserUtil userUtil, final int maxSize, long timeToLive) {
+        this.userUtil = userUtil;
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, CachedEmail>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEmail> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Return the email address of the specified user
+     *
+     * @param userKey
+     *            a user key (may be null)
+     * @return an email address (null if the user is unknown or has no email
+     *         address)
+     */
+    public String getEmail(String userKey) {
+        if (userKey == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long resolutionGeneration;
+        synchronized (this) {
+            resolutionGeneration = generation;
+            CachedEmail entry = entries.get(userKey);
+            if (entry != null && entry.expiration > now) {
+                hits++;
+                return entry.email;
+            }
+            if (entry != null) {
+                expirations++;
+            }
+            misses++;
+        }
+        ApplicationUser user = userUtil.getUserByKey(userKey);
+        String email = user != null ? user.getEmailAddress() : null;
+        synchronized (this) {
+            // Not cached if the user was invalidated during the resolution
+            if (generation == resolutionGeneration) {
+                entries.put(userKey, new CachedEmail(email, now + timeToLive));
+            }
+        }
+        return email;
+    }
+
+    /**
+     * Remove the specified user (to be called when the user is updated)
+     *
+     * @param userKey
+     *            a user key
+     */
+    public synchronized void invalidate(String userKey) {
+        generation++;
+        if (entries.remove(userKey) != null) {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Remove all the users (to be called when the users are synchronized
+     * with a remote directory)
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations += entries.size();
+        entries.clear();
+    }
+
+    /**
+     * Remove the expired users
+     */
+    public synchronized void purge() {
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedEmail> iterator = entries.values().iterator(); iterator.hasNext();) {
+            if (iterator.next().expiration <= now) {
+                iterator.remove();
+                expirations++;
+            }
+        }
+    }
+
+    /**
+     * Return the activity of this cache since the plugin start
+     */
+    public synchronized Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        statistics.setSize(entries.size());
+        statistics.setMaxSize(maxSize);
+        statistics.setTimeToLive(timeToLive);
+        statistics.setHits(hits);
+        statistics.setMisses(misses);
+        statistics.setExpirations(expirations);
+        statistics.setEvictions(evictions);
+        statistics.setInvalidations(invalidations);
+        statistics.setHitRate(hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+        return statistics;
+    }
+
+    /**
+     * A cached email address
+     */
+    private static class CachedEmail {
+        private final String email;
+        private final long expiration;
+
+        private CachedEmail(String email, long expiration) {
+            this.email = email;
+            this.expiration = expiration;
+        }
+    }
+
+    /**
+     * The activity of the cache
+     * <ul>
+     * <li>size, maxSize, timeToLive : the current size and the limits</li>
+     * <li>hits, misses : the lookups answered from the cache or resolved</li>
+     * <li>expirations, evictions, invalidations : the users removed because
+     * they were too old, because the cache was full or because they were
+     * updated</li>
+     * <li>hitRate : the share of the lookups answered from the cache</li>
+     * </ul>
+     *
+     * @author Pierre-Yves Cloux
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Statistics {
+        private int size;
+        private int maxSize;
+        private long timeToLive;
+        private long hits;
+        private long misses;
+        private long expirations;
+        private long evictions;
+        private long invalidations;
+        private double hitRate;
+
+        public Statistics() {
+        }
+
+        @XmlElement(name = "size")
+        public int getSize() {
+            return size;
+        }
+
+        public void setSize(int size) {
+            this.size = size;
+        }
+
+        @XmlElement(name = "maxSize")
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @XmlElement(name = "timeToLive")
+        public long getTimeToLive() {
+            return timeToLive;
+        }
+
+        public void setTimeToLive(long timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        @XmlElement(name = "hits")
+        public long getHits() {
+            return hits;
+        }
+
+        public void setHits(long hits) {
+            this.hits = hits;
+        }
+
+        @XmlElement(name = "misses")
+        public long getMisses() {
+            return misses;
+        }
+
+        public void setMisses(long misses) {
+            this.misses = misses;
+        }
+
+        @XmlElement(name = "expirations")
+        public long getExpirations() {
+            return expirations;
+        }
+
+        public void setExpirations(long expirations) {
+            this.expirations = expirations;
+        }
+
+        @XmlElement(name = "evictions")
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public void setEvictions(long evictions) {
+            this.evictions = evictions;
+        }
+
+        @XmlElement(name = "invalidations")
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public void setInvalidations(long invalidations) {
+            this.invalidations = invalidations;
+        }
+
+        @XmlElement(name = "hitRate")
+        public double getHitRate() {
+            return hitRate;
+        }
+
+        public void setHitRate(double hitRate) {
+            this.hitRate = hitRate;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes the changes of the requirements to the BizDock callback URL (see
+ * {@link JiraPluginConfiguration#getWebhookUrl()}).<br/>
+ * <ul>
+ * <li>The issue events are coalesced per issue: the changes notified during
+ * the coalesce delay are pushed once (with the last state of the
+ * issue)</li>
+ * <li>The changed issues are then resolved into requirements (see
+ * {@link JiraPluginServiceProvider#getRequirementChanges(long, List)}) and
+ * pushed by batches of at most {@link #MAX_BATCH_SIZE} changes</li>
+ * <li>A batch is POSTed as a JSON array of {@link RequirementChange},
+ * signed with the same scheme as the API calls (see
+ * {@link JiraPluginServiceProvider#signRequest(long, String)})</li>
+ * <li>The batches are delivered in order by a single thread. A batch which
+ * fails with an I/O error, a 408, a 429 or a 5xx status is retried with an
+ * exponential backoff (at most {@link #MAX_ATTEMPTS} attempts)</li>
+ * <li>A slow callback URL cannot hold the thread for long: a request times
+ * out after {@link #READ_TIMEOUT} milliseconds and the delivery gives way to
+ * the pending flushes after {@link #MAX_DELIVERY_DURATION} milliseconds</li>
+ * <li>The pending changes and the waiting batches are bounded, the
+ * additional changes are dropped (and counted)</li>
+ * </ul>
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginWebhookDispatcher {
+    private static Logger log = LoggerFactory.getLogger(JiraPluginWebhookDispatcher.class);
+
+    /**
+     * The maximum number of issues with a pending change (the changes of the
+     * other issues are dropped)
+     */
+    public static final int MAX_PENDING_CHANGES = 10000;
+
+    /**
+     * The maximum number of changes in a batch
+     */
+    public static final int MAX_BATCH_SIZE = 200;
+
+    /**
+     * The maximum number of batches waiting for their delivery (the
+     * additional batches are dropped)
+     */
+    public static final int MAX_QUEUED_BATCHES = 50;
+
+    /**
+     * The maximum number of delivery attempts of a batch
+     */
+    public static final int MAX_ATTEMPTS = 6;
+
+    /**
+     * The delay (in milliseconds) before the first retry (doubled at each
+     * retry)
+     */
+    public static final long RETRY_BASE_DELAY = 1000;
+
+    /**
+     * The maximum time (in milliseconds) to wait for the response of the
+     * callback URL
+     */
+    public static final int READ_TIMEOUT = 5000;
+
+    /**
+     * The maximum time (in milliseconds) spent delivering batches before the
+     * pending changes are resolved (the delivery then resumes)
+     */
+    public static final long MAX_DELIVERY_DURATION = 10000;
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final String AUTHENTICATION_STRING_HEADER = "x-jira-bizdock-auth";
+    private static final String TIME_STAMP_HEADER = "x-jira-bizdock-timestamp";
+
+    private final JiraPluginServiceProvider provider;
+    private final ScheduledExecutorService scheduler;
+    private Map<Long, PendingChange> pendingChanges = new LinkedHashMap<Long, PendingChange>();
+    private boolean flushScheduled;
+    private final LinkedList<List<RequirementChange>> batches = new LinkedList<List<RequirementChange>>();
+    private int headAttempts;
+    private boolean retryScheduled;
+
+    private long submitted;
+    private long coalesced;
+    private long deliveredBatches;
+    private long deliveredChanges;
+    private long retries;
+    private long failedChanges;
+    private long droppedChanges;
+    private long lastDeliveryTimestamp;
+    private long lastDeliveryDuration;
+    private String lastError;
+
+    /**
+     * Creates a new dispatcher
+     *
+     * @param provider
+     *            the service provider (resolves the requirements, signs the
+     *            requests and provides the configuration)
+     */
+    public JiraPluginWebhookDispatcher(JiraPluginServiceProvider provider) {
+        this.provider = provider;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new JiraPluginThreadFactory("bizdock-webhook"));
+    }
+
+    /**
+     * Register the change of an issue (to be called by the JIRA event
+     * listener: this method does not block)
+     *
+     * @param issueId
+     *            the issue id
+     * @param issueKey
+     *            the issue key
+     * @param projectId
+     *            the id of the project of the issue
+     * @param deleted
+     *            true if the issue was deleted
+     * @param coalesceDelay
+     *            the delay (in milliseconds) during which the changes are
+     *            accumulated before being pushed
+     */
+    public synchronized void submit(long issueId, String issueKey, long projectId, boolean deleted, long coalesceDelay) {
+        submitted++;
+        PendingChange previous = pendingChanges.get(issueId);
+        if (previous == null && pendingChanges.size() >= MAX_PENDING_CHANGES) {
+            droppedChanges++;
+            return;
+        }
+        if (previous != null) {
+            coalesced++;
+        }
+        pendingChanges.put(issueId, new PendingChange(issueId, issueKey, projectId, deleted || (previous != null && previous.isDeleted()),
+                System.currentTimeMillis()));
+        if (!flushScheduled) {
+            try {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, coalesceDelay, TimeUnit.MILLISECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // The dispatcher is shut down
+                pendingChanges.clear();
+            }
+        }
+    }
+
+    /**
+     * Resolve the pending changes into batches and deliver them (in the
+     * dispatcher thread)
+     */
+    private void flush() {
+        Map<Long, PendingChange> changes;
+        synchronized (this) {
+            changes = pendingChanges;
+            pendingChanges = new LinkedHashMap<Long, PendingChange>();
+            flushScheduled = false;
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<Long, List<PendingChange>> changesByProject = new LinkedHashMap<Long, List<PendingChange>>();
+        for (PendingChange change : changes.values()) {
+            List<PendingChange> projectChanges = changesByProject.get(change.getProjectId());
+            if (projectChanges == null) {
+                projectChanges = new ArrayList<PendingChange>();
+                changesByProject.put(change.getProjectId(), projectChanges);
+            }
+            projectChanges.add(change);
+        }
+        List<RequirementChange> batch = new ArrayList<RequirementChange>();
+        for (Map.Entry<Long, List<PendingChange>> entry : changesByProject.entrySet()) {
+            List<PendingChange> projectChanges = entry.getValue();
+            for (int i = 0; i < projectChanges.size(); i += MAX_BATCH_SIZE) {
+                List<PendingChange> slice = projectChanges.subList(i, Math.min(i + MAX_BATCH_SIZE, projectChanges.size()));
+                try {
+                    for (RequirementChange requirementChange : provider.getRequirementChanges(entry.getKey(), slice)) {
+                        batch.add(requirementChange);
+                        if (batch.size() == MAX_BATCH_SIZE) {
+                            enqueue(batch);
+                            batch = new ArrayList<RequirementChange>();
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("Unable to resolve the changes of the requirements of project " + entry.getKey(), e);
+                    synchronized (this) {
+                        failedChanges += slice.size();
+                        lastError = e.getMessage();
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            enqueue(batch);
+        }
+        deliver();
+    }
+
+    private synchronized void enqueue(List<RequirementChange> batch) {
+        if (batches.size() >= MAX_QUEUED_BATCHES) {
+            droppedChanges += batch.size();
+            log.warn("Webhook delivery queue full, " + batch.size() + " requirement changes dropped");
+            return;
+        }
+        batches.add(batch);
+    }
+
+    /**
+     * Deliver the waiting batches in order (in the dispatcher thread). If a
+     * delivery must be retried, the next attempt is scheduled and the other
+     * batches wait for it. After {@link #MAX_DELIVERY_DURATION}, the delivery
+     * is rescheduled behind the flushes which are due.
+     */
+    private void deliver() {
+        long deadline = System.currentTimeMillis() + MAX_DELIVERY_DURATION;
+        while (true) {
+            List<RequirementChange> batch;
+            synchronized (this) {
+                if (retryScheduled || batches.isEmpty()) {
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    try {
+                        scheduler.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // The dispatcher is shut down
+                    }
+                    return;
+                }
+                batch = batches.getFirst();
+                headAttempts++;
+            }
+            String url = provider.getWebhookUrl();
+            if (url == null) {
+                // The push was disabled meanwhile
+                synchronized (this) {
+                    droppedChanges += batch.size();
+                    batches.removeFirst();
+                    headAttempts = 0;
+                }
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            boolean retry;
+            try {
+                int status = post(url, batch);
+                if (status >= 200 && status < 300) {
+                    synchronized (this) {
+                        batches.removeFirst();
+                        headAttempts = 0;
+                        deliveredBatches++;
+                        deliveredChanges += batch.size();
+                        lastDeliveryTimestamp = System.currentTimeMillis();
+                        lastDeliveryDuration = lastDeliveryTimestamp - start;
+                    }
+                    continue;
+                }
+                retry = status == 408 || status == 429 || status >= 500;
+                synchronized (this) {
+                    lastError = "HTTP status " + status + " from " + url;
+                }
+            } catch (Exception e) {
+                retry = true;
+                synchronized (this) {
+                    lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                }
+            }
+            synchronized (this) {
+                if (retry && headAttempts < MAX_ATTEMPTS) {
+                    retries++;
+                    long delay = RETRY_BASE_DELAY << (headAttempts - 1);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Webhook delivery failed (" + lastError + "), retry in " + delay + " ms");
+                    }
+                    try {
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (JiraPluginWebhookDispatcher.this) {
+                                    retryScheduled = false;
+                                }
+                                deliver();
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                        retryScheduled = true;
+                    } catch (RejectedExecutionException e) {
+                        // The dispatcher is shut down
+                    }
+                    return;
+                }
+                log.warn("Webhook delivery of " + batch.size() + " requirement changes failed after " + headAttempts + " attempts : " + lastError);
+                batches.removeFirst();
+                headAttempts = 0;
+                failedChanges += batch.size();
+            }
+        }
+    }
+
+    /**
+     * POST the specified batch to the specified URL
+     *
+     * @return the HTTP status
+     */
+    private int post(String url, List<RequirementChange> batch) throws Exception {
+        URL callbackUrl = new URL(url);
+        String requestUri = callbackUrl.getPath();
+        if (!StringUtils.isBlank(callbackUrl.getQuery())) {
+            requestUri = requestUri + "?" + callbackUrl.getQuery();
+        }
+        long timeStamp = System.currentTimeMillis();
+        HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            connection.setRequestProperty(TIME_STAMP_HEADER, String.valueOf(timeStamp));
+            connection.setRequestProperty(AUTHENTICATION_STRING_HEADER, provider.signRequest(timeStamp, requestUri));
+            Writer writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+            try {
+                JiraPluginJsonWriter.writeRequirementChanges(writer, batch);
+            } finally {
+                writer.close();
+            }
+            int status = connection.getResponseCode();
+            // Read the response so that the connection can be reused
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) != -1) {
+                    }
+                } catch (IOException e) {
+                    // Ignore, the status is known
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Stop the dispatcher (the pending changes are lost)
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Return the activity of the dispatcher
+     */
+    public synchronized Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        statistics.setPendingChanges(pendingChanges.size());
+        statistics.setQueuedBatches(batches.size());
+        statistics.setSubmitted(submitted);
+        statistics.setCoalesced(coalesced);
+        statistics.setDeliveredBatches(deliveredBatches);
+        statistics.setDeliveredChanges(deliveredChanges);
+        statistics.setRetries(retries);
+        statistics.setFailedChanges(failedChanges);
+        statistics.setDroppedChanges(droppedChanges);
+        statistics.setLastDeliveryTimestamp(lastDeliveryTimestamp);
+        statistics.setLastDeliveryDuration(lastDeliveryDuration);
+        statistics.setLastError(lastError);
+        return statistics;
+    }
+
+    /**
+     * A change of an issue waiting to be pushed
+     *
+     * @author Pierre-Yves Cloux
+     */
+    public static class PendingChange {
+        private final long issueId;
+        private final String issueKey;
+        private final long projectId;
+        private final boolean deleted;
+        private final long timestamp;
+
+        public PendingChange(long issueId, String issueKey, long projectId, boolean deleted, long timestamp) {
+            this.issueId = issueId;
+            this.issueKey = issueKey;
+            this.projectId = projectId;
+            this.deleted = deleted;
+            this.timestamp = timestamp;
+        }
+
+        public long getIssueId() {
+            return issueId;
+        }
+
+        public String getIssueKey() {
+            return issueKey;
+        }
+
+        public long getProjectId() {
+            return projectId;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * A structure which reports the activity of the dispatcher.<br/>
+     * <ul>
+     * <li>pendingChanges : the number of issues with a change waiting for the
+     * end of the coalesce delay</li>
+     * <li>queuedBatches : the number of batches waiting for their
+     * delivery</li>
+     * <li>submitted : the number of issue events received</li>
+     * <li>coalesced : the number of issue events merged with a pending
+     * change</li>
+     * <li>deliveredBatches, deliveredChanges : the batches and changes
+     * successfully delivered</li>
+     * <li>retries : the number of delivery retries</li>
+     * <li>failedChanges : the changes which could not be resolved or
+     * delivered</li>
+     * <li>droppedChanges : the changes dropped because a queue was full</li>
+     * <li>lastDeliveryTimestamp, lastDeliveryDuration : the last successful
+     * delivery</li>
+     * <li>lastError : the last error</li>
+     * </ul>
+     * All the counters are since the plugin start.
+     *
+     * @author Pierre-Yves Cloux
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Statistics {
+        private int pendingChanges;
+        private int queuedBatches;
+        private long submitted;
+        private long coalesced;
+        private long deliveredBatches;
+        private long deliveredChanges;
+        private long retries;
+        private long failedChanges;
+        private long droppedChanges;
+        private long lastDeliveryTimestamp;
+        private long lastDeliveryDuration;
+        private String lastError;
+
+        public Statistics() {
+        }
+
+        @XmlElement(name = "pendingChanges")
+        public int getPendingChanges() {
+            return pendingChanges;
+        }
+
+        public void setPendingChanges(int pendingChanges) {
+            this.pendingChanges = pendingChanges;
+        }
+
+        @XmlElement(name = "queuedBatches")
+        public int getQueuedBatches() {
+            return queuedBatches;
+        }
+
+        public void setQueuedBatches(int queuedBatches) {
+            this.queuedBatches = queuedBatches;
+        }
+
+        @XmlElement(name = "submitted")
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public void setSubmitted(long submitted) {
+            this.submitted = submitted;
+        }
+
+        @XmlElement(name = "coalesced")
+        public long getCoalesced() {
+            return coalesced;
+        }
+
+        public void setCoalesced(long coalesced) {
+            this.coalesced = coalesced;
+        }
+
+        @XmlElement(name = "deliveredBatches")
+        public long getDeliveredBatches() {
+            return deliveredBatches;
+        }
+
+        public void setDeliveredBatches(long deliveredBatches) {
+            this.deliveredBatches = deliveredBatches;
+        }
+
+        @XmlElement(name = "deliveredChanges")
+        public long getDeliveredChanges() {
+            return deliveredChanges;
+        }
+
+        public void setDeliveredChanges(long deliveredChanges) {
+            this.deliveredChanges = deliveredChanges;
+        }
+
+        @XmlElement(name = "retries")
+        public long getRetries() {
+            return retries;
+        }
+
+        public void setRetries(long retries) {
+            this.retries = retries;
+        }
+
+        @XmlElement(name = "failedChanges")
+        public long getFailedChanges() {
+            return failedChanges;
+        }
+
+        public void setFailedChanges(long failedChanges) {
+            this.failedChanges = failedChanges;
+        }
+
+        @XmlElement(name = "droppedChanges")
+        public long getDroppedChanges() {
+            return droppedChanges;
+        }
+
+        public void setDroppedChanges(long droppedChanges) {
+            this.droppedChanges = droppedChanges;
+        }
+
+        @XmlElement(name = "lastDeliveryTimestamp")
+        public long getLastDeliveryTimestamp() {
+            return lastDeliveryTimestamp;
+        }
+
+        public void setLastDeliveryTimestamp(long lastDeliveryTimestamp) {
+            this.lastDeliveryTimestamp = lastDeliveryTimestamp;
+        }
+
+        @XmlElement(name = "lastDeliveryDuration")
+        public long getLastDeliveryDuration() {
+            return lastDeliveryDuration;
+        }
+
+        public void setLastDeliveryDuration(long lastDeliveryDuration) {
+            this.lastDeliveryDuration = lastDeliveryDuration;
+        }
+
+        @XmlElement(name = "lastError")
+        public String getLastError() {
+            return lastError;
+        }
+
+        public void setLastError(String lastError) {
+            this.lastError = lastError;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of the dry run of a JQL query template against a sample of
+ * projects (see
+ * {@link JiraPluginServiceProvider#validateJqlQueryTemplate(String, boolean)}
+ * ).<br/>
+ * <ul>
+ * <li>jqlTemplate : the validated template</li>
+ * <li>defect : true if the template is the defects template</li>
+ * <li>maxResults : the configured maximum number of results</li>
+ * <li>samples : the result for each sample project</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class JqlTemplateValidation {
+    private final String jqlTemplate;
+    private final boolean defect;
+    private final int maxResults;
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    public JqlTemplateValidation(String jqlTemplate, boolean defect, int maxResults) {
+        this.jqlTemplate = jqlTemplate;
+        this.defect = defect;
+        this.maxResults = maxResults;
+    }
+
+    public String getJqlTemplate() {
+        return jqlTemplate;
+    }
+
+    public boolean isDefect() {
+        return defect;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    /**
+     * Return true if the template could be rendered and parsed for all the
+     * sample projects
+     */
+    public boolean isValid() {
+        for (Sample sample : samples) {
+            if (!sample.isValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the first error message (null if the template is valid)
+     */
+    public String getErrorMessage() {
+        for (Sample sample : samples) {
+            if (!sample.isValid()) {
+                return "Error with project " + sample.getProjectKey() + " : " + sample.getErrorMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The result of the dry run for one project
+     * <ul>
+     * <li>projectKey : the key of the sample project</li>
+     * <li>jql : the rendered JQL (null if the template could not be rendered)</li>
+     * <li>parsed : true if the rendered JQL could be parsed</li>
+     * <li>count : the number of matching issues (-1 if the count could not be
+     * computed)</li>
+     * <li>duration : the duration of the count in milliseconds</li>
+     * <li>errorMessage : the error which occurred while rendering, parsing or
+     * counting (null if none)</li>
+     * </ul>
+     * 
+     * @author Pierre-Yves Cloux
+     */
+    public static class Sample {
+        private final String projectKey;
+        private String jql;
+        private boolean parsed = false;
+        private long count = -1;
+        private long duration;
+        private String errorMessage;
+
+        public Sample(String projectKey) {
+            this.projectKey = projectKey;
+        }
+
+        public String getProjectKey() {
+            return projectKey;
+        }
+
+        public String getJql() {
+            return jql;
+        }
+
+        public void setJql(String jql) {
+            this.jql = jql;
+        }
+
+        public boolean isParsed() {
+            return parsed;
+        }
+
+        public void setParsed(boolean parsed) {
+            this.parsed = parsed;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public void setDuration(long duration) {
+            this.duration = duration;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public void setErrorMessage(String errorMessage) {
+            this.errorMessage = errorMessage;
+        }
+
+        /**
+         * Return true if the template could be rendered and parsed (a count
+         * which failed or was rejected by the search executor does not make
+         * the template invalid)
+         */
+        public boolean isValid() {
+            return parsed;
+        }
+    }
+}
@@ -26,6 +26,8 @@ public class Requirement {
     private long estimation;
     private String iteration;
     private boolean inScope;
+    private boolean resolved;
+    private String hash;
 
     public Requirement() {
     }
@@ -129,6 +131,28 @@ public class Requirement {
         this.inScope = inScope;
     }
 
+    @XmlElement(name = "resolved")
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    public void setResolved(boolean resolved) {
+        this.resolved = resolved;
+    }
+
+    /**
+     * The content hash of the requirement (see {@link JiraPluginContentHash}),
+     * set when the requirement is mapped
+     */
+    @XmlElement(name = "hash")
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
     public String getAuthorEmail() {
         return authorEmail;
     }
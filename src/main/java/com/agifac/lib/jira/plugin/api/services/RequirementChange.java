@@ -0,0 +1,91 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A change of a requirement pushed to BizDock.<br/>
+ * <ul>
+ * <li>type : UPDATED (the requirement was created or modified) or REMOVED
+ * (the issue was deleted or does not match the needs and defects JQL
+ * templates anymore)</li>
+ * <li>id : the key of the issue</li>
+ * <li>projectRefId : the project unique id</li>
+ * <li>timestamp : the time at which the last change of the issue was
+ * notified by JIRA</li>
+ * <li>requirement : the requirement (null if the type is REMOVED)</li>
+ * </ul>
+ *
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RequirementChange {
+    public enum Type {
+        UPDATED, REMOVED
+    }
+
+    private Type type;
+    private String id;
+    private String projectRefId;
+    private long timestamp;
+    private Requirement requirement;
+
+    public RequirementChange() {
+    }
+
+    public RequirementChange(Type type, String id, String projectRefId, long timestamp, Requirement requirement) {
+        this.type = type;
+        this.id = id;
+        this.projectRefId = projectRefId;
+        this.timestamp = timestamp;
+        this.requirement = requirement;
+    }
+
+    @XmlElement(name = "type")
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    @XmlElement(name = "id")
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @XmlElement(name = "projectRefId")
+    public String getProjectRefId() {
+        return projectRefId;
+    }
+
+    public void setProjectRefId(String projectRefId) {
+        this.projectRefId = projectRefId;
+    }
+
+    @XmlElement(name = "timestamp")
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @XmlElement(name = "requirement")
+    public Requirement getRequirement() {
+        return requirement;
+    }
+
+    public void setRequirement(Requirement requirement) {
+        this.requirement = requirement;
+    }
+}
@@ -0,0 +1,94 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A requirement with its child issues (the issues of an epic, the sub-tasks
+ * of an issue, optionally the linked issues), see
+ * {@link JiraPluginServiceProvider#getRequirementsHierarchy(String, Map, RequirementsResult, boolean)}
+ * <ul>
+ * <li>requirement : the requirement</li>
+ * <li>children : the child requirements (with their own children)</li>
+ * <li>totalStoryPoints : the story points of the requirement and of all its
+ * descendants</li>
+ * <li>totalEstimation : the estimation of the requirement and of all its
+ * descendants</li>
+ * </ul>
+ *
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RequirementNode {
+    private Requirement requirement;
+    private List<RequirementNode> children = new ArrayList<RequirementNode>();
+    private long totalStoryPoints;
+    private long totalEstimation;
+
+    public RequirementNode() {
+    }
+
+    public RequirementNode(Requirement requirement) {
+        this.requirement = requirement;
+    }
+
+    /**
+     * Compute the totals of this node and of its descendants
+     */
+    public void rollUp() {
+        totalStoryPoints = requirement.getStoryPoints();
+        totalEstimation = requirement.getEstimation();
+        for (RequirementNode child : children) {
+            child.rollUp();
+            totalStoryPoints += child.getTotalStoryPoints();
+            totalEstimation += child.getTotalEstimation();
+        }
+    }
+
+    public void addChild(RequirementNode child) {
+        children.add(child);
+    }
+
+    @XmlElement(name = "requirement")
+    public Requirement getRequirement() {
+        return requirement;
+    }
+
+    public void setRequirement(Requirement requirement) {
+        this.requirement = requirement;
+    }
+
+    @XmlElement(name = "children")
+    public List<RequirementNode> getChildren() {
+        return children;
+    }
+
+    public void setChildren(List<RequirementNode> children) {
+        this.children = children;
+    }
+
+    @XmlElement(name = "totalStoryPoints")
+    public long getTotalStoryPoints() {
+        return totalStoryPoints;
+    }
+
+    public void setTotalStoryPoints(long totalStoryPoints) {
+        this.totalStoryPoints = totalStoryPoints;
+    }
+
+    @XmlElement(name = "totalEstimation")
+    public long getTotalEstimation() {
+        return totalEstimation;
+    }
+
+    public void setTotalEstimation(long totalEstimation) {
+        this.totalEstimation = totalEstimation;
+    }
+}
@@ -0,0 +1,148 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The aggregation of the requirements (needs or defects) of a project.<br/>
+ * <ul>
+ * <li>defect : true if the aggregated requirements are defects</li>
+ * <li>groupBy : the BizDock field used to group the requirements (null if the
+ * requirements are not grouped)</li>
+ * <li>total : the totals for all the requirements</li>
+ * <li>groups : the totals for each value of the groupBy field</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RequirementsAggregate {
+    private boolean defect;
+    private String groupBy;
+    private Group total;
+    private List<Group> groups = new ArrayList<Group>();
+
+    public RequirementsAggregate() {
+    }
+
+    @XmlElement(name = "defect")
+    public boolean isDefect() {
+        return defect;
+    }
+
+    public void setDefect(boolean defect) {
+        this.defect = defect;
+    }
+
+    @XmlElement(name = "groupBy")
+    public String getGroupBy() {
+        return groupBy;
+    }
+
+    public void setGroupBy(String groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    @XmlElement(name = "total")
+    public Group getTotal() {
+        return total;
+    }
+
+    public void setTotal(Group total) {
+        this.total = total;
+    }
+
+    @XmlElement(name = "groups")
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(List<Group> groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * The totals for a group of requirements
+     * <ul>
+     * <li>value : the value of the groupBy field for this group (null for the
+     * requirements without value)</li>
+     * <li>count : the number of requirements</li>
+     * <li>openCount : the number of requirements which are not resolved</li>
+     * <li>storyPoints : the sum of the story points</li>
+     * <li>estimation : the sum of the estimations</li>
+     * </ul>
+     * 
+     * @author Pierre-Yves Cloux
+     */
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Group {
+        private String value;
+        private long count;
+        private long openCount;
+        private long storyPoints;
+        private long estimation;
+
+        public Group() {
+        }
+
+        public Group(String value, long count, long openCount, long storyPoints, long estimation) {
+            this.value = value;
+            this.count = count;
+            this.openCount = openCount;
+            this.storyPoints = storyPoints;
+            this.estimation = estimation;
+        }
+
+        @XmlElement(name = "value")
+        public String getValue() {
+            return value;
+        }
+
+        public void setValue(String value) {
+            this.value = value;
+        }
+
+        @XmlElement(name = "count")
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        @XmlElement(name = "openCount")
+        public long getOpenCount() {
+            return openCount;
+        }
+
+        public void setOpenCount(long openCount) {
+            this.openCount = openCount;
+        }
+
+        @XmlElement(name = "storyPoints")
+        public long getStoryPoints() {
+            return storyPoints;
+        }
+
+        public void setStoryPoints(long storyPoints) {
+            this.storyPoints = storyPoints;
+        }
+
+        @XmlElement(name = "estimation")
+        public long getEstimation() {
+            return estimation;
+        }
+
+        public void setEstimation(long estimation) {
+            this.estimation = estimation;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The number of requirements (needs and/or defects) of a project.<br/>
+ * <ul>
+ * <li>projectRefId : the project unique id</li>
+ * <li>needsCount : the number of needs (null if not requested)</li>
+ * <li>defectsCount : the number of defects (null if not requested)</li>
+ * <li>errorMessage : the reason why the requirements could not be counted
+ * (null if no error)</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class RequirementsCount {
+    private String projectRefId;
+    private Long needsCount;
+    private Long defectsCount;
+    private String errorMessage;
+
+    public RequirementsCount() {
+    }
+
+    public RequirementsCount(String projectRefId) {
+        this.projectRefId = projectRefId;
+    }
+
+    @XmlElement(name = "projectRefId")
+    public String getProjectRefId() {
+        return projectRefId;
+    }
+
+    public void setProjectRefId(String projectRefId) {
+        this.projectRefId = projectRefId;
+    }
+
+    @XmlElement(name = "needsCount")
+    public Long getNeedsCount() {
+        return needsCount;
+    }
+
+    public void setNeedsCount(Long needsCount) {
+        this.needsCount = needsCount;
+    }
+
+    @XmlElement(name = "defectsCount")
+    public Long getDefectsCount() {
+        return defectsCount;
+    }
+
+    public void setDefectsCount(Long defectsCount) {
+        this.defectsCount = defectsCount;
+    }
+
+    @XmlElement(name = "errorMessage")
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+}
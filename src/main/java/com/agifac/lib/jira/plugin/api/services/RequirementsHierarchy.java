@@ -0,0 +1,35 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The requirements of a result with their child issues (see
+ * {@link JiraPluginServiceProvider#getRequirementsHierarchy(String, Map, RequirementsResult, boolean)}
+ * ).<br/>
+ * <ul>
+ * <li>roots : the requirements of the result (same order) with their
+ * children</li>
+ * <li>truncated : true if some child issues are missing because the number
+ * of children reached the maximum number of needs returned by a call</li>
+ * </ul>
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class RequirementsHierarchy {
+    private final List<RequirementNode> roots;
+    private final boolean truncated;
+
+    public RequirementsHierarchy(List<RequirementNode> roots, boolean truncated) {
+        this.roots = roots;
+        this.truncated = truncated;
+    }
+
+    public List<RequirementNode> getRoots() {
+        return roots;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,150 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of a requirements (needs or defects) retrieval.<br/>
+ * <ul>
+ * <li>requirements : the mapped requirements (not modifiable since a result
+ * may be shared by several responses)</li>
+ * <li>timestamp : the time at which the search was completed (number of
+ * milliseconds since January 1, 1970, 00:00:00 GMT)</li>
+ * <li>startAt : the index (in the search result) of the first requirement</li>
+ * <li>total : the number of issues matching the search (may be greater than
+ * the number of requirements if the result was truncated)</li>
+ * <li>contentHash : the hash of the result (see {@link JiraPluginContentHash}),
+ * combined from the hashes set when the requirements were mapped</li>
+ * </ul>
+ * The hashes let a client which knows a previous result get only what changed
+ * (see {@link #isUnchanged(String)} and
+ * {@link #getChangedRequirements(Map)}).
+ * 
+ * @author Pierre-Yves Cloux
+ */
+public class RequirementsResult {
+    private final List<Requirement> requirements;
+    private final long timestamp;
+    private final int startAt;
+    private final int total;
+    private final long contentHash;
+
+    public RequirementsResult(List<Requirement> requirements, long timestamp) {
+        this(requirements, timestamp, 0, requirements.size());
+    }
+
+    public RequirementsResult(List<Requirement> requirements, long timestamp, int startAt, int total) {
+        this.requirements = Collections.unmodifiableList(requirements);
+        this.timestamp = timestamp;
+        this.startAt = startAt;
+        this.total = total;
+        this.contentHash = JiraPluginContentHash.hash(JiraPluginContentHash.hash(requirements), startAt, total);
+    }
+
+    public List<Requirement> getRequirements() {
+        return requirements;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getStartAt() {
+        return startAt;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Return true if some issues matching the search are not part of this
+     * result (because of the maximum number of results)
+     */
+    public boolean isTruncated() {
+        return startAt + requirements.size() < total;
+    }
+
+    /**
+     * Return the startAt to be used to get the next requirements (-1 if the
+     * result is not truncated)
+     */
+    public int getNextStartAt() {
+        return isTruncated() ? startAt + requirements.size() : -1;
+    }
+
+    /**
+     * Return the age of this result in milliseconds
+     */
+    public long getAge() {
+        return Math.max(0, System.currentTimeMillis() - timestamp);
+    }
+
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Return the hash of this result as exchanged with the clients (ETag)
+     */
+    public String getETag() {
+        return JiraPluginContentHash.toString(contentHash);
+    }
+
+    /**
+     * Return true if the specified hash (the ETag of a previous result) is the
+     * hash of this result
+     *
+     * @param knownHash
+     *            a result hash (may be null)
+     */
+    public boolean isUnchanged(String knownHash) {
+        return knownHash != null && getETag().equalsIgnoreCase(knownHash.trim());
+    }
+
+    /**
+     * Return the requirements which are not known with the same hash
+     *
+     * @param knownHashes
+     *            the hashes known by the client by requirement id
+     */
+    public List<Requirement> getChangedRequirements(Map<String, String> knownHashes) {
+        List<Requirement> changedRequirements = new ArrayList<Requirement>();
+        for (Requirement requirement : requirements) {
+            String knownHash = knownHashes.get(requirement.getId());
+            if (knownHash == null || !knownHash.equalsIgnoreCase(requirement.getHash())) {
+                changedRequirements.add(requirement);
+            }
+        }
+        return changedRequirements;
+    }
+
+    /**
+     * Return the ids of the known requirements which are not part of this
+     * result anymore, or null if this cannot be known because the result is
+     * only a part of the matching requirements
+     *
+     * @param knownHashes
+     *            the hashes known by the client by requirement id
+     */
+    public List<String> getRemovedIds(Map<String, String> knownHashes) {
+        if (startAt > 0 || isTruncated()) {
+            return null;
+        }
+        Set<String> ids = new HashSet<String>(requirements.size() * 2);
+        for (Requirement requirement : requirements) {
+            ids.add(requirement.getId());
+        }
+        List<String> removedIds = new ArrayList<String>();
+        for (String knownId : knownHashes.keySet()) {
+            if (!ids.contains(knownId)) {
+                removedIds.add(knownId);
+            }
+        }
+        return removedIds;
+    }
+}
@@ -0,0 +1,696 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginServiceProvider.BizDockRequirementsFields;
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.jira.bc.issue.search.SearchService;
+import com.atlassian.jira.config.ConstantsManager;
+import com.atlassian.jira.config.properties.ApplicationProperties;
+import com.atlassian.jira.config.util.JiraHome;
+import com.atlassian.jira.issue.CustomFieldManager;
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.issue.IssueManager;
+import com.atlassian.jira.issue.customfields.CustomFieldType;
+import com.atlassian.jira.issue.customfields.manager.OptionsManager;
+import com.atlassian.jira.issue.customfields.option.Option;
+import com.atlassian.jira.issue.fields.CustomField;
+import com.atlassian.jira.issue.fields.FieldManager;
+import com.atlassian.jira.issue.issuetype.IssueType;
+import com.atlassian.jira.issue.priority.Priority;
+import com.atlassian.jira.issue.search.SearchProvider;
+import com.atlassian.jira.issue.search.SearchResults;
+import com.atlassian.jira.issue.status.Status;
+import com.atlassian.jira.jql.parser.DefaultJqlQueryParser;
+import com.atlassian.jira.jql.parser.JqlQueryParser;
+import com.atlassian.jira.project.Project;
+import com.atlassian.jira.project.ProjectManager;
+import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.user.util.UserUtil;
+import com.atlassian.jira.web.bean.PagerFilter;
+import com.atlassian.query.Query;
+import com.atlassian.query.clause.AndClause;
+import com.atlassian.query.clause.Clause;
+import com.atlassian.query.clause.NotClause;
+import com.atlassian.query.clause.OrClause;
+import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.operand.MultiValueOperand;
+import com.atlassian.query.operand.Operand;
+import com.atlassian.query.operand.SingleValueOperand;
+import com.atlassian.query.operator.Operator;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+
+/**
+ * An in-memory JIRA which provides the services injected into the
+ * {@link JiraPluginServiceProvider}, so that the plugin can be run (and
+ * measured) without a JIRA instance.<br/>
+ * <ul>
+ * <li>projects : the number of synthetic projects (keys P1, P2...)</li>
+ * <li>issuesPerProject : the number of issues of each project (about one
+ * third are bugs, the others are epics, improvements, new features or
+ * tasks)</li>
+ * <li>customFieldShapes : the custom fields mapped to the configurable
+ * BizDock fields and the type of their values (number, text, select, boolean
+ * or user)</li>
+ * <li>searchLatency : a delay (in milliseconds) added to each search to
+ * simulate the index</li>
+ * </ul>
+ * The services are dynamic proxies: the methods used by the plugin are
+ * answered from the synthetic data, the other methods return an empty value
+ * (null, 0, false or an empty collection).<br/>
+ * The JQL is parsed by the JIRA parser and a search evaluates the clauses of
+ * the query (AND, OR, NOT and the =, !=, in and not in operators on the
+ * project, issuetype, status, priority and issuekey fields; any other clause
+ * fails the search). A search with a Lucene collector is given the documents
+ * of an in-memory index which stores only the issue ids: the configuration is
+ * forced to load the issues (the index-only extraction needs the other stored
+ * fields).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class FakeJira {
+    /**
+     * The custom fields created by default (BizDock field=value type)
+     */
+    public static final String DEFAULT_CUSTOM_FIELD_SHAPES = "StoryPoints=number,Category=select,Severity=select,InScope=boolean";
+
+    private static final String[] NEED_ISSUE_TYPES = { "Epic", "Improvement", "New Feature", "Task" };
+    private static final String[] STATUSES = { "Open", "In Progress", "Resolved", "Closed" };
+    private static final String[] PRIORITIES = { "Blocker", "Critical", "Major", "Minor", "Trivial" };
+    private static final String[] OPTIONS = { "Alpha", "Beta", "Gamma", "Delta", "Epsilon" };
+
+    private final int projects;
+    private final int issuesPerProject;
+    private final long searchLatency;
+    private final File home;
+    private final Map<String, Object> settings = new ConcurrentHashMap<String, Object>();
+    private final List<Project> projectList = new ArrayList<Project>();
+    private final Map<Long, Project> projectsById = new HashMap<Long, Project>();
+    private final Map<String, Project> projectsByKey = new HashMap<String, Project>();
+    private final Map<Long, List<Issue>> issuesByProjectId = new HashMap<Long, List<Issue>>();
+    private final Map<Long, Issue> issuesById = new HashMap<Long, Issue>();
+    private final Map<Long, Integer> documentsByIssueId = new HashMap<Long, Integer>();
+    private final IndexReader indexReader;
+    private final Map<String, CustomField> customFields = new LinkedHashMap<String, CustomField>();
+    private final Map<BizDockRequirementsFields, String> mapping = new HashMap<BizDockRequirementsFields, String>();
+    private final User administrator;
+    private final Map<String, User> usersByKey = new HashMap<String, User>();
+    private JiraPluginServiceProvider serviceProvider;
+
+    /**
+     * Create a JIRA with the specified synthetic data
+     *
+     * @param projects
+     *            the number of projects
+     * @param issuesPerProject
+     *            the number of issues of each project
+     * @param customFieldShapes
+     *            the mapped custom fields (see
+     *            {@link #DEFAULT_CUSTOM_FIELD_SHAPES})
+     * @param searchLatency
+     *            the delay (in milliseconds) added to each search
+     * @param seed
+     *            the seed of the generated values
+     */
+    public FakeJira(int projects, int issuesPerProject, String customFieldShapes, long searchLatency, long seed) throws IOException {
+        this.projects = projects;
+        this.issuesPerProject = issuesPerProject;
+        this.searchLatency = searchLatency;
+        this.home = Files.createTempDirectory("fake-jira-home").toFile();
+        this.administrator = createUser("admin");
+        Random random = new Random(seed);
+        Map<String, String> shapes = new HashMap<String, String>();
+        int customFieldId = 10000;
+        for (String customFieldShape : customFieldShapes.split(",")) {
+            String[] parts = customFieldShape.trim().split("=");
+            String id = "customfield_" + (customFieldId++);
+            customFields.put(id, bean(CustomField.class, properties("getId", id, "getName", parts[0], "getCustomFieldType", bean(CustomFieldType.class,
+                    properties()), "toString", id)));
+            shapes.put(id, parts[1]);
+            mapping.put(BizDockRequirementsFields.valueOf(parts[0]), JiraPluginServiceProvider.CUSTOM_FIELD_KEY_PREFIX + id);
+        }
+        List<User> users = new ArrayList<User>();
+        for (int i = 0; i < 20; i++) {
+            users.add(createUser("user" + i));
+            usersByKey.put("user" + i, users.get(i));
+        }
+        long issueId = 10000;
+        for (int p = 1; p <= projects; p++) {
+            final long projectId = 10000 + p;
+            final String projectKey = "P" + p;
+            Project project = bean(Project.class, properties("getId", projectId, "getKey", projectKey, "getName", "Project " + p, "getDescription",
+                    "Synthetic project " + p, "toString", projectKey));
+            projectList.add(project);
+            projectsById.put(projectId, project);
+            projectsByKey.put(projectKey, project);
+            List<Issue> issues = new ArrayList<Issue>();
+            for (int i = 1; i <= issuesPerProject; i++) {
+                boolean bug = random.nextInt(3) == 0;
+                String issueType = bug ? "Bug" : NEED_ISSUE_TYPES[random.nextInt(NEED_ISSUE_TYPES.length)];
+                final Map<String, Object> customFieldValues = new HashMap<String, Object>();
+                for (Map.Entry<String, String> shape : shapes.entrySet()) {
+                    customFieldValues.put(shape.getKey(), createCustomFieldValue(shape.getValue(), random, users));
+                }
+                Map<String, Object> issueProperties = properties("getId", issueId++, "getKey", projectKey + "-" + i, "getSummary", "Issue " + i
+                        + " of the project " + projectKey, "getDescription", createText(random, 5 + random.nextInt(60)), "getStatusObject", named(
+                        Status.class, STATUSES[random.nextInt(STATUSES.length)]), "getPriorityObject", named(Priority.class,
+                        PRIORITIES[random.nextInt(PRIORITIES.length)]), "getCreator", users.get(random.nextInt(users.size())), "getReporter",
+                        users.get(random.nextInt(users.size())), "getAssignee", users.get(random.nextInt(users.size())), "getOriginalEstimate",
+                        random.nextBoolean() ? Long.valueOf(3600L * (1 + random.nextInt(40))) : null, "getProjectObject", project,
+                        "getIssueTypeObject", named(IssueType.class, issueType));
+                for (String role : new String[] { "Creator", "Reporter", "Assignee" }) {
+                    issueProperties.put("get" + role + "Id", ((User) issueProperties.get("get" + role)).getName());
+                }
+                issueProperties.put("getCustomFieldValue", new Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        return customFieldValues.get(((CustomField) args[0]).getId());
+                    }
+                });
+                Issue issue = bean(Issue.class, issueProperties);
+                issues.add(issue);
+                issuesById.put(issue.getId(), issue);
+            }
+            issuesByProjectId.put(projectId, issues);
+        }
+        this.indexReader = createIndex();
+    }
+
+    /**
+     * Create and start a service provider connected to this JIRA (the
+     * configuration is adapted to the synthetic data, the warm-up is
+     * completed)
+     */
+    public JiraPluginServiceProvider start() throws Exception {
+        serviceProvider = new JiraPluginServiceProvider(createApplicationProperties(), bean(EventPublisher.class, properties()),
+                createProjectManager(), bean(FieldManager.class, properties()), createCustomFieldManager(), createPluginSettingsFactory(),
+                createSearchService(), createJqlQueryParser(), createUserUtil(), bean(OptionsManager.class, properties()), bean(
+                        ConstantsManager.class, properties()), createJiraHome(), createSearchProvider(), createIssueManager());
+        serviceProvider.afterPropertiesSet();
+        serviceProvider.updatePluginConfigurationIndexOnlyExtraction(false);
+        serviceProvider.updatePluginConfigurationMapping(mapping);
+        while (!serviceProvider.isWarmUpCompleted()) {
+            Thread.sleep(10);
+        }
+        return serviceProvider;
+    }
+
+    /**
+     * Stop the service provider and delete the JIRA home
+     */
+    public void stop() throws Exception {
+        if (serviceProvider != null) {
+            serviceProvider.destroy();
+        }
+        indexReader.close();
+        Files.walkFileTree(home.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Return the projects
+     */
+    public List<Project> getProjects() {
+        return Collections.unmodifiableList(projectList);
+    }
+
+    /**
+     * Return the issues of the specified project
+     */
+    public List<Issue> getIssues(Project project) {
+        return Collections.unmodifiableList(issuesByProjectId.get(project.getId()));
+    }
+
+    /**
+     * Return the keys of the issues of the specified project which match the
+     * specified JQL
+     */
+    public Set<String> getIssueKeys(Project project, String jql) throws Exception {
+        Set<String> issueKeys = new TreeSet<String>();
+        for (Issue issue : findIssues(Collections.singletonList(project), new DefaultJqlQueryParser().parseQuery(jql).getWhereClause())) {
+            issueKeys.add(issue.getKey());
+        }
+        return issueKeys;
+    }
+
+    public int getIssuesPerProject() {
+        return issuesPerProject;
+    }
+
+    public int getProjectCount() {
+        return projects;
+    }
+
+    private ApplicationProperties createApplicationProperties() {
+        return bean(ApplicationProperties.class, properties("getString", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return "jira.baseurl".equals(args[0]) ? "http://localhost:2990/jira" : null;
+            }
+        }));
+    }
+
+    private ProjectManager createProjectManager() {
+        return bean(ProjectManager.class, properties("getProjectObjects", projectList, "getProjects", projectList, "getProjectObj", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return projectsById.get(args[0]);
+            }
+        }, "getProjectObjByKey", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return projectsByKey.get(args[0]);
+            }
+        }));
+    }
+
+    private CustomFieldManager createCustomFieldManager() {
+        return bean(CustomFieldManager.class, properties("getCustomFieldObject", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return customFields.get(String.valueOf(args[0]));
+            }
+        }, "getCustomFieldObjects", new ArrayList<CustomField>(customFields.values())));
+    }
+
+    private PluginSettingsFactory createPluginSettingsFactory() {
+        final PluginSettings pluginSettings = bean(PluginSettings.class, properties("get", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return settings.get(args[0]);
+            }
+        }, "put", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return args[1] != null ? settings.put((String) args[0], args[1]) : settings.remove(args[0]);
+            }
+        }, "remove", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return settings.remove(args[0]);
+            }
+        }));
+        return bean(PluginSettingsFactory.class, properties("createGlobalSettings", pluginSettings, "createSettingsForKey", pluginSettings));
+    }
+
+    private SearchService createSearchService() {
+        return bean(SearchService.class, properties("search", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                List<Issue> issues = findIssues((Query) args[1]);
+                PagerFilter pagerFilter = (PagerFilter) args[2];
+                int start = Math.min(pagerFilter.getStart(), issues.size());
+                int end = (int) Math.min((long) start + pagerFilter.getMax(), issues.size());
+                return new SearchResults(new ArrayList<Issue>(issues.subList(start, end)), issues.size(), pagerFilter);
+            }
+        }, "searchCount", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return (long) findIssues((Query) args[1]).size();
+            }
+        }));
+    }
+
+    private SearchProvider createSearchProvider() {
+        return bean(SearchProvider.class, properties("searchAndSort", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                Collector collector = (Collector) args[2];
+                try {
+                    collector.setNextReader(indexReader, 0);
+                    for (Issue issue : findIssues((Query) args[0])) {
+                        collector.collect(documentsByIssueId.get(issue.getId()));
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }
+        }));
+    }
+
+    private IssueManager createIssueManager() {
+        return bean(IssueManager.class, properties("getIssueObject", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return args[0] instanceof Long ? issuesById.get(args[0]) : null;
+            }
+        }, "getIssueObjects", new Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                List<Issue> issues = new ArrayList<Issue>();
+                for (Object issueId : (Collection<?>) args[0]) {
+                    Issue issue = issuesById.get(issueId);
+                    if (issue != null) {
+                        issues.add(issue);
+                    }
+                }
+                return issues;
+            }
+        }));
+    }
+
+    /**
+     * Create the in-memory index of the issues (the documents store the
+     * issue ids only)
+     */
+    private IndexReader createIndex() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter indexWriter = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_30, new KeywordAnalyzer()));
+        try {
+            for (Project project : projectList) {
+                for (Issue issue : issuesByProjectId.get(project.getId())) {
+                    Document document = new Document();
+                    document.add(new Field(JiraPluginRequirementCollector.ISSUE_ID_INDEX_FIELD, String.valueOf(issue.getId()), Field.Store.YES,
+                            Field.Index.NOT_ANALYZED));
+                    documentsByIssueId.put(issue.getId(), documentsByIssueId.size());
+                    indexWriter.addDocument(document);
+                }
+            }
+        } finally {
+            indexWriter.close();
+        }
+        return IndexReader.open(directory, true);
+    }
+
+    private JqlQueryParser createJqlQueryParser() {
+        return new DefaultJqlQueryParser();
+    }
+
+    private UserUtil createUserUtil() {
+        final List<User> administrators = Collections.singletonList(administrator);
+        return bean(UserUtil.class, properties("getJiraAdministrators", administrators, "getJiraSystemAdministrators", administrators,
+                "getUserByKey", new Answer() {
+                    @Override
+                    public Object answer(Object[] args) {
+                        User user = usersByKey.get(args[0]);
+                        return user != null ? bean(ApplicationUser.class, properties("getKey", args[0], "getName", user.getName(),
+                                "getEmailAddress", user.getEmailAddress())) : null;
+                    }
+                }));
+    }
+
+    private JiraHome createJiraHome() {
+        return bean(JiraHome.class, properties("getHome", home, "getLocalHome", home, "getHomePath", home.getAbsolutePath()));
+    }
+
+    /**
+     * Return the issues matching the specified query (see the class
+     * documentation)
+     */
+    private List<Issue> findIssues(Query query) {
+        if (searchLatency > 0) {
+            try {
+                Thread.sleep(searchLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return findIssues(projectList, query.getWhereClause());
+    }
+
+    private List<Issue> findIssues(List<Project> projects, Clause whereClause) {
+        List<Issue> issues = new ArrayList<Issue>();
+        IssueFilter filter = whereClause != null ? createFilter(whereClause) : null;
+        for (Project project : projects) {
+            for (Issue issue : issuesByProjectId.get(project.getId())) {
+                if (filter == null || filter.accept(issue)) {
+                    issues.add(issue);
+                }
+            }
+        }
+        return issues;
+    }
+
+    /**
+     * Return the filter of the issues which match the specified clause (see
+     * the class documentation). The values of the clauses are resolved once
+     * so that the evaluation of an issue does not allocate.
+     */
+    private IssueFilter createFilter(final Clause clause) {
+        if (clause instanceof AndClause || clause instanceof OrClause) {
+            final boolean and = clause instanceof AndClause;
+            final List<IssueFilter> filters = new ArrayList<IssueFilter>();
+            for (Clause subClause : clause.getClauses()) {
+                filters.add(createFilter(subClause));
+            }
+            return new IssueFilter() {
+                @Override
+                public boolean accept(Issue issue) {
+                    for (IssueFilter filter : filters) {
+                        if (filter.accept(issue) != and) {
+                            return !and;
+                        }
+                    }
+                    return and;
+                }
+            };
+        }
+        if (clause instanceof NotClause) {
+            final IssueFilter filter = createFilter(((NotClause) clause).getSubClause());
+            return new IssueFilter() {
+                @Override
+                public boolean accept(Issue issue) {
+                    return !filter.accept(issue);
+                }
+            };
+        }
+        if (!(clause instanceof TerminalClause)) {
+            throw new UnsupportedOperationException("Unsupported clause " + clause);
+        }
+        TerminalClause terminalClause = (TerminalClause) clause;
+        final Operator operator = terminalClause.getOperator();
+        if (operator != Operator.EQUALS && operator != Operator.IN && operator != Operator.NOT_EQUALS && operator != Operator.NOT_IN) {
+            throw new UnsupportedOperationException("Unsupported operator in the clause " + clause);
+        }
+        final boolean positive = operator == Operator.EQUALS || operator == Operator.IN;
+        final Set<String> values = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        addValues(terminalClause.getOperand(), values, clause);
+        final String name = terminalClause.getName().toLowerCase();
+        if (name.equals("project")) {
+            final Set<Long> projectIds = new HashSet<Long>();
+            for (String value : values) {
+                Project project = projectsByKey.get(value.toUpperCase());
+                if (project != null) {
+                    projectIds.add(project.getId());
+                } else if (value.matches("[0-9]+")) {
+                    projectIds.add(Long.valueOf(value));
+                }
+            }
+            return new IssueFilter() {
+                @Override
+                public boolean accept(Issue issue) {
+                    return projectIds.contains(issue.getProjectObject().getId()) == positive;
+                }
+            };
+        }
+        if (!name.equals("issuetype") && !name.equals("type") && !name.equals("status") && !name.equals("priority") && !name.equals("issuekey")
+                && !name.equals("key")) {
+            throw new UnsupportedOperationException("Unsupported field in the clause " + clause);
+        }
+        return new IssueFilter() {
+            @Override
+            public boolean accept(Issue issue) {
+                String value;
+                if (name.equals("issuetype") || name.equals("type")) {
+                    value = issue.getIssueTypeObject().getName();
+                } else if (name.equals("status")) {
+                    value = issue.getStatusObject().getName();
+                } else if (name.equals("priority")) {
+                    value = issue.getPriorityObject().getName();
+                } else {
+                    value = issue.getKey();
+                }
+                return values.contains(value) == positive;
+            }
+        };
+    }
+
+    private static void addValues(Operand operand, Set<String> values, Clause clause) {
+        if (operand instanceof SingleValueOperand) {
+            SingleValueOperand singleValueOperand = (SingleValueOperand) operand;
+            values.add(singleValueOperand.getStringValue() != null ? singleValueOperand.getStringValue() : String.valueOf(singleValueOperand
+                    .getLongValue()));
+        } else if (operand instanceof MultiValueOperand) {
+            for (Operand value : ((MultiValueOperand) operand).getValues()) {
+                addValues(value, values, clause);
+            }
+        } else {
+            throw new UnsupportedOperationException("Unsupported operand in the clause " + clause);
+        }
+    }
+
+    private static Object createCustomFieldValue(String shape, Random random, List<User> users) {
+        if ("number".equals(shape)) {
+            return random.nextBoolean() ? Double.valueOf(1 + random.nextInt(13)) : null;
+        }
+        if ("select".equals(shape)) {
+            return named(Option.class, OPTIONS[random.nextInt(OPTIONS.length)]);
+        }
+        if ("boolean".equals(shape)) {
+            return String.valueOf(random.nextBoolean());
+        }
+        if ("user".equals(shape)) {
+            return users.get(random.nextInt(users.size()));
+        }
+        return createText(random, 1 + random.nextInt(20));
+    }
+
+    private static String createText(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            sb.append(i > 0 ? " " : "").append(OPTIONS[random.nextInt(OPTIONS.length)].toLowerCase());
+        }
+        return sb.toString();
+    }
+
+    private static User createUser(String name) {
+        return bean(User.class, properties("getName", name, "getDisplayName", name, "getEmailAddress", name + "@example.com", "isActive", true,
+                "toString", name));
+    }
+
+    private static <T> T named(Class<T> type, String name) {
+        return bean(type, properties("getName", name, "getValue", name, "toString", name));
+    }
+
+    private static Map<String, Object> properties(Object... keysAndValues) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            properties.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    /**
+     * Create a proxy of the specified interface which answers the methods
+     * from the specified properties (by method name: a value or an
+     * {@link Answer})
+     */
+    static <T> T bean(Class<T> type, Map<String, Object> properties) {
+        return type.cast(Proxy.newProxyInstance(FakeJira.class.getClassLoader(), new Class<?>[] { type }, new BeanHandler(type, properties)));
+    }
+
+    /**
+     * A compiled clause
+     */
+    private interface IssueFilter {
+        boolean accept(Issue issue);
+    }
+
+    /**
+     * The answer of a method which depends on its arguments
+     */
+    interface Answer {
+        Object answer(Object[] args);
+    }
+
+    private static class BeanHandler implements InvocationHandler {
+        private final Class<?> type;
+        private final Map<String, Object> properties;
+
+        BeanHandler(Class<?> type, Map<String, Object> properties) {
+            this.type = type;
+            this.properties = properties;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (properties.containsKey(name)) {
+                Object value = properties.get(name);
+                return value instanceof Answer ? ((Answer) value).answer(args != null ? args : new Object[0]) : value;
+            }
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString") && args == null) {
+                return type.getSimpleName();
+            }
+            return getEmptyValue(method.getReturnType());
+        }
+
+        private static Object getEmptyValue(Class<?> returnType) {
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == int.class) {
+                return 0;
+            }
+            if (returnType == long.class) {
+                return 0L;
+            }
+            if (returnType == double.class) {
+                return 0d;
+            }
+            if (returnType == float.class) {
+                return 0f;
+            }
+            if (returnType == short.class) {
+                return (short) 0;
+            }
+            if (returnType == byte.class) {
+                return (byte) 0;
+            }
+            if (returnType == char.class) {
+                return (char) 0;
+            }
+            if (returnType == List.class || returnType == Collection.class) {
+                return Collections.emptyList();
+            }
+            if (returnType == Set.class) {
+                return Collections.emptySet();
+            }
+            if (returnType == Map.class) {
+                return Collections.emptyMap();
+            }
+            return null;
+        }
+    }
+}
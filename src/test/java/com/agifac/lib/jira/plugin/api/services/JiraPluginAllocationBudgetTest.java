@@ -0,0 +1,149 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.issue.Issue;
+
+/**
+ * An allocation regression check of the hot paths of the plugin, run against
+ * a {@link FakeJira}. The bytes allocated by the calling thread (as measured
+ * by the ThreadMXBean) are averaged over many calls, after a warm-up which
+ * lets the JIT compile (and scalar replace) the measured code:
+ * <ul>
+ * <li>mapping : the bytes allocated to map one issue into a requirement</li>
+ * <li>authentication : the bytes allocated to check the signature of one
+ * API request</li>
+ * <li>template : the bytes allocated to create the JQL of the default needs
+ * template</li>
+ * </ul>
+ * The private methods of the service provider are called by reflection. The
+ * budgets (in bytes) may be changed with the system properties
+ * allocation.budget.mapping, allocation.budget.authentication and
+ * allocation.budget.template (see the surefire configuration of the pom).<br/>
+ * The checks are skipped if the JVM does not measure the allocations by
+ * thread.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginAllocationBudgetTest {
+    private static final long DEFAULT_MAPPING_BUDGET = 4096;
+    private static final long DEFAULT_AUTHENTICATION_BUDGET = 8192;
+    private static final long DEFAULT_TEMPLATE_BUDGET = 4096;
+    private static final int ROUNDS = 3;
+    private static final String REQUEST_URI = "/jira/rest/taf_api/1.0/api/needs/find";
+
+    private FakeJira fakeJira;
+    private JiraPluginServiceProvider serviceProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(JiraPluginLoadDriver.getAllocatedBytes(Thread.currentThread().getId()) > 0);
+        fakeJira = new FakeJira(1, 200, FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES, 0, 42);
+        serviceProvider = fakeJira.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fakeJira != null) {
+            fakeJira.stop();
+        }
+    }
+
+    @Test
+    public void theMappingOfAnIssueIsWithinBudget() throws Exception {
+        final List<Issue> issues = fakeJira.getIssues(fakeJira.getProjects().get(0));
+        final Method createRequirementFromIssue = getMethod("createRequirementFromIssue", Issue.class, List.class, JiraPluginIterationLookup.class);
+        final Object[] arguments = { null, getMethod("getMappedFields").invoke(serviceProvider), new JiraPluginIterationLookup() };
+        long allocated = measure(20000, 50000, new Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                arguments[0] = issues.get(iteration % issues.size());
+                createRequirementFromIssue.invoke(serviceProvider, arguments);
+            }
+        });
+        assertWithinBudget("mapping", allocated, DEFAULT_MAPPING_BUDGET);
+    }
+
+    @Test
+    public void theAuthenticationIsWithinBudget() throws Exception {
+        final long timeStamp = System.currentTimeMillis();
+        final String signature = serviceProvider.signRequest(timeStamp, REQUEST_URI);
+        long allocated = measure(20000, 50000, new Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                if (!serviceProvider.authenticateClient(signature, timeStamp, REQUEST_URI)) {
+                    throw new IllegalStateException("The signature is rejected");
+                }
+            }
+        });
+        assertWithinBudget("authentication", allocated, DEFAULT_AUTHENTICATION_BUDGET);
+    }
+
+    @Test
+    public void theJqlOfATemplateIsWithinBudget() throws Exception {
+        final Method createJqlFromTemplate = getMethod("createJqlFromTemplate", String.class, String.class, Map.class);
+        final Object[] arguments = { JiraPluginConfiguration.DEFAULT_NEEDS_JQL_QUERY_TEMPLATE,
+                String.valueOf(fakeJira.getProjects().get(0).getId()), new HashMap<String, Object>() };
+        assertTrue(String.valueOf(createJqlFromTemplate.invoke(serviceProvider, arguments)).contains(fakeJira.getProjects().get(0).getKey()));
+        long allocated = measure(20000, 50000, new Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                createJqlFromTemplate.invoke(serviceProvider, arguments);
+            }
+        });
+        assertWithinBudget("template", allocated, DEFAULT_TEMPLATE_BUDGET);
+    }
+
+    /**
+     * Return the specified private method of the service provider (made
+     * accessible, so that its visibility does not depend on the test)
+     */
+    private static Method getMethod(String name, Class<?>... parameterTypes) throws Exception {
+        Method method = JiraPluginServiceProvider.class.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method;
+    }
+
+    /**
+     * Return the average number of bytes allocated by the calling thread for
+     * one run of the specified operation (the lowest of several rounds, to
+     * ignore the allocations of a late compilation or of a logger)
+     */
+    private static long measure(int warmupIterations, int measuredIterations, Operation operation) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < warmupIterations; i++) {
+            operation.run(i);
+        }
+        long lowest = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = JiraPluginLoadDriver.getAllocatedBytes(threadId);
+            for (int i = 0; i < measuredIterations; i++) {
+                operation.run(i);
+            }
+            lowest = Math.min(lowest, (JiraPluginLoadDriver.getAllocatedBytes(threadId) - before) / measuredIterations);
+        }
+        return lowest;
+    }
+
+    private static void assertWithinBudget(String name, long allocated, long defaultBudget) {
+        long budget = Long.getLong("allocation.budget." + name, defaultBudget);
+        assertTrue(String.format("%s : %d bytes/op, budget %d", name, allocated, budget), allocated <= budget);
+    }
+
+    /**
+     * An operation whose allocations are measured
+     */
+    private interface Operation {
+        void run(int iteration) throws Exception;
+    }
+}
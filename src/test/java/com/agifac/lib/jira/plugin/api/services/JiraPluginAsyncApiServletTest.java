@@ -0,0 +1,196 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.project.Project;
+
+/**
+ * Dispatch signed requests to the {@link JiraPluginAsyncApiServlet} (served by
+ * a {@link FakeJira}) when the container suspends the request and when it
+ * does not: the answers must be the ones of the REST API.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginAsyncApiServletTest {
+    private static final String SERVLET_PATH = "/jira/plugins/servlet/bizdock/api";
+
+    private FakeJira fakeJira;
+    private JiraPluginServiceProvider serviceProvider;
+    private JiraPluginAsyncApiServlet servlet;
+    private Project project;
+    private Set<String> expectedNeeds;
+
+    @Before
+    public void setUp() throws Exception {
+        fakeJira = new FakeJira(2, 50, FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES, 0, 42);
+        serviceProvider = fakeJira.start();
+        servlet = new JiraPluginAsyncApiServlet(serviceProvider);
+        project = fakeJira.getProjects().get(0);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED, project.getKey());
+        expectedNeeds = fakeJira.getIssueKeys(project, JiraPluginJqlTemplate.compile(JiraPluginConfiguration.DEFAULT_NEEDS_JQL_QUERY_TEMPLATE)
+                .render(values));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fakeJira.stop();
+    }
+
+    @Test
+    public void aSuspendedRequestIsAnsweredFromTheApiExecutor() throws Exception {
+        Exchange exchange = new Exchange("/needs/find", "{\"projectRefId\":\"" + project.getId() + "\"}", true);
+        servlet.doPost(exchange.request, exchange.response);
+        assertTrue(exchange.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(exchange.apiThread);
+        assertExpectedNeeds(exchange);
+    }
+
+    @Test
+    public void aRequestIsAnsweredInTheContainerThreadWithoutAsyncSupport() throws Exception {
+        Exchange exchange = new Exchange("/needs/find", "{\"projectRefId\":\"" + project.getId() + "\"}", false);
+        servlet.doPost(exchange.request, exchange.response);
+        assertExpectedNeeds(exchange);
+    }
+
+    @Test
+    public void aStructureIsWrittenWithTheJaxbNames() throws Exception {
+        Exchange exchange = new Exchange("/needs/count", "{\"projectRefId\":\"" + project.getId() + "\"}", false);
+        servlet.doPost(exchange.request, exchange.response);
+        assertEquals(200, exchange.status);
+        assertTrue(exchange.getBody(), exchange.getBody().matches(".*\"needsCount\"\\s*:\\s*" + expectedNeeds.size() + "\\b.*"));
+    }
+
+    @Test
+    public void anErrorIsTheErrorOfTheRestApi() throws Exception {
+        Exchange exchange = new Exchange("/needs/find", "{}", false);
+        servlet.doPost(exchange.request, exchange.response);
+        assertEquals(400, exchange.status);
+        assertTrue(exchange.getBody(), exchange.getBody().contains(JiraPluginRestApi.ErrorResponse.ErrorCode.INVALID_PARAMETER.name()));
+    }
+
+    @Test
+    public void theOtherPathsAreNotServed() throws Exception {
+        Exchange exchange = new Exchange("/projects/all", "", true);
+        servlet.doPost(exchange.request, exchange.response);
+        assertEquals(404, exchange.status);
+    }
+
+    private void assertExpectedNeeds(Exchange exchange) throws Exception {
+        assertEquals(200, exchange.status);
+        assertEquals(String.valueOf(expectedNeeds.size()), exchange.headers.get("x-jira-bizdock-total"));
+        String body = exchange.getBody();
+        int ids = 0;
+        for (int i = body.indexOf("\"id\":"); i != -1; i = body.indexOf("\"id\":", i + 1)) {
+            ids++;
+        }
+        assertEquals(expectedNeeds.size(), ids);
+        for (String key : expectedNeeds) {
+            assertTrue(key, body.contains("\"id\":\"" + key + "\""));
+        }
+    }
+
+    /**
+     * A signed request to the servlet and its response
+     */
+    private class Exchange {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private volatile int status;
+        private volatile boolean apiThread;
+
+        Exchange(String path, String content, boolean asyncSupported) throws Exception {
+            String requestUri = SERVLET_PATH + path;
+            long timeStamp = System.currentTimeMillis();
+            final Map<String, String> requestHeaders = new HashMap<String, String>();
+            requestHeaders.put("x-jira-bizdock-auth", serviceProvider.signRequest(timeStamp, requestUri));
+            requestHeaders.put("x-jira-bizdock-timestamp", String.valueOf(timeStamp));
+            final ByteArrayInputStream in = new ByteArrayInputStream(content.getBytes("UTF-8"));
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    body.write(b);
+                }
+            };
+
+            Map<String, Object> responseProperties = new HashMap<String, Object>();
+            responseProperties.put("setStatus", new FakeJira.Answer() {
+                @Override
+                public Object answer(Object[] args) {
+                    status = (Integer) args[0];
+                    return null;
+                }
+            });
+            responseProperties.put("sendError", responseProperties.get("setStatus"));
+            responseProperties.put("addHeader", new FakeJira.Answer() {
+                @Override
+                public Object answer(Object[] args) {
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                }
+            });
+            responseProperties.put("getOutputStream", out);
+            response = FakeJira.bean(HttpServletResponse.class, responseProperties);
+
+            Map<String, Object> asyncContextProperties = new HashMap<String, Object>();
+            asyncContextProperties.put("getResponse", response);
+            asyncContextProperties.put("complete", new FakeJira.Answer() {
+                @Override
+                public Object answer(Object[] args) {
+                    apiThread = Thread.currentThread().getName().startsWith("bizdock-api");
+                    completed.countDown();
+                    return null;
+                }
+            });
+            AsyncContext asyncContext = FakeJira.bean(AsyncContext.class, asyncContextProperties);
+
+            Map<String, Object> requestProperties = new HashMap<String, Object>();
+            requestProperties.put("getPathInfo", path);
+            requestProperties.put("getRequestURI", requestUri);
+            requestProperties.put("getRemoteAddr", "127.0.0.1");
+            requestProperties.put("getRemoteHost", "localhost");
+            requestProperties.put("isAsyncSupported", asyncSupported);
+            requestProperties.put("startAsync", asyncContext);
+            requestProperties.put("getHeader", new FakeJira.Answer() {
+                @Override
+                public Object answer(Object[] args) {
+                    return requestHeaders.get(args[0]);
+                }
+            });
+            requestProperties.put("getInputStream", new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+            });
+            request = FakeJira.bean(HttpServletRequest.class, requestProperties);
+        }
+
+        String getBody() throws IOException {
+            return new String(body.toByteArray(), "UTF-8");
+        }
+    }
+}
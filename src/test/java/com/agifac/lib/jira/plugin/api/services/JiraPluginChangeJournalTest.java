@@ -0,0 +1,228 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Check the recovery of a {@link JiraPluginChangeJournal} after an incomplete
+ * write and its compaction.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginChangeJournalTest {
+    private static final int SEGMENT_CAPACITY = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "journal");
+    }
+
+    @Test
+    public void theEntriesAreReadInSequence() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        for (long issueId = 1; issueId <= 10; issueId++) {
+            assertEquals(issueId, journal.append(issueId, 100, 1, 1000 + issueId));
+        }
+        assertEquals(10, journal.getLastSequence());
+        assertSequences(journal.read(0, 100), 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        assertSequences(journal.read(3, 4), 4, 5, 6, 7);
+        ChangeJournalEntry entry = journal.read(6, 1).get(0);
+        assertEquals(7, entry.getIssueId());
+        assertEquals(100, entry.getProjectId());
+        assertEquals(1, entry.getEventTypeId());
+        assertEquals(1007, entry.getTimestamp());
+    }
+
+    @Test
+    public void theSequencesContinueAfterAReopen() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        for (long issueId = 1; issueId <= 6; issueId++) {
+            journal.append(issueId, 100, 1, issueId);
+        }
+        journal.force();
+        journal = open();
+        assertEquals(6, journal.getLastSequence());
+        assertEquals(7, journal.append(7, 100, 1, 7));
+        assertSequences(journal.read(0, 100), 1, 2, 3, 4, 5, 6, 7);
+    }
+
+    @Test
+    public void anIncompleteRecordTruncatesTheSegment() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        for (long issueId = 1; issueId <= 3; issueId++) {
+            journal.append(issueId, 100, 1, issueId);
+        }
+        journal.force();
+        // The second record is torn: its sequence was written but not its
+        // issue
+        corrupt(getSegmentFiles().get(0), 1, 16);
+        journal = open();
+        assertEquals(1, journal.getLastSequence());
+        assertSequences(journal.read(0, 100), 1);
+        // The erased records are rewritten
+        assertEquals(2, journal.append(20, 100, 1, 20));
+        assertEquals(3, journal.append(30, 100, 1, 30));
+        journal.force();
+        journal = open();
+        assertSequences(journal.read(0, 100), 1, 2, 3);
+        assertEquals(30, journal.read(2, 1).get(0).getIssueId());
+    }
+
+    @Test
+    public void aRecordWithoutChecksumIsIncomplete() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        journal.append(1, 100, 1, 1);
+        journal.append(2, 100, 1, 2);
+        journal.force();
+        corrupt(getSegmentFiles().get(0), 1, 40);
+        journal = open();
+        assertSequences(journal.read(0, 100), 1);
+    }
+
+    @Test
+    public void theCompactionKeepsTheLatestEntryOfEachIssue() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        long[] issueIds = { 1, 2, 1, 2, 3, 1, 4, 5, 2 };
+        for (long issueId : issueIds) {
+            journal.append(issueId, 100, 1, issueId);
+        }
+        // Segments 1-4 and 5-8 are closed, 9 is active
+        journal.compact();
+        assertSequences(journal.read(0, 100), 5, 6, 7, 8, 9);
+        assertEquals(9, journal.getLastSequence());
+        assertEquals(10, journal.append(6, 100, 1, 6));
+        journal.force();
+        journal = open();
+        assertSequences(journal.read(0, 100), 5, 6, 7, 8, 9, 10);
+        assertEquals(11, journal.append(7, 100, 1, 7));
+    }
+
+    @Test
+    public void theAppendsContinueDuringTheCompaction() throws Exception {
+        final JiraPluginChangeJournal journal = open();
+        final int appends = 2000;
+        Thread appender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < appends; i++) {
+                        journal.append(i % 10, 100, 1, i);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        appender.start();
+        while (appender.isAlive()) {
+            journal.compact();
+        }
+        appender.join();
+        journal.compact();
+        assertEquals(appends, journal.getLastSequence());
+        // The latest entry of each issue is kept, in the sequence order
+        long previousSequence = 0;
+        Map<Long, Long> latestSequences = new HashMap<Long, Long>();
+        for (ChangeJournalEntry entry : journal.read(0, appends)) {
+            assertTrue(entry.getSequence() > previousSequence);
+            previousSequence = entry.getSequence();
+            latestSequences.put(entry.getIssueId(), entry.getSequence());
+        }
+        for (long issueId = 0; issueId < 10; issueId++) {
+            assertEquals(appends - 10 + issueId + 1, (long) latestSequences.get(issueId));
+        }
+    }
+
+    @Test
+    public void theCompactedSegmentsReplaceTheOriginalSegments() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        for (long issueId : new long[] { 1, 1, 1, 1, 2 }) {
+            journal.append(issueId, 100, 1, issueId);
+        }
+        journal.force();
+        File firstSegment = getSegmentFiles().get(0);
+        byte[] content = Files.readAllBytes(firstSegment.toPath());
+        journal.compact();
+        assertFalse(firstSegment.exists());
+        // Crash after the rename of the compacted segment: the original
+        // segment was not deleted
+        Files.write(firstSegment.toPath(), content);
+        journal = open();
+        assertFalse(firstSegment.exists());
+        assertSequences(journal.read(0, 100), 4, 5);
+    }
+
+    @Test
+    public void anInterruptedCompactionIsDiscarded() throws Exception {
+        JiraPluginChangeJournal journal = open();
+        journal.append(1, 100, 1, 1);
+        journal.force();
+        File temporaryFile = new File(directory, "interrupted.tmp");
+        assertTrue(temporaryFile.createNewFile());
+        journal = open();
+        assertFalse(temporaryFile.exists());
+        assertSequences(journal.read(0, 100), 1);
+    }
+
+    private JiraPluginChangeJournal open() throws Exception {
+        JiraPluginChangeJournal journal = new JiraPluginChangeJournal(directory, SEGMENT_CAPACITY);
+        journal.open();
+        return journal;
+    }
+
+    private List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File file : directory.listFiles()) {
+            if (!file.getName().endsWith(".tmp")) {
+                files.add(file);
+            }
+        }
+        // The file names start with the first sequence
+        File[] sortedFiles = files.toArray(new File[files.size()]);
+        Arrays.sort(sortedFiles);
+        return Arrays.asList(sortedFiles);
+    }
+
+    /**
+     * Change a field of the specified record
+     */
+    private static void corrupt(File segmentFile, int index, int fieldOffset) throws Exception {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segmentFile, "rw");
+        try {
+            long position = JiraPluginChangeJournal.HEADER_SIZE + (long) index * JiraPluginChangeJournal.RECORD_SIZE + fieldOffset;
+            randomAccessFile.seek(position);
+            long value = randomAccessFile.readLong();
+            randomAccessFile.seek(position);
+            randomAccessFile.writeLong(value ^ 0x5a5a5a5aL);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void assertSequences(List<ChangeJournalEntry> entries, long... sequences) {
+        assertEquals(sequences.length, entries.size());
+        for (int i = 0; i < sequences.length; i++) {
+            assertEquals(sequences[i], entries.get(i).getSequence());
+        }
+    }
+}
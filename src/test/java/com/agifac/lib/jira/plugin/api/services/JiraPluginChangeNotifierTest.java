@@ -0,0 +1,97 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Check the wait of the clients which cannot be suspended (see
+ * {@link JiraPluginChangeNotifier#awaitBlocking(long, long)}).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginChangeNotifierTest {
+    private final JiraPluginChangeNotifier notifier = new JiraPluginChangeNotifier();
+
+    @After
+    public void tearDown() {
+        notifier.shutdown();
+    }
+
+    @Test
+    public void aClientBehindTheLastChangeDoesNotWait() throws Exception {
+        notifier.publish(10, 5);
+        long start = System.currentTimeMillis();
+        assertTrue(notifier.awaitBlocking(4, 10000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void aWaitingClientIsWokenUpByAChange() throws Exception {
+        notifier.publish(10, 5);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread client = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    notifier.awaitBlocking(5, 30000);
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    // Test failure
+                }
+            }
+        };
+        client.start();
+        waitForClients(1);
+        notifier.publish(11, 6);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, notifier.getChangedProjects(5).size());
+    }
+
+    @Test
+    public void theWaitTimesOut() throws Exception {
+        long start = System.currentTimeMillis();
+        assertTrue(notifier.awaitBlocking(0, 200));
+        assertTrue(System.currentTimeMillis() - start >= 200);
+        assertEquals(0, notifier.getWaitingClients());
+    }
+
+    @Test
+    public void theNumberOfWaitingThreadsIsBounded() throws Exception {
+        Thread[] clients = new Thread[JiraPluginChangeNotifier.MAX_BLOCKED_CLIENTS];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        notifier.awaitBlocking(0, 30000);
+                    } catch (InterruptedException e) {
+                        // Released by the shutdown
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        waitForClients(clients.length);
+        assertFalse(notifier.awaitBlocking(0, 30000));
+        notifier.shutdown();
+        for (Thread client : clients) {
+            client.join(5000);
+            assertFalse(client.isAlive());
+        }
+    }
+
+    private void waitForClients(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (notifier.getWaitingClients() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, notifier.getWaitingClients());
+    }
+}
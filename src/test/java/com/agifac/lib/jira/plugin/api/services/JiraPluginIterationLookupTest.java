@@ -0,0 +1,136 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Check that a {@link JiraPluginIterationLookup} resolves each iteration once
+ * per result set, whether the iterations are the values of loaded issues or
+ * the ids read from the index (in one batch).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginIterationLookupTest {
+    private final JiraPluginIterationLookup lookup = new JiraPluginIterationLookup();
+
+    @Test
+    public void theLastSprintIsTheIteration() {
+        assertEquals("Sprint 2", lookup.getIterationName(Arrays.asList(new Sprint(1, "Sprint 1"), new Sprint(2, "Sprint 2"))));
+        assertEquals("Sprint 2", lookup.getIterationName(Arrays.asList(new Sprint(2, "Sprint 2"))));
+        assertEquals(2, lookup.getResolvedCount());
+        assertNull(lookup.getIterationName(Arrays.asList()));
+        assertEquals("V1", lookup.getIterationName("V1"));
+    }
+
+    @Test
+    public void theNameOfAnIssueIterationIsReadOncePerResultSet() {
+        // Each issue loaded by JIRA holds its own sprint instances
+        int[] reads = new int[1];
+        for (int i = 0; i < 1000; i++) {
+            Object value = Arrays.asList(new CountingSprint(i % 3, "Sprint " + (i % 3), reads), new CountingSprint(3, "Sprint 3", reads));
+            assertEquals("Sprint 3", lookup.getIterationName(value));
+        }
+        assertEquals(4, reads[0]);
+        assertEquals(4, lookup.getResolvedCount());
+    }
+
+    @Test
+    public void theNamesReadFromTheIssuesAreKnownByTheBatch() {
+        assertEquals("Sprint 1", lookup.getIterationName(new Sprint(1, "Sprint 1")));
+        Requirement requirement = new Requirement();
+        lookup.addIteration(requirement, "1", 10);
+        assertEquals("Sprint 1", requirement.getIteration());
+        lookup.resolve(new JiraPluginIterationLookup.IterationSource() {
+            @Override
+            public Object getIterationValue(long issueId) {
+                throw new IllegalStateException("The issue " + issueId + " is loaded");
+            }
+        });
+        assertEquals(1, lookup.getResolvedCount());
+    }
+
+    @Test
+    public void theIterationIdsAreResolvedInOneBatch() {
+        final Map<Long, Object> issues = new HashMap<Long, Object>();
+        issues.put(10L, Arrays.asList(new Sprint(1, "Sprint 1"), new Sprint(2, "Sprint 2")));
+        issues.put(11L, Arrays.asList(new Sprint(1, "Sprint 1")));
+        issues.put(12L, Arrays.asList(new Sprint(3, "Sprint 3")));
+        Requirement[] requirements = new Requirement[6];
+        for (int i = 0; i < requirements.length; i++) {
+            requirements[i] = new Requirement();
+        }
+        lookup.addIteration(requirements[0], "2", 10);
+        lookup.addIteration(requirements[1], "1", 11);
+        lookup.addIteration(requirements[2], "2", 13);
+        lookup.addIteration(requirements[3], "3", 12);
+        lookup.addIteration(requirements[4], null, 14);
+        lookup.addIteration(requirements[5], "4", 12);
+        assertNull(requirements[0].getIteration());
+        final int[] loads = new int[1];
+        lookup.resolve(new JiraPluginIterationLookup.IterationSource() {
+            @Override
+            public Object getIterationValue(long issueId) {
+                loads[0]++;
+                return issues.get(issueId);
+            }
+        });
+        // The issue 10 gives the sprints 1 and 2, the issue 12 the sprint 3
+        // (the sprint 4 is not found)
+        assertEquals(3, loads[0]);
+        assertEquals("Sprint 2", requirements[0].getIteration());
+        assertEquals("Sprint 1", requirements[1].getIteration());
+        assertEquals("Sprint 2", requirements[2].getIteration());
+        assertEquals("Sprint 3", requirements[3].getIteration());
+        assertNull(requirements[4].getIteration());
+        assertNull(requirements[5].getIteration());
+        // A known iteration is set immediately
+        Requirement requirement = new Requirement();
+        lookup.addIteration(requirement, "3", 15);
+        assertEquals("Sprint 3", requirement.getIteration());
+    }
+
+    /**
+     * A sprint, read by reflection
+     */
+    public static class Sprint {
+        private final long id;
+        private final String name;
+
+        public Sprint(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * A sprint which counts the reads of its name
+     */
+    public static class CountingSprint extends Sprint {
+        private final int[] reads;
+
+        public CountingSprint(long id, String name, int[] reads) {
+            super(id, name);
+            this.reads = reads;
+        }
+
+        @Override
+        public String getName() {
+            reads[0]++;
+            return super.getName();
+        }
+    }
+}
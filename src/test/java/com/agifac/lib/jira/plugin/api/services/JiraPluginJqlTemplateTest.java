@@ -0,0 +1,118 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.atlassian.jira.jql.parser.DefaultJqlQueryParser;
+import com.atlassian.query.Query;
+import com.atlassian.query.clause.AndClause;
+import com.atlassian.query.clause.Clause;
+import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.operand.MultiValueOperand;
+import com.atlassian.query.operand.SingleValueOperand;
+
+/**
+ * Check that the values rendered by a {@link JiraPluginJqlTemplate} are
+ * parsed by JIRA as literals, whatever their content.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginJqlTemplateTest {
+    private static final String TEMPLATE = "project = ${_jiraProjectKey_} AND status = ${status}";
+
+    @Test
+    public void anInjectionInAnUnquotedSlotIsALiteral() throws Exception {
+        Query query = parse(TEMPLATE, values("status", "Open OR project = SECRET"));
+        List<Clause> clauses = getAndClauses(query);
+        assertEquals(2, clauses.size());
+        assertTerminal(clauses.get(0), "project", "PRJ");
+        assertTerminal(clauses.get(1), "status", "Open OR project = SECRET");
+    }
+
+    @Test
+    public void aQuoteInAnUnquotedSlotDoesNotEndTheLiteral() throws Exception {
+        String value = "Open\" OR project = SECRET OR status = \"Closed";
+        Query query = parse(TEMPLATE, values("status", value));
+        List<Clause> clauses = getAndClauses(query);
+        assertEquals(2, clauses.size());
+        assertTerminal(clauses.get(1), "status", value);
+    }
+
+    @Test
+    public void anInjectionInAQuotedSlotIsALiteral() throws Exception {
+        String value = "a\" OR project = SECRET OR summary ~ \"b";
+        Query query = parse("project = ${_jiraProjectKey_} AND summary ~ \"${text}\"", values("text", value));
+        List<Clause> clauses = getAndClauses(query);
+        assertEquals(2, clauses.size());
+        assertTerminal(clauses.get(1), "summary", value);
+    }
+
+    @Test
+    public void aSingleQuotedSlotIsEscaped() throws Exception {
+        String value = "a' OR project = SECRET OR summary ~ 'b";
+        Query query = parse("project = ${_jiraProjectKey_} AND summary ~ '${text}'", values("text", value));
+        List<Clause> clauses = getAndClauses(query);
+        assertEquals(2, clauses.size());
+        assertTerminal(clauses.get(1), "summary", value);
+    }
+
+    @Test
+    public void aPlainNumberIsNotQuoted() throws Exception {
+        JiraPluginJqlTemplate template = JiraPluginJqlTemplate.compile("votes > ${votes} AND cf[10000] = ${points}");
+        assertEquals("votes > 3 AND cf[10000] = \"1.0E10\"", template.render(values("votes", 3, "points", 1e10)));
+        assertEquals("votes > -2.5 AND cf[10000] = 4", template.render(values("votes", -2.5, "points", 4L)));
+    }
+
+    @Test
+    public void aCollectionIsAListOfLiterals() throws Exception {
+        Query query = parse("project = ${_jiraProjectKey_} AND status in (${statuses})",
+                values("statuses", Arrays.asList("Open", "In Progress\" OR project = SECRET")));
+        List<Clause> clauses = getAndClauses(query);
+        assertEquals(2, clauses.size());
+        TerminalClause status = (TerminalClause) clauses.get(1);
+        assertTrue(status.getOperand() instanceof MultiValueOperand);
+        List<?> operands = ((MultiValueOperand) status.getOperand()).getValues();
+        assertEquals(2, operands.size());
+        assertEquals("In Progress\" OR project = SECRET", ((SingleValueOperand) operands.get(1)).getStringValue());
+    }
+
+    @Test
+    public void aVelocityTemplateIsNotCompiled() {
+        assertFalse(JiraPluginJqlTemplate.compile("project = $_jiraProjectKey_ #if($status) AND status = $status #end").isCompiled());
+        assertTrue(JiraPluginJqlTemplate.compile(TEMPLATE).isCompiled());
+    }
+
+    private static Query parse(String template, Map<String, Object> values) throws Exception {
+        return new DefaultJqlQueryParser().parseQuery(JiraPluginJqlTemplate.compile(template).render(values));
+    }
+
+    private static List<Clause> getAndClauses(Query query) {
+        assertTrue("Not an AND clause : " + query.getQueryString(), query.getWhereClause() instanceof AndClause);
+        return query.getWhereClause().getClauses();
+    }
+
+    private static void assertTerminal(Clause clause, String name, String value) {
+        assertTrue("Not a terminal clause : " + clause, clause instanceof TerminalClause);
+        TerminalClause terminalClause = (TerminalClause) clause;
+        assertEquals(name, terminalClause.getName());
+        assertTrue(terminalClause.getOperand() instanceof SingleValueOperand);
+        assertEquals(value, ((SingleValueOperand) terminalClause.getOperand()).getStringValue());
+    }
+
+    private static Map<String, Object> values(Object... namesAndValues) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put(JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED, "PRJ");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return values;
+    }
+}
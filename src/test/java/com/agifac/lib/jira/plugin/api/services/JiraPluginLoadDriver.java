@@ -0,0 +1,421 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.RequirementsRequestStructure;
+import com.atlassian.jira.project.Project;
+
+/**
+ * A load driver which calls the REST resource methods of the
+ * {@link JiraPluginRestApi} from several threads against a {@link FakeJira}
+ * and reports the throughput, the latency percentiles and the allocation
+ * rate.<br/>
+ * Each call is signed like a BizDock call and its response is serialized
+ * (with the {@link JiraPluginJsonWriter}) into a counting stream. A call is
+ * an error if its status is not 200 or if its content is not the issues of
+ * the project which match the default JQL templates (the needs or the
+ * defects, their number and their keys).<br/>
+ * The parameters are provided as name=value arguments:
+ * <ul>
+ * <li>projects : the number of projects (default 20)</li>
+ * <li>issues : the number of issues by project (default 500)</li>
+ * <li>shapes : the mapped custom fields (default
+ * {@link FakeJira#DEFAULT_CUSTOM_FIELD_SHAPES})</li>
+ * <li>latency : the delay (in milliseconds) added to each search (default
+ * 0)</li>
+ * <li>threads : the number of calling threads (default 8)</li>
+ * <li>warmup : the duration of the warm-up in seconds, not measured
+ * (default 10)</li>
+ * <li>duration : the duration of the measure in seconds (default 30)</li>
+ * <li>allowStale : true if the calls accept the cached requirements (default
+ * false)</li>
+ * <li>mix : the share of the calls which are needs/find, defects/find and
+ * needs/count (default 45/45/10)</li>
+ * </ul>
+ * Run from the test classpath, for example: mvn test-compile exec:java
+ * -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.agifac.lib.jira.plugin.api.services.JiraPluginLoadDriver
+ * -Dexec.args="threads=16 duration=60"
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginLoadDriver {
+    private static final String REST_PATH = "/jira/rest/taf_api/1.0/api";
+
+    private final JiraPluginServiceProvider serviceProvider;
+    private final List<Project> projects;
+    private final boolean allowStale;
+    private final int[] mix;
+    private final Map<Long, Set<String>> expectedNeeds = new HashMap<Long, Set<String>>();
+    private final Map<Long, Set<String>> expectedDefects = new HashMap<Long, Set<String>>();
+
+    public JiraPluginLoadDriver(JiraPluginServiceProvider serviceProvider, FakeJira fakeJira, boolean allowStale, int[] mix) throws Exception {
+        this.serviceProvider = serviceProvider;
+        this.projects = fakeJira.getProjects();
+        this.allowStale = allowStale;
+        this.mix = mix;
+        for (Project project : projects) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put(JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED, project.getKey());
+            expectedNeeds.put(project.getId(), fakeJira.getIssueKeys(project,
+                    JiraPluginJqlTemplate.compile(JiraPluginConfiguration.DEFAULT_NEEDS_JQL_QUERY_TEMPLATE).render(values)));
+            expectedDefects.put(project.getId(), fakeJira.getIssueKeys(project,
+                    JiraPluginJqlTemplate.compile(JiraPluginConfiguration.DEFAULT_DEFECTS_JQL_QUERY_TEMPLATE).render(values)));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            parameters.put(parts[0], parts.length > 1 ? parts[1] : "true");
+        }
+        int threads = getInt(parameters, "threads", 8);
+        String[] mixValues = getString(parameters, "mix", "45/45/10").split("/");
+        int[] mix = new int[] { Integer.parseInt(mixValues[0]), Integer.parseInt(mixValues[1]), Integer.parseInt(mixValues[2]) };
+        FakeJira fakeJira = new FakeJira(getInt(parameters, "projects", 20), getInt(parameters, "issues", 500), getString(parameters, "shapes",
+                FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES), getInt(parameters, "latency", 0), 42);
+        try {
+            JiraPluginLoadDriver driver = new JiraPluginLoadDriver(fakeJira.start(), fakeJira, Boolean.parseBoolean(getString(parameters,
+                    "allowStale", "false")), mix);
+            System.out.println("Warm-up with " + threads + " threads");
+            driver.run(threads, getInt(parameters, "warmup", 10) * 1000L);
+            System.out.println("Measure with " + threads + " threads");
+            driver.run(threads, getInt(parameters, "duration", 30) * 1000L).print(System.out);
+        } finally {
+            fakeJira.stop();
+        }
+    }
+
+    /**
+     * Run the calls from the specified number of threads during the
+     * specified duration
+     *
+     * @return the measures
+     */
+    public Result run(int threads, final long duration) throws Exception {
+        final long[][] latencies = new long[threads][];
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong workersAllocated = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    long[] recorded = new long[1024];
+                    int count = 0;
+                    CountingOutputStream out = new CountingOutputStream();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long allocatedBefore = getAllocatedBytes(Thread.currentThread().getId());
+                    long end = System.currentTimeMillis() + duration;
+                    while (System.currentTimeMillis() < end) {
+                        long callStart = System.nanoTime();
+                        try {
+                            if (!call(random, out)) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        if (count == recorded.length) {
+                            recorded = Arrays.copyOf(recorded, count * 2);
+                        }
+                        recorded[count++] = System.nanoTime() - callStart;
+                    }
+                    workersAllocated.addAndGet(getAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+                    latencies[index] = Arrays.copyOf(recorded, count);
+                    bytes.addAndGet(out.getCount());
+                }
+            }, "bizdock-load-" + i);
+            workers[i].start();
+        }
+        Map<Long, Long> allocatedBefore = getAllocatedBytesByThread();
+        long gcBefore = getGcCount();
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        // The calling threads measure their own allocations (they end with
+        // the run), the other threads (plugin executors) are measured here
+        long allocated = workersAllocated.get();
+        Map<Long, Long> allocatedAfter = getAllocatedBytesByThread();
+        for (Thread worker : workers) {
+            allocatedAfter.remove(worker.getId());
+        }
+        for (Map.Entry<Long, Long> threadAllocated : allocatedAfter.entrySet()) {
+            Long before = allocatedBefore.get(threadAllocated.getKey());
+            allocated += threadAllocated.getValue() - (before != null ? before : 0);
+        }
+        int total = 0;
+        for (long[] threadLatencies : latencies) {
+            total += threadLatencies.length;
+        }
+        long[] all = new long[total];
+        int position = 0;
+        for (long[] threadLatencies : latencies) {
+            System.arraycopy(threadLatencies, 0, all, position, threadLatencies.length);
+            position += threadLatencies.length;
+        }
+        Arrays.sort(all);
+        return new Result(all, errors.get(), elapsed, allocated, getGcCount() - gcBefore, bytes.get());
+    }
+
+    /**
+     * Call a random resource method for a random project
+     *
+     * @return true if the call succeeded and returned the expected content
+     */
+    private boolean call(Random random, OutputStream out) throws Exception {
+        Project project = projects.get(random.nextInt(projects.size()));
+        RequirementsRequestStructure request = new RequirementsRequestStructure();
+        request.setProjectRefId(String.valueOf(project.getId()));
+        request.setAllowStale(allowStale);
+        int choice = random.nextInt(mix[0] + mix[1] + mix[2]);
+        Response response;
+        boolean valid;
+        if (choice < mix[0]) {
+            response = createRestApi("/needs/find").getNeedsFromProjectId(request);
+            valid = isExpectedRequirements(response, expectedNeeds.get(project.getId()));
+        } else if (choice < mix[0] + mix[1]) {
+            response = createRestApi("/defects/find").getDefectsFromProjectId(request);
+            valid = isExpectedRequirements(response, expectedDefects.get(project.getId()));
+        } else {
+            response = createRestApi("/needs/count").getNeedsCountFromProjectId(request);
+            valid = response.getStatus() == 200
+                    && Long.valueOf(expectedNeeds.get(project.getId()).size()).equals(((RequirementsCount) response.getEntity()).getNeedsCount());
+        }
+        serialize(response, out);
+        return valid;
+    }
+
+    /**
+     * Return true if the response contains the expected requirements (only
+     * some of them if the result is truncated)
+     */
+    private static boolean isExpectedRequirements(Response response, Set<String> expectedKeys) {
+        if (response.getStatus() != 200 || !(response.getEntity() instanceof GenericEntity)) {
+            return false;
+        }
+        if (!String.valueOf(expectedKeys.size()).equals(String.valueOf(response.getMetadata().getFirst("x-jira-bizdock-total")))) {
+            return false;
+        }
+        List<?> requirements = (List<?>) ((GenericEntity<?>) response.getEntity()).getEntity();
+        Set<String> keys = new HashSet<String>();
+        for (Object requirement : requirements) {
+            if (!expectedKeys.contains(((Requirement) requirement).getId()) || !keys.add(((Requirement) requirement).getId())) {
+                return false;
+            }
+        }
+        boolean truncated = Boolean.parseBoolean(String.valueOf(response.getMetadata().getFirst("x-jira-bizdock-truncated")));
+        return truncated ? keys.size() < expectedKeys.size() : keys.size() == expectedKeys.size();
+    }
+
+    /**
+     * Create a REST resource for a signed call to the specified path (as
+     * done by JAX-RS for each request)
+     */
+    private JiraPluginRestApi createRestApi(String path) throws Exception {
+        final String requestUri = REST_PATH + path;
+        long timeStamp = System.currentTimeMillis();
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("x-jira-bizdock-auth", serviceProvider.signRequest(timeStamp, requestUri));
+        headers.put("x-jira-bizdock-timestamp", String.valueOf(timeStamp));
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("getRequestURI", requestUri);
+        properties.put("getRemoteAddr", "127.0.0.1");
+        properties.put("getRemoteHost", "localhost");
+        properties.put("getHeader", new FakeJira.Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                return headers.get(args[0]);
+            }
+        });
+        return new JiraPluginRestApi(serviceProvider, FakeJira.bean(HttpServletRequest.class, properties));
+    }
+
+    private static void serialize(Response response, OutputStream out) throws IOException {
+        Object entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        Class<?> type = entity.getClass();
+        Type genericType = type;
+        if (entity instanceof GenericEntity) {
+            type = ((GenericEntity<?>) entity).getRawType();
+            genericType = ((GenericEntity<?>) entity).getType();
+            entity = ((GenericEntity<?>) entity).getEntity();
+        }
+        JiraPluginJsonWriter writer = new JiraPluginJsonWriter();
+        if (writer.isWriteable(type, genericType, new Annotation[0], MediaType.APPLICATION_JSON_TYPE)) {
+            writer.writeTo(entity, type, genericType, new Annotation[0], MediaType.APPLICATION_JSON_TYPE, null, out);
+        } else {
+            // Other structures are serialized by JAXB in JIRA
+            out.write(String.valueOf(entity).getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Return the bytes allocated by each live thread (empty if the JVM does
+     * not measure the allocations)
+     */
+    static Map<Long, Long> getAllocatedBytesByThread() {
+        Map<Long, Long> allocatedBytes = new HashMap<Long, Long>();
+        com.sun.management.ThreadMXBean allocationMXBean = getAllocationMXBean();
+        if (allocationMXBean != null) {
+            long[] threadIds = allocationMXBean.getAllThreadIds();
+            long[] allocated = allocationMXBean.getThreadAllocatedBytes(threadIds);
+            for (int i = 0; i < threadIds.length; i++) {
+                if (allocated[i] > 0) {
+                    allocatedBytes.put(threadIds[i], allocated[i]);
+                }
+            }
+        }
+        return allocatedBytes;
+    }
+
+    /**
+     * Return the bytes allocated by the specified thread (0 if the JVM does
+     * not measure the allocations)
+     */
+    static long getAllocatedBytes(long threadId) {
+        com.sun.management.ThreadMXBean allocationMXBean = getAllocationMXBean();
+        return allocationMXBean != null ? Math.max(0, allocationMXBean.getThreadAllocatedBytes(threadId)) : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationMXBean() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!allocationMXBean.isThreadAllocatedMemorySupported() || !allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return allocationMXBean;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, garbageCollectorMXBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static int getInt(Map<String, String> parameters, String name, int defaultValue) {
+        return parameters.containsKey(name) ? Integer.parseInt(parameters.get(name)) : defaultValue;
+    }
+
+    private static String getString(Map<String, String> parameters, String name, String defaultValue) {
+        return parameters.containsKey(name) ? parameters.get(name) : defaultValue;
+    }
+
+    /**
+     * The measures of a run.<br/>
+     * The allocations are the ones of all the threads (the calling threads
+     * but also the plugin executors which run the searches), except the
+     * executor threads which ended during the run.
+     */
+    public static class Result {
+        private final long[] latencies;
+        private final long errors;
+        private final long elapsed;
+        private final long allocated;
+        private final long gcCount;
+        private final long bytes;
+
+        Result(long[] latencies, long errors, long elapsed, long allocated, long gcCount, long bytes) {
+            this.latencies = latencies;
+            this.errors = errors;
+            this.elapsed = elapsed;
+            this.allocated = allocated;
+            this.gcCount = gcCount;
+            this.bytes = bytes;
+        }
+
+        public long getCalls() {
+            return latencies.length;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getThroughput() {
+            return latencies.length / (elapsed / 1e9);
+        }
+
+        /**
+         * Return the latency (in milliseconds) of the specified percentile
+         */
+        public double getPercentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(latencies.length - 1, Math.ceil(percentile / 100 * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+
+        public long getAllocatedBytesPerCall() {
+            return latencies.length > 0 ? allocated / latencies.length : 0;
+        }
+
+        public void print(java.io.PrintStream out) {
+            out.println(String.format("calls=%d errors=%d throughput=%.1f/s", getCalls(), errors, getThroughput()));
+            out.println(String.format("latency ms p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f", getPercentile(50), getPercentile(90),
+                    getPercentile(99), getPercentile(99.9), getPercentile(100)));
+            out.println(String.format("allocation %.1f MB/s, %d bytes/call, %d GCs, %.1f KB/call written", allocated / (elapsed / 1e9) / 1048576,
+                    getAllocatedBytesPerCall(), gcCount, latencies.length > 0 ? bytes / 1024.0 / latencies.length : 0));
+        }
+    }
+
+    /**
+     * An output stream which only counts the bytes
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.project.Project;
+
+/**
+ * Run the {@link JiraPluginLoadDriver} briefly against a {@link FakeJira}: all
+ * the calls must return the issues matching the JQL templates (parsed and
+ * bound like in JIRA).
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginLoadDriverTest {
+    private FakeJira fakeJira;
+    private JiraPluginServiceProvider serviceProvider;
+    private JiraPluginLoadDriver driver;
+
+    @Before
+    public void setUp() throws Exception {
+        fakeJira = new FakeJira(3, 200, FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES, 0, 42);
+        serviceProvider = fakeJira.start();
+        driver = new JiraPluginLoadDriver(serviceProvider, fakeJira, false, new int[] { 45, 45, 10 });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fakeJira.stop();
+    }
+
+    @Test
+    public void theCallsReturnTheMatchingIssues() throws Exception {
+        JiraPluginLoadDriver.Result result = driver.run(2, 1000);
+        assertTrue(result.getCalls() > 0);
+        assertEquals(0, result.getErrors());
+    }
+
+    @Test
+    public void theTemplatesSelectTheNeedsAndTheDefects() throws Exception {
+        for (Project project : fakeJira.getProjects()) {
+            int needs = fakeJira.getIssueKeys(project, "project = " + project.getKey() + " AND issuetype in (Epic, Improvement, \"New Feature\")").size();
+            int defects = fakeJira.getIssueKeys(project, "project = " + project.getKey() + " AND issuetype = Bug").size();
+            int tasks = fakeJira.getIssueKeys(project, "project = " + project.getKey() + " AND issuetype = Task").size();
+            assertTrue(needs > 0 && defects > 0 && tasks > 0);
+            assertEquals(fakeJira.getIssuesPerProject(), needs + defects + tasks);
+        }
+    }
+
+    @Test
+    public void aPageStartsAtTheRequestedRequirement() throws Exception {
+        String projectRefId = String.valueOf(fakeJira.getProjects().get(0).getId());
+        List<String> all = getIds(serviceProvider.getDefectsForProject(projectRefId, new HashMap<String, Object>(), 0, false));
+        List<String> page = getIds(serviceProvider.getDefectsForProject(projectRefId, new HashMap<String, Object>(), 10, false));
+        assertTrue(all.size() > 10);
+        assertEquals(all.subList(10, all.size()), page);
+    }
+
+    private static List<String> getIds(RequirementsResult result) {
+        List<String> ids = new ArrayList<String>();
+        for (Requirement requirement : result.getRequirements()) {
+            ids.add(requirement.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,146 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.atlassian.jira.jql.parser.DefaultJqlQueryParser;
+import com.atlassian.query.Query;
+import com.atlassian.query.clause.AndClause;
+import com.atlassian.query.clause.Clause;
+import com.atlassian.query.clause.TerminalClause;
+import com.atlassian.query.operand.MultiValueOperand;
+import com.atlassian.query.operand.Operand;
+import com.atlassian.query.operand.SingleValueOperand;
+
+/**
+ * Check that a query bound by a {@link JiraPluginQueryPlan} has the clauses
+ * that the JIRA parser creates from the rendered JQL, without rendering it.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginQueryPlanTest {
+
+    @Test
+    public void aBoundQueryIsNotRendered() throws Exception {
+        JiraPluginQueryPlan queryPlan = plan("project = ${_jiraProjectKey_} AND (status = ${status} OR resolution = ${status})");
+        assertTrue(queryPlan.isBindable());
+        CountingMap values = values("status", "Open");
+        Query query = queryPlan.bind(values);
+        // One lookup per variable, the template is not rendered
+        assertEquals(2, values.lookups);
+        assertEquals("project = \"PRJ\" AND (status = \"Open\" OR resolution = \"Open\")", query.getQueryString());
+        assertEquals(5, values.lookups);
+    }
+
+    @Test
+    public void anIntegerIsANumberOperand() throws Exception {
+        SingleValueOperand operand = (SingleValueOperand) bindAndCompare("project = ${_jiraProjectKey_} AND votes > ${votes}", "votes", 3);
+        assertEquals(Long.valueOf(3), operand.getLongValue());
+    }
+
+    @Test
+    public void aDecimalIsNotTruncated() throws Exception {
+        SingleValueOperand operand = (SingleValueOperand) bindAndCompare("project = ${_jiraProjectKey_} AND cf[10000] > ${points}", "points", 2.5);
+        assertEquals("2.5", operand.getStringValue());
+    }
+
+    @Test
+    public void aListIsAMultiValueOperand() throws Exception {
+        Operand operand = bindAndCompare("project = ${_jiraProjectKey_} AND status in (${statuses})", "statuses", Arrays.asList("Open", "In Progress"));
+        assertTrue(operand instanceof MultiValueOperand);
+        List<Operand> operands = ((MultiValueOperand) operand).getValues();
+        assertEquals(2, operands.size());
+        assertEquals("Open", ((SingleValueOperand) operands.get(0)).getStringValue());
+        assertEquals("In Progress", ((SingleValueOperand) operands.get(1)).getStringValue());
+    }
+
+    @Test
+    public void aListIsMergedIntoTheOtherValues() throws Exception {
+        Operand operand = bindAndCompare("project = ${_jiraProjectKey_} AND status in (Closed, ${statuses})", "statuses",
+                Arrays.asList("Open", "In Progress"));
+        assertEquals(3, ((MultiValueOperand) operand).getValues().size());
+    }
+
+    @Test
+    public void anInjectionIsAStringOperand() throws Exception {
+        SingleValueOperand operand = (SingleValueOperand) bindAndCompare("project = ${_jiraProjectKey_} AND status = ${status}", "status",
+                "Open OR project = SECRET");
+        assertEquals("Open OR project = SECRET", operand.getStringValue());
+    }
+
+    @Test
+    public void aMissingValueIsNotBound() throws Exception {
+        JiraPluginQueryPlan queryPlan = plan("project = ${_jiraProjectKey_} AND status = ${status}");
+        assertTrue(queryPlan.isBindable());
+        assertEquals(null, queryPlan.bind(values()));
+    }
+
+    @Test
+    public void aVariableOutsideOfAnOperandIsNotBindable() throws Exception {
+        assertFalse(plan("project = ${_jiraProjectKey_} ORDER BY ${field}").isBindable());
+        assertFalse(plan("project = ${_jiraProjectKey_} AND status was ${status}").isBindable());
+    }
+
+    /**
+     * Bind the specified value and check that the second clause of the bound
+     * query is the clause parsed from the rendered JQL
+     *
+     * @return the operand of the second clause
+     */
+    private static Operand bindAndCompare(String template, String name, Object value) throws Exception {
+        JiraPluginQueryPlan queryPlan = plan(template);
+        assertTrue(queryPlan.isBindable());
+        Map<String, Object> values = values(name, value);
+        Query boundQuery = queryPlan.bind(values);
+        Query parsedQuery = new DefaultJqlQueryParser().parseQuery(JiraPluginJqlTemplate.compile(template).render(values));
+        TerminalClause boundClause = getSecondClause(boundQuery);
+        TerminalClause parsedClause = getSecondClause(parsedQuery);
+        assertEquals(parsedClause.getName(), boundClause.getName());
+        assertEquals(parsedClause.getOperator(), boundClause.getOperator());
+        assertEquals(parsedClause.getOperand(), boundClause.getOperand());
+        return boundClause.getOperand();
+    }
+
+    private static TerminalClause getSecondClause(Query query) {
+        assertTrue(query.getWhereClause() instanceof AndClause);
+        List<Clause> clauses = query.getWhereClause().getClauses();
+        assertEquals(2, clauses.size());
+        return (TerminalClause) clauses.get(1);
+    }
+
+    private static JiraPluginQueryPlan plan(String template) {
+        return JiraPluginQueryPlan.create(JiraPluginJqlTemplate.compile(template), new DefaultJqlQueryParser());
+    }
+
+    private static CountingMap values(Object... namesAndValues) {
+        CountingMap values = new CountingMap();
+        values.put(JiraPluginServiceProvider.PROJECT_TAG_TO_BE_REPLACED, "PRJ");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        values.lookups = 0;
+        return values;
+    }
+
+    /**
+     * The values of the variables, which counts the lookups
+     */
+    private static class CountingMap extends HashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+        private int lookups;
+
+        @Override
+        public Object get(Object key) {
+            lookups++;
+            return super.get(key);
+        }
+    }
+}
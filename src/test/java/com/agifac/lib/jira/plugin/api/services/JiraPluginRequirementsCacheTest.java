@@ -0,0 +1,122 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Check the bounds of the {@link JiraPluginRequirementsCache} and the stale
+ * results served by the service provider.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginRequirementsCacheTest {
+    private final JiraPluginRequirementsCache cache = new JiraPluginRequirementsCache();
+
+    @Test
+    public void aResultIsServedWithinItsMaximumAge() {
+        RequirementsResult result = result(10, System.currentTimeMillis() - 5000);
+        cache.put("a", result, cache.getGeneration());
+        assertSame(result, cache.get("a", 10000));
+        assertNull(cache.get("a", 1000));
+        assertTrue(cache.contains("a"));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedResultsAreEvicted() {
+        int size = JiraPluginRequirementsCache.MAX_REQUIREMENTS / 2;
+        long now = System.currentTimeMillis();
+        cache.put("a", result(size, now), cache.getGeneration());
+        cache.put("b", result(size, now), cache.getGeneration());
+        // "a" is used, "b" becomes the least recently used
+        cache.get("a", Long.MAX_VALUE);
+        cache.put("c", result(1, now), cache.getGeneration());
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(size + 1, cache.getRequirementsCount());
+    }
+
+    @Test
+    public void aResultLargerThanTheCacheIsNotCached() {
+        cache.put("a", result(JiraPluginRequirementsCache.MAX_REQUIREMENTS + 1, System.currentTimeMillis()), cache.getGeneration());
+        assertFalse(cache.contains("a"));
+        assertEquals(0, cache.getRequirementsCount());
+    }
+
+    @Test
+    public void aResultComputedBeforeAnInvalidationIsIgnored() {
+        long generation = cache.getGeneration();
+        cache.invalidate();
+        cache.put("a", result(1, System.currentTimeMillis()), generation);
+        assertFalse(cache.contains("a"));
+    }
+
+    @Test
+    public void anOlderResultDoesNotReplaceANewerOne() {
+        long now = System.currentTimeMillis();
+        RequirementsResult newer = result(1, now);
+        cache.put("a", newer, cache.getGeneration());
+        cache.put("a", result(2, now - 1000), cache.getGeneration());
+        assertSame(newer, cache.get("a", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void aSingleRefreshIsStartedForAnOldResult() {
+        RequirementsResult recent = result(1, System.currentTimeMillis());
+        assertFalse(cache.startRefresh("a", recent));
+        RequirementsResult old = result(1, System.currentTimeMillis() - JiraPluginRequirementsCache.MIN_AGE_BEFORE_REFRESH - 1000);
+        assertTrue(cache.startRefresh("a", old));
+        assertFalse(cache.startRefresh("a", old));
+        cache.endRefresh("a");
+        assertTrue(cache.startRefresh("a", old));
+    }
+
+    @Test
+    public void theKeyDependsOnTheParametersNotOnTheirOrder() {
+        HashMap<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("b", 2);
+        parameters.put("a", 1);
+        assertEquals("needs#10#{a=1, b=2}@5", JiraPluginRequirementsCache.createKey(false, "10", parameters, 5));
+        assertEquals("defects#10", JiraPluginRequirementsCache.createKey(true, "10", new HashMap<String, Object>(), 0));
+    }
+
+    @Test
+    public void aStaleResultIsServedOnlyToTheClientsWhichAcceptIt() throws Exception {
+        FakeJira fakeJira = new FakeJira(1, 50, FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES, 0, 42);
+        try {
+            JiraPluginServiceProvider serviceProvider = fakeJira.start();
+            String projectRefId = String.valueOf(fakeJira.getProjects().get(0).getId());
+            HashMap<String, Object> parameters = new HashMap<String, Object>();
+            // Not cached: the client does not accept stale results
+            RequirementsResult fresh = serviceProvider.getNeedsForProject(projectRefId, parameters, 0, false);
+            RequirementsResult first = serviceProvider.getNeedsForProject(projectRefId, parameters, 0, true);
+            assertNotSame(fresh, first);
+            assertSame(first, serviceProvider.getNeedsForProject(projectRefId, parameters, 0, true));
+            // A fresh result replaces the cached one
+            RequirementsResult refreshed = serviceProvider.getNeedsForProject(projectRefId, parameters, 0, false);
+            assertSame(refreshed, serviceProvider.getNeedsForProject(projectRefId, parameters, 0, true));
+            assertEquals(first.getETag(), refreshed.getETag());
+        } finally {
+            fakeJira.stop();
+        }
+    }
+
+    private static RequirementsResult result(int size, long timestamp) {
+        Requirement requirement = new Requirement();
+        requirement.setId("PRJ-1");
+        JiraPluginContentHash.setHash(requirement);
+        List<Requirement> requirements = new ArrayList<Requirement>(Collections.nCopies(size, requirement));
+        return new RequirementsResult(requirements, timestamp);
+    }
+}
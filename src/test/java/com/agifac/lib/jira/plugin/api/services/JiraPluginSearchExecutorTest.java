@@ -0,0 +1,164 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.Response;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.ErrorResponse;
+import com.agifac.lib.jira.plugin.api.services.JiraPluginRestApi.ErrorResponse.ErrorCode;
+
+/**
+ * Check the limits of the {@link JiraPluginSearchExecutor} and the error
+ * responses returned to the API clients when they are reached.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginSearchExecutorTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private JiraPluginSearchExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void aSearchIsRejectedWhenTheSlotsAreBusy() throws Exception {
+        executor = new JiraPluginSearchExecutor(1, 100, 10000);
+        Thread blocker = startBlockingSearch();
+        waitForRunning(1);
+        try {
+            executor.execute("second", value("unused"));
+            fail("The search should have been rejected");
+        } catch (JiraPluginOverloadedException e) {
+            assertError(e, 503, ErrorCode.OVERLOADED);
+        }
+        assertEquals(1, executor.getStatistics().getRejected());
+        release.countDown();
+        blocker.join(5000);
+        assertEquals("free", executor.execute("third", value("free")));
+    }
+
+    @Test
+    public void anAbandonedSearchIsCancelledAndKeepsItsSlot() throws Exception {
+        executor = new JiraPluginSearchExecutor(1, 100, 200);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        try {
+            executor.execute("slow", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    // A long running loop which checks the cancellation
+                    while (!JiraPluginSearchExecutor.isCancelled()) {
+                        Thread.sleep(10);
+                    }
+                    cancelled.set(true);
+                    Thread.sleep(200);
+                    stopped.countDown();
+                    return null;
+                }
+            });
+            fail("The search should have been abandoned");
+        } catch (JiraPluginTimeoutException e) {
+            assertError(e, 503, ErrorCode.TIMEOUT);
+        }
+        assertEquals(1, executor.getStatistics().getTimedOut());
+        // The slot is released only when the worker completes
+        assertEquals(1, executor.getStatistics().getRunning());
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        assertTrue(cancelled.get());
+        waitForRunning(0);
+        assertEquals("free", executor.execute("next", value("free")));
+    }
+
+    @Test
+    public void theSlotsAreResizedInPlace() throws Exception {
+        executor = new JiraPluginSearchExecutor(1, 100, 10000);
+        startBlockingSearch();
+        waitForRunning(1);
+        executor.reconfigure(2, 100, 10000);
+        assertEquals("second", executor.execute("second", value("second")));
+        assertEquals(2, executor.getStatistics().getMaxConcurrency());
+        executor.reconfigure(1, 100, 10000);
+        try {
+            executor.execute("third", value("unused"));
+            fail("The search should have been rejected");
+        } catch (JiraPluginOverloadedException e) {
+            // The only slot is still held by the blocking search
+        }
+    }
+
+    @Test
+    public void aFailureIsAnUnexpectedError() throws Exception {
+        executor = new JiraPluginSearchExecutor(1, 100, 10000);
+        try {
+            executor.execute("failing", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    throw new IllegalStateException("Search failure");
+                }
+            });
+            fail("The failure should have been thrown");
+        } catch (JiraPluginException e) {
+            assertError(e, 400, ErrorCode.UNEXPECTED);
+        }
+        assertEquals(1, executor.getStatistics().getFailed());
+    }
+
+    private Thread startBlockingSearch() {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute("blocking", new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            release.await(10, TimeUnit.SECONDS);
+                            return null;
+                        }
+                    });
+                } catch (JiraPluginException e) {
+                    // Test failure, detected by the running count
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private void waitForRunning(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getStatistics().getRunning() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, executor.getStatistics().getRunning());
+    }
+
+    private static void assertError(Exception e, int status, ErrorCode errorCode) {
+        Response response = JiraPluginRestApi.returnErrorResponseOnException(e);
+        assertEquals(status, response.getStatus());
+        assertEquals(errorCode, ((ErrorResponse) response.getEntity()).getErrorCode());
+    }
+
+    private static Callable<String> value(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return value;
+            }
+        };
+    }
+}
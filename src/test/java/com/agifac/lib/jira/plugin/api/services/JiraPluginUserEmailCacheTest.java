@@ -0,0 +1,157 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.atlassian.jira.user.ApplicationUser;
+import com.atlassian.jira.user.util.UserUtil;
+
+/**
+ * Check that a {@link JiraPluginUserEmailCache} resolves a user once within
+ * its time to live, keeps at most its maximum number of users and forgets the
+ * invalidated users, and that its statistics describe this activity.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginUserEmailCacheTest {
+    private static final long TIME_TO_LIVE = 60000;
+
+    private final Map<String, String> emails = new HashMap<String, String>();
+    private final List<String> resolutions = new ArrayList<String>();
+    private JiraPluginUserEmailCache cache;
+
+    @Test
+    public void aUserIsResolvedOnceWithinItsTimeToLive() {
+        cache = createCache(10, TIME_TO_LIVE);
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals("b@bizdock.io", cache.getEmail("b"));
+        assertEquals(2, resolutions.size());
+        JiraPluginUserEmailCache.Statistics statistics = cache.getStatistics();
+        assertEquals(2, statistics.getSize());
+        assertEquals(2, statistics.getHits());
+        assertEquals(2, statistics.getMisses());
+        assertEquals(0.5, statistics.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void anUnknownUserIsCachedWithoutEmail() {
+        cache = createCache(10, TIME_TO_LIVE);
+        assertNull(cache.getEmail("unknown"));
+        assertNull(cache.getEmail("unknown"));
+        assertNull(cache.getEmail(null));
+        assertEquals(1, resolutions.size());
+        assertEquals(1, cache.getStatistics().getHits());
+        assertEquals(0, new JiraPluginUserEmailCache(null, 10, TIME_TO_LIVE).getStatistics().getHitRate(), 0);
+    }
+
+    @Test
+    public void anExpiredUserIsResolvedAgain() throws Exception {
+        cache = createCache(10, 50);
+        cache.getEmail("a");
+        cache.getEmail("b");
+        Thread.sleep(100);
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals(3, resolutions.size());
+        assertEquals(1, cache.getStatistics().getExpirations());
+        // The purge removes the users which have not been requested since
+        Thread.sleep(100);
+        cache.purge();
+        JiraPluginUserEmailCache.Statistics statistics = cache.getStatistics();
+        assertEquals(0, statistics.getSize());
+        assertEquals(3, statistics.getExpirations());
+        assertEquals(0, statistics.getHits());
+    }
+
+    @Test
+    public void theLeastRecentlyUsedUserIsEvicted() {
+        cache = createCache(2, TIME_TO_LIVE);
+        cache.getEmail("a");
+        cache.getEmail("b");
+        cache.getEmail("a");
+        cache.getEmail("c");
+        JiraPluginUserEmailCache.Statistics statistics = cache.getStatistics();
+        assertEquals(2, statistics.getSize());
+        assertEquals(2, statistics.getMaxSize());
+        assertEquals(1, statistics.getEvictions());
+        // b was evicted, a and c are still cached
+        resolutions.clear();
+        cache.getEmail("a");
+        cache.getEmail("c");
+        assertEquals(0, resolutions.size());
+        cache.getEmail("b");
+        assertEquals(1, resolutions.size());
+    }
+
+    @Test
+    public void anInvalidatedUserIsResolvedAgain() {
+        cache = createCache(10, TIME_TO_LIVE);
+        cache.getEmail("a");
+        cache.getEmail("b");
+        emails.put("a", "a2@bizdock.io");
+        cache.invalidate("a");
+        cache.invalidate("unknown");
+        assertEquals("a2@bizdock.io", cache.getEmail("a"));
+        assertEquals("b@bizdock.io", cache.getEmail("b"));
+        assertEquals(3, resolutions.size());
+        assertEquals(1, cache.getStatistics().getInvalidations());
+        cache.invalidateAll();
+        assertEquals(0, cache.getStatistics().getSize());
+        assertEquals(3, cache.getStatistics().getInvalidations());
+        cache.getEmail("b");
+        assertEquals(4, resolutions.size());
+    }
+
+    @Test
+    public void aResolutionConcurrentWithAnInvalidationIsNotCached() {
+        cache = createCache(10, TIME_TO_LIVE);
+        // The user is updated while it is resolved
+        emails.put("a", null);
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals(0, cache.getStatistics().getSize());
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals("a@bizdock.io", cache.getEmail("a"));
+        assertEquals(2, resolutions.size());
+    }
+
+    /**
+     * Return a cache of users whose email address is userKey@bizdock.io (or
+     * the one of the emails map), the user "unknown" does not exist and a
+     * user whose email is null in the emails map is invalidated while it is
+     * resolved
+     */
+    private JiraPluginUserEmailCache createCache(int maxSize, long timeToLive) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("getUserByKey", new FakeJira.Answer() {
+            @Override
+            public Object answer(Object[] args) {
+                String userKey = (String) args[0];
+                resolutions.add(userKey);
+                if (userKey.equals("unknown")) {
+                    return null;
+                }
+                String email = userKey + "@bizdock.io";
+                if (emails.containsKey(userKey)) {
+                    email = emails.remove(userKey);
+                    if (email == null) {
+                        cache.invalidate(userKey);
+                        email = userKey + "@bizdock.io";
+                    }
+                }
+                Map<String, Object> userProperties = new HashMap<String, Object>();
+                userProperties.put("getKey", userKey);
+                userProperties.put("getEmailAddress", email);
+                return FakeJira.bean(ApplicationUser.class, userProperties);
+            }
+        });
+        return new JiraPluginUserEmailCache(FakeJira.bean(UserUtil.class, properties), maxSize, timeToLive);
+    }
+}
@@ -0,0 +1,155 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atlassian.jira.issue.Issue;
+import com.atlassian.jira.project.Project;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Push the changes of a {@link FakeJira} to a local HTTP server standing for
+ * the BizDock callback URL.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class JiraPluginWebhookDispatcherTest {
+    private static final String CALLBACK_URI = "/callback?instance=1";
+
+    private FakeJira fakeJira;
+    private JiraPluginServiceProvider serviceProvider;
+    private JiraPluginWebhookDispatcher dispatcher;
+    private HttpServer server;
+    private final BlockingQueue<Integer> statuses = new LinkedBlockingQueue<Integer>();
+    private final BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/callback", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Delivery delivery = new Delivery();
+                delivery.timestamp = System.currentTimeMillis();
+                delivery.timeStampHeader = exchange.getRequestHeaders().getFirst("x-jira-bizdock-timestamp");
+                delivery.authenticationHeader = exchange.getRequestHeaders().getFirst("x-jira-bizdock-auth");
+                delivery.body = read(exchange.getRequestBody());
+                Integer status = statuses.poll();
+                exchange.sendResponseHeaders(status != null ? status : 200, -1);
+                exchange.close();
+                deliveries.add(delivery);
+            }
+        });
+        server.start();
+        fakeJira = new FakeJira(2, 20, FakeJira.DEFAULT_CUSTOM_FIELD_SHAPES, 0, 42);
+        serviceProvider = fakeJira.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + CALLBACK_URI;
+        assertTrue(serviceProvider.updatePluginConfigurationWebhook(url, 200).getLeft());
+        dispatcher = new JiraPluginWebhookDispatcher(serviceProvider);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcher.shutdown();
+        fakeJira.stop();
+        server.stop(0);
+    }
+
+    @Test
+    public void theChangesOfAProjectAreCoalescedInOneSignedBatch() throws Exception {
+        Project project = fakeJira.getProjects().get(0);
+        List<Issue> issues = fakeJira.getIssues(project);
+        dispatcher.submit(issues.get(0).getId(), issues.get(0).getKey(), project.getId(), false, 200);
+        dispatcher.submit(issues.get(1).getId(), issues.get(1).getKey(), project.getId(), false, 200);
+        dispatcher.submit(issues.get(0).getId(), issues.get(0).getKey(), project.getId(), false, 200);
+        Delivery delivery = deliveries.poll(10, TimeUnit.SECONDS);
+        assertNotNull(delivery);
+        assertNull(deliveries.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals(2, count(delivery.body, "\"projectRefId\":\"" + project.getId() + "\""));
+        assertTrue(delivery.body.contains("\"id\":\"" + issues.get(0).getKey() + "\""));
+        assertTrue(delivery.body.contains("\"id\":\"" + issues.get(1).getKey() + "\""));
+        assertEquals(serviceProvider.signRequest(Long.parseLong(delivery.timeStampHeader), CALLBACK_URI), delivery.authenticationHeader);
+        JiraPluginWebhookDispatcher.Statistics statistics = awaitDeliveredBatches(1);
+        assertEquals(3, statistics.getSubmitted());
+        assertEquals(1, statistics.getCoalesced());
+        assertEquals(1, statistics.getDeliveredBatches());
+        assertEquals(2, statistics.getDeliveredChanges());
+    }
+
+    @Test
+    public void aBatchIsRetriedWithABackoffAfterAServerError() throws Exception {
+        statuses.add(503);
+        Project project = fakeJira.getProjects().get(1);
+        Issue issue = fakeJira.getIssues(project).get(0);
+        dispatcher.submit(issue.getId(), issue.getKey(), project.getId(), false, 0);
+        Delivery failed = deliveries.poll(10, TimeUnit.SECONDS);
+        Delivery retried = deliveries.poll(10, TimeUnit.SECONDS);
+        assertNotNull(failed);
+        assertNotNull(retried);
+        assertEquals(failed.body, retried.body);
+        assertTrue(retried.timestamp - failed.timestamp >= JiraPluginWebhookDispatcher.RETRY_BASE_DELAY);
+        JiraPluginWebhookDispatcher.Statistics statistics = awaitDeliveredBatches(1);
+        assertEquals(1, statistics.getRetries());
+        assertEquals(0, statistics.getFailedChanges());
+    }
+
+    /**
+     * Wait until the dispatcher has recorded the specified number of delivered
+     * batches (the server answers before the dispatcher counts)
+     */
+    private JiraPluginWebhookDispatcher.Statistics awaitDeliveredBatches(long deliveredBatches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        JiraPluginWebhookDispatcher.Statistics statistics = dispatcher.getStatistics();
+        while (statistics.getDeliveredBatches() < deliveredBatches && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            statistics = dispatcher.getStatistics();
+        }
+        assertEquals(deliveredBatches, statistics.getDeliveredBatches());
+        return statistics;
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * A request received by the callback URL
+     */
+    private static class Delivery {
+        private long timestamp;
+        private String timeStampHeader;
+        private String authenticationHeader;
+        private String body;
+    }
+}
@@ -0,0 +1,55 @@
+package com.agifac.lib.jira.plugin.api.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Check that a {@link RequirementsResult} uses the hashes set when its
+ * requirements were mapped, without modifying them.
+ *
+ * @author Pierre-Yves Cloux
+ */
+public class RequirementsResultTest {
+
+    @Test
+    public void aHashIsParsedBack() {
+        for (long hash : new long[] { 0, 1, -1, 0x0123456789abcdefL, Long.MIN_VALUE }) {
+            assertEquals(hash, JiraPluginContentHash.parse(JiraPluginContentHash.toString(hash)));
+        }
+    }
+
+    @Test
+    public void theResultDoesNotModifyTheRequirements() {
+        Requirement mapped = requirement("PRJ-1");
+        JiraPluginContentHash.setHash(mapped);
+        String hash = mapped.getHash();
+        Requirement notMapped = requirement("PRJ-2");
+        RequirementsResult result = new RequirementsResult(new ArrayList<Requirement>(Arrays.asList(mapped, notMapped)), 0);
+        assertEquals(hash, mapped.getHash());
+        assertNull(notMapped.getHash());
+        // Same content hash as if both requirements had been mapped
+        JiraPluginContentHash.setHash(notMapped);
+        assertEquals(result.getETag(), new RequirementsResult(Arrays.asList(mapped, notMapped), 0).getETag());
+    }
+
+    @Test
+    public void theLengthOfTheRemovedHeaderIsTheLengthOfTheJoinedIds() {
+        assertEquals(0, JiraPluginRestApi.getHeaderLength(null));
+        assertEquals(0, JiraPluginRestApi.getHeaderLength(Collections.<String> emptyList()));
+        assertEquals("PRJ-1,PRJ-22".length(), JiraPluginRestApi.getHeaderLength(Arrays.asList("PRJ-1", "PRJ-22")));
+    }
+
+    private static Requirement requirement(String id) {
+        Requirement requirement = new Requirement();
+        requirement.setId(id);
+        requirement.setName("Name of " + id);
+        return requirement;
+    }
+}